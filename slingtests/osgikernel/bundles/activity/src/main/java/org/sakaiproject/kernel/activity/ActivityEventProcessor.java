@@ -18,47 +18,117 @@
 package org.sakaiproject.kernel.activity;
 
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTOR_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
-import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
 
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
-import org.sakaiproject.kernel.api.activity.ActivityConstants;
+import org.sakaiproject.kernel.api.activity.ActivityFeedService;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
 import org.sakaiproject.kernel.api.connections.ConnectionState;
-import org.sakaiproject.kernel.util.JcrUtils;
-import org.sakaiproject.kernel.util.PathUtils;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Dictionary;
 import java.util.List;
-import java.util.UUID;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 /**
+ * Delivers activity to the feeds of the actor's connections. In the write mode each
+ * activity is copied into the feed of every connection by an {@link ActivityFanOut}. In
+ * the read mode the activity is only stored once, and feeds are merged from the recent
+ * activity of the user's connections when they are read through
+ * {@link ActivityFeedService}. The recent activity is held in a
+ * {@link RecentActivityCache} in both modes, so the mode can be changed without losing
+ * the merged feeds. The cache is cluster invalidated, so every server sees new activity.
+ * 
  * @scr.component immediate="true" label="ActivityEventProcessor"
  *                description="ActivityEventProcessor"
  * @scr.property name="service.description" value="ActivityEventProcessor"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="event.topics" value="org/sakaiproject/kernel/activity"
+ * @scr.property name="activity.fanout.mode" value="write"
+ *               description="write to copy activity into each feed, read to merge feeds when they are read"
+ * @scr.property name="activity.fanout.chunkSize" value="100"
+ * @scr.property name="activity.fanout.workers" value="2"
+ * @scr.property name="activity.feed.recentItems" value="50"
  * @scr.service interface="org.osgi.service.event.EventHandler"
+ * @scr.service interface="org.sakaiproject.kernel.api.activity.ActivityFeedService"
  * @scr.reference name="SlingRepository"
  *                interface="org.apache.sling.jcr.api.SlingRepository"
  * @scr.reference name="ConnectionManager"
  *                interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
+ * @scr.reference name="CacheManagerService"
+ *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
  * 
  */
-public class ActivityEventProcessor implements EventHandler {
+public class ActivityEventProcessor implements EventHandler, ActivityFeedService {
   private static final Logger LOG = LoggerFactory.getLogger(ActivityEventProcessor.class);
+  private static final String PROP_MODE = "activity.fanout.mode";
+  private static final String PROP_CHUNK_SIZE = "activity.fanout.chunkSize";
+  private static final String PROP_WORKERS = "activity.fanout.workers";
+  private static final String RECENT_ACTIVITY_CACHE = "activity.recent";
+  private static final String PROP_RECENT_ITEMS = "activity.feed.recentItems";
+  /**
+   * Copy each activity into the feeds of the actor's connections.
+   */
+  public static final String MODE_WRITE = "write";
+  /**
+   * Merge the feeds when they are read.
+   */
+  public static final String MODE_READ = "read";
+
   protected ConnectionManager connectionManager = null;
 
   protected SlingRepository slingRepository;
 
+  protected CacheManagerService cacheManagerService;
+
+  private String mode = MODE_WRITE;
+  private int recentItems = 50;
+  private ActivityFanOut fanOut;
+  private RecentActivityCache recentActivity;
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    Object modeValue = props.get(PROP_MODE);
+    if (MODE_READ.equals(modeValue)) {
+      mode = MODE_READ;
+    } else {
+      mode = MODE_WRITE;
+    }
+    recentItems = OsgiUtil.toInteger(props.get(PROP_RECENT_ITEMS), 50);
+    Cache<List<ActivityRef>> cache = cacheManagerService.getCache(RECENT_ACTIVITY_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+    recentActivity = new RecentActivityCache(cache, recentItems);
+    if (MODE_WRITE.equals(mode)) {
+      fanOut = new ActivityFanOut(slingRepository, OsgiUtil.toInteger(props
+          .get(PROP_CHUNK_SIZE), 100), OsgiUtil.toInteger(props.get(PROP_WORKERS), 2));
+    }
+    LOG.info("Activity fan out on {}", mode);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (fanOut != null) {
+      fanOut.close();
+      fanOut = null;
+    }
+  }
+
   public void handleEvent(Event event) {
     LOG.debug("handleEvent(Event {})", event);
     final String activityItemPath = (String) event.getProperty("activityItemPath");
@@ -78,8 +148,16 @@ public class ActivityEventProcessor implements EventHandler {
           throw new IllegalStateException("Could not determine actor of activity: "
               + activity);
         }
+        // record when the activity happened, so feeds can be merged in order.
+        Calendar created = Calendar.getInstance();
+        activity.setProperty(CREATED_PROPERTY, created);
+        session.save();
+        recentActivity.add(actor, new ActivityRef(activityItemPath, created
+            .getTimeInMillis()));
         // TODO assume we were passed the connections hint; need to check
-        deliverActivityToConnections(session, activity, actor);
+        if (MODE_WRITE.equals(mode)) {
+          deliverActivityToConnections(activityItemPath, actor);
+        }
       } else {
         LOG.error("Could not process activity: {}", activityItemPath);
         throw new Error("Could not process activity: " + activityItemPath);
@@ -96,63 +174,96 @@ public class ActivityEventProcessor implements EventHandler {
 
   }
 
-  private void deliverActivityToConnections(Session session, Node activity, String actor)
-      throws RepositoryException {
-    LOG.debug("deliverActivityToConnections(Session {}, Node {}, String {})",
-        new Object[] { session, activity, actor });
+  private void deliverActivityToConnections(String activityItemPath, String actor) {
+    LOG.debug("deliverActivityToConnections(String {}, String {})", activityItemPath,
+        actor);
     // get the users connected to the actor and distribute to them
-    String activityFeedPath = null;
     List<String> connections = connectionManager.getConnectedUsers(actor,
         ConnectionState.ACCEPTED);
     if (connections == null || connections.size() <= 0) {
       LOG.debug("{} acted but has no connections; nothing to do.", actor);
-    } else { // actor has connections
-      for (String connection : connections) {
-        // deliver to each connection
-        LOG.debug("{} acted; delivering activity to connection: {}", new Object[] {
-            actor, connection });
-        // /_user/private is a BigStore, get the hashed path
-        activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE, connection,
-            "/activityFeed");
-        deliverActivityToFeed(session, activity, activityFeedPath);
-      }
+    } else if (fanOut == null) {
+      LOG.warn("Not active, activity {} not delivered to connections of {} ",
+          activityItemPath, actor);
+    } else {
+      LOG.debug("{} acted; delivering activity to {} connections", actor, connections
+          .size());
+      fanOut.deliver(activityItemPath, connections);
     }
   }
 
-  private void deliverActivityToFeed(Session session, Node activity,
-      String activityFeedPath) throws RepositoryException {
-    // ensure the activityFeed node with the proper type
-    Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session, activityFeedPath);
-    if (activityFeedNode.isNew()) {
-      activityFeedNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-          ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
-      session.save();
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.activity.ActivityFeedService#getFeed(java.lang.String,
+   *      int)
+   */
+  public List<String> getFeed(String user, int limit) {
+    List<String> feed = new ArrayList<String>();
+    List<String> connections = connectionManager.getConnectedUsers(user,
+        ConnectionState.ACCEPTED);
+    if (connections == null || connections.size() == 0) {
+      return feed;
     }
-    // activityFeed exists, let's continue with delivery
-    // activityFeed is a BigStore, get the hashed (real) path
-    final String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
-        .randomUUID().toString(), "");
-    // ensure the parent path exists before we copy source activity
-    final String parentPath = deliveryPath.substring(0, deliveryPath.lastIndexOf("/"));
-    final Node parentNode = JcrUtils.deepGetOrCreateNode(session, parentPath);
-    if (parentNode.isNew()) {
-      session.save();
+    List<List<ActivityRef>> recent = new ArrayList<List<ActivityRef>>();
+    Session session = null;
+    try {
+      for (String connection : connections) {
+        List<ActivityRef> refs = recentActivity.get(connection, limit);
+        if (refs == null) {
+          if (session == null) {
+            session = slingRepository.loginAdministrative(null);
+          }
+          long generation = recentActivity.generation(connection);
+          List<ActivityRef> loaded = loadRecentActivity(session, connection);
+          if (!recentActivity.put(connection, loaded, generation)) {
+            // activity was added while loading, load it again on the next read.
+            LOG.debug("Activity of {} changed while loading, not cached", connection);
+          }
+          refs = RecentActivityCache.newest(loaded, limit);
+        }
+        recent.add(refs);
+      }
+    } catch (RepositoryException e) {
+      LOG.error("Failed to load the feed of " + user, e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+    for (ActivityRef ref : RecentActivityCache.merge(recent, limit)) {
+      feed.add(ref.getPath());
     }
-    // now copy the activity from the store to the feed
-    copyActivityItem(session, activity.getPath(), deliveryPath);
+    return feed;
   }
 
-  private void copyActivityItem(Session session, String source, String destination)
+  /**
+   * @param session
+   * @param actor
+   * @return the most recent activity of the actor, newest first.
+   * @throws RepositoryException
+   */
+  private List<ActivityRef> loadRecentActivity(Session session, String actor)
       throws RepositoryException {
-    LOG.debug("copyActivityItem(Session {}, String {}, String {})", new Object[] {
-        session, source, destination });
-    // now copy the activity from the source to the destination
-    session.getWorkspace().copy(source, destination);
-    // next let's create a source property to refer back to the original item
-    // in the ActivityStore
-    Node feedItem = (Node) session.getItem(destination);
-    feedItem.setProperty(SOURCE_PROPERTY, source);
-    session.save();
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    // copies in the feeds of connections are left out by the query, so that an actor with
+    // many connections does not have to be read past them.
+    Query query = queryManager.createQuery("//*[@" + ACTOR_PROPERTY + "='"
+        + actor.replaceAll("'", "''") + "' and @" + CREATED_PROPERTY + " and not(@"
+        + SOURCE_PROPERTY + ")] order by @" + CREATED_PROPERTY + " descending",
+        Query.XPATH);
+    NodeIterator nodes = query.execute().getNodes();
+    List<ActivityRef> refs = new ArrayList<ActivityRef>();
+    // no more nodes than the cache holds are read, whatever they turn out to be.
+    for (int read = 0; read < recentItems && nodes.hasNext(); read++) {
+      Node node = nodes.nextNode();
+      // copies in the feeds of connections refer back to their source.
+      if (!node.hasProperty(SOURCE_PROPERTY)) {
+        refs.add(new ActivityRef(node.getPath(), node.getProperty(CREATED_PROPERTY)
+            .getDate().getTimeInMillis()));
+      }
+    }
+    return refs;
   }
 
   protected void bindSlingRepository(SlingRepository slingRepository) {
@@ -163,6 +274,14 @@ public class ActivityEventProcessor implements EventHandler {
     this.slingRepository = null;
   }
 
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
   protected void bindConnectionManager(ConnectionManager connectionManager) {
     this.connectionManager = connectionManager;
   }
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.activity.ActivityConstants;
+import org.sakaiproject.kernel.util.BatchWriter;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Copies an activity into the feeds of the actor's connections. The connections are split
+ * into chunks, each chunk is written by one of a small pool of workers with a session of
+ * its own and saved once. The copies are made in the session, rather than with a
+ * workspace copy, so that they are only persisted by the save. When all the workers are
+ * busy and their queue is full, the chunk is written on the calling thread.
+ */
+public class ActivityFanOut {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ActivityFanOut.class);
+
+  private final SlingRepository slingRepository;
+  private final int chunkSize;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param slingRepository
+   *          where administrative sessions are taken from.
+   * @param chunkSize
+   *          the number of feeds written between saves.
+   * @param workers
+   *          the number of workers.
+   */
+  public ActivityFanOut(SlingRepository slingRepository, int chunkSize, int workers) {
+    this.slingRepository = slingRepository;
+    this.chunkSize = Math.max(1, chunkSize);
+    final AtomicInteger n = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(1000), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "activity-fanout-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Deliver an activity to the feeds of a list of users.
+   * 
+   * @param activityPath
+   *          the path of the activity in its store.
+   * @param connections
+   *          the users to deliver to.
+   */
+  public void deliver(String activityPath, List<String> connections) {
+    for (int i = 0; i < connections.size(); i += chunkSize) {
+      List<String> chunk = new ArrayList<String>(connections.subList(i, Math.min(i
+          + chunkSize, connections.size())));
+      executor.execute(new Chunk(activityPath, chunk));
+    }
+  }
+
+  /**
+   * Stop the workers, waiting for the chunks already submitted.
+   */
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+        LOG.warn("Activity fan out did not finish in 30s, {} chunks dropped", executor
+            .shutdownNow().size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Write and save a chunk of copies. If the chunk fails to save, the copies are written
+   * and saved one at a time, so that one bad feed does not lose the rest.
+   * 
+   * @param session
+   * @param activityPath
+   * @param chunk
+   * @throws RepositoryException
+   */
+  protected void deliverChunk(Session session, final String activityPath,
+      List<String> chunk) throws RepositoryException {
+    final Node activity = (Node) session.getItem(activityPath);
+    new BatchWriter<String>() {
+      @Override
+      protected void write(Session session, String connection) throws RepositoryException {
+        LOG.debug("Delivering activity {} to connection: {}", activityPath, connection);
+        writeCopy(session, activity, connection);
+      }
+
+      @Override
+      protected void failed(String connection, RepositoryException e) {
+        LOG.error("Failed to deliver activity " + activityPath + " to " + connection, e);
+      }
+
+      @Override
+      protected void save(Session session) throws RepositoryException {
+        ActivityFanOut.this.save(session);
+      }
+
+      @Override
+      protected void discard(Session session) throws RepositoryException {
+        ActivityFanOut.this.discard(session);
+      }
+    }.writeBatch(session, chunk);
+  }
+
+  /**
+   * Write one copy of an activity into a user's feed, without saving it.
+   * 
+   * @param session
+   * @param activity
+   * @param connection
+   * @throws RepositoryException
+   */
+  protected void writeCopy(Session session, Node activity, String connection)
+      throws RepositoryException {
+    // /_user/private is a BigStore, get the hashed path
+    String activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE, connection,
+        "/activityFeed");
+    // ensure the activityFeed node with the proper type
+    Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session, activityFeedPath);
+    if (activityFeedNode.isNew()) {
+      activityFeedNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
+    }
+    // activityFeed is a BigStore, get the hashed (real) path
+    String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
+        .randomUUID().toString(), "");
+    Node feedItem = JcrUtils.deepGetOrCreateNode(session, deliveryPath, activity
+        .getPrimaryNodeType().getName());
+    copyContent(activity, feedItem);
+    // refer back to the original item in the ActivityStore
+    feedItem.setProperty(SOURCE_PROPERTY, activity.getPath());
+  }
+
+  /**
+   * Copy the mixins, properties and child nodes of a node, as a workspace copy would. The
+   * copy must already have the primary type of the node. Protected items are left out, the
+   * repository sets them on the copy from its types.
+   * 
+   * @param from
+   * @param to
+   * @throws RepositoryException
+   */
+  private void copyContent(Node from, Node to) throws RepositoryException {
+    for (NodeType mixin : from.getMixinNodeTypes()) {
+      to.addMixin(mixin.getName());
+    }
+    PropertyIterator pi = from.getProperties();
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      if (p.getDefinition().isProtected()) {
+        continue;
+      }
+      if (p.getDefinition().isMultiple()) {
+        to.setProperty(p.getName(), p.getValues());
+      } else {
+        to.setProperty(p.getName(), p.getValue());
+      }
+    }
+    NodeIterator ni = from.getNodes();
+    while (ni.hasNext()) {
+      Node child = ni.nextNode();
+      if (child.getDefinition().isProtected()) {
+        continue;
+      }
+      copyContent(child, to.addNode(child.getName(), child.getPrimaryNodeType()
+          .getName()));
+    }
+  }
+
+  /**
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void save(Session session) throws RepositoryException {
+    session.save();
+  }
+
+  /**
+   * Throw away unsaved changes.
+   * 
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void discard(Session session) throws RepositoryException {
+    session.refresh(false);
+  }
+
+  /**
+   * @return a new administrative session.
+   * @throws RepositoryException
+   */
+  protected Session login() throws RepositoryException {
+    return slingRepository.loginAdministrative(null);
+  }
+
+  /**
+   * @param session
+   *          the session to log out, may be null.
+   */
+  protected void logout(Session session) {
+    if (session != null) {
+      session.logout();
+    }
+  }
+
+  /**
+   * One chunk of the feeds to deliver an activity to.
+   */
+  private class Chunk implements Runnable {
+    private final String activityPath;
+    private final List<String> connections;
+
+    Chunk(String activityPath, List<String> connections) {
+      this.activityPath = activityPath;
+      this.connections = connections;
+    }
+
+    public void run() {
+      Session session = null;
+      try {
+        session = login();
+        deliverChunk(session, activityPath, connections);
+      } catch (RepositoryException e) {
+        LOG.error("Failed to deliver activity " + activityPath + " to "
+            + connections.size() + " connections", e);
+      } catch (RuntimeException e) {
+        LOG.error("Failed to deliver activity " + activityPath + " to "
+            + connections.size() + " connections", e);
+      } finally {
+        logout(session);
+      }
+    }
+  }
+}
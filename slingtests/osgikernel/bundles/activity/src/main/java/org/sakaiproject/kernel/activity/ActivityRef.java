@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+/**
+ * A reference to an activity item in an activity store.
+ */
+public class ActivityRef implements Comparable<ActivityRef> {
+
+  private final String path;
+  private final long created;
+
+  /**
+   * @param path
+   *          the path of the activity item.
+   * @param created
+   *          when the activity was recorded, in ms.
+   */
+  public ActivityRef(String path, long created) {
+    this.path = path;
+    this.created = created;
+  }
+
+  /**
+   * @return the path of the activity item.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return when the activity was recorded, in ms.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Newest first, then by path.
+   * 
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Comparable#compareTo(java.lang.Object)
+   */
+  public int compareTo(ActivityRef o) {
+    if (created != o.created) {
+      return created > o.created ? -1 : 1;
+    }
+    return path.compareTo(o.path);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof ActivityRef) {
+      ActivityRef o = (ActivityRef) obj;
+      return created == o.created && path.equals(o.path);
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return path.hashCode();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return path + "@" + created;
+  }
+}
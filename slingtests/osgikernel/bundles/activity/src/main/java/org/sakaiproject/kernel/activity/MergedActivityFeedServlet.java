@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.kernel.api.activity.ActivityFeedService;
+import org.sakaiproject.kernel.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Outputs the activity feed of the current user, merged from the recent activity of the
+ * users they are connected to. Items the current user cannot read are left out.
+ * <p>
+ * Optional parameters:<br/>
+ * items: the number of items, 25 by default.
+ * 
+ * @scr.component immediate="true" label="MergedActivityFeedServlet"
+ *                description="Outputs the merged activity feed of the current user"
+ * @scr.property name="service.description"
+ *               value="Outputs the merged activity feed of the current user"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.property name="sling.servlet.paths" value="/system/activity/feed"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.reference name="ActivityFeedService"
+ *                interface="org.sakaiproject.kernel.api.activity.ActivityFeedService"
+ */
+public class MergedActivityFeedServlet extends SlingSafeMethodsServlet {
+  private static final long serialVersionUID = -6340718424593402393L;
+  private static final Logger LOG = LoggerFactory.getLogger(MergedActivityFeedServlet.class);
+  private static final int DEFAULT_ITEMS = 25;
+  private static final int MAX_ITEMS = 200;
+
+  private ActivityFeedService activityFeedService;
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    final String currentUser = request.getRemoteUser();
+    if (currentUser == null || "".equals(currentUser)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "CurrentUser could not be determined, user must be identifiable");
+      return;
+    }
+    int items = DEFAULT_ITEMS;
+    RequestParameter itemsParam = request.getRequestParameter("items");
+    if (itemsParam != null) {
+      try {
+        items = Math.min(MAX_ITEMS, Math.max(1, Integer.parseInt(itemsParam.getString())));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "The items parameter must be a number");
+        return;
+      }
+    }
+    try {
+      Session session = request.getResourceResolver().adaptTo(Session.class);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      ExtendedJSONWriter output = new ExtendedJSONWriter(response.getWriter());
+      output.array();
+      for (String path : activityFeedService.getFeed(currentUser, items)) {
+        try {
+          output.node((Node) session.getItem(path));
+        } catch (PathNotFoundException e) {
+          // removed, or not visible to this user.
+          LOG.debug("Activity {} not readable by {} ", path, currentUser);
+        }
+      }
+      output.endArray();
+    } catch (JSONException e) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (RepositoryException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  protected void bindActivityFeedService(ActivityFeedService activityFeedService) {
+    this.activityFeedService = activityFeedService;
+  }
+
+  protected void unbindActivityFeedService(ActivityFeedService activityFeedService) {
+    this.activityFeedService = null;
+  }
+}
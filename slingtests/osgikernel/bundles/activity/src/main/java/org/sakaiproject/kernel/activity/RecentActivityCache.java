@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Holds the most recent activity of each actor, for feeds that are merged when they are
+ * read rather than copied when the activity happens. The lists are held in a
+ * {@link Cache}, which bounds the number of actors, and the number of items per actor is
+ * bounded here. Lists in the cache are never modified, new activity replaces the list. An
+ * actor that is not in the cache has to be loaded in full with
+ * {@link #put(String, List, long)} before new activity is added to it, so a cached list is
+ * never missing items. Activity added while an actor is being loaded moves the actor's
+ * generation on, and the loaded list, which may be missing it, is not cached. When the
+ * cache is cluster invalidated, new activity for an actor drops the actor on the other
+ * servers, which load it again when it is next read.
+ */
+public class RecentActivityCache {
+
+  /**
+   * The number of generation counters, actors share counters by hash.
+   */
+  private static final int GENERATIONS = 256;
+
+  private final int maxPerActor;
+  private final Cache<List<ActivityRef>> actors;
+  private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+  /**
+   * @param actors
+   *          the cache to hold the recent activity in, by actor.
+   * @param maxPerActor
+   *          the number of items to hold for each actor.
+   */
+  public RecentActivityCache(Cache<List<ActivityRef>> actors, int maxPerActor) {
+    this.actors = actors;
+    this.maxPerActor = maxPerActor;
+  }
+
+  /**
+   * @param actor
+   * @return the recent activity of the actor, newest first, or null if the actor is not
+   *         cached.
+   */
+  public List<ActivityRef> get(String actor) {
+    List<ActivityRef> refs = actors.get(actor);
+    if (refs == null) {
+      return null;
+    }
+    return new ArrayList<ActivityRef>(refs);
+  }
+
+  /**
+   * @param actor
+   * @param limit
+   *          the maximum number of items to return.
+   * @return the newest items of the actor's recent activity, newest first, or null if the
+   *         actor is not cached.
+   */
+  public List<ActivityRef> get(String actor, int limit) {
+    List<ActivityRef> refs = actors.get(actor);
+    if (refs == null) {
+      return null;
+    }
+    if (refs.size() <= limit) {
+      return new ArrayList<ActivityRef>(refs);
+    }
+    return new ArrayList<ActivityRef>(refs.subList(0, limit));
+  }
+
+  /**
+   * @param actor
+   * @return the generation of the actor, to be taken before the actor's activity is loaded
+   *         and passed to {@link #put(String, List, long)}.
+   */
+  public long generation(String actor) {
+    return generations.get(generationIndex(actor));
+  }
+
+  /**
+   * Cache the recent activity of an actor, as loaded from the repository.
+   * 
+   * @param actor
+   * @param refs
+   *          the activity of the actor, in any order.
+   */
+  public void put(String actor, List<ActivityRef> refs) {
+    actors.put(actor, newest(refs, maxPerActor));
+  }
+
+  /**
+   * Cache the recent activity of an actor, as loaded from the repository, unless activity
+   * has been added to the actor since the load started.
+   * 
+   * @param actor
+   * @param refs
+   *          the activity of the actor, in any order.
+   * @param generation
+   *          the generation of the actor taken before the load started.
+   * @return true if the activity was cached.
+   */
+  public boolean put(final String actor, List<ActivityRef> refs, final long generation) {
+    final List<ActivityRef> sorted = newest(refs, maxPerActor);
+    final boolean[] cached = new boolean[1];
+    // add moves the generation on before it computes, so checking inside compute leaves
+    // no gap for activity to be added between the check and the put.
+    actors.compute(actor, new CacheFunction<List<ActivityRef>>() {
+      public List<ActivityRef> apply(String actor, List<ActivityRef> current) {
+        if (current != null || generation(actor) != generation) {
+          return current;
+        }
+        cached[0] = true;
+        return sorted;
+      }
+    });
+    return cached[0];
+  }
+
+  /**
+   * Add new activity to an actor, if the actor is cached.
+   * 
+   * @param actor
+   * @param ref
+   */
+  public void add(String actor, final ActivityRef ref) {
+    generations.incrementAndGet(generationIndex(actor));
+    actors.compute(actor, new CacheFunction<List<ActivityRef>>() {
+      public List<ActivityRef> apply(String actor, List<ActivityRef> current) {
+        if (current == null || current.contains(ref)) {
+          return current;
+        }
+        // almost always newer than everything else.
+        int i = 0;
+        while (i < current.size() && ref.compareTo(current.get(i)) >= 0) {
+          i++;
+        }
+        if (i >= maxPerActor) {
+          // older than everything held.
+          return current;
+        }
+        List<ActivityRef> recent = new ArrayList<ActivityRef>(current.size() + 1);
+        recent.addAll(current.subList(0, i));
+        recent.add(ref);
+        recent.addAll(current.subList(i, Math.min(current.size(), maxPerActor - 1)));
+        return recent;
+      }
+    });
+  }
+
+  /**
+   * @param actor
+   *          the actor to drop from the cache.
+   */
+  public void remove(String actor) {
+    actors.remove(actor);
+  }
+
+  private int generationIndex(String actor) {
+    return (actor.hashCode() & 0x7fffffff) % GENERATIONS;
+  }
+
+  /**
+   * @param refs
+   *          activity in any order.
+   * @param limit
+   *          the maximum number of items to return.
+   * @return the newest items of the activity, newest first.
+   */
+  public static List<ActivityRef> newest(List<ActivityRef> refs, int limit) {
+    List<ActivityRef> sorted = new ArrayList<ActivityRef>(refs);
+    Collections.sort(sorted);
+    if (sorted.size() > limit) {
+      sorted = new ArrayList<ActivityRef>(sorted.subList(0, limit));
+    }
+    return sorted;
+  }
+
+  /**
+   * Merge lists of activity, each newest first, into one list, newest first.
+   * 
+   * @param feeds
+   * @param limit
+   *          the maximum number of items to return.
+   * @return the newest items across all the lists.
+   */
+  public static List<ActivityRef> merge(List<List<ActivityRef>> feeds, int limit) {
+    PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>();
+    for (List<ActivityRef> feed : feeds) {
+      Iterator<ActivityRef> it = feed.iterator();
+      if (it.hasNext()) {
+        heads.add(new Cursor(it));
+      }
+    }
+    List<ActivityRef> merged = new ArrayList<ActivityRef>(Math.min(limit, 64));
+    while (merged.size() < limit && !heads.isEmpty()) {
+      Cursor c = heads.poll();
+      merged.add(c.head);
+      if (c.next()) {
+        heads.add(c);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * The position in one of the lists being merged.
+   */
+  private static class Cursor implements Comparable<Cursor> {
+    private final Iterator<ActivityRef> it;
+    private ActivityRef head;
+
+    Cursor(Iterator<ActivityRef> it) {
+      this.it = it;
+      this.head = it.next();
+    }
+
+    boolean next() {
+      if (it.hasNext()) {
+        head = it.next();
+        return true;
+      }
+      return false;
+    }
+
+    public int compareTo(Cursor o) {
+      return head.compareTo(o.head);
+    }
+  }
+}
@@ -34,6 +34,7 @@ public interface ActivityConstants {
   public static final String PROPERTY_ROOT = "sakaiActivityFeed";
   public static final String ACTOR_PROPERTY = PROPERTY_ROOT + "Actor";
   public static final String SOURCE_PROPERTY = PROPERTY_ROOT + "Source";
+  public static final String CREATED_PROPERTY = PROPERTY_ROOT + "Created";
 
   /**
    * Events
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.activity;
+
+import java.util.List;
+
+/**
+ * Builds the activity feed of a user from the recent activity of the users they are
+ * connected to.
+ */
+public interface ActivityFeedService {
+
+  /**
+   * @param user
+   *          the user whose feed is wanted.
+   * @param limit
+   *          the maximum number of items.
+   * @return the paths of the most recent activity items of the user's connections, newest
+   *         first.
+   */
+  List<String> getFeed(String user, int limit);
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import org.sakaiproject.kernel.memory.MapCacheImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Compares the cost of delivering one activity to 10, 1,000 and 10,000 connections with
+ * one save per copy, with batched fan out on write, and with fan out on read. The
+ * repository is not used: writing a copy and saving are simulated by spinning for
+ * COPY_US and SAVE_US + SAVE_ITEM_US per pending copy, so the figures show the effect of
+ * the number of saves and of the worker pool, not of Jackrabbit itself. Not run as part of
+ * the build, run with java -cp target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.activity.ActivityFanOutBenchmark
+ */
+public class ActivityFanOutBenchmark {
+
+  private static final long COPY_US = 20;
+  private static final long SAVE_US = 500;
+  private static final long SAVE_ITEM_US = 5;
+  private static final int CHUNK_SIZE = 100;
+  private static final int WORKERS = 2;
+  private static final int RECENT_ITEMS = 50;
+  private static final int FEED_ITEMS = 25;
+
+  public static void main(String[] args) {
+    for (int connections : new int[] { 10, 1000, 10000 }) {
+      run(connections);
+    }
+  }
+
+  private static void run(int n) {
+    List<String> connections = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      connections.add("user" + i);
+    }
+
+    // one copy and one save per connection, as before.
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      spin(COPY_US);
+      spin(SAVE_US + SAVE_ITEM_US);
+    }
+    long perCopy = System.nanoTime() - start;
+
+    final AtomicInteger saves = new AtomicInteger();
+    ActivityFanOut fanOut = new ActivityFanOut(null, CHUNK_SIZE, WORKERS) {
+      @Override
+      protected Session login() {
+        return null;
+      }
+
+      @Override
+      protected void logout(Session session) {
+      }
+
+      @Override
+      protected void deliverChunk(Session session, String activityPath, List<String> chunk)
+          throws RepositoryException {
+        for (int i = 0; i < chunk.size(); i++) {
+          spin(COPY_US);
+        }
+        spin(SAVE_US + SAVE_ITEM_US * chunk.size());
+        saves.incrementAndGet();
+      }
+    };
+    start = System.nanoTime();
+    fanOut.deliver("/activity", connections);
+    fanOut.close();
+    long batched = System.nanoTime() - start;
+
+    // on read the activity is written once, and the feed is merged for each reader.
+    RecentActivityCache cache = new RecentActivityCache(
+        new MapCacheImpl<List<ActivityRef>>(), RECENT_ITEMS);
+    List<List<ActivityRef>> feeds = new ArrayList<List<ActivityRef>>(n);
+    for (int i = 0; i < n; i++) {
+      List<ActivityRef> refs = new ArrayList<ActivityRef>();
+      for (int j = 0; j < RECENT_ITEMS; j++) {
+        refs.add(new ActivityRef("/user" + i + "/" + j, (long) j * n + i));
+      }
+      cache.put("user" + i, refs);
+    }
+    start = System.nanoTime();
+    spin(COPY_US + SAVE_US + SAVE_ITEM_US);
+    cache.add("user0", new ActivityRef("/user0/new", Long.MAX_VALUE));
+    long write = System.nanoTime() - start;
+    int reads = 100;
+    start = System.nanoTime();
+    for (int r = 0; r < reads; r++) {
+      feeds.clear();
+      for (int i = 0; i < n; i++) {
+        feeds.add(cache.get("user" + i, FEED_ITEMS));
+      }
+      RecentActivityCache.merge(feeds, FEED_ITEMS);
+    }
+    long read = (System.nanoTime() - start) / reads;
+
+    System.out.println(n + " connections: save per copy " + (perCopy / 1000000) + "ms ("
+        + n + " saves), batched " + (batched / 1000000) + "ms (" + saves.get()
+        + " saves), on read " + (write / 1000) + "us to write + " + (read / 1000)
+        + "us per feed read");
+  }
+
+  private static void spin(long us) {
+    long end = System.nanoTime() + us * 1000;
+    while (System.nanoTime() < end) {
+      // simulated work
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RecentActivityCacheTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private Cache<List<ActivityRef>> actors;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+    actors = cacheManagerService.getCache("activity.recent", CacheScope.INSTANCE);
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  private List<ActivityRef> refs(String actor, long... created) {
+    List<ActivityRef> refs = new ArrayList<ActivityRef>();
+    for (long c : created) {
+      refs.add(new ActivityRef("/" + actor + "/" + c, c));
+    }
+    return refs;
+  }
+
+  @Test
+  public void testAddOnlyToLoadedActors() {
+    RecentActivityCache cache = new RecentActivityCache(actors, 3);
+    cache.add("alice", new ActivityRef("/alice/1", 1));
+    assertNull(cache.get("alice"));
+    cache.put("alice", refs("alice", 1, 3, 2, 4));
+    List<ActivityRef> recent = cache.get("alice");
+    assertEquals(3, recent.size());
+    assertEquals(4, recent.get(0).getCreated());
+    assertEquals(2, recent.get(2).getCreated());
+    cache.add("alice", new ActivityRef("/alice/5", 5));
+    recent = cache.get("alice");
+    assertEquals(3, recent.size());
+    assertEquals(5, recent.get(0).getCreated());
+    assertEquals(3, recent.get(2).getCreated());
+    assertEquals(1, cache.get("alice", 1).size());
+    // the same activity twice is only held once.
+    cache.add("alice", new ActivityRef("/alice/5", 5));
+    assertEquals(5, cache.get("alice").get(0).getCreated());
+    assertEquals(4, cache.get("alice").get(1).getCreated());
+    // older than everything held in a full list.
+    cache.add("alice", new ActivityRef("/alice/0", 0));
+    assertEquals(3, cache.get("alice").size());
+    assertEquals(3, cache.get("alice").get(2).getCreated());
+  }
+
+  @Test
+  public void testCachedListsAreNotModified() {
+    RecentActivityCache cache = new RecentActivityCache(actors, 3);
+    cache.put("bob", refs("bob", 2));
+    List<ActivityRef> held = actors.get("bob");
+    cache.add("bob", new ActivityRef("/bob/3", 3));
+    assertEquals(1, held.size());
+    assertEquals(2, cache.get("bob").size());
+    cache.remove("bob");
+    assertNull(cache.get("bob"));
+    assertNull(actors.get("bob"));
+  }
+
+  @Test
+  public void testLoadRacingAdd() {
+    RecentActivityCache cache = new RecentActivityCache(actors, 3);
+    // activity added while the actor is loaded may be missing from the load.
+    long generation = cache.generation("alice");
+    List<ActivityRef> loaded = refs("alice", 1, 2);
+    cache.add("alice", new ActivityRef("/alice/3", 3));
+    assertFalse(cache.put("alice", loaded, generation));
+    assertNull(cache.get("alice"));
+    // the next load sees it.
+    generation = cache.generation("alice");
+    assertTrue(cache.put("alice", refs("alice", 1, 2, 3), generation));
+    assertEquals(3, cache.get("alice").get(0).getCreated());
+    // activity added after the load is cached is added to it.
+    cache.add("alice", new ActivityRef("/alice/4", 4));
+    assertEquals(4, cache.get("alice").get(0).getCreated());
+    // a load does not replace a list that is already cached.
+    generation = cache.generation("alice");
+    assertFalse(cache.put("alice", refs("alice", 1), generation));
+    assertEquals(4, cache.get("alice").get(0).getCreated());
+  }
+
+  @Test
+  public void testConcurrentLoadAndAdd() throws Exception {
+    final RecentActivityCache cache = new RecentActivityCache(actors, 3);
+    final List<ActivityRef> repository = new CopyOnWriteArrayList<ActivityRef>();
+    final int count = 2000;
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          if (cache.get("bob") == null) {
+            long generation = cache.generation("bob");
+            cache.put("bob", new ArrayList<ActivityRef>(repository), generation);
+          } else {
+            cache.remove("bob");
+          }
+        }
+      }
+    };
+    reader.start();
+    for (int i = 1; i <= count; i++) {
+      // saved before it is added, as the event processor does.
+      ActivityRef ref = new ActivityRef("/bob/" + i, i);
+      repository.add(ref);
+      cache.add("bob", ref);
+      List<ActivityRef> recent = cache.get("bob");
+      if (recent != null) {
+        assertEquals(i, recent.get(0).getCreated());
+      }
+    }
+    done.set(true);
+    reader.join();
+    List<ActivityRef> recent = cache.get("bob");
+    if (recent != null) {
+      assertEquals(count, recent.get(0).getCreated());
+    }
+  }
+
+  @Test
+  public void testMerge() {
+    List<List<ActivityRef>> feeds = new ArrayList<List<ActivityRef>>();
+    feeds.add(refs("alice", 9, 5, 1));
+    feeds.add(refs("bob", 8, 7, 2));
+    feeds.add(new ArrayList<ActivityRef>());
+    feeds.add(refs("carol", 6));
+    List<ActivityRef> merged = RecentActivityCache.merge(feeds, 5);
+    assertEquals(5, merged.size());
+    assertEquals("/alice/9", merged.get(0).getPath());
+    assertEquals("/bob/8", merged.get(1).getPath());
+    assertEquals("/bob/7", merged.get(2).getPath());
+    assertEquals("/carol/6", merged.get(3).getPath());
+    assertEquals("/alice/5", merged.get(4).getPath());
+    assertEquals(7, RecentActivityCache.merge(feeds, 100).size());
+  }
+}
@@ -23,19 +23,23 @@ import org.apache.sling.api.request.RequestDispatcherOptions;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceWrapper;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
 import org.sakaiproject.kernel.api.doc.BindingType;
 import org.sakaiproject.kernel.api.doc.ServiceBinding;
 import org.sakaiproject.kernel.api.doc.ServiceDocumentation;
 import org.sakaiproject.kernel.api.doc.ServiceMethod;
 import org.sakaiproject.kernel.api.doc.ServiceParameter;
 import org.sakaiproject.kernel.api.doc.ServiceResponse;
-import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -71,8 +75,11 @@ import javax.servlet.http.HttpServletResponse;
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are succesfull. <br />" +
-                "A JSON array is returning which holds an object for each resource. Example:" +
-                "<pre></pre>"
+                "A JSON array is returning which holds an object for each resource, in the order the " +
+            "resources were requested, with the status of the resource. Successful, complete JSON " +
+            "responses are embedded as they are, other responses as a string. Example:" +
+                "<pre>[{\"path\":\"/dev.json\",\"status\":200,\"data\":{...}}," +
+                "{\"path\":\"/dev/index.html\",\"status\":200,\"data\":\"&lt;html&gt;...\"}]</pre>"
           ),
           @ServiceResponse(
               code = 500,
@@ -92,8 +99,8 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
   public static final String RESOURCE_PATH_PARAMETER = "resources";
 
   @Override
-  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
-      throws ServletException, IOException {
+  protected void doGet(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException {
     String[] requestedResources = request.getParameterValues(RESOURCE_PATH_PARAMETER);
     if (requestedResources == null || requestedResources.length == 0) {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,
@@ -101,54 +108,152 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
       return;
     }
 
-    ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
-    try {
-      write.array();
-      for (String resourcePath : requestedResources) {
-        if (!resourcePath.startsWith("/")) {
-          response
-              .sendError(HttpServletResponse.SC_BAD_REQUEST, "Resources must be absolute paths");
-          return;
-        }
-        SlingRequestPathInfo pathInfo = new SlingRequestPathInfo(resourcePath, request.getResourceResolver());
-        Resource resource = pathInfo.getResource();
-        if (resource == null) {
-          response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource: " + resourcePath);
-          return;
-        }
-        write.object();
-        write.key("path");
-        write.value(resourcePath);
-        write.key("data");
-        try {
-          outputResource(resource, pathInfo, request, response, write);
-        } catch (Exception e) {
-          LOGGER.warn("Unable to get data for resource: " + resourcePath, e);
-        }
-        write.endObject();
+    // resolve all the resources before anything is written, so that a bad path can still
+    // be reported with a status code.
+    Map<String, SlingRequestPathInfo> resolved = new HashMap<String, SlingRequestPathInfo>();
+    for (String resourcePath : requestedResources) {
+      if (!resourcePath.startsWith("/")) {
+        response
+            .sendError(HttpServletResponse.SC_BAD_REQUEST, "Resources must be absolute paths");
+        return;
+      }
+      SlingRequestPathInfo pathInfo = new SlingRequestPathInfo(resourcePath, request.getResourceResolver());
+      if (pathInfo.getResource() == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource: " + resourcePath);
+        return;
+      }
+      resolved.put(resourcePath, pathInfo);
+    }
+
+    // the resources are dispatched one at a time on the request thread, as they share the
+    // request, its resource resolver and its JCR session, none of which may be used by more
+    // than one thread. Each result is sent as soon as it is available.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    OutputStream out = response.getOutputStream();
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    writer.write('[');
+    boolean first = true;
+    for (String resourcePath : requestedResources) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      SlingRequestPathInfo pathInfo = resolved.get(resourcePath);
+      ResponseWrapper responseWrapper = null;
+      try {
+        responseWrapper = outputResource(pathInfo.getResource(), pathInfo, request, response);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to get data for resource: " + resourcePath, e);
+      }
+      if (responseWrapper == null) {
+        writeStatus(writer, resourcePath, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      } else {
+        writeResult(writer, out, resourcePath, responseWrapper);
       }
-      write.endArray();
-    } catch (JSONException e) {
-      LOGGER.error("Error encoding output as JSON", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Unable to encode content as JSON");
+      writer.flush();
+      out.flush();
     }
+    writer.write(']');
+    writer.flush();
   }
 
-  private void outputResource(final Resource resource, SlingRequestPathInfo pathInfo, SlingHttpServletRequest request,
-      SlingHttpServletResponse response, ExtendedJSONWriter write) throws ServletException, IOException, JSONException {
+  protected ResponseWrapper outputResource(final Resource resource, SlingRequestPathInfo pathInfo, SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException {
     RequestDispatcherOptions options = new RequestDispatcherOptions();
     ResourceWrapper resourceWrapper = new ResourceWrapper(resource);
     ResponseWrapper responseWrapper = new ResponseWrapper(response); 
     options.setReplaceSelectors("");
     ResourceRequestWrapper requestWrapper = new ResourceRequestWrapper(request, resource, pathInfo);
     request.getRequestDispatcher(resourceWrapper, options).forward(requestWrapper, responseWrapper);
-    outputResponseAsJSON(responseWrapper, write);
+    return responseWrapper;
+  }
+
+  /**
+   * Writes the result of one resource. Only a complete, successful JSON body is embedded as
+   * it is, anything else could be an error page or a partial body that would break the
+   * batch, and is sent as a string.
+   */
+  private void writeResult(Writer writer, OutputStream out, String resourcePath,
+      ResponseWrapper responseWrapper) throws IOException {
+    int status = responseWrapper.getStatus();
+    writeStart(writer, resourcePath, status);
+    if (responseWrapper.size() == 0) {
+      writer.write("null");
+    } else if (status >= 200 && status < 300 && responseWrapper.isJson()
+        && responseWrapper.isUtf8() && responseWrapper.isComplete()
+        && !responseWrapper.isBlank()) {
+      writer.flush();
+      responseWrapper.writeTo(out);
+    } else {
+      writeQuoted(writer, responseWrapper.getReader());
+    }
+    writer.write('}');
+  }
+
+  /**
+   * Writes the characters of the reader as a JSON string, escaped as
+   * {@link JSONObject#quote(String)} does, without reading them into a string first.
+   */
+  static void writeQuoted(Writer writer, Reader reader) throws IOException {
+    writer.write('"');
+    int previous = 0;
+    int c;
+    while ((c = reader.read()) != -1) {
+      switch (c) {
+      case '\\':
+      case '"':
+        writer.write('\\');
+        writer.write(c);
+        break;
+      case '/':
+        if (previous == '<') {
+          writer.write('\\');
+        }
+        writer.write(c);
+        break;
+      case '\b':
+        writer.write("\\b");
+        break;
+      case '\t':
+        writer.write("\\t");
+        break;
+      case '\n':
+        writer.write("\\n");
+        break;
+      case '\f':
+        writer.write("\\f");
+        break;
+      case '\r':
+        writer.write("\\r");
+        break;
+      default:
+        if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+          String hex = Integer.toHexString(c);
+          writer.write("\\u");
+          writer.write("0000", 0, 4 - hex.length());
+          writer.write(hex);
+        } else {
+          writer.write(c);
+        }
+      }
+      previous = c;
+    }
+    writer.write('"');
+  }
+  private void writeStatus(Writer writer, String resourcePath, int status)
+      throws IOException {
+    writeStart(writer, resourcePath, status);
+    writer.write("null}");
   }
 
-  private void outputResponseAsJSON(ResponseWrapper responseWrapper,
-      ExtendedJSONWriter write) throws UnsupportedEncodingException, JSONException {
-    write.value(responseWrapper.getDataAsString());
+  private void writeStart(Writer writer, String resourcePath, int status)
+      throws IOException {
+    writer.write("{\"path\":");
+    writer.write(JSONObject.quote(resourcePath));
+    writer.write(",\"status\":");
+    writer.write(String.valueOf(status));
+    writer.write(",\"data\":");
   }
 
 }
@@ -5,10 +5,27 @@ import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
 
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+/**
+ * Presents one resource of a batch as the resource of the request. Attributes set while the
+ * resource is dispatched are kept in the wrapper, so that they do not leak into the
+ * dispatch of the next resource of the batch.
+ */
 public class ResourceRequestWrapper extends SlingHttpServletRequestWrapper {
 
   private Resource wrappedResource;
   private SlingRequestPathInfo pathInfo;
+  /**
+   * Attributes set or removed on this wrapper, a removed attribute maps to null.
+   */
+  private Map<String, Object> attributes = new HashMap<String, Object>();
 
   public ResourceRequestWrapper(SlingHttpServletRequest wrappedRequest, Resource wrappedResource, SlingRequestPathInfo pathInfo) {
     super(wrappedRequest);
@@ -50,4 +67,39 @@ public class ResourceRequestWrapper extends SlingHttpServletRequestWrapper {
     return wrappedResource;
   }
 
+  @Override
+  public Object getAttribute(String name) {
+    if (attributes.containsKey(name)) {
+      return attributes.get(name);
+    }
+    return super.getAttribute(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object o) {
+    attributes.put(name, o);
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.put(name, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Enumeration getAttributeNames() {
+    Set<String> names = new LinkedHashSet<String>();
+    for (Enumeration<?> e = super.getAttributeNames(); e.hasMoreElements();) {
+      names.add((String) e.nextElement());
+    }
+    for (Entry<String, Object> e : attributes.entrySet()) {
+      if (e.getValue() == null) {
+        names.remove(e.getKey());
+      } else {
+        names.add(e.getKey());
+      }
+    }
+    return Collections.enumeration(names);
+  }
+
 }
@@ -3,29 +3,66 @@ package org.sakaiproject.kernel.batch;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Buffers the response of one resource of a batch. The status and headers are kept out of
+ * the wrapped response, which is shared by all the resources of the batch.
+ */
 public class ResponseWrapper extends SlingHttpServletResponseWrapper {
 
+  private static final String UTF_8 = "UTF-8";
+
   public ResponseWrapper(SlingHttpServletResponse wrappedResponse) {
     super(wrappedResponse);
   }
 
-  ByteArrayOutputStream boas = new ByteArrayOutputStream();
-  ServletOutputStream servletOutputStream = new ServletOutputStream() {
+  /**
+   * Gives access to the buffered bytes without copying them.
+   */
+  private static class Buffer extends ByteArrayOutputStream {
+    private Reader getReader(String charset) throws UnsupportedEncodingException {
+      return new InputStreamReader(new ByteArrayInputStream(buf, 0, count), charset);
+    }
+
+    private boolean isBlank() {
+      for (int i = 0; i < count; i++) {
+        if (!Character.isWhitespace(buf[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private Buffer boas = new Buffer();
+  private ServletOutputStream servletOutputStream = new ServletOutputStream() {
     @Override
     public void write(int b) throws IOException {
       boas.write(b);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boas.write(b, off, len);
+    }
   };
-  PrintWriter pw = new PrintWriter(servletOutputStream);
+  private PrintWriter pw;
   private String type;
   private String charset;
+  private int status = HttpServletResponse.SC_OK;
+  private int contentLength = -1;
 
   @Override
   public String getCharacterEncoding() {
@@ -63,6 +100,9 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
    */
   @Override
   public PrintWriter getWriter() throws IOException {
+    if (pw == null) {
+      pw = new PrintWriter(new OutputStreamWriter(servletOutputStream, UTF_8));
+    }
     return pw;
   }
 
@@ -74,11 +114,137 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
   @Override
   public void setContentType(String type) {
     this.type = type;
+    if (type != null) {
+      int i = type.toLowerCase().indexOf("charset=");
+      if (i > -1) {
+        charset = type.substring(i + "charset=".length()).trim();
+      }
+    }
+  }
+
+  /**
+   * @return the charset of the buffered body. Anything written through the writer is UTF-8.
+   */
+  private String getBodyCharset() {
+    if (pw != null || charset == null) {
+      return UTF_8;
+    }
+    return charset;
   }
 
-  public String getDataAsString() throws UnsupportedEncodingException {
-    pw.close();
-    return boas.toString("utf-8");
+  /**
+   * @return true if the buffered body is UTF-8, and can be copied into a UTF-8 response as
+   *         it is.
+   */
+  public boolean isUtf8() {
+    return UTF_8.equalsIgnoreCase(getBodyCharset());
+  }
+
+  /**
+   * @return true if the whole body was written, ie the servlet did not announce a content
+   *         length that differs from what it wrote.
+   */
+  public boolean isComplete() {
+    flush();
+    return contentLength < 0 || contentLength == boas.size();
+  }
+
+  /**
+   * @return true if nothing but whitespace was written.
+   */
+  public boolean isBlank() {
+    flush();
+    return boas.isBlank();
+  }
+
+  /**
+   * @return the number of bytes buffered.
+   */
+  public int size() {
+    flush();
+    return boas.size();
+  }
+
+  /**
+   * Copies the buffered bytes to the output stream, as they are.
+   * 
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    flush();
+    boas.writeTo(out);
+  }
+
+  /**
+   * @return a reader over the buffered body, decoded with its charset.
+   * @throws UnsupportedEncodingException
+   */
+  public Reader getReader() throws UnsupportedEncodingException {
+    flush();
+    return boas.getReader(getBodyCharset());
+  }
+
+  private void flush() {
+    if (pw != null) {
+      pw.flush();
+    }
+  }
+
+  /**
+   * @return true if the content type of the response is JSON.
+   */
+  public boolean isJson() {
+    return type != null
+        && (type.startsWith("application/json") || type.startsWith("text/json"));
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    this.status = sc;
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    this.status = sc;
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    this.status = sc;
+  }
+
+  @Override
+  public void setContentLength(int len) {
+    this.contentLength = len;
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
   }
 
   @Override
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 
+ */
+public class BatchGetServletTest {
+
+  /**
+   * What a resource of the batch answers when it is dispatched.
+   */
+  private static class Answer {
+    int status = HttpServletResponse.SC_OK;
+    String contentType;
+    String charset;
+    int contentLength = -1;
+    byte[] body;
+    RuntimeException failure;
+
+    Answer(int status, String contentType, byte[] body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  private Map<String, Answer> answers = new HashMap<String, Answer>();
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  private void answer(String path, int status, String contentType, String body)
+      throws Exception {
+    answers.put(path, new Answer(status, contentType, body == null ? null : body
+        .getBytes("UTF-8")));
+  }
+
+  /**
+   * @return a servlet that answers each resource from {@link #answers}, in place of the
+   *         request dispatcher.
+   */
+  private BatchGetServlet createServlet() {
+    return new BatchGetServlet() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected ResponseWrapper outputResource(Resource resource,
+          SlingRequestPathInfo pathInfo, SlingHttpServletRequest request,
+          SlingHttpServletResponse response) throws ServletException, IOException {
+        Answer answer = answers.get(resource.getPath());
+        if (answer.failure != null) {
+          throw answer.failure;
+        }
+        ResponseWrapper responseWrapper = new ResponseWrapper(response);
+        responseWrapper.setStatus(answer.status);
+        responseWrapper.setContentType(answer.contentType);
+        if (answer.charset != null) {
+          responseWrapper.setCharacterEncoding(answer.charset);
+        }
+        if (answer.contentLength >= 0) {
+          responseWrapper.setContentLength(answer.contentLength);
+        }
+        if (answer.body != null) {
+          if (answer.charset == null) {
+            PrintWriter writer = responseWrapper.getWriter();
+            writer.write(new String(answer.body, "UTF-8"));
+          } else {
+            responseWrapper.getOutputStream().write(answer.body);
+          }
+        }
+        return responseWrapper;
+      }
+    };
+  }
+
+  private SlingHttpServletRequest createRequest(String... paths) {
+    ResourceResolver resolver = createNiceMock(ResourceResolver.class);
+    for (String path : paths) {
+      if (answers.containsKey(path)) {
+        Resource resource = createMock(Resource.class);
+        expect(resource.getPath()).andReturn(path).anyTimes();
+        replay(resource);
+        expect(resolver.getResource(path)).andReturn(resource).anyTimes();
+      }
+    }
+    replay(resolver);
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getParameterValues(BatchGetServlet.RESOURCE_PATH_PARAMETER)).andReturn(
+        paths).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    replay(request);
+    return request;
+  }
+
+  private SlingHttpServletResponse createResponse() throws IOException {
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.setContentType("application/json");
+    expectLastCall();
+    response.setCharacterEncoding("UTF-8");
+    expectLastCall();
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+    replay(response);
+    return response;
+  }
+
+  private String batch(String... paths) throws Exception {
+    SlingHttpServletRequest request = createRequest(paths);
+    SlingHttpServletResponse response = createResponse();
+    createServlet().doGet(request, response);
+    verify(response);
+    return output.toString("UTF-8");
+  }
+
+  @Test
+  public void testRequestOrderAndStatus() throws Exception {
+    answer("/b", 200, "application/json", "{\"b\":1}");
+    answer("/a", 404, "application/json", "{\"error\":\"missing\"}");
+    answer("/c", 200, "application/json; charset=utf-8", "[1,2]");
+    assertEquals("[{\"path\":\"/b\",\"status\":200,\"data\":{\"b\":1}},"
+        + "{\"path\":\"/a\",\"status\":404,\"data\":\"{\\\"error\\\":\\\"missing\\\"}\"},"
+        + "{\"path\":\"/c\",\"status\":200,\"data\":[1,2]}]", batch("/b", "/a", "/c"));
+  }
+
+  @Test
+  public void testNonJsonIsQuoted() throws Exception {
+    answer("/a", 200, "text/html", "<p>\"x\"</p>\n");
+    assertEquals("[{\"path\":\"/a\",\"status\":200,\"data\":\"<p>\\\"x\\\"<\\/p>\\n\"}]",
+        batch("/a"));
+  }
+
+  @Test
+  public void testErrorPageIsQuoted() throws Exception {
+    answer("/a", 500, "application/json", "<html>oops");
+    assertEquals("[{\"path\":\"/a\",\"status\":500,\"data\":\"<html>oops\"}]", batch("/a"));
+  }
+
+  @Test
+  public void testTruncatedJsonIsQuoted() throws Exception {
+    answer("/a", 200, "application/json", "{\"a\":");
+    answers.get("/a").contentLength = 10;
+    assertEquals("[{\"path\":\"/a\",\"status\":200,\"data\":\"{\\\"a\\\":\"}]", batch("/a"));
+  }
+
+  @Test
+  public void testEmptyBody() throws Exception {
+    answer("/a", 204, "application/json", null);
+    answer("/b", 200, "application/json", "  ");
+    assertEquals("[{\"path\":\"/a\",\"status\":204,\"data\":null},"
+        + "{\"path\":\"/b\",\"status\":200,\"data\":\"  \"}]", batch("/a", "/b"));
+  }
+
+  @Test
+  public void testOtherCharset() throws Exception {
+    answers.put("/a", new Answer(200, "application/json", "{\"a\":\"\u00e9\"}"
+        .getBytes("ISO-8859-1")));
+    answers.get("/a").charset = "ISO-8859-1";
+    assertEquals("[{\"path\":\"/a\",\"status\":200,\"data\":\"{\\\"a\\\":\\\"\u00e9\\\"}\"}]",
+        batch("/a"));
+  }
+
+  @Test
+  public void testFailedResource() throws Exception {
+    answer("/a", 200, "application/json", "{}");
+    answers.get("/a").failure = new IllegalStateException("test");
+    answer("/b", 200, "application/json", "{}");
+    assertEquals("[{\"path\":\"/a\",\"status\":500,\"data\":null},"
+        + "{\"path\":\"/b\",\"status\":200,\"data\":{}}]", batch("/a", "/b"));
+  }
+
+  @Test
+  public void testMissingResource() throws Exception {
+    answer("/a", 200, "application/json", "{}");
+    SlingHttpServletRequest request = createRequest("/a", "/b/c.json");
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource: /b/c.json");
+    expectLastCall();
+    replay(response);
+    createServlet().doGet(request, response);
+    verify(response);
+  }
+
+  @Test
+  public void testRelativePath() throws Exception {
+    SlingHttpServletRequest request = createRequest("a.json");
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Resources must be absolute paths");
+    expectLastCall();
+    replay(response);
+    createServlet().doGet(request, response);
+    verify(response);
+  }
+}
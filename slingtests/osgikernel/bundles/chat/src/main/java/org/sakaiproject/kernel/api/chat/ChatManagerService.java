@@ -33,8 +33,9 @@ public interface ChatManagerService {
   public boolean checkUpdate(String userID, long time);
 
   /**
-   * Sets a new time for a user, this will only get set when the user is already in the
-   * cache.
+   * Sets a new time for a user, even if he/she is not in the cache already. Requests
+   * waiting for an update of the user are not woken, use this to record a time the user
+   * has already seen.
    * 
    * @param userID
    *          The ID of the user you wish to add.
@@ -44,7 +45,9 @@ public interface ChatManagerService {
   public void setLastUpdate(String userID, long time);
 
   /**
-   * Adds a time for a user. Even if he/she is not in the cache already.
+   * Adds a time for a user, even if he/she is not in the cache already, and wakes the
+   * requests waiting for an update of the user. Use this when there is something new for
+   * the user.
    * 
    * @param userID
    *          The ID of the user you wish to add.
@@ -58,7 +61,7 @@ public interface ChatManagerService {
    * 
    * @param userID
    *          The ID of the user you wish to add.
-   * @return
+   * @return the time, or 0 if the user is not in the cache.
    */
   public long getLastUpdate(String userID);
 
@@ -68,4 +71,23 @@ public interface ChatManagerService {
    * @param userID
    */
   public void clear(String userID);
+
+  /**
+   * Wait for a chat update for a user, returning as soon as there is one or when the
+   * timeout passes. The calling thread is blocked while it waits.
+   * 
+   * @param userID
+   *          The user ID to check on.
+   * @param time
+   *          The milliseconds when checked last time.
+   * @param timeout
+   *          The longest time to wait, in ms.
+   * @return true if there is an update.
+   * @throws InterruptedException
+   * @throws TooManyWaitersException
+   *           if there is no update and too many requests are already waiting, the caller
+   *           should answer as a plain poll would.
+   */
+  public boolean waitForUpdate(String userID, long time, long timeout)
+      throws InterruptedException, TooManyWaitersException;
 }
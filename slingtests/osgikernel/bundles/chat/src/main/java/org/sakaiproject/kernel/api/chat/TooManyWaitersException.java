@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.chat;
+
+/**
+ * Thrown when a request may not wait for a chat update because too many requests are
+ * already waiting. The request should be answered at once, as a plain poll would be.
+ */
+public class TooManyWaitersException extends Exception {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -3021937465529641120L;
+
+  /**
+   * @param message
+   */
+  public TooManyWaitersException(String message) {
+    super(message);
+  }
+
+}
@@ -17,13 +17,30 @@
  */
 package org.sakaiproject.kernel.chat;
 
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.chat.ChatManagerService;
+import org.sakaiproject.kernel.api.chat.TooManyWaitersException;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 
+import java.util.Dictionary;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * The <code>ChatManagerServiceImpl</code>
+ * The <code>ChatManagerServiceImpl</code> keeps the time of the last chat update per user
+ * in a cluster replicated cache. Requests waiting for an update park on a monitor per
+ * user, and are woken when a message is delivered to the user on this server. Updates
+ * made on other servers are seen when a waiting request next checks the cache.
+ * <p>
+ * This is a blocking long poll, a waiting request holds its request thread until it
+ * returns, as the servlet API in use has no way to suspend a request. The number of
+ * waiting requests is therefore capped at a share of the request threads of the HTTP
+ * service, a request over the cap is answered at once, as a plain poll would be.
+ * </p>
  * 
  * @scr.component immediate="true" label="ChatManagerServiceImpl"
  *                description="Implementation of the Chat Manager Service"
@@ -31,14 +48,64 @@ import org.sakaiproject.kernel.api.memory.CacheScope;
  * @scr.service interface="org.sakaiproject.kernel.api.chat.ChatManagerService"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description" value="Chat Manager Service Implementation"
+ * @scr.property name="chat.requestThreads" value="250"
+ *               description="The size of the request thread pool of the HTTP service, 250 unless Jetty is configured otherwise."
+ * @scr.property name="chat.maxWaiting" value=""
+ *               description="The most requests that may wait for a chat update at one time, half of chat.requestThreads if not set."
  * @scr.reference name="CacheManagerService"
  *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
  */
 public class ChatManagerServiceImpl implements ChatManagerService {
 
   private static final String CHAT_CACHE = "chat";
+  private static final String PROP_REQUEST_THREADS = "chat.requestThreads";
+  private static final String PROP_MAX_WAITING = "chat.maxWaiting";
+  /**
+   * The default size of the Jetty request thread pool.
+   */
+  private static final int DEFAULT_REQUEST_THREADS = 250;
+  /**
+   * At most half the request threads are held by waiting chat requests, so that the rest
+   * of the server keeps working whatever the number of chat clients.
+   */
+  private static final int DEFAULT_MAX_WAITING = DEFAULT_REQUEST_THREADS / 2;
+  /**
+   * How often a waiting request checks the cache for updates made on other servers, ms.
+   */
+  private static final long RECHECK_INTERVAL = 1000L;
 
   private CacheManagerService cacheManagerService;
+  private ConcurrentMap<String, Waiters> waiters = new ConcurrentHashMap<String, Waiters>();
+  private AtomicInteger waiting = new AtomicInteger();
+  private int maxWaiting = DEFAULT_MAX_WAITING;
+
+  /**
+   * The requests waiting for one user, the monitor they wait on.
+   */
+  private static class Waiters {
+    private int count;
+  }
+
+  public ChatManagerServiceImpl() {
+  }
+
+  /**
+   * Constructor for testing purposes only.
+   * 
+   * @param cacheManagerService
+   * @param maxWaiting
+   */
+  protected ChatManagerServiceImpl(CacheManagerService cacheManagerService, int maxWaiting) {
+    this.cacheManagerService = cacheManagerService;
+    this.maxWaiting = maxWaiting;
+  }
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    int requestThreads = OsgiUtil.toInteger(props.get(PROP_REQUEST_THREADS),
+        DEFAULT_REQUEST_THREADS);
+    maxWaiting = OsgiUtil.toInteger(props.get(PROP_MAX_WAITING), requestThreads / 2);
+  }
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
@@ -91,10 +158,7 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    *      long)
    */
   public void setLastUpdate(String userID, long time) {
-    Cache<Long> cache = getCachedMap();
-    if (cache.containsKey(userID)) {
-      getCachedMap().put(userID, time);
-    }
+    getCachedMap().put(userID, time);
   }
 
   /**
@@ -106,6 +170,12 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void addUpdate(String userID, long time) {
     getCachedMap().put(userID, time);
+    Waiters w = waiters.get(userID);
+    if (w != null) {
+      synchronized (w) {
+        w.notifyAll();
+      }
+    }
   }
 
   /**
@@ -115,7 +185,8 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    * @see org.sakaiproject.kernel.api.chat.ChatManagerService#getLastUpdate(java.lang.String)
    */
   public long getLastUpdate(String userID) {
-    return getCachedMap().get(userID);
+    Long time = getCachedMap().get(userID);
+    return time == null ? 0L : time;
   }
 
   /**
@@ -132,4 +203,61 @@ public class ChatManagerServiceImpl implements ChatManagerService {
 
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.chat.ChatManagerService#waitForUpdate(java.lang.String,
+   *      long, long)
+   */
+  public boolean waitForUpdate(String userID, long time, long timeout)
+      throws InterruptedException, TooManyWaitersException {
+    if (checkUpdate(userID, time)) {
+      return true;
+    }
+    if (waiting.incrementAndGet() > maxWaiting) {
+      waiting.decrementAndGet();
+      throw new TooManyWaitersException(maxWaiting + " requests are already waiting");
+    }
+    try {
+      long end = System.currentTimeMillis() + timeout;
+      for (;;) {
+        Waiters w = waiters.get(userID);
+        if (w == null) {
+          w = new Waiters();
+          Waiters existing = waiters.putIfAbsent(userID, w);
+          if (existing != null) {
+            w = existing;
+          }
+        }
+        synchronized (w) {
+          if (waiters.get(userID) != w) {
+            // removed by the last waiter to leave, before this one got in.
+            continue;
+          }
+          w.count++;
+          try {
+            for (;;) {
+              // checked while holding the monitor, so a delivery can not be missed.
+              if (checkUpdate(userID, time)) {
+                return true;
+              }
+              long remaining = end - System.currentTimeMillis();
+              if (remaining <= 0) {
+                return false;
+              }
+              w.wait(Math.min(remaining, RECHECK_INTERVAL));
+            }
+          } finally {
+            w.count--;
+            if (w.count == 0) {
+              waiters.remove(userID, w);
+            }
+          }
+        }
+      }
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
 }
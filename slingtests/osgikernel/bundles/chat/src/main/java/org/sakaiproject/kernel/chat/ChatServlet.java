@@ -24,6 +24,7 @@ import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.kernel.api.chat.ChatManagerService;
+import org.sakaiproject.kernel.api.chat.TooManyWaitersException;
 import org.sakaiproject.kernel.api.doc.BindingType;
 import org.sakaiproject.kernel.api.doc.ServiceBinding;
 import org.sakaiproject.kernel.api.doc.ServiceDocumentation;
@@ -60,11 +61,19 @@ import javax.servlet.ServletException;
         }, 
         description = "GETs to this servlet will produce a JSON object with 2 keys. \n"
     + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The time since the last retrieval.</li></ul>", 
-    parameters = @ServiceParameter(name = "t", 
-        description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time.")) })
+    parameters = { @ServiceParameter(name = "t", 
+        description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time."),
+        @ServiceParameter(name = "wait",
+        description = "Optional, the longest time in ms (up to 30000) to hold the request open waiting for a new chat message, a value that is not a number is ignored. " +
+            "The response is sent as soon as a message arrives, so clients can poll again straight away on a kept alive connection. " +
+            "A waiting request holds a server thread, when too many are waiting the request is answered at once as if no wait was given.") }) })
 public class ChatServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChatServlet.class);
   private static final long serialVersionUID = -4011626674940239621L;
+  /**
+   * The longest a request may wait for an update, ms.
+   */
+  private static final long MAX_WAIT = 30000L;
   private ChatManagerService chatManagerService;
 
   protected void bindChatManagerService(ChatManagerService chatManagerService) {
@@ -85,13 +94,34 @@ public class ChatServlet extends SlingAllMethodsServlet {
     if (timestampParam != null) {
       time = Long.parseLong(timestampParam.getString());
     }
-    boolean update = chatManagerService.checkUpdate(userID, time);
+    long wait = getWait(request);
+    boolean update;
+    if (wait > 0) {
+      try {
+        update = chatManagerService.waitForUpdate(userID, time, wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        update = false;
+      } catch (TooManyWaitersException e) {
+        LOGGER.debug("Chat update request for {} not waiting: {}", userID, e.getMessage());
+        // answered as a plain poll, which also closes the connection.
+        wait = 0;
+        update = chatManagerService.checkUpdate(userID, time);
+      }
+    } else {
+      update = chatManagerService.checkUpdate(userID, time);
+    }
 
     if (update) {
-      // Because there is an update and we just retrieved it. We set a new time and send
-      // the new one back to the user.
-      time = System.currentTimeMillis();
-      chatManagerService.addUpdate(userID, time);
+      // Send back the time of the update, so that every request of the user that sees it,
+      // eg from several windows, ends up with the same time. Only a user that has no time
+      // yet gets a new one, which does not wake the other requests of the user.
+      long lastUpdate = chatManagerService.getLastUpdate(userID);
+      if (lastUpdate == 0) {
+        lastUpdate = System.currentTimeMillis();
+        chatManagerService.setLastUpdate(userID, lastUpdate);
+      }
+      time = lastUpdate;
     }
 
     JSONWriter write = new JSONWriter(response.getWriter());
@@ -108,7 +138,27 @@ public class ChatServlet extends SlingAllMethodsServlet {
       response.sendError(500, "Unable to parse JSON.");
     }
 
-    // Make sure the connection is not keep-alive.
-    response.setHeader("Connection", "close");
+    if (wait == 0) {
+      // Make sure the connection is not keep-alive, waiting clients poll again at once so
+      // they keep theirs.
+      response.setHeader("Connection", "close");
+    }
+  }
+
+  /**
+   * @param request
+   * @return the time in ms the request asked to wait, between 0 and {@link #MAX_WAIT}.
+   */
+  private long getWait(SlingHttpServletRequest request) {
+    RequestParameter waitParam = request.getRequestParameter("wait");
+    if (waitParam == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Math.min(Long.parseLong(waitParam.getString()), MAX_WAIT));
+    } catch (NumberFormatException e) {
+      LOGGER.debug("Ignoring wait parameter {}", waitParam.getString());
+      return 0;
+    }
   }
 }
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.chat;
+
+import org.sakaiproject.kernel.api.chat.TooManyWaitersException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares 10k idle chat users polling every 3s with the same users long polling for up
+ * to 30s, while messages are delivered to random users at 20/s. Reports the requests, and
+ * so the connections when keep alive is off, and the CPU used. Not run as part of the
+ * build, run with java -Xss256k -cp target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.chat.ChatLongPollBenchmark
+ */
+public class ChatLongPollBenchmark {
+
+  private static final int USERS = 10000;
+  private static final long RUN_MS = 30000L;
+  private static final long POLL_INTERVAL = 3000L;
+  private static final long WAIT = 30000L;
+  private static final long DELIVERY_INTERVAL = 50L;
+
+  public static void main(String[] args) throws Exception {
+    ChatManagerServiceImpl chatManagerService = new ChatManagerServiceImpl(
+        new CacheManagerServiceImpl(), USERS);
+    for (int i = 0; i < USERS; i++) {
+      chatManagerService.addUpdate("user" + i, 1L);
+    }
+    run(chatManagerService, false);
+    run(chatManagerService, true);
+    System.exit(0);
+  }
+
+  private static void run(final ChatManagerServiceImpl chatManagerService,
+      final boolean longPoll) throws InterruptedException {
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong updates = new AtomicLong();
+    final long end = System.currentTimeMillis() + RUN_MS;
+    final CountDownLatch done = new CountDownLatch(USERS);
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    final AtomicLong cpu = new AtomicLong();
+    for (int i = 0; i < USERS; i++) {
+      final String user = "user" + i;
+      final long offset = i % POLL_INTERVAL;
+      Thread t = new Thread(null, new Runnable() {
+        public void run() {
+          ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+          try {
+            long time = chatManagerService.getLastUpdate(user);
+            Thread.sleep(offset);
+            while (System.currentTimeMillis() < end) {
+              requests.incrementAndGet();
+              boolean update;
+              if (longPoll) {
+                try {
+                  update = chatManagerService.waitForUpdate(user, time, Math.min(WAIT,
+                      Math.max(1L, end - System.currentTimeMillis())));
+                } catch (TooManyWaitersException e) {
+                  // answered as a plain poll, the client polls again later.
+                  update = chatManagerService.checkUpdate(user, time);
+                  Thread.sleep(POLL_INTERVAL);
+                }
+              } else {
+                update = chatManagerService.checkUpdate(user, time);
+              }
+              if (update) {
+                updates.incrementAndGet();
+                time = chatManagerService.getLastUpdate(user);
+              }
+              if (!longPoll) {
+                Thread.sleep(POLL_INTERVAL);
+              }
+            }
+          } catch (InterruptedException e) {
+          } finally {
+            cpu.addAndGet(mx.getCurrentThreadCpuTime());
+            done.countDown();
+          }
+        }
+      }, user, 64 * 1024);
+      t.setDaemon(true);
+      t.start();
+    }
+    long deliveries = 0;
+    while (System.currentTimeMillis() < end) {
+      chatManagerService.addUpdate("user" + (int) (Math.random() * USERS), System
+          .currentTimeMillis());
+      deliveries++;
+      Thread.sleep(DELIVERY_INTERVAL);
+    }
+    done.await();
+    System.out.println((longPoll ? "long poll: " : "short poll: ") + requests.get()
+        + " requests (" + (requests.get() * 1000 / RUN_MS) + "/s), " + updates.get()
+        + " updates seen of " + deliveries + " delivered, " + (cpu.get() / 1000000)
+        + "ms cpu" + (threadMXBean.isCurrentThreadCpuTimeSupported() ? "" : " (unsupported)"));
+  }
+}
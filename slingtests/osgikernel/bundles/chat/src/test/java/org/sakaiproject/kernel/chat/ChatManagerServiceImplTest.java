@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.chat.TooManyWaitersException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ChatManagerServiceImplTest {
+
+  private ChatManagerServiceImpl chatManagerService;
+
+  @Before
+  public void setUp() throws Exception {
+    chatManagerService = new ChatManagerServiceImpl(new CacheManagerServiceImpl(), 2);
+  }
+
+  @Test
+  public void testUnknownUserHasUpdate() throws Exception {
+    assertTrue(chatManagerService.waitForUpdate("unknown", 100L, 5000L));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    chatManagerService.addUpdate("userA", 100L);
+    long start = System.currentTimeMillis();
+    assertFalse(chatManagerService.waitForUpdate("userA", 100L, 200L));
+    assertTrue(System.currentTimeMillis() - start >= 200L);
+  }
+
+  @Test
+  public void testWokenByDelivery() throws Exception {
+    chatManagerService.addUpdate("userB", 100L);
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException e) {
+        }
+        chatManagerService.addUpdate("userB", 200L);
+      }
+    }).start();
+    long start = System.currentTimeMillis();
+    assertTrue(chatManagerService.waitForUpdate("userB", 100L, 10000L));
+    // woken by the delivery, not by the periodic recheck.
+    assertTrue(System.currentTimeMillis() - start < 900L);
+  }
+
+  @Test
+  public void testWaitingLimit() throws Exception {
+    chatManagerService.addUpdate("userC", 100L);
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            chatManagerService.waitForUpdate("userC", 100L, 2000L);
+          } catch (InterruptedException e) {
+          } catch (TooManyWaitersException e) {
+          }
+        }
+      });
+      threads[i].start();
+    }
+    Thread.sleep(200L);
+    long start = System.currentTimeMillis();
+    try {
+      chatManagerService.waitForUpdate("userC", 100L, 2000L);
+      fail("Expected the third waiter to be rejected");
+    } catch (TooManyWaitersException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 500L);
+    chatManagerService.addUpdate("userC", 200L);
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  /**
+   * Two windows of the same user wait, a message wakes both, and both then wait again
+   * with the time of the message rather than waking each other.
+   */
+  @Test
+  public void testMultipleWaiters() throws Exception {
+    chatManagerService = new ChatManagerServiceImpl(new CacheManagerServiceImpl(), 10);
+    chatManagerService.addUpdate("userD", 100L);
+    final AtomicInteger updates = new AtomicInteger();
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            if (chatManagerService.waitForUpdate("userD", 100L, 5000L)) {
+              updates.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+          } catch (TooManyWaitersException e) {
+          }
+        }
+      });
+      threads[i].start();
+    }
+    Thread.sleep(200L);
+    long start = System.currentTimeMillis();
+    chatManagerService.addUpdate("userD", 200L);
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(2, updates.get());
+    assertTrue(System.currentTimeMillis() - start < 900L);
+
+    // both windows come back with the time of the update.
+    long time = chatManagerService.getLastUpdate("userD");
+    assertEquals(200L, time);
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            if (chatManagerService.waitForUpdate("userD", 200L, 1500L)) {
+              updates.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+          } catch (TooManyWaitersException e) {
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(2, updates.get());
+  }
+
+  @Test
+  public void testSetLastUpdateDoesNotWake() throws Exception {
+    chatManagerService.addUpdate("userE", 100L);
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(100L);
+        } catch (InterruptedException e) {
+        }
+        chatManagerService.setLastUpdate("userE", 200L);
+      }
+    }).start();
+    long start = System.currentTimeMillis();
+    assertTrue(chatManagerService.waitForUpdate("userE", 100L, 10000L));
+    // only seen by the periodic recheck.
+    assertTrue(System.currentTimeMillis() - start >= 900L);
+  }
+
+  @Test
+  public void testUnknownUserLastUpdate() throws Exception {
+    assertEquals(0L, chatManagerService.getLastUpdate("userF"));
+  }
+
+}
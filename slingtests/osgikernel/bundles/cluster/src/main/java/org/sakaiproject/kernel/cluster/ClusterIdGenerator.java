@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates 64 bit ids that are unique within the cluster, without locking. An id is made
+ * of 41 bits of ms since the epoch, 10 bits of server number and a 12 bit sequence within
+ * the ms. The time and sequence are held in one {@link AtomicLong} and advanced with a
+ * compare and set. When the sequence for a ms is exhausted, or the clock goes backwards,
+ * ids are taken from the following ms rather than waiting, so ids from one server always
+ * increase. Ids only run ahead of the clock while more than 4096 a ms are being issued.
+ */
+public class ClusterIdGenerator {
+
+  private static final int SEQUENCE_BITS = 12;
+  private static final int SERVER_BITS = 10;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+  private static final long SERVER_MASK = (1L << SERVER_BITS) - 1;
+  /**
+   * The URL safe base64 alphabet, 6 bits per character.
+   */
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+      .toCharArray();
+  /**
+   * The number of characters needed to encode 64 bits.
+   */
+  private static final int ENCODED_LENGTH = 11;
+
+  private long epoch;
+  /**
+   * The last (ms since epoch &lt;&lt; SEQUENCE_BITS) | sequence issued.
+   */
+  private AtomicLong last = new AtomicLong();
+
+  /**
+   * @param epoch
+   *          the time in ms that ids count from.
+   */
+  public ClusterIdGenerator(long epoch) {
+    this.epoch = epoch;
+  }
+
+  /**
+   * @param serverNumber
+   *          the number of this server in the cluster, only the low 10 bits are used.
+   * @return the next id.
+   */
+  public long nextId(int serverNumber) {
+    long stamp;
+    for (;;) {
+      long prev = last.get();
+      long now = (currentTimeMillis() - epoch) << SEQUENCE_BITS;
+      // if the clock has not moved on, or has gone back, continue from the last id, a
+      // full sequence carries into the next ms.
+      stamp = (now > prev) ? now : prev + 1;
+      if (last.compareAndSet(prev, stamp)) {
+        break;
+      }
+    }
+    return ((stamp >>> SEQUENCE_BITS) << (SERVER_BITS + SEQUENCE_BITS))
+        | ((serverNumber & SERVER_MASK) << SEQUENCE_BITS) | (stamp & SEQUENCE_MASK);
+  }
+
+  /**
+   * @param id
+   * @return the id as 11 characters of the URL safe base64 alphabet, most significant
+   *         first.
+   */
+  public static String encode(long id) {
+    char[] c = new char[ENCODED_LENGTH];
+    for (int i = ENCODED_LENGTH - 1; i >= 0; i--) {
+      c[i] = ALPHABET[(int) (id & 0x3F)];
+      id >>>= 6;
+    }
+    return new String(c);
+  }
+
+  /**
+   * @return the current time in ms, protected for testing.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+}
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.kernel.cluster;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -37,7 +36,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
-import java.math.BigInteger;
 import java.util.GregorianCalendar;
 import java.util.List;
 
@@ -104,10 +102,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private boolean isReady = false;
   private int serverNumber;
-  private Object lockObject = new Object();
-  private long next;
-  private long epoch;
-  private long prev;
+  private ClusterIdGenerator idGenerator;
 
   /**
    * Constructor for testing purposes only.
@@ -117,12 +112,12 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   protected ClusterTrackingServiceImpl(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
     GregorianCalendar calendar = new GregorianCalendar(2009, 8, 22);
-    epoch = calendar.getTimeInMillis();
+    idGenerator = new ClusterIdGenerator(calendar.getTimeInMillis());
   }
 
   public ClusterTrackingServiceImpl() {
     GregorianCalendar calendar = new GregorianCalendar(2009, 8, 22);
-    epoch = calendar.getTimeInMillis();
+    idGenerator = new ClusterIdGenerator(calendar.getTimeInMillis());
   }
 
   /**
@@ -362,15 +357,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @see org.sakaiproject.kernel.api.cluster.ClusterTrackingService#getClusterUniqueId()
    */
   public String getClusterUniqueId() {
-    synchronized (lockObject) {
-      do {
-        next = System.currentTimeMillis() - epoch;
-      } while (next == prev);
-    }
-    BigInteger idNum = new BigInteger(String.valueOf(serverNumber) + String.valueOf(next));
-    prev = next;
-    Base64 b64 = new Base64();
-    return b64.encodeToString(idNum.toByteArray()).trim();
+    return ClusterIdGenerator.encode(idGenerator.nextId(serverNumber));
   }
 
 }
@@ -19,10 +19,17 @@ package org.sakaiproject.kernel.cluster;
 
 import org.sakaiproject.kernel.api.cluster.ClusterUser;
 
+import java.io.Serializable;
+
 /**
  * An object that represents a user somewhere in the cluster.
  */
-public class ClusterUserImpl implements ClusterUser {
+public class ClusterUserImpl implements ClusterUser, Serializable {
+
+  /**
+   * The object must be Serializable to replicate.
+   */
+  private static final long serialVersionUID = 2389641920367423019L;
 
   /**
    * The TTL in the cache
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.cluster;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of cluster unique id generation at 1 to 64 threads. Not run as
+ * part of the build, run with java -cp target/test-classes:target/classes
+ * org.sakaiproject.kernel.cluster.ClusterIdBenchmark
+ */
+public class ClusterIdBenchmark {
+
+  private static final long RUN_MS = 2000L;
+
+  public static void main(String[] args) throws InterruptedException {
+    ClusterIdGenerator generator = new ClusterIdGenerator(0L);
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      run(generator, threads);
+    }
+  }
+
+  private static void run(final ClusterIdGenerator generator, int threads)
+      throws InterruptedException {
+    final AtomicLong ops = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final long end = System.currentTimeMillis() + RUN_MS;
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            long n = 0;
+            int sink = 0;
+            while (System.currentTimeMillis() < end) {
+              for (int j = 0; j < 1000; j++) {
+                sink += ClusterIdGenerator.encode(generator.nextId(1)).charAt(10);
+              }
+              n += 1000;
+            }
+            ops.addAndGet(n + (sink & 0));
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    System.out.println(threads + " threads: " + (ops.get() * 1000 / RUN_MS) + " ids/s");
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ */
+public class ClusterIdGeneratorTest {
+
+  @Test
+  public void testUniqueAcrossThreads() throws InterruptedException {
+    final ClusterIdGenerator generator = new ClusterIdGenerator(0L);
+    final Map<String, String> ids = new ConcurrentHashMap<String, String>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            String id = ClusterIdGenerator.encode(generator.nextId(3));
+            ids.put(id, id);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(80000, ids.size());
+  }
+
+  @Test
+  public void testMonotonicWhenClockGoesBack() {
+    final long[] clock = new long[] { 10000L };
+    ClusterIdGenerator generator = new ClusterIdGenerator(0L) {
+      @Override
+      protected long currentTimeMillis() {
+        return clock[0];
+      }
+    };
+    long prev = generator.nextId(1);
+    for (int i = 0; i < 10000; i++) {
+      if (i % 100 == 0) {
+        // step back a second every 100 ids, exhausting the sequence on the way.
+        clock[0] -= 1000;
+      }
+      long id = generator.nextId(1);
+      assertTrue(id > prev);
+      prev = id;
+    }
+  }
+
+  @Test
+  public void testLayoutAndEncoding() {
+    ClusterIdGenerator generator = new ClusterIdGenerator(0L) {
+      @Override
+      protected long currentTimeMillis() {
+        return 5L;
+      }
+    };
+    long id = generator.nextId(7);
+    assertEquals(5L, id >>> 22);
+    assertEquals(7L, (id >>> 12) & 0x3FF);
+    assertEquals(0L, id & 0xFFF);
+    assertEquals(1L, generator.nextId(7) & 0xFFF);
+    assertEquals("AAAAAAAAAAA", ClusterIdGenerator.encode(0L));
+    assertEquals("P__________", ClusterIdGenerator.encode(-1L));
+    String encoded = ClusterIdGenerator.encode(Long.MAX_VALUE);
+    assertEquals(11, encoded.length());
+    assertTrue(encoded.matches("[A-Za-z0-9_-]+"));
+  }
+
+}
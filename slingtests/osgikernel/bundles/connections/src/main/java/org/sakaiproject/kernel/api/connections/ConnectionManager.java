@@ -19,6 +19,7 @@ package org.sakaiproject.kernel.api.connections;
 
 import org.apache.sling.api.resource.Resource;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -59,4 +60,19 @@ public interface ConnectionManager {
    */
   List<String> getConnectedUsers(String user, ConnectionState state);
 
+  /**
+   * Check which of a set of users are connected to this user, optionally limited by state
+   * of the connection
+   * 
+   * @param user the id of the user to check connections for
+   * @param candidates the ids of the users to check
+   * @param state [OPTIONAL] if null then a connection in any state matches, otherwise only
+   * connections in the indicated state match
+   * @return the candidates that are connected to the given user (with the given state), in
+   * the order of the candidates
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  List<String> getConnectedUsers(String user, Collection<String> candidates,
+      ConnectionState state);
+
 }
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.connections;
+
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An in memory index of the connections of each user, keyed by the other user and holding
+ * the state of the connection as seen by the user. The number of users held is bounded,
+ * the least recently used users are dropped first. A user that is not in the index is
+ * loaded in full with {@link #put(String, Map, long)}, transitions are only applied to
+ * users that are already loaded so a cached user is never missing connections. The index
+ * is local to the server, changes saved elsewhere are applied with
+ * {@link #update(String, String, ConnectionState)} as they are observed.
+ */
+public class ConnectionIndex {
+
+  private final Map<String, Map<String, ConnectionState>> users;
+  /**
+   * Incremented on every transition, so that a load that started before a transition does
+   * not replace the state written by it.
+   */
+  private long generation;
+
+  /**
+   * @param maxUsers
+   *          the number of users to hold.
+   */
+  public ConnectionIndex(final int maxUsers) {
+    this.users = new LinkedHashMap<String, Map<String, ConnectionState>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2381769218463517745L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, Map<String, ConnectionState>> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @return the generation to pass to {@link #put(String, Map, long)}, taken before the
+   *         connections of a user are read from the repository.
+   */
+  public synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * @param user
+   * @return true if the connections of the user are in the index.
+   */
+  public synchronized boolean contains(String user) {
+    return users.containsKey(user);
+  }
+
+  /**
+   * @param user
+   * @param state
+   *          if null all connections are returned regardless of state.
+   * @return the users connected to the user in the given state, in the order they were
+   *         loaded or connected, or null if the user is not in the index.
+   */
+  public synchronized List<String> get(String user, ConnectionState state) {
+    Map<String, ConnectionState> connections = users.get(user);
+    if (connections == null) {
+      return null;
+    }
+    List<String> connected = new ArrayList<String>();
+    for (Entry<String, ConnectionState> e : connections.entrySet()) {
+      if (state == null || state.equals(e.getValue())) {
+        connected.add(e.getKey());
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * @param user
+   * @param candidates
+   *          the users to check.
+   * @param state
+   *          if null a connection in any state matches.
+   * @return the candidates that are connected to the user in the given state, in the order
+   *         of the candidates, or null if the user is not in the index.
+   */
+  public synchronized List<String> filter(String user, Collection<String> candidates,
+      ConnectionState state) {
+    Map<String, ConnectionState> connections = users.get(user);
+    if (connections == null) {
+      return null;
+    }
+    List<String> connected = new ArrayList<String>();
+    for (String candidate : candidates) {
+      ConnectionState s = connections.get(candidate);
+      if (s != null && (state == null || state.equals(s))) {
+        connected.add(candidate);
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * Load the connections of a user, as read from the repository. The load is dropped if a
+   * transition has been applied since the generation was taken.
+   * 
+   * @param user
+   * @param connections
+   *          the state of each connection, keyed by the other user.
+   * @param generation
+   *          the value of {@link #generation()} before the connections were read.
+   * @return true if the connections were loaded.
+   */
+  public synchronized boolean put(String user, Map<String, ConnectionState> connections,
+      long generation) {
+    if (generation != this.generation) {
+      return false;
+    }
+    users.put(user, new LinkedHashMap<String, ConnectionState>(connections));
+    return true;
+  }
+
+  /**
+   * Apply a transition of the connection between two users, as saved to the repository.
+   * 
+   * @param user
+   * @param other
+   * @param state
+   *          the state of the connection as seen by the user.
+   * @param otherState
+   *          the state of the connection as seen by the other user.
+   */
+  public synchronized void transition(String user, String other, ConnectionState state,
+      ConnectionState otherState) {
+    generation++;
+    Map<String, ConnectionState> connections = users.get(user);
+    if (connections != null) {
+      connections.put(other, state);
+    }
+    connections = users.get(other);
+    if (connections != null) {
+      connections.put(user, otherState);
+    }
+  }
+
+  /**
+   * Apply the state of one side of a connection, as read from the repository after it
+   * changed.
+   * 
+   * @param user
+   * @param other
+   * @param state
+   *          the state of the connection as seen by the user, null if the user no longer
+   *          has a connection node for the other user.
+   */
+  public synchronized void update(String user, String other, ConnectionState state) {
+    generation++;
+    Map<String, ConnectionState> connections = users.get(user);
+    if (connections != null) {
+      if (state == null) {
+        connections.remove(other);
+      } else {
+        connections.put(other, state);
+      }
+    }
+  }
+
+  /**
+   * @param user
+   *          the user to drop from the index.
+   */
+  public synchronized void remove(String user) {
+    generation++;
+    users.remove(user);
+  }
+
+  /**
+   * Drop every user.
+   */
+  public synchronized void clear() {
+    generation++;
+    users.clear();
+  }
+
+  /**
+   * @return the number of users in the index.
+   */
+  public synchronized int size() {
+    return users.size();
+  }
+
+}
@@ -42,9 +42,11 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.connections.ConnectionConstants;
 import org.sakaiproject.kernel.api.connections.ConnectionException;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
@@ -58,8 +60,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -70,6 +75,9 @@ import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -81,6 +89,8 @@ import javax.jcr.query.QueryResult;
  *                description="Service for doing operations with connections." name
  *                ="org.sakaiproject.kernel.api.connections.ConnectionManager"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="connections.index.size" value="10000"
+ *               description="the number of users whose connections are held in memory"
  * @scr.service interface="org.sakaiproject.kernel.api.connections.ConnectionManager"
  * @scr.reference name="SlingRepository"
  *                interface="org.apache.sling.jcr.api.SlingRepository"
@@ -95,6 +105,21 @@ public class ConnectionManagerImpl implements ConnectionManager {
   
   protected SlingRepository slingRepository;
 
+  static final String PROP_INDEX_SIZE = "connections.index.size";
+
+  private static final int DEFAULT_INDEX_SIZE = 10000;
+
+  /**
+   * The connections of recently used users, kept up to date by {@link #connect}, and by
+   * {@link ContactListener} for changes saved on other servers of the cluster or outside
+   * this service. The repository is only queried to load a user that is not in the index.
+   */
+  protected ConnectionIndex index = new ConnectionIndex(DEFAULT_INDEX_SIZE);
+
+  private Session listenerSession;
+
+  private ContactListener contactListener;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -249,6 +274,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       if (adminSession.hasPendingChanges()) {
         adminSession.save();
       }
+      index.transition(thisUserId, otherUserId, getConnectionState(thisNode),
+          getConnectionState(otherNode));
     } catch (RepositoryException e) {
       throw new ConnectionException(500, e.getMessage(), e);
     } finally {
@@ -267,39 +294,89 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.kernel.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
+    List<String> connected = index.get(user, state);
+    if (connected == null) {
+      connected = filterConnections(loadConnections(user), null, state);
+    }
+    return connected;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.connections.ConnectionManager#getConnectedUsers(java.lang.String,
+   *      java.util.Collection,
+   *      org.sakaiproject.kernel.api.connections.ConnectionState)
+   */
+  public List<String> getConnectedUsers(String user, Collection<String> candidates,
+      ConnectionState state) {
+    List<String> connected = index.filter(user, candidates, state);
+    if (connected == null) {
+      connected = filterConnections(loadConnections(user), candidates, state);
+    }
+    return connected;
+  }
+
+  /**
+   * @param connections
+   * @param candidates
+   *          if null all the connections are candidates.
+   * @param state
+   *          if null a connection in any state matches.
+   * @return the matching users.
+   */
+  private List<String> filterConnections(Map<String, ConnectionState> connections,
+      Collection<String> candidates, ConnectionState state) {
+    List<String> l = new ArrayList<String>();
+    Collection<String> users = candidates == null ? connections.keySet() : candidates;
+    for (String u : users) {
+      ConnectionState s = connections.get(u);
+      if (s != null && (state == null || state.equals(s))) {
+        l.add(u);
+      }
+    }
+    return l;
+  }
+
+  /**
+   * Read all the connections of a user from the repository and load them into the index.
+   * 
+   * @param user
+   * @return the state of each connection, keyed by the other user.
+   */
+  protected Map<String, ConnectionState> loadConnections(String user) {
+    long generation = index.generation();
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
     // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    // "//_user/contacts/a0/b0/c0/d0/aaron//element(*)[@sling:resourceType=\"sakai/contact\"]"
     try {
       Session adminSession = slingRepository.loginAdministrative(null);
       try {
         // this will generate the bigstore path
         String connectionPath = ConnectionUtils.getConnectionPathBase(user);
-        // create the search query string
+        // create the search query string, the state is read from each node so that all
+        // the connections of the user can be indexed at once.
         String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
             + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
+            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
         QueryManager qm = adminSession.getWorkspace().getQueryManager();
         Query query = qm.createQuery(search, Query.XPATH);
         QueryResult result = query.execute();
         NodeIterator nodeIterator = result.getNodes();
         while (nodeIterator.hasNext()) {
           Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+          connections.put(node.getName(), getConnectionState(node));
         }
       } finally {
         adminSession.logout();
       }
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
+    } catch (ConnectionException e) {
+      throw new IllegalStateException(e.getMessage(), e);
     }
-    return l;
+    index.put(user, connections, generation);
+    return connections;
   }
 
   private Node getOrCreateConnectionNode(Session session, String fromUser, String toUser)
@@ -382,6 +459,94 @@ public class ConnectionManagerImpl implements ConnectionManager {
     }
   }
 
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    index = new ConnectionIndex(OsgiUtil.toInteger(props.get(PROP_INDEX_SIZE),
+        DEFAULT_INDEX_SIZE));
+    try {
+      listenerSession = slingRepository.loginAdministrative(null);
+      contactListener = new ContactListener();
+      listenerSession.getWorkspace().getObservationManager().addEventListener(
+          contactListener,
+          Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+              | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED,
+          ConnectionUtils.CONNECTION_PATH_ROOT, true, null, null, false);
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to listen for connection changes, connections will not be indexed ", e);
+      index = new ConnectionIndex(0);
+    }
+  }
+
+  /**
+   * Applies every change to the contacts subtree to the index, including the ones made by
+   * {@link #connect}, which have already been applied and are applied again.
+   */
+  private class ContactListener implements EventListener {
+
+    public void onEvent(EventIterator events) {
+      Set<String> changed = new HashSet<String>();
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        try {
+          String path = event.getPath();
+          int type = event.getType();
+          if (type == Event.PROPERTY_ADDED || type == Event.PROPERTY_CHANGED
+              || type == Event.PROPERTY_REMOVED) {
+            path = path.substring(0, path.lastIndexOf('/'));
+          }
+          String[] users = ConnectionUtils.getConnectionUsers(path);
+          if (users == null) {
+            if (type == Event.NODE_REMOVED) {
+              // the connections of any number of users have gone.
+              index.clear();
+            }
+          } else if (users[1] == null) {
+            if (type == Event.NODE_REMOVED) {
+              index.remove(users[0]);
+            }
+          } else {
+            changed.add(ConnectionUtils.getConnectionPath(users[0], users[1]));
+          }
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read connection event, dropping the connection index ", e);
+          index.clear();
+        }
+      }
+      for (String path : changed) {
+        String[] users = ConnectionUtils.getConnectionUsers(path);
+        try {
+          ConnectionState state = null;
+          if (listenerSession.itemExists(path)) {
+            state = getConnectionState((Node) listenerSession.getItem(path));
+          }
+          index.update(users[0], users[1], state);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read connection " + path + ", dropping it from the index ", e);
+          index.remove(users[0]);
+        } catch (ConnectionException e) {
+          LOGGER.warn("Unable to read connection " + path + ", dropping it from the index ", e);
+          index.remove(users[0]);
+        }
+      }
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (listenerSession != null) {
+      try {
+        if (contactListener != null) {
+          listenerSession.getWorkspace().getObservationManager().removeEventListener(
+              contactListener);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to remove contact listener ", e);
+      }
+      listenerSession.logout();
+      listenerSession = null;
+    }
+    index.clear();
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
@@ -73,4 +73,25 @@ public class ConnectionUtils {
     return PathUtils.toInternalHashedPath(CONNECTION_PATH_ROOT, user1, "");
   }
 
+  /**
+   * The reverse of {@link #getConnectionPath(String, String)}.
+   * 
+   * @param path
+   *          a path below {@link #CONNECTION_PATH_ROOT}.
+   * @return the user who owns the connections and the other user of the connection the
+   *         path is in. The other user is null if the path is above a connection, and null
+   *         is returned if the path is above the connections of a user.
+   */
+  public static String[] getConnectionUsers(String path) {
+    if (!path.startsWith(CONNECTION_PATH_ROOT + "/")) {
+      return null;
+    }
+    // 4 levels of hash then the user, for both users.
+    String[] elements = path.substring(CONNECTION_PATH_ROOT.length() + 1).split("/");
+    if (elements.length < 5) {
+      return null;
+    }
+    return new String[] { elements[4], elements.length < 10 ? null : elements[9] };
+  }
+
 }
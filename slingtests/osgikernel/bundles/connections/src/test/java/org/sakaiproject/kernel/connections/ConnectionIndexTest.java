@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test the connection index.
+ */
+public class ConnectionIndexTest {
+
+  @Test
+  public void testTransitionUpdatesLoadedUsers() {
+    ConnectionIndex index = new ConnectionIndex(10);
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    connections.put("bob", ConnectionState.ACCEPTED);
+    connections.put("carol", ConnectionState.PENDING);
+    assertTrue(index.put("alice", connections, index.generation()));
+
+    // dave is not loaded, so only alice's side of the connection is indexed.
+    index.transition("alice", "dave", ConnectionState.PENDING, ConnectionState.INVITED);
+    assertFalse(index.contains("dave"));
+    assertEquals(Arrays.asList("carol", "dave"), index.get("alice",
+        ConnectionState.PENDING));
+
+    index.transition("carol", "alice", ConnectionState.ACCEPTED, ConnectionState.ACCEPTED);
+    assertEquals(Arrays.asList("bob", "carol"), index.get("alice",
+        ConnectionState.ACCEPTED));
+    assertEquals(3, index.get("alice", null).size());
+    assertNull(index.get("carol", null));
+  }
+
+  @Test
+  public void testFilter() {
+    ConnectionIndex index = new ConnectionIndex(10);
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    connections.put("bob", ConnectionState.ACCEPTED);
+    connections.put("carol", ConnectionState.BLOCKED);
+    connections.put("dave", ConnectionState.ACCEPTED);
+    index.put("alice", connections, index.generation());
+    List<String> candidates = Arrays.asList("erin", "dave", "carol", "bob");
+    assertEquals(Arrays.asList("dave", "bob"), index.filter("alice", candidates,
+        ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("dave", "carol", "bob"), index.filter("alice", candidates,
+        null));
+    assertNull(index.filter("bob", candidates, ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testStaleLoadIsDropped() {
+    ConnectionIndex index = new ConnectionIndex(10);
+    long generation = index.generation();
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    connections.put("bob", ConnectionState.INVITED);
+    // a transition is saved while alice's connections are being read.
+    index.transition("alice", "bob", ConnectionState.ACCEPTED, ConnectionState.ACCEPTED);
+    assertFalse(index.put("alice", connections, generation));
+    assertNull(index.get("alice", null));
+  }
+
+  @Test
+  public void testUpdate() {
+    ConnectionIndex index = new ConnectionIndex(10);
+    long generation = index.generation();
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    connections.put("bob", ConnectionState.INVITED);
+    connections.put("carol", ConnectionState.ACCEPTED);
+    assertTrue(index.put("alice", connections, generation));
+
+    // changes observed from another server.
+    index.update("alice", "bob", ConnectionState.ACCEPTED);
+    index.update("alice", "carol", null);
+    index.update("bob", "alice", ConnectionState.ACCEPTED);
+    assertEquals(Arrays.asList("bob"), index.get("alice", null));
+    assertEquals(Arrays.asList("bob"), index.get("alice", ConnectionState.ACCEPTED));
+    assertFalse(index.contains("bob"));
+    // a load that started before the update is dropped.
+    assertFalse(index.put("bob", connections, generation));
+
+    index.clear();
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedUserIsDropped() {
+    ConnectionIndex index = new ConnectionIndex(2);
+    Map<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    index.put("alice", connections, index.generation());
+    index.put("bob", connections, index.generation());
+    index.get("alice", null);
+    index.put("carol", connections, index.generation());
+    assertEquals(2, index.size());
+    assertTrue(index.contains("alice"));
+    assertFalse(index.contains("bob"));
+  }
+
+}
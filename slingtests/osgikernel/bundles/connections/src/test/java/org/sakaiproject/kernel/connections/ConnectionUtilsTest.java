@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.kernel.connections;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
@@ -65,4 +67,19 @@ public class ConnectionUtilsTest {
     assertEquals(BASE+".dfsdfds.sdfsdf", ConnectionUtils.getConnectionPath("user1",
         "user2", "user2.dfsdfds.sdfsdf"));
   }
+
+  @Test
+  public void testConnectionUsers() {
+    assertArrayEquals(new String[] { "user1", "user2" }, ConnectionUtils
+        .getConnectionUsers(BASE));
+    assertArrayEquals(new String[] { "user1", "user2" }, ConnectionUtils
+        .getConnectionUsers(BASE + "/child"));
+    assertArrayEquals(new String[] { "user1", null }, ConnectionUtils
+        .getConnectionUsers(ConnectionUtils.getConnectionPathBase("user1")));
+    assertArrayEquals(new String[] { "user1", null }, ConnectionUtils
+        .getConnectionUsers("/_user/contacts/b3/da/a7/7b/user1/a1"));
+    assertNull(ConnectionUtils.getConnectionUsers("/_user/contacts/b3/da"));
+    assertNull(ConnectionUtils.getConnectionUsers("/_user/contacts"));
+    assertNull(ConnectionUtils.getConnectionUsers("/_user/contactsx/b3/da/a7/7b/user1"));
+  }
 }
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
@@ -29,27 +30,33 @@ import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
-import javax.jms.Topic;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Only the topics configured in
+ * event.topics are received. Events are put on a bounded queue and published by worker
+ * threads, each with a JMS session of its own, so the thread delivering the event does
+ * not wait for JMS. An event that arrives while the queue is full waits up to
+ * bridge.offerTimeout for space, and if there is still none it is published on the
+ * caller's thread, so events are never dropped (outgoing email is sent over this bridge).
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true)
 @Service
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
-  @Property(value = "*", propertyPrivate = true)
+  @Property(value = { "org/sakaiproject/*" }, cardinality = Integer.MAX_VALUE)
   static final String TOPICS = EventConstants.EVENT_TOPIC;
 
   @Property(value = "vm://localhost:61616")
@@ -64,16 +71,44 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  @Property(intValue = 2)
+  static final String WORKERS = "bridge.workers";
+
+  @Property(intValue = 50)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  @Property(intValue = 100)
+  static final String OFFER_TIMEOUT = "bridge.offerTimeout";
+
+  /**
+   * The number of producers each worker keeps open.
+   */
+  private static final int MAX_PRODUCERS = 100;
+
   @Reference
   private ConnectionFactoryService connFactoryService;
 
   private ConnectionFactory connFactory;
   private Connection conn;
-  private Session clientSession;
   private String brokerUrl;
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int batchSize;
+  private long offerTimeout;
+  private BlockingQueue<Event> queue;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+  private final AtomicLong overflow = new AtomicLong();
+  /**
+   * Publishes events on the caller's thread when the queue stays full, created the first
+   * time it is needed and guarded by overflowLock.
+   */
+  private TopicPublisher overflowPublisher;
+  private final Object overflowLock = new Object();
 
   /**
    * Default constructor.
@@ -104,8 +139,14 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = (Boolean) props.get(SESSION_TRANSACTED);
-    acknowledgeMode = (Integer) props.get(ACKNOWLEDGE_MODE);
+    int nworkers = OsgiUtil.toInteger(props.get(WORKERS), 2);
+    int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(BATCH_SIZE), 50));
+    offerTimeout = Math.max(0, OsgiUtil.toInteger(props.get(OFFER_TIMEOUT), 100));
+    // batches are only sent together in a transacted session.
+    transacted = Boolean.TRUE.equals(props.get(SESSION_TRANSACTED)) || batchSize > 1;
+    acknowledgeMode = OsgiUtil.toInteger(props.get(ACKNOWLEDGE_MODE),
+        Session.AUTO_ACKNOWLEDGE);
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
     String _brokerUrl = (String) props.get(BROKER_URL);
 
@@ -128,32 +169,61 @@ public class OsgiJmsBridge implements EventHandler {
     }
     brokerUrl = _brokerUrl;
 
-    // may want to consider getting this connection from a pool but activity
-    // is expected to be high enough that the connection will be used almost
-    // constantly or at least with very little delay between messages.
+    // the connection is shared by the workers, each worker has a session of its own as
+    // sessions must not be used by more than one thread at a time.
+    List<TopicPublisher> publishers = new ArrayList<TopicPublisher>();
     try {
       conn = connFactory.createConnection();
       conn.setClientID(connectionClientId);
-
-      clientSession = conn.createSession(transacted, acknowledgeMode);
+      for (int i = 0; i < nworkers; i++) {
+        publishers.add(new TopicPublisher(conn.createSession(transacted, acknowledgeMode),
+            transacted, MAX_PRODUCERS));
+      }
+      conn.start();
     } catch (JMSException e) {
+      for (TopicPublisher publisher : publishers) {
+        publisher.close();
+      }
+      closeConnection();
       throw new RuntimeException(e.getMessage(), e);
     }
+
+    queue = new ArrayBlockingQueue<Event>(Math.max(1, queueSize));
+    running = true;
+    for (int i = 0; i < publishers.size(); i++) {
+      Thread t = new Thread(new Worker(publishers.get(i)), "osgi-jms-bridge-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+      t.start();
+    }
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events already queued are
+   * published before the connection is closed.
    *
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
-    if (clientSession != null) {
+    running = false;
+    for (Thread t : workers) {
       try {
-        clientSession.close();
-      } catch (JMSException e) {
-        LOGGER.warn(e.getMessage(), e);
+        t.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
+    workers.clear();
+    synchronized (overflowLock) {
+      if (overflowPublisher != null) {
+        overflowPublisher.close();
+        overflowPublisher = null;
+      }
+    }
+    closeConnection();
+  }
+
+  private void closeConnection() {
     if (conn != null) {
       try {
         conn.close();
@@ -168,38 +238,58 @@ public class OsgiJmsBridge implements EventHandler {
    *
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  @SuppressWarnings("unchecked")
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if (connFactory != null) {
-      LOGGER.debug("Processing event {}", event);
+    BlockingQueue<Event> q = queue;
+    if (q != null && running) {
+      LOGGER.debug("Queueing event {}", event);
+      boolean queued;
       try {
-        // post to JMS
-        Topic emailTopic = clientSession.createTopic(event.getTopic());
-        MessageProducer client = clientSession.createProducer(emailTopic);
-        Message msg = clientSession.createMessage();
-        msg.setJMSType(event.getTopic());
-        for (String name : event.getPropertyNames()) {
-          Object obj = event.getProperty(name);
-          // "Only objectified primitive objects, String, Map and List types are
-          // allowed" as stated by an exception when putting something into the
-          // message that was not of one of these types.
-          if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-              || obj instanceof Number || obj instanceof Map || obj instanceof String
-              || obj instanceof List) {
-            msg.setObjectProperty(name, obj);
-          }
+        queued = q.offer(event, offerTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        queued = false;
+      }
+      if (!queued) {
+        long n = overflow.incrementAndGet();
+        if (n % 1000 == 1) {
+          LOGGER.warn("Event queue full, {} events sent to JMS on the caller's thread so far",
+              n);
         }
+        publishOnCaller(event);
+      }
+    }
+  }
 
-        clientSession.run();
-        conn.start();
-        client.send(msg);
+  /**
+   * Publish an event on the calling thread, because the workers are not keeping up.
+   *
+   * @param event
+   */
+  private void publishOnCaller(Event event) {
+    synchronized (overflowLock) {
+      try {
+        if (overflowPublisher == null) {
+          overflowPublisher = new TopicPublisher(conn.createSession(transacted,
+              acknowledgeMode), transacted, MAX_PRODUCERS);
+        }
+        List<Event> events = new ArrayList<Event>(1);
+        events.add(event);
+        overflowPublisher.publish(events);
       } catch (JMSException e) {
-        LOGGER.error(e.getMessage(), e);
+        LOGGER.error("Failed to publish event " + event.getTopic(), e);
       }
     }
   }
 
+  /**
+   * @return the number of events published on the caller's thread because the queue was
+   *         full.
+   */
+  public long getOverflowEvents() {
+    return overflow.get();
+  }
+
   /**
    * Determine if there is a difference between two objects.
    *
@@ -220,4 +310,43 @@ public class OsgiJmsBridge implements EventHandler {
 
     return diff;
   }
+
+  /**
+   * Takes events off the queue, up to a batch at a time, and publishes them.
+   */
+  private class Worker implements Runnable {
+    private final TopicPublisher publisher;
+
+    Worker(TopicPublisher publisher) {
+      this.publisher = publisher;
+    }
+
+    public void run() {
+      List<Event> batch = new ArrayList<Event>(batchSize);
+      try {
+        // keep going until stopped and everything queued has been sent.
+        while (running || !queue.isEmpty()) {
+          Event event;
+          try {
+            event = queue.poll(1, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            break;
+          }
+          if (event == null) {
+            continue;
+          }
+          batch.add(event);
+          queue.drainTo(batch, batchSize - 1);
+          try {
+            publisher.publish(batch);
+          } catch (RuntimeException e) {
+            LOGGER.error("Failed to publish " + batch.size() + " events", e);
+          }
+          batch.clear();
+        }
+      } finally {
+        publisher.close();
+      }
+    }
+  }
 }
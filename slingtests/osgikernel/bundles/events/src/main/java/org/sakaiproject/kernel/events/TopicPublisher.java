@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Publishes OSGi events on one JMS session, keeping a producer for each of the most
+ * recently used topics. If the session is transacted, a batch of events is committed
+ * together. A session must only be used by one thread at a time, so each publisher
+ * belongs to one worker.
+ */
+public class TopicPublisher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TopicPublisher.class);
+
+  private final Session session;
+  private final boolean transacted;
+  private final Map<String, MessageProducer> producers;
+
+  /**
+   * @param session
+   *          the session to publish on, owned by this publisher.
+   * @param transacted
+   *          true if the session is transacted.
+   * @param maxProducers
+   *          the number of producers to keep open.
+   */
+  public TopicPublisher(Session session, boolean transacted, final int maxProducers) {
+    this.session = session;
+    this.transacted = transacted;
+    this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2471637004227335513L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+        if (size() > maxProducers) {
+          close(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Publish a batch of events. In a transacted session the batch is committed once, and
+   * if that fails the events are sent again one at a time.
+   * 
+   * @param events
+   */
+  public void publish(List<Event> events) {
+    if (transacted && events.size() > 1) {
+      try {
+        for (Event event : events) {
+          send(event);
+        }
+        session.commit();
+        return;
+      } catch (JMSException e) {
+        LOGGER.warn("Failed to publish {} events, retrying one at a time: {}", events
+            .size(), e.getMessage());
+        rollback();
+      }
+    }
+    for (Event event : events) {
+      try {
+        send(event);
+        if (transacted) {
+          session.commit();
+        }
+      } catch (JMSException e) {
+        LOGGER.error(e.getMessage(), e);
+        if (transacted) {
+          rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Send one event to the topic of the same name.
+   * 
+   * @param event
+   * @throws JMSException
+   */
+  private void send(Event event) throws JMSException {
+    String topicName = event.getTopic();
+    MessageProducer producer = producers.get(topicName);
+    if (producer == null) {
+      Topic topic = session.createTopic(topicName);
+      producer = session.createProducer(topic);
+      producers.put(topicName, producer);
+    }
+    producer.send(createMessage(event));
+  }
+
+  /**
+   * @param event
+   * @return a message carrying the properties of the event that JMS can hold.
+   * @throws JMSException
+   */
+  private Message createMessage(Event event) throws JMSException {
+    Message msg = session.createMessage();
+    msg.setJMSType(event.getTopic());
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+    return msg;
+  }
+
+  private void rollback() {
+    try {
+      session.rollback();
+    } catch (JMSException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+
+  private void close(MessageProducer producer) {
+    try {
+      producer.close();
+    } catch (JMSException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Close the session, and with it the producers.
+   */
+  public void close() {
+    producers.clear();
+    try {
+      session.close();
+    } catch (JMSException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+
+import java.net.URI;
+import java.util.Hashtable;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Sends 5000 events through the bridge to an embedded, in VM, broker, unbatched and
+ * batched, and reports the throughput and latency. Not run as part of the build, run
+ * with java -cp target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.events.OsgiJmsBridgeBenchmark
+ */
+public class OsgiJmsBridgeBenchmark {
+  private static final String BROKER_URL = "vm://bridgebenchmark?create=false";
+  private static final String TOPIC = "org/sakaiproject/kernel/events/benchmark";
+  private static final int EVENTS = 5000;
+
+  public static void main(String[] args) throws Exception {
+    BrokerService broker = new BrokerService();
+    broker.setBrokerName("bridgebenchmark");
+    broker.setPersistent(false);
+    broker.setUseJmx(false);
+    broker.start();
+    ConnectionFactoryService connFactoryService = new ConnectionFactoryService() {
+      public ConnectionFactory createFactory() {
+        return new ActiveMQConnectionFactory(BROKER_URL);
+      }
+
+      public ConnectionFactory createFactory(String brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+
+      public ConnectionFactory createFactory(URI brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+    };
+    try {
+      run(connFactoryService, 1, 1);
+      run(connFactoryService, 2, 50);
+    } finally {
+      broker.stop();
+    }
+    System.exit(0);
+  }
+
+  private static void run(ConnectionFactoryService connFactoryService, int workers,
+      int batchSize) throws Exception {
+    Connection consumerConnection = connFactoryService.createFactory(BROKER_URL)
+        .createConnection();
+    try {
+      Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+      consumerConnection.start();
+
+      Hashtable<Object, Object> compProps = new Hashtable<Object, Object>();
+      compProps.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
+      compProps.put(OsgiJmsBridge.BROKER_URL, BROKER_URL);
+      compProps.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge.benchmark");
+      compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
+      compProps.put(OsgiJmsBridge.WORKERS, workers);
+      compProps.put(OsgiJmsBridge.BATCH_SIZE, batchSize);
+      compProps.put(OsgiJmsBridge.QUEUE_SIZE, EVENTS);
+      ComponentContext ctx = createMock(ComponentContext.class);
+      expect(ctx.getProperties()).andReturn(compProps);
+      replay(ctx);
+
+      OsgiJmsBridge bridge = new OsgiJmsBridge(connFactoryService);
+      bridge.activate(ctx);
+      long handleTime = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < EVENTS; i++) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("n", i);
+        props.put("sent", System.nanoTime());
+        long t = System.nanoTime();
+        bridge.handleEvent(new Event(TOPIC, props));
+        handleTime += System.nanoTime() - t;
+      }
+
+      long totalLatency = 0;
+      long maxLatency = 0;
+      int received = 0;
+      while (received < EVENTS) {
+        Message msg = consumer.receive(10000L);
+        if (msg == null) {
+          break;
+        }
+        long latency = System.nanoTime() - msg.getLongProperty("sent");
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        received++;
+      }
+      long elapsed = System.nanoTime() - start;
+      bridge.deactivate(ctx);
+
+      System.out.println(workers + " workers, batches of " + batchSize + ": " + received
+          * 1000000000L / elapsed + " events/s, handleEvent " + (handleTime / EVENTS)
+          + "ns, latency avg " + (totalLatency / Math.max(1, received) / 1000)
+          + "us max " + (maxLatency / 1000) + "us, " + (EVENTS - received) + " lost, "
+          + bridge.getOverflowEvents() + " overflowed");
+    } finally {
+      consumerConnection.close();
+    }
+  }
+}
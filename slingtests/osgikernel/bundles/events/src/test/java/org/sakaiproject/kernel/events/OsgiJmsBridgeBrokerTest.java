@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+
+import java.net.URI;
+import java.util.Hashtable;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Sends events through the bridge to an embedded, in VM, broker and checks they all
+ * arrive. The throughput is measured by {@link OsgiJmsBridgeBenchmark}.
+ */
+public class OsgiJmsBridgeBrokerTest {
+  private static final String BROKER_URL = "vm://bridgetest?create=false";
+  private static final String TOPIC = "org/sakaiproject/kernel/events/test";
+  private static final int EVENTS = 200;
+
+  private BrokerService broker;
+  private ConnectionFactoryService connFactoryService;
+  private Connection consumerConnection;
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new BrokerService();
+    broker.setBrokerName("bridgetest");
+    broker.setPersistent(false);
+    broker.setUseJmx(false);
+    broker.start();
+    connFactoryService = new ConnectionFactoryService() {
+      public ConnectionFactory createFactory() {
+        return new ActiveMQConnectionFactory(BROKER_URL);
+      }
+
+      public ConnectionFactory createFactory(String brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+
+      public ConnectionFactory createFactory(URI brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+    };
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (consumerConnection != null) {
+      consumerConnection.close();
+    }
+    broker.stop();
+  }
+
+  @Test
+  public void testPublishBatched() throws Exception {
+    run(2, 50);
+  }
+
+  @Test
+  public void testPublishUnbatched() throws Exception {
+    run(1, 1);
+  }
+
+  private void run(int workers, int batchSize) throws Exception {
+    consumerConnection = connFactoryService.createFactory(BROKER_URL).createConnection();
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+    consumerConnection.start();
+
+    Hashtable<Object, Object> compProps = new Hashtable<Object, Object>();
+    compProps.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
+    compProps.put(OsgiJmsBridge.BROKER_URL, BROKER_URL);
+    compProps.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge.test");
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
+    compProps.put(OsgiJmsBridge.WORKERS, workers);
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, batchSize);
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, EVENTS);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(compProps);
+    replay(ctx);
+
+    OsgiJmsBridge bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.activate(ctx);
+    for (int i = 0; i < EVENTS; i++) {
+      Hashtable<String, Object> props = new Hashtable<String, Object>();
+      props.put("n", i);
+      bridge.handleEvent(new Event(TOPIC, props));
+    }
+
+    boolean[] seen = new boolean[EVENTS];
+    int received = 0;
+    while (received < EVENTS) {
+      Message msg = consumer.receive(10000L);
+      if (msg == null) {
+        break;
+      }
+      int n = msg.getIntProperty("n");
+      assertFalse(seen[n]);
+      seen[n] = true;
+      received++;
+    }
+    bridge.deactivate(ctx);
+
+    assertEquals(0, bridge.getOverflowEvents());
+    assertEquals(EVENTS, received);
+  }
+}
@@ -255,6 +255,7 @@ public class OsgiJmsBridgeTest {
   @Test
   public void testJmsExceptionWhenCreatingTopic() throws JMSException {
     setUpConnection(true);
+    conn.start();
 
     // mock a session to be returned by the connection and expect it to throw an
     // exception. this causes extra checking to happen in the exception
@@ -273,9 +274,72 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    bridge.deactivate(ctx);
 
     // verify that all expected calls were made.
-    verify(ctx, connFactory);
+    verify(ctx, connFactory, conn, sess);
+  }
+
+  /**
+   * Test that events are sent in batches in a transacted session, with one producer for
+   * each topic.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBatchedEvents() throws JMSException {
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 10);
+    setUpConnection(true);
+    conn.start();
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(5);
+    prod.send((Message) anyObject());
+    expectLastCall().times(5);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.activate(ctx);
+    for (int i = 0; i < 5; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod);
+  }
+
+  /**
+   * Test that an event is published on the caller's thread rather than dropped when the
+   * queue stays full.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testQueueFull() throws JMSException {
+    compProps.put(OsgiJmsBridge.WORKERS, 0);
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 2);
+    compProps.put(OsgiJmsBridge.OFFER_TIMEOUT, 10);
+    setUpFullProcess(true);
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.activate(ctx);
+    for (int i = 0; i < 3; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    assertEquals(1, bridge.getOverflowEvents());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod);
   }
 
   /**
@@ -319,6 +383,9 @@ public class OsgiJmsBridgeTest {
     dict.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
     dict.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
     dict.put(OsgiJmsBridge.TOPICS, "*");
+    dict.put(OsgiJmsBridge.WORKERS, 1);
+    dict.put(OsgiJmsBridge.BATCH_SIZE, 1);
+    dict.put(OsgiJmsBridge.QUEUE_SIZE, 100);
     return dict;
   }
 
@@ -361,10 +428,6 @@ public class OsgiJmsBridgeTest {
       sess = createMock(Session.class);
       expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
 
-      // expect the session to get run
-      sess.run();
-      expectLastCall();
-
       // mock a destination as a topic from the session and expect it
       topic = createMock(Topic.class);
       expect(sess.createTopic((String) anyObject())).andReturn(topic);
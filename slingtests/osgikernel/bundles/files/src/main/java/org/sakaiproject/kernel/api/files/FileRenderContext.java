@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.files;
+
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.AccessControlException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Holds the permissions and site information looked up while a page of file nodes is
+ * written, so that each path and each site is only looked up once for the page. The
+ * privileges of a path are read with one call that returns all of them, and the parent of
+ * a path is only looked up if the user could otherwise remove the node, so files in the
+ * same folder share that lookup. Not thread safe, create one for each page.
+ */
+public class FileRenderContext {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileRenderContext.class);
+
+  private final Session session;
+  private final SiteService siteService;
+  private AccessControlManager accessControlManager;
+  private boolean accessControlManagerChecked;
+  private final Map<String, Set<String>> privileges = new HashMap<String, Set<String>>();
+  private final Map<String, SiteInfo> sites = new HashMap<String, SiteInfo>();
+
+  /**
+   * @param session
+   *          the session of the user the page is written for.
+   * @param siteService
+   */
+  public FileRenderContext(Session session, SiteService siteService) {
+    this.session = session;
+    this.siteService = siteService;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public SiteService getSiteService() {
+    return siteService;
+  }
+
+  /**
+   * Look up the privileges of the user on all the paths of a page, and on the parents
+   * that decide whether the nodes can be removed, in one pass.
+   * 
+   * @param paths
+   */
+  public void loadPermissions(Collection<String> paths) {
+    for (String path : paths) {
+      Set<String> granted = getPrivileges(path);
+      if (granted != null && granted.contains(Privilege.JCR_REMOVE_NODE)
+          && !"/".equals(path)) {
+        getPrivileges(getParentPath(path));
+      }
+    }
+  }
+
+  /**
+   * Look up all the sites a page of files is used in, each once.
+   * 
+   * @param sitePaths
+   */
+  public void loadSites(Collection<String> sitePaths) {
+    for (String sitePath : sitePaths) {
+      getSite(sitePath);
+    }
+  }
+
+  /**
+   * @param path
+   * @return true if the user can set properties on the node at the path.
+   */
+  public boolean canSetProperty(String path) {
+    return hasPrivilege(path, Privilege.JCR_MODIFY_PROPERTIES, "set_property");
+  }
+
+  /**
+   * @param path
+   * @return true if the user can read the node at the path.
+   */
+  public boolean canRead(String path) {
+    return hasPrivilege(path, Privilege.JCR_READ, "read");
+  }
+
+  /**
+   * @param path
+   * @return true if the user can remove the node at the path, which needs the removal of
+   *         child nodes on its parent as well.
+   */
+  public boolean canRemove(String path) {
+    Set<String> granted = getPrivileges(path);
+    if (granted == null) {
+      // the remove action checks the parent as well.
+      return checkPermission(path, "remove");
+    }
+    if (!granted.contains(Privilege.JCR_REMOVE_NODE) || "/".equals(path)) {
+      return false;
+    }
+    Set<String> parentGranted = getPrivileges(getParentPath(path));
+    return parentGranted != null
+        && parentGranted.contains(Privilege.JCR_REMOVE_CHILD_NODES);
+  }
+
+  /**
+   * @param sitePath
+   * @return the site at the path, or null if the path is not a site the user can read.
+   */
+  public SiteInfo getSite(String sitePath) {
+    if (sites.containsKey(sitePath)) {
+      return sites.get(sitePath);
+    }
+    SiteInfo site = null;
+    try {
+      // items the user can not read do not exist for the session.
+      if (session.itemExists(sitePath)) {
+        Node siteNode = (Node) session.getItem(sitePath);
+        if (siteService.isSite(siteNode)) {
+          site = new SiteInfo(siteNode, siteService.getMemberCount(siteNode));
+        }
+      }
+    } catch (Exception e) {
+      // We ignore every exception when looking up sites.
+      LOGGER.info("Unable to look up site {} for a file: {}", sitePath, e.getMessage());
+    }
+    sites.put(sitePath, site);
+    return site;
+  }
+
+  private boolean hasPrivilege(String path, String privilege, String action) {
+    Set<String> granted = getPrivileges(path);
+    if (granted != null) {
+      return granted.contains(privilege);
+    }
+    // no access control manager, fall back to checking the action.
+    return checkPermission(path, action);
+  }
+
+  private boolean checkPermission(String path, String action) {
+    try {
+      session.checkPermission(path, action);
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    } catch (RepositoryException e) {
+      return false;
+    }
+  }
+
+  private String getParentPath(String path) {
+    int i = path.lastIndexOf('/');
+    return (i <= 0) ? "/" : path.substring(0, i);
+  }
+
+  /**
+   * @return the names of the privileges granted on the path, with aggregates expanded, or
+   *         null if privileges can not be read from this session.
+   */
+  private Set<String> getPrivileges(String path) {
+    if (privileges.containsKey(path)) {
+      return privileges.get(path);
+    }
+    Set<String> granted = null;
+    AccessControlManager acm = getAccessControlManager();
+    if (acm != null) {
+      granted = new HashSet<String>();
+      try {
+        for (Privilege p : acm.getPrivileges(path)) {
+          addPrivilege(granted, p);
+        }
+      } catch (RepositoryException e) {
+        // the path is not there or can not be read, nothing is granted.
+      }
+    }
+    privileges.put(path, granted);
+    return granted;
+  }
+
+  private void addPrivilege(Set<String> granted, Privilege privilege) {
+    granted.add(privilege.getName());
+    if (privilege.isAggregate()) {
+      for (Privilege p : privilege.getAggregatePrivileges()) {
+        granted.add(p.getName());
+      }
+    }
+  }
+
+  /**
+   * @return the access control manager of the session, or null if it does not have one,
+   *         protected for testing.
+   */
+  protected AccessControlManager getAccessControlManager() {
+    if (!accessControlManagerChecked) {
+      accessControlManagerChecked = true;
+      try {
+        accessControlManager = AccessControlUtil.getAccessControlManager(session);
+      } catch (Exception e) {
+        LOGGER.debug("No access control manager, permissions are checked one at a time.");
+      }
+    }
+    return accessControlManager;
+  }
+
+  /**
+   * A site a file is used in.
+   */
+  public static class SiteInfo {
+    private final Node siteNode;
+    private final int memberCount;
+
+    SiteInfo(Node siteNode, int memberCount) {
+      this.siteNode = siteNode;
+      this.memberCount = memberCount;
+    }
+
+    public Node getSiteNode() {
+      return siteNode;
+    }
+
+    public int getMemberCount() {
+      return memberCount;
+    }
+  }
+}
@@ -18,7 +18,6 @@
 package org.sakaiproject.kernel.api.files;
 
 import org.apache.jackrabbit.JcrConstants;
-import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
 import org.apache.jackrabbit.api.jsr283.security.Privilege;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.value.ValueFactoryImpl;
@@ -39,10 +38,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.AccessControlException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
@@ -79,83 +82,128 @@ public class FileUtils {
     String fileName = file.getFileName();
 
     if (fileName != null && !fileName.equals("")) {
-      // Clean the filename.
-
-      log.info("Trying to save file {} to {} for user {}", new Object[] { fileName, path,
-          session.getUserID() });
-
-      // Create or get the file.
-      Node fileNode = JcrUtils.deepGetOrCreateNode(session, path, JcrConstants.NT_FILE);
-
-      Node content = null;
-      // If this is a new node then we have to add certain things.
-      if (fileNode.isNew()) {
-        // Make sure we can reference this node.
-        if (fileNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
-          fileNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
-        }
-        fileNode.addMixin("sakai:propertiesmix");
-        fileNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            FilesConstants.RT_SAKAI_FILE);
-        fileNode.setProperty(FilesConstants.SAKAI_ID, id);
-
-        // Create the content node.
-        content = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-        content.setProperty(JcrConstants.JCR_DATA, is);
-        content.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
-        content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
-
-        log.info(Calendar.getInstance().toString());
-        
-        if (session.hasPendingChanges()) {
-          session.save();
-        }
-
-        // TODO: Check that this isnt a fix for the Owner dynamic principal not working.
-        // Make sure that the user can edit it later on.
-        Session adminSession = null;
-        try {
-
-          adminSession = slingRepository.loginAdministrative(null);
-          Authorizable authorizable = AccessControlUtil.getUserManager(adminSession)
-              .getAuthorizable(session.getUserID());
-
-          ACLUtils.addEntry(path, authorizable, adminSession, "g:" + Privilege.JCR_ALL);
+      Node fileNode = writeFile(session, path, id, is, fileName, contentType);
+      boolean isNew = fileNode.isNew();
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      if (isNew) {
+        List<String> paths = new ArrayList<String>(1);
+        paths.add(path);
+        addOwnerEntries(session.getUserID(), paths, slingRepository);
+      }
+      return fileNode;
+    }
+    return null;
+  }
 
-          if (adminSession.hasPendingChanges()) {
-            adminSession.save();
-          }
-        } finally {
-          if (adminSession != null)
-            adminSession.logout();
-        }
+  /**
+   * Write a file into the session without saving it. The content is read from the stream
+   * into the binary as it arrives, and its SHA-1 is computed on the way.
+   * 
+   * @param session
+   * @param path
+   * @param id
+   * @param is
+   *          the content of the file.
+   * @param fileName
+   * @param contentType
+   * @return the file node, which is new if the file did not exist.
+   * @throws RepositoryException
+   */
+  public static Node writeFile(Session session, String path, String id, InputStream is,
+      String fileName, String contentType) throws RepositoryException {
+    log.info("Trying to save file {} to {} for user {}", new Object[] { fileName, path,
+        session.getUserID() });
 
-      } else {
-        // This is not a new node, so we should already have a content node.
-        // Just in case.. catch it
-        try {
-          content = fileNode.getNode(JcrConstants.JCR_CONTENT);
-        } catch (PathNotFoundException pnfe) {
-          content = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-        }
+    // Create or get the file.
+    Node fileNode = JcrUtils.deepGetOrCreateNode(session, path, JcrConstants.NT_FILE);
 
-        content.setProperty(JcrConstants.JCR_DATA, is);
-        content.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
-        content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+    MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    DigestInputStream content = new DigestInputStream(is, sha1);
+
+    Node contentNode = null;
+    // If this is a new node then we have to add certain things.
+    if (fileNode.isNew()) {
+      // Make sure we can reference this node.
+      if (fileNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
+        fileNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
+      }
+      fileNode.addMixin("sakai:propertiesmix");
+      fileNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          FilesConstants.RT_SAKAI_FILE);
+      fileNode.setProperty(FilesConstants.SAKAI_ID, id);
 
+      // Create the content node.
+      contentNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+    } else {
+      // This is not a new node, so we should already have a content node.
+      // Just in case.. catch it
+      try {
+        contentNode = fileNode.getNode(JcrConstants.JCR_CONTENT);
+      } catch (PathNotFoundException pnfe) {
+        contentNode = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
       }
+    }
+    // the binary is spooled from the stream here, so the digest is complete after it.
+    contentNode.setProperty(JcrConstants.JCR_DATA, content);
+    contentNode.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
+    contentNode.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
 
-      // Set the person who last modified it.s
-      fileNode.setProperty(FilesConstants.SAKAI_USER, session.getUserID());
+    fileNode.setProperty(FilesConstants.SAKAI_SHA1, toHex(sha1.digest()));
+    // Set the person who last modified it.s
+    fileNode.setProperty(FilesConstants.SAKAI_USER, session.getUserID());
 
-      fileNode.setProperty("sakai:filename", fileName);
+    fileNode.setProperty(FilesConstants.SAKAI_FILENAME, fileName);
+    return fileNode;
+  }
 
-      if (session.hasPendingChanges()) {
-        session.save();
+  /**
+   * Give a user all privileges on newly created files, so that they can edit them later
+   * on. All the entries are added in one administrative session and saved together.
+   * 
+   * @param userId
+   * @param paths
+   *          the saved files.
+   * @param slingRepository
+   * @throws RepositoryException
+   */
+  public static void addOwnerEntries(String userId, List<String> paths,
+      SlingRepository slingRepository) throws RepositoryException {
+    if (paths.isEmpty()) {
+      return;
+    }
+    // The owner dynamic principal is no help here, it only matches nodes with a
+    // jcr:createdBy and stores have no ACEs for it.
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      Authorizable authorizable = AccessControlUtil.getUserManager(adminSession)
+          .getAuthorizable(userId);
+      for (String path : paths) {
+        ACLUtils.addEntry(path, authorizable, adminSession, "g:" + Privilege.JCR_ALL);
       }
-      return fileNode;
+      if (adminSession.hasPendingChanges()) {
+        adminSession.save();
+      }
+    } finally {
+      if (adminSession != null)
+        adminSession.logout();
     }
-    return null;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+          Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
   }
 
   /**
@@ -318,11 +366,26 @@ public class FileUtils {
    */
   public static void writeFileNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeFileNode(node, write, new FileRenderContext(session, siteService));
+  }
+
+  /**
+   * Writes all the properties of a sakai/file node, looking up permissions and sites
+   * through a context shared by the nodes of a page.
+   * 
+   * @param node
+   * @param write
+   * @param context
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeFileNode(Node node, JSONWriter write, FileRenderContext context)
+      throws JSONException, RepositoryException {
     write.object();
     // dump all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
     // The permissions for this session.
-    writePermissions(node, session, write);
+    writePermissions(node, write, context);
 
     // The download path to this file.
     write.key("path");
@@ -343,7 +406,7 @@ public class FileUtils {
     }
 
     // Get all the sites where this file is referenced.
-    getSites(node, write, siteService);
+    getSites(node, write, context);
 
     write.endObject();
   }
@@ -359,6 +422,21 @@ public class FileUtils {
    */
   public static void writeLinkNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeLinkNode(node, write, new FileRenderContext(session, siteService));
+  }
+
+  /**
+   * Writes all the properties for a linked node, looking up permissions and sites through
+   * a context shared by the nodes of a page.
+   * 
+   * @param node
+   * @param write
+   * @param context
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeLinkNode(Node node, JSONWriter write, FileRenderContext context)
+      throws JSONException, RepositoryException {
     write.object();
     // Write all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
@@ -369,15 +447,15 @@ public class FileUtils {
     write.key("path");
     write.value(node.getPath());
     // permissions
-    writePermissions(node, session, write);
+    writePermissions(node, write, context);
 
     // Write the actual file.
     if (node.hasProperty("jcr:reference")) {
       String uuid = node.getProperty("jcr:reference").getString();
       write.key("file");
       try {
-        Node fileNode = session.getNodeByUUID(uuid);
-        writeFileNode(fileNode, session, write, siteService);
+        Node fileNode = context.getSession().getNodeByUUID(uuid);
+        writeFileNode(fileNode, write, context);
       } catch (ItemNotFoundException e) {
         write.value(false);
       }
@@ -390,42 +468,37 @@ public class FileUtils {
    * Gives the permissions for this user.
    * 
    * @param node
-   * @param session
    * @param write
+   * @param context
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void writePermissions(Node node, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
+  private static void writePermissions(Node node, JSONWriter write,
+      FileRenderContext context) throws RepositoryException, JSONException {
     String path = node.getPath();
     write.key("permissions");
     write.object();
     write.key("set_property");
-    write.value(hasPermission(session, path, "set_property"));
+    write.value(context.canSetProperty(path));
     write.key("read");
-    write.value(hasPermission(session, path, "read"));
+    write.value(context.canRead(path));
     write.key("remove");
-    write.value(hasPermission(session, path, "remove"));
+    write.value(context.canRemove(path));
     write.endObject();
   }
 
   /**
-   * Checks if the current user has a permission on a path.
-   * 
-   * @param session
-   * @param path
-   * @param permission
-   * @return
+   * @param node
+   *          a sakai/file node.
+   * @return the distinct paths of the sites the file is used in.
+   * @throws RepositoryException
    */
-  private static boolean hasPermission(Session session, String path, String permission) {
-    try {
-      session.checkPermission(path, permission);
-      return true;
-    } catch (AccessControlException e) {
-      return false;
-    } catch (RepositoryException e) {
-      return false;
+  public static Set<String> getSitePaths(Node node) throws RepositoryException {
+    Set<String> paths = new LinkedHashSet<String>();
+    for (Value v : JcrUtils.getValues(node, "sakai:sites")) {
+      paths.add(v.getString());
     }
+    return paths;
   }
 
   /**
@@ -433,10 +506,11 @@ public class FileUtils {
    * 
    * @param node
    * @param write
+   * @param context
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void getSites(Node node, JSONWriter write, SiteService siteService)
+  private static void getSites(Node node, JSONWriter write, FileRenderContext context)
       throws RepositoryException, JSONException {
 
     write.key("usedIn");
@@ -444,33 +518,13 @@ public class FileUtils {
     write.key("sites");
     write.array();
 
-    Value[] sites = JcrUtils.getValues(node, "sakai:sites");
-    Session session = node.getSession();
-
     int total = 0;
-    try {
-      List<String> handledSites = new ArrayList<String>();
-      for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = (Node) session.getItem(v.getString());
-
-          AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-          Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-          Privilege[] privs = new Privilege[] { read };
-          boolean hasAccess = acm.hasPrivileges(path, privs);
-          if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
-            total++;
-          }
-        }
+    for (String path : getSitePaths(node)) {
+      FileRenderContext.SiteInfo site = context.getSite(path);
+      if (site != null) {
+        writeSiteInfo(site, write);
+        total++;
       }
-    } catch (Exception e) {
-      // We ignore every exception it has when looking up sites.
-      // it is dirty ..
-      log.info("Catched exception when looking up used sites for a file.");
-      e.printStackTrace();
     }
     write.endArray();
     write.key("total");
@@ -481,16 +535,17 @@ public class FileUtils {
   /**
    * Parses the info for a site.
    * 
-   * @param siteNode
+   * @param site
    * @param write
    * @throws JSONException
    * @throws RepositoryException
    */
-  private static void writeSiteInfo(Node siteNode, JSONWriter write,
-      SiteService siteService) throws JSONException, RepositoryException {
+  private static void writeSiteInfo(FileRenderContext.SiteInfo site, JSONWriter write)
+      throws JSONException, RepositoryException {
+    Node siteNode = site.getSiteNode();
     write.object();
     write.key("member-count");
-    write.value(String.valueOf(siteService.getMemberCount(siteNode)));
+    write.value(String.valueOf(site.getMemberCount()));
     write.key("path");
     write.value(siteNode.getPath());
     ExtendedJSONWriter.writeNodeContentsToWriter(write, siteNode);
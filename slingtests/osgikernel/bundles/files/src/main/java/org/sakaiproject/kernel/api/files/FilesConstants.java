@@ -72,6 +72,10 @@ public interface FilesConstants {
    * sakai:link
    */
   public static final String SAKAI_LINK = "sakai:link";
+  /**
+   * The SHA-1 of the content of a file, as hex. sakai:sha1
+   */
+  public static final String SAKAI_SHA1 = "sakai:sha1";
 
   /**
    * FileHandlerProcessor
@@ -26,6 +26,7 @@ import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.files.FileRenderContext;
 import org.sakaiproject.kernel.api.files.FileUtils;
 import org.sakaiproject.kernel.api.files.FilesConstants;
 import org.sakaiproject.kernel.api.search.SearchBatchResultProcessor;
@@ -36,8 +37,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
@@ -74,7 +79,14 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
   public void writeNodeIterator(JSONWriter write, NodeIterator nodeIterator, long start,
       long end) throws JSONException, RepositoryException {
 
-    List<String> processedNodes = new ArrayList<String>();
+    // Collect the page first, so that permissions and sites can be looked up for the whole
+    // page before anything is written.
+    Set<String> processedNodes = new HashSet<String>();
+    List<Node> files = new ArrayList<Node>();
+    List<String> types = new ArrayList<String>();
+    Set<String> paths = new LinkedHashSet<String>();
+    Set<String> sitePaths = new LinkedHashSet<String>();
+    Session session = null;
     for (long i = start; i < end && nodeIterator.hasNext(); i++) {
       Node node = nodeIterator.nextNode();
       // Every other file..
@@ -92,30 +104,68 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
 
       // Check that we didn't handle this file already.
       String path = node.getPath();
-      if (!processedNodes.contains(path)) {
-        processedNodes.add(path);
-
-        Session session = node.getSession();
+      if (processedNodes.add(path)) {
+        session = node.getSession();
         String type = "";
         if (node.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
           type = node.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
               .getString();
         }
+        files.add(node);
+        types.add(type);
 
-        // If it is a file node we provide some extra properties.
         if (FilesConstants.RT_SAKAI_FILE.equals(type)) {
-          FileUtils.writeFileNode(node, session, write, siteService);
+          paths.add(path);
+          sitePaths.addAll(FileUtils.getSitePaths(node));
         } else if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
-          // This is a linked file.
-          FileUtils.writeLinkNode(node, session, write, siteService);
-        }
-        // Every other file..
-        else {
-          writeNormalFile(write, node);
+          paths.add(path);
+          Node target = getLinkTarget(node);
+          if (target != null) {
+            paths.add(target.getPath());
+            sitePaths.addAll(FileUtils.getSitePaths(target));
+          }
         }
       }
     }
+    if (files.isEmpty()) {
+      return;
+    }
+
+    FileRenderContext context = new FileRenderContext(session, siteService);
+    context.loadPermissions(paths);
+    context.loadSites(sitePaths);
+
+    for (int i = 0; i < files.size(); i++) {
+      Node node = files.get(i);
+      String type = types.get(i);
+      // If it is a file node we provide some extra properties.
+      if (FilesConstants.RT_SAKAI_FILE.equals(type)) {
+        FileUtils.writeFileNode(node, write, context);
+      } else if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
+        // This is a linked file.
+        FileUtils.writeLinkNode(node, write, context);
+      }
+      // Every other file..
+      else {
+        writeNormalFile(write, node);
+      }
+    }
+
+  }
 
+  /**
+   * @return the file a link points to, or null if it does not point to one.
+   */
+  private Node getLinkTarget(Node link) throws RepositoryException {
+    if (link.hasProperty("jcr:reference")) {
+      try {
+        return link.getSession().getNodeByUUID(
+            link.getProperty("jcr:reference").getString());
+      } catch (ItemNotFoundException e) {
+        return null;
+      }
+    }
+    return null;
   }
 
   private void writeNormalFile(JSONWriter write, Node node) throws JSONException,
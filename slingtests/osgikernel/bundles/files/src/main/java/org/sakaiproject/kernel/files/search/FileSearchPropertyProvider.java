@@ -29,6 +29,7 @@ import org.sakaiproject.kernel.api.connections.ConnectionManager;
 import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.search.SearchPropertyProvider;
+import org.sakaiproject.kernel.api.search.SelectiveSearchPropertyProvider;
 import org.sakaiproject.kernel.api.site.SiteException;
 import org.sakaiproject.kernel.api.site.SiteService;
 import org.sakaiproject.kernel.util.JcrUtils;
@@ -36,6 +37,7 @@ import org.sakaiproject.kernel.util.JcrUtils;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -51,7 +53,7 @@ import javax.jcr.query.Query;
 @Service(value = SearchPropertyProvider.class)
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "sakai.search.provider", value = "Files") })
-public class FileSearchPropertyProvider implements SearchPropertyProvider {
+public class FileSearchPropertyProvider implements SelectiveSearchPropertyProvider {
 
   @Reference
   private SiteService siteService;
@@ -61,36 +63,85 @@ public class FileSearchPropertyProvider implements SearchPropertyProvider {
 
   public void loadUserProperties(SlingHttpServletRequest request,
       Map<String, String> propertiesMap) {
+    loadUserProperties(request, propertiesMap, null);
+  }
+
+  /**
+   * Loads only the properties in propertyNames, or all of them if it is null. The
+   * contacts, sites and bookmarks each need a repository lookup, so they are skipped when
+   * the template does not use them.
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.search.SelectiveSearchPropertyProvider#loadUserProperties(org.apache.sling.api.SlingHttpServletRequest,
+   *      java.util.Map, java.util.Set)
+   */
+  public void loadUserProperties(SlingHttpServletRequest request,
+      Map<String, String> propertiesMap, Set<String> propertyNames) {
 
-    Session session = request.getResourceResolver().adaptTo(Session.class);
     String user = request.getRemoteUser();
 
     // Set the userid.
     propertiesMap.put("_me", user);
 
     // Set the contacts.
-    propertiesMap.put("_mycontacts", getMyContacts(user));
+    if (isRequested(propertyNames, "_mycontacts")) {
+      propertiesMap.put("_mycontacts", getMyContacts(user));
+    }
+
+    Session session = null;
+    if (isRequested(propertyNames, "_mysites")
+        || isRequested(propertyNames, "_mybookmarks")) {
+      session = request.getResourceResolver().adaptTo(Session.class);
+    }
 
     // Set all mysites.
-    propertiesMap.put("_mysites", getMySites(session, user));
+    if (isRequested(propertyNames, "_mysites")) {
+      propertiesMap.put("_mysites", getMySites(session, user));
+    }
 
     // Set all my bookmarks
-    propertiesMap.put("_mybookmarks", getMyBookmarks(session, user));
+    if (isRequested(propertyNames, "_mybookmarks")) {
+      propertiesMap.put("_mybookmarks", getMyBookmarks(session, user));
+    }
 
     // request specific.
     // Sorting order
-    propertiesMap.put("_order", doSortOrder(request));
+    if (isRequested(propertyNames, "_order")) {
+      propertiesMap.put("_order", doSortOrder(request));
+    }
 
     // Filter by site
-    propertiesMap.put("_usedin", doUsedIn(request));
+    if (isRequested(propertyNames, "_usedin")) {
+      propertiesMap.put("_usedin", doUsedIn(request));
+    }
 
     // Filter by tags
-    propertiesMap.put("_tags", doTags(request));
+    if (isRequested(propertyNames, "_tags")) {
+      propertiesMap.put("_tags", doTags(request));
+    }
+
+    if (isRequested(propertyNames, "_resourceTypes")) {
+      propertiesMap.put("_resourceTypes", doResourceTypes(request));
+    }
 
-    // ###########################
+    if (isRequested(propertyNames, "_typesWhere")) {
+      propertiesMap.put("_typesWhere", doTypesWhere(request));
+    }
+  }
+
+  private boolean isRequested(Set<String> propertyNames, String name) {
+    return propertyNames == null || propertyNames.contains(name);
+  }
+
+  /**
+   * Resource types (used in resources.json).
+   * 
+   * @param request
+   * @return
+   */
+  private String doResourceTypes(SlingHttpServletRequest request) {
     // TODO /var/search/files/resources.json should be deleted.
-    // Resource types (used in resources.json).
-    // ###########################
     RequestParameter resourceParam = request.getRequestParameter("resource");
     String resourceTypes = "@sling:resourceType=\"sakai/link\" or @sling:resourceType=\"sakai/folder\"";
     if (resourceParam != null) {
@@ -101,11 +152,16 @@ public class FileSearchPropertyProvider implements SearchPropertyProvider {
         resourceTypes = "@sling:resourceType=\"sakai/folder\"";
       }
     }
-    propertiesMap.put("_resourceTypes", resourceTypes);
+    return resourceTypes;
+  }
 
-    // ###########################
-    // Resource types (used in files.json)
-    // ###########################
+  /**
+   * Resource types (used in files.json).
+   * 
+   * @param request
+   * @return
+   */
+  private String doTypesWhere(SlingHttpServletRequest request) {
     String types[] = request.getParameterValues("type");
     String typesWhere = "";
     String search = getSearchValue(request);
@@ -139,7 +195,7 @@ public class FileSearchPropertyProvider implements SearchPropertyProvider {
       typesWhere = "(sling:resourceType=\"sakai/file\" and jcr:contains(.,\"*" + search
           + "*\"))";
     }
-    propertiesMap.put("_typesWhere", typesWhere);
+    return typesWhere;
   }
 
   /**
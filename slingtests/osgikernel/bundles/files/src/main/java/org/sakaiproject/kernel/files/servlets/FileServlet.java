@@ -26,11 +26,15 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.sakaiproject.kernel.api.files.FilesConstants;
+import org.sakaiproject.kernel.util.ByteRange;
 import org.sakaiproject.kernel.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -38,7 +42,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Stream the file.
+ * Stream the file. Supports conditional requests on a strong ETag and on the last
+ * modified time, and single and multiple byte ranges.
  * 
  */
 @SlingServlet(resourceTypes = "sakai/file", methods = { "GET" })
@@ -52,6 +57,10 @@ public class FileServlet extends SlingAllMethodsServlet {
    */
   private static final long serialVersionUID = -6591047521699263996L;
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileServlet.class);
+
+  private static final String MULTIPART_BOUNDARY = "sakai_file_byteranges";
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -60,20 +69,38 @@ public class FileServlet extends SlingAllMethodsServlet {
     Node node = (Node) resource.adaptTo(Node.class);
 
     String filename = null;
+    String contentType = null;
+    long length = -1;
+    long lastModified = -1;
+    String etag = null;
     try {
       if (node.hasNode(JcrConstants.JCR_CONTENT)) {
         Node content = node.getNode(JcrConstants.JCR_CONTENT);
-        response.setHeader("Content-Type", content.getProperty(JcrConstants.JCR_MIMETYPE)
-            .getString());
-        response.setHeader("Content-Length", ""
-            + content.getProperty(JcrConstants.JCR_DATA).getLength());
+        contentType = content.getProperty(JcrConstants.JCR_MIMETYPE).getString();
+        length = content.getProperty(JcrConstants.JCR_DATA).getLength();
+        if (content.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+          lastModified = content.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate()
+              .getTimeInMillis();
+        }
+        etag = getETag(content, length, lastModified);
       }
       if (node.hasProperty(FilesConstants.SAKAI_FILENAME)) {
         filename = node.getProperty(FilesConstants.SAKAI_FILENAME).getString();
       }
     } catch (RepositoryException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      LOGGER.warn("Unable to read the properties of " + resource.getPath(), e);
+    }
+
+    if (etag != null) {
+      response.setHeader("ETag", etag);
+      response.setHeader("Accept-Ranges", "bytes");
+    }
+    if (lastModified > -1) {
+      response.setDateHeader("Last-Modified", lastModified);
+    }
+    if (isNotModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
     }
 
     // If we provided a filename and we haven't changed the name in a previous request.
@@ -81,10 +108,155 @@ public class FileServlet extends SlingAllMethodsServlet {
       response.setHeader("Content-Disposition", "filename=\"" + filename + "\"");
     }
 
-    response.setStatus(HttpServletResponse.SC_OK);
-    InputStream in = (InputStream) request.getResource().adaptTo(InputStream.class);
-    OutputStream out = response.getOutputStream();
+    List<ByteRange> ranges = null;
+    if (etag != null && isRangeValid(request, etag, lastModified)) {
+      ranges = ByteRange.parse(request.getHeader("Range"), length);
+    }
+    if (ranges != null && ranges.isEmpty()) {
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+
+    OutputStream out;
+    if (ranges == null) {
+      if (contentType != null) {
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Length", "" + length);
+      }
+      InputStream in = (InputStream) resource.adaptTo(InputStream.class);
+      if (in == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      response.setStatus(HttpServletResponse.SC_OK);
+      out = response.getOutputStream();
+      try {
+        IOUtils.stream(in, out);
+      } finally {
+        in.close();
+      }
+    } else {
+      // the first range is opened before the status is set, so a missing stream is a 404.
+      InputStream in = (InputStream) resource.adaptTo(InputStream.class);
+      if (in == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      byte[] buffer = new byte[IOUtils.BUFFER_SIZE];
+      if (ranges.size() == 1) {
+        ByteRange range = ranges.get(0);
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Length", "" + range.getLength());
+        response.setHeader("Content-Range", range.toContentRange(length));
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        out = response.getOutputStream();
+        streamRange(in, out, range, buffer);
+      } else {
+        response.setHeader("Content-Type", "multipart/byteranges; boundary="
+            + MULTIPART_BOUNDARY);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        out = response.getOutputStream();
+        for (ByteRange range : ranges) {
+          // each range is read from a new stream, so a file backed stream can seek.
+          if (in == null) {
+            in = (InputStream) resource.adaptTo(InputStream.class);
+            if (in == null) {
+              LOGGER.warn("Content of {} went away while streaming ranges", resource
+                  .getPath());
+              if (!response.isCommitted()) {
+                response.reset();
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+              }
+              return;
+            }
+          }
+          out.write(("\r\n--" + MULTIPART_BOUNDARY + "\r\nContent-Type: " + contentType
+              + "\r\nContent-Range: " + range.toContentRange(length) + "\r\n\r\n")
+              .getBytes("ISO-8859-1"));
+          streamRange(in, out, range, buffer);
+          in = null;
+        }
+        out.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+      }
+    }
+  }
+
+  /**
+   * A strong ETag for the content of the file. The content is replaced along with its last
+   * modified time, so the identifier of the content node, the time and the length identify
+   * the bytes without reading them.
+   */
+  private String getETag(Node content, long length, long lastModified)
+      throws RepositoryException {
+    String id = content.hasProperty(JcrConstants.JCR_UUID) ? content.getProperty(
+        JcrConstants.JCR_UUID).getString() : Integer.toHexString(content.getPath().hashCode());
+    return "\"" + id + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+        + "\"";
+  }
+
+  /**
+   * @return true if the client already has the current content, from If-None-Match, or from
+   *         If-Modified-Since when there is no If-None-Match.
+   */
+  private boolean isNotModified(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return etag != null && matches(ifNoneMatch, etag);
+    }
+    if (lastModified > -1) {
+      long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+      // HTTP dates have a resolution of a second.
+      return ifModifiedSince > -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if a Range header applies, it does unless an If-Range names another
+   *         version of the content.
+   */
+  private boolean isRangeValid(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(etag);
+    }
+    long date = getDateHeader(request, "If-Range");
+    return date > -1 && lastModified / 1000 == date / 1000;
+  }
+
+  private boolean matches(String header, String etag) {
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long getDateHeader(SlingHttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
 
-    IOUtils.stream(in, out);
+  /**
+   * Stream a range and close the stream it was read from.
+   */
+  private void streamRange(InputStream in, OutputStream out, ByteRange range,
+      byte[] buffer) throws IOException {
+    try {
+      IOUtils.stream(in, out, range.getStart(), range.getLength(), buffer);
+    } finally {
+      in.close();
+    }
   }
 }
@@ -19,6 +19,11 @@ package org.sakaiproject.kernel.files.servlets;
 
 import com.google.common.collect.Lists;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -37,7 +42,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -47,7 +55,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Create a file
+ * Create files from a multipart upload. The parts are streamed into the repository as they
+ * arrive, and the files of one request are saved together.
  * 
  */
 @SlingServlet(resourceTypes = { "sakai/files" }, methods = { "POST" }, selectors = { "upload" })
@@ -72,58 +81,75 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
     String store = request.getResource().getPath();
     LOG.info("Attempted upload for " + session.getUserID() + " - " + request.getRemoteUser());
 
-    // If there is a link parameter provided than we will create a
-    // link for each file under this path.
-    RequestParameter linkParam = request.getRequestParameter("link");
-    if (linkParam != null) {
-      String link = linkParam.getString();
-      if (!link.startsWith("/")) {
+    List<Node> fileNodes = Lists.newArrayList();
+    List<String> newPaths = Lists.newArrayList();
+    List<String> links = Lists.newArrayList();
+
+    // Create the files and links.
+    try {
+      String link;
+      String site;
+      Map<String, String> fields = null;
+      if (ServletFileUpload.isMultipartContent(request)) {
+        fields = streamFiles(request, session, store, fileNodes, newPaths);
+      }
+      if (fields != null) {
+        link = fields.get("link");
+        site = fields.get("site");
+      } else {
+        // The body has already been parsed into parameters.
+        link = getParameter(request, "link");
+        site = getParameter(request, "site");
+        // Handle multi files
+        RequestParameter[] files = request.getRequestParameters("Filedata");
+        if (files != null) {
+          // Loop over each file parameter request and create a file.
+          for (RequestParameter file : files) {
+            if (file.getFileName() != null && file.getFileName().length() > 0) {
+              fileNodes.add(createFile(session, store, file.getInputStream(), file
+                  .getFileName(), file.getContentType(), newPaths));
+            }
+          }
+        }
+      }
+
+      // If there is a link parameter provided than we will create a
+      // link for each file under this path.
+      if (link != null && !link.startsWith("/")) {
+        session.refresh(false);
         response
             .sendError(500,
                 "If a link location is specified, it should be absolute and point to a folder.");
         return;
       }
-    }
-
-    RequestParameter siteParam = request.getRequestParameter("site");
-    if (siteParam != null) {
-      String site = siteParam.getString();
-      if (!site.startsWith("/")) {
+      if (site != null && !site.startsWith("/")) {
+        session.refresh(false);
         response.sendError(500,
             "If a site is specified, it should be absolute and point to a site.");
         return;
       }
-    }
-
-    List<Node> fileNodes = Lists.newArrayList();
-    List<String> links = Lists.newArrayList();
-
-    // Create the files and links.
-    try {
-      // Handle multi files
-      RequestParameter[] files = request.getRequestParameters("Filedata");
-      if (files == null) {
+      if (fileNodes.isEmpty()) {
+        session.refresh(false);
         response.sendError(400, "Missing Filedata parameter.");
         return;
       }
 
-      // Loop over each file parameter request and create a file.
-      for (RequestParameter file : files) {
-        Node fileNode = createFile(session, store, file);
-        fileNodes.add(fileNode);
+      // All the files of the request are saved together, and all their ACLs.
+      if (session.hasPendingChanges()) {
+        session.save();
       }
+      FileUtils.addOwnerEntries(session.getUserID(), newPaths, slingRepository);
 
       // Create a link for each file if there is a need for it.
-      if (linkParam != null && siteParam != null) {
-        Node linkFolder = (Node) session.getItem(linkParam.getString());
+      if (link != null && site != null) {
+        Node linkFolder = (Node) session.getItem(link);
         // For each file .. create a link
         for (Node fileNode : fileNodes) {
           String fileName = fileNode.getProperty(FilesConstants.SAKAI_FILENAME)
               .getString();
 
           String linkPath = linkFolder.getPath() + "/" + fileName;
-          String sitePath = siteParam.getString();
-          FileUtils.createLink(session, fileNode, linkPath, sitePath, slingRepository);
+          FileUtils.createLink(session, fileNode, linkPath, site, slingRepository);
           links.add(linkPath);
         }
       }
@@ -148,8 +174,8 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
       if (links.size() > 0) {
         writer.key("links");
         writer.array();
-        for (String link : links) {
-          writer.value(link);
+        for (String l : links) {
+          writer.value(l);
         }
         writer.endArray();
       }
@@ -160,9 +186,13 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
       response.setStatus(HttpServletResponse.SC_OK);
 
     } catch (RepositoryException e) {
-      LOG.warn("Failed to create file.");
-      e.printStackTrace();
+      LOG.warn("Failed to create file.", e);
+      discard(session);
       response.sendError(500, "Failed to save file.");
+    } catch (FileUploadException e) {
+      LOG.warn("Failed to read the upload.", e);
+      discard(session);
+      response.sendError(400, "Failed to read the upload.");
     } catch (JSONException e) {
       LOG.warn("Failed to write JSON format.");
       response.sendError(500, "Failed to write JSON format.");
@@ -172,18 +202,75 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
   }
 
   /**
-   * Creates a file under the store. Ex: store/aa/bb/cc/dd/myID
+   * Read the parts of a multipart request as they arrive, writing each file straight into
+   * its binary, so that memory use does not depend on the size of the files.
+   * 
+   * @return the form fields of the request, or null if the body has already been read, in
+   *         which case the files are available as request parameters.
+   * @throws FileUploadException
+   *           if the body could not be parsed.
+   */
+  private Map<String, String> streamFiles(SlingHttpServletRequest request, Session session,
+      String store, List<Node> fileNodes, List<String> newPaths) throws IOException,
+      RepositoryException, FileUploadException {
+    Map<String, String> fields = new HashMap<String, String>();
+    boolean parts = false;
+    FileItemIterator items;
+    try {
+      items = new ServletFileUpload().getItemIterator(request);
+    } catch (IllegalStateException e) {
+      // the body was read into parameters before the servlet was called.
+      return null;
+    }
+    while (items.hasNext()) {
+      FileItemStream item = items.next();
+      parts = true;
+      InputStream in = item.openStream();
+      try {
+        if (item.isFormField()) {
+          fields.put(item.getFieldName(), Streams.asString(in, "UTF-8"));
+        } else if ("Filedata".equals(item.getFieldName()) && item.getName() != null
+            && item.getName().length() > 0) {
+          fileNodes.add(createFile(session, store, in, item.getName(), item
+              .getContentType(), newPaths));
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return parts ? fields : null;
+  }
+
+  private String getParameter(SlingHttpServletRequest request, String name) {
+    RequestParameter param = request.getRequestParameter(name);
+    return param == null ? null : param.getString();
+  }
+
+  private void discard(Session session) {
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to discard the upload.", e);
+    }
+  }
+
+  /**
+   * Creates a file under the store, without saving it. Ex: store/aa/bb/cc/dd/myID
    * 
    * @param session
-   * @param file
-   * @param writer
+   * @param store
+   * @param in
+   *          the content of the file.
+   * @param fileName
+   * @param contentType
+   *          the content type given for the file, if any.
+   * @param newPaths
+   *          the path of the file is added if it is new.
    * @throws RepositoryException
-   * @throws IOException
-   * @throws JSONException
    */
-  private Node createFile(Session session, String store, RequestParameter file)
-      throws RepositoryException, IOException, JSONException {
-    String contentType = file.getContentType();
+  protected Node createFile(Session session, String store, InputStream in,
+      String fileName, String contentType, List<String> newPaths)
+      throws RepositoryException {
     // Try to determine the real content type.
     // get content type
     if (contentType != null) {
@@ -194,7 +281,7 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
     }
     if (contentType == null || contentType.equals("application/octet-stream")) {
       ServletContext context = this.getServletConfig().getServletContext();
-      contentType = context.getMimeType(file.getFileName());
+      contentType = context.getMimeType(fileName);
       if (contentType == null || contentType.equals("application/octet-stream")) {
         contentType = "application/octet-stream";
       }
@@ -207,8 +294,10 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
 
     String path = FileUtils.getHashedPath(store, id);
 
-    Node fileNode = FileUtils.saveFile(session, path, id, file, contentType,
-        slingRepository);
+    Node fileNode = FileUtils.writeFile(session, path, id, in, fileName, contentType);
+    if (fileNode.isNew()) {
+      newPaths.add(path);
+    }
     return fileNode;
   }
 
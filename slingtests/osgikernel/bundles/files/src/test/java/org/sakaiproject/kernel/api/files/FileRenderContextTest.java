@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.files;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.site.SiteService;
+
+import java.security.AccessControlException;
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+/**
+ * 
+ */
+public class FileRenderContextTest {
+
+  /**
+   * @param name
+   * @param aggregates
+   * @return a privilege, aggregating the others if any are given.
+   */
+  static Privilege privilege(String name, Privilege... aggregates) {
+    Privilege privilege = createMock(Privilege.class);
+    expect(privilege.getName()).andReturn(name).anyTimes();
+    expect(privilege.isAggregate()).andReturn(aggregates.length > 0).anyTimes();
+    expect(privilege.getAggregatePrivileges()).andReturn(aggregates).anyTimes();
+    replay(privilege);
+    return privilege;
+  }
+
+  /**
+   * @return a context that reads privileges from the access control manager.
+   */
+  static FileRenderContext createContext(Session session, SiteService siteService,
+      final AccessControlManager acm) {
+    return new FileRenderContext(session, siteService) {
+      @Override
+      protected AccessControlManager getAccessControlManager() {
+        return acm;
+      }
+    };
+  }
+
+  @Test
+  public void testRemoveNeedsParent() throws Exception {
+    Privilege read = privilege(Privilege.JCR_READ);
+    Privilege removeNode = privilege(Privilege.JCR_REMOVE_NODE);
+    Privilege removeChildNodes = privilege(Privilege.JCR_REMOVE_CHILD_NODES);
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    // each distinct path is looked up once, the parent /a is shared.
+    expect(acm.getPrivileges("/a/f1")).andReturn(new Privilege[] { read, removeNode });
+    expect(acm.getPrivileges("/a/f2")).andReturn(new Privilege[] { read, removeNode });
+    expect(acm.getPrivileges("/a")).andReturn(new Privilege[] { read });
+    expect(acm.getPrivileges("/b/f3")).andReturn(new Privilege[] { read, removeNode });
+    expect(acm.getPrivileges("/b")).andReturn(new Privilege[] { removeChildNodes });
+    // no remove on the node, so the parent is not looked up.
+    expect(acm.getPrivileges("/c/f4")).andReturn(new Privilege[] { read });
+    replay(acm);
+
+    FileRenderContext context = createContext(null, null, acm);
+    context.loadPermissions(Arrays.asList("/a/f1", "/a/f2", "/b/f3", "/c/f4"));
+    assertFalse(context.canRemove("/a/f1"));
+    assertFalse(context.canRemove("/a/f2"));
+    assertTrue(context.canRemove("/b/f3"));
+    assertFalse(context.canRemove("/c/f4"));
+    assertTrue(context.canRead("/a/f1"));
+    assertFalse(context.canSetProperty("/a/f1"));
+    verify(acm);
+  }
+
+  @Test
+  public void testAggregatesExpanded() throws Exception {
+    Privilege all = privilege(Privilege.JCR_ALL, privilege(Privilege.JCR_READ),
+        privilege(Privilege.JCR_MODIFY_PROPERTIES), privilege(Privilege.JCR_REMOVE_NODE),
+        privilege(Privilege.JCR_REMOVE_CHILD_NODES));
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    expect(acm.getPrivileges("/a/f1")).andReturn(new Privilege[] { all });
+    expect(acm.getPrivileges("/a")).andReturn(new Privilege[] { all });
+    replay(acm);
+
+    FileRenderContext context = createContext(null, null, acm);
+    assertTrue(context.canRead("/a/f1"));
+    assertTrue(context.canSetProperty("/a/f1"));
+    assertTrue(context.canRemove("/a/f1"));
+    verify(acm);
+  }
+
+  @Test
+  public void testCheckPermissionWithoutAccessControlManager() throws Exception {
+    Session session = createMock(Session.class);
+    session.checkPermission("/a/f1", "set_property");
+    session.checkPermission("/a/f1", "remove");
+    expectLastCall().andThrow(new AccessControlException("denied"));
+    replay(session);
+
+    FileRenderContext context = createContext(session, null, null);
+    assertTrue(context.canSetProperty("/a/f1"));
+    assertFalse(context.canRemove("/a/f1"));
+    verify(session);
+  }
+
+  @Test
+  public void testSitesLookedUpOnce() throws Exception {
+    Session session = createMock(Session.class);
+    Node siteNode = createMock(Node.class);
+    SiteService siteService = createMock(SiteService.class);
+    expect(session.itemExists("/sites/s1")).andReturn(true);
+    expect(session.getItem("/sites/s1")).andReturn(siteNode);
+    expect(siteService.isSite(siteNode)).andReturn(true);
+    expect(siteService.getMemberCount(siteNode)).andReturn(3);
+    // not readable, so it does not exist for the session.
+    expect(session.itemExists("/sites/s2")).andReturn(false);
+    replay(session, siteNode, siteService);
+
+    FileRenderContext context = createContext(session, siteService, null);
+    context.loadSites(Arrays.asList("/sites/s1", "/sites/s2"));
+    assertEquals(3, context.getSite("/sites/s1").getMemberCount());
+    assertNull(context.getSite("/sites/s2"));
+    verify(session, siteNode, siteService);
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.files;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.files.FileRenderContextTest.createContext;
+import static org.sakaiproject.kernel.api.files.FileRenderContextTest.privilege;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlEntry;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlList;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlPolicyIterator;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.testing.jcr.MockValue;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.site.SiteService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ * 
+ */
+public class FileUtilsTest {
+
+  /**
+   * A session with the access control manager that Jackrabbit sessions have, which
+   * AccessControlUtil finds by reflection.
+   */
+  public static interface AccessControlSession extends JackrabbitSession {
+    AccessControlManager getAccessControlManager() throws RepositoryException;
+  }
+
+  @Test
+  public void testWriteFileDigest() throws Exception {
+    Session session = createMock(Session.class);
+    Node folder = createMock(Node.class);
+    Node fileNode = createMock(Node.class);
+    Node contentNode = createMock(Node.class);
+
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    expect(session.itemExists("/files/aa/f1")).andReturn(false);
+    expect(session.itemExists("/files/aa")).andReturn(true);
+    expect(session.getItem("/files/aa")).andReturn(folder);
+    expect(folder.hasNode("f1")).andReturn(false);
+    expect(folder.addNode("f1", JcrConstants.NT_FILE)).andReturn(fileNode);
+    expect(fileNode.isNew()).andReturn(true);
+    expect(fileNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)).andReturn(true);
+    fileNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
+    fileNode.addMixin("sakai:propertiesmix");
+    expect(
+        fileNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+            FilesConstants.RT_SAKAI_FILE)).andReturn(null);
+    expect(fileNode.setProperty(FilesConstants.SAKAI_ID, "f1")).andReturn(null);
+    expect(fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE))
+        .andReturn(contentNode);
+    // the repository reads the whole stream into the binary.
+    expect(contentNode.setProperty(eq(JcrConstants.JCR_DATA), isA(InputStream.class)))
+        .andAnswer(new IAnswer<Property>() {
+          public Property answer() throws Throwable {
+            InputStream in = (InputStream) getCurrentArguments()[1];
+            byte[] buffer = new byte[3];
+            while (in.read(buffer) >= 0) {
+              // read in small pieces, as a digest has to cope with.
+            }
+            return null;
+          }
+        });
+    expect(contentNode.setProperty(JcrConstants.JCR_MIMETYPE, "text/plain")).andReturn(
+        null);
+    expect(
+        contentNode.setProperty(eq(JcrConstants.JCR_LASTMODIFIED), isA(Calendar.class)))
+        .andReturn(null);
+    // the SHA-1 of "hello world".
+    expect(
+        fileNode.setProperty(FilesConstants.SAKAI_SHA1,
+            "2aae6c35c94fcfb415dbe95f408b9ce91ee846ed")).andReturn(null);
+    expect(fileNode.setProperty(FilesConstants.SAKAI_USER, "alice")).andReturn(null);
+    expect(fileNode.setProperty(FilesConstants.SAKAI_FILENAME, "hello.txt")).andReturn(
+        null);
+    replay(session, folder, fileNode, contentNode);
+
+    Node written = FileUtils.writeFile(session, "/files/aa/f1", "f1",
+        new ByteArrayInputStream("hello world".getBytes("UTF-8")), "hello.txt",
+        "text/plain");
+    assertEquals(fileNode, written);
+    verify(session, folder, fileNode, contentNode);
+  }
+
+  @Test
+  public void testAddOwnerEntries() throws Exception {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    AccessControlSession adminSession = createMock(AccessControlSession.class);
+    UserManager userManager = createMock(UserManager.class);
+    Authorizable alice = createMock(Authorizable.class);
+    Principal principal = createMock(Principal.class);
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    AccessControlPolicyIterator policies = createMock(AccessControlPolicyIterator.class);
+    AccessControlList acl = createMock(AccessControlList.class);
+    Privilege all = privilege(Privilege.JCR_ALL);
+
+    // one administrative session for all the files, saved once.
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    expect(adminSession.getUserManager()).andReturn(userManager);
+    expect(userManager.getAuthorizable("alice")).andReturn(alice);
+    expect(alice.getPrincipal()).andReturn(principal).anyTimes();
+    expect(alice.getID()).andReturn("alice").anyTimes();
+    expect(principal.getName()).andReturn("alice").anyTimes();
+    expect(adminSession.getAccessControlManager()).andReturn(acm).times(2);
+    for (String path : new String[] { "/files/aa/f1", "/files/bb/f2" }) {
+      expect(acm.getApplicablePolicies(path)).andReturn(policies);
+      expect(acm.privilegeFromName(Privilege.JCR_ALL)).andReturn(all);
+      acm.setPolicy(path, acl);
+    }
+    expect(policies.hasNext()).andReturn(true).times(2);
+    expect(policies.nextAccessControlPolicy()).andReturn(acl).times(2);
+    expect(acl.getAccessControlEntries()).andReturn(new AccessControlEntry[0]).times(2);
+    // the owner is granted everything on each file.
+    expect(acl.addAccessControlEntry(eq(principal), aryEq(new Privilege[] { all })))
+        .andReturn(true).times(2);
+    expect(adminSession.hasPendingChanges()).andReturn(true);
+    adminSession.save();
+    adminSession.logout();
+    replay(slingRepository, adminSession, userManager, alice, principal, acm, policies,
+        acl);
+
+    FileUtils.addOwnerEntries("alice", Arrays.asList("/files/aa/f1", "/files/bb/f2"),
+        slingRepository);
+    verify(slingRepository, adminSession, userManager, acm, policies, acl);
+  }
+
+  @Test
+  public void testAddOwnerEntriesNoFiles() throws Exception {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    replay(slingRepository);
+    FileUtils.addOwnerEntries("alice", Arrays.<String> asList(), slingRepository);
+    verify(slingRepository);
+  }
+
+  @Test
+  public void testWriteFileNode() throws Exception {
+    Session session = createMock(Session.class);
+    Node node = createMock(Node.class);
+    Node siteNode = createMock(Node.class);
+    PropertyIterator noProperties = createMock(PropertyIterator.class);
+    Property sites = createMock(Property.class);
+    PropertyDefinition multiple = createMock(PropertyDefinition.class);
+    SiteService siteService = createMock(SiteService.class);
+
+    expect(noProperties.hasNext()).andReturn(false).anyTimes();
+    expect(node.getProperties()).andReturn(noProperties);
+    expect(node.getPath()).andReturn("/files/f1").anyTimes();
+    expect(node.getSession()).andReturn(session);
+    expect(session.itemExists("/files/f1")).andReturn(false);
+    expect(node.hasProperty(FilesConstants.SAKAI_ID)).andReturn(false);
+    expect(node.hasNode(JcrConstants.JCR_CONTENT)).andReturn(false);
+    expect(node.hasProperty("sakai:sites")).andReturn(true);
+    expect(node.getProperty("sakai:sites")).andReturn(sites);
+    expect(sites.getDefinition()).andReturn(multiple);
+    expect(multiple.isMultiple()).andReturn(true);
+    expect(sites.getValues()).andReturn(
+        new Value[] { new MockValue("/sites/s1"), new MockValue("/sites/s1") });
+    expect(session.itemExists("/sites/s1")).andReturn(true);
+    expect(session.getItem("/sites/s1")).andReturn(siteNode);
+    expect(siteService.isSite(siteNode)).andReturn(true);
+    expect(siteService.getMemberCount(siteNode)).andReturn(3);
+    expect(siteNode.getPath()).andReturn("/sites/s1");
+    expect(siteNode.getProperties()).andReturn(noProperties);
+
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    Privilege read = privilege(Privilege.JCR_READ);
+    expect(acm.getPrivileges("/files/f1")).andReturn(
+        new Privilege[] { read, privilege(Privilege.JCR_REMOVE_NODE) });
+    expect(acm.getPrivileges("/files")).andReturn(new Privilege[] { read });
+    replay(session, node, siteNode, noProperties, sites, multiple, siteService, acm);
+
+    StringWriter out = new StringWriter();
+    FileUtils.writeFileNode(node, new JSONWriter(out), createContext(session,
+        siteService, acm));
+
+    JSONObject json = new JSONObject(out.toString());
+    assertEquals("/files/f1", json.getString("path"));
+    JSONObject permissions = json.getJSONObject("permissions");
+    assertTrue(permissions.getBoolean("read"));
+    assertFalse(permissions.getBoolean("set_property"));
+    // removeNode on the file is not enough without removeChildNodes on /files.
+    assertFalse(permissions.getBoolean("remove"));
+    JSONObject usedIn = json.getJSONObject("usedIn");
+    assertEquals(1, usedIn.getInt("total"));
+    assertEquals("3", usedIn.getJSONArray("sites").getJSONObject(0).getString(
+        "member-count"));
+    verify(session, node, siteNode, siteService, acm);
+  }
+}
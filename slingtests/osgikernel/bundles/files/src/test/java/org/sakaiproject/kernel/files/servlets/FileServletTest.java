@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class FileServletTest {
+
+  private static final byte[] CONTENT = "0123456789abcdefghij".getBytes();
+
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private Resource resource;
+  private ByteArrayOutputStream out;
+
+  @Before
+  public void setUp() throws Exception {
+    Property mimeType = createMock(Property.class);
+    expect(mimeType.getString()).andReturn("text/plain").anyTimes();
+    Property data = createMock(Property.class);
+    expect(data.getLength()).andReturn((long) CONTENT.length).anyTimes();
+    Node content = createNiceMock(Node.class);
+    expect(content.getProperty(JcrConstants.JCR_MIMETYPE)).andReturn(mimeType).anyTimes();
+    expect(content.getProperty(JcrConstants.JCR_DATA)).andReturn(data).anyTimes();
+    expect(content.getPath()).andReturn("/files/a/jcr:content").anyTimes();
+    Node node = createNiceMock(Node.class);
+    expect(node.hasNode(JcrConstants.JCR_CONTENT)).andReturn(true).anyTimes();
+    expect(node.getNode(JcrConstants.JCR_CONTENT)).andReturn(content).anyTimes();
+    replay(mimeType, data, content, node);
+
+    resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(node).anyTimes();
+    expect(resource.getPath()).andReturn("/files/a").anyTimes();
+
+    request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource).anyTimes();
+    expect(request.getDateHeader("If-Modified-Since")).andReturn(-1L).anyTimes();
+
+    out = new ByteArrayOutputStream();
+    response = createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    }).anyTimes();
+  }
+
+  private void get(String range) throws Exception {
+    expect(request.getHeader("Range")).andReturn(range).anyTimes();
+    replay(request, resource, response);
+    new FileServlet().doGet(request, response);
+    verify(resource, response);
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    expect(resource.adaptTo(InputStream.class)).andReturn(
+        new ByteArrayInputStream(CONTENT));
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    get("bytes=2-5");
+    assertEquals("2345", out.toString());
+  }
+
+  @Test
+  public void testRangeMissingContent() throws Exception {
+    expect(resource.adaptTo(InputStream.class)).andReturn(null);
+    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    get("bytes=2-5");
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    expect(resource.adaptTo(InputStream.class)).andReturn(
+        new ByteArrayInputStream(CONTENT));
+    expect(resource.adaptTo(InputStream.class)).andReturn(
+        new ByteArrayInputStream(CONTENT));
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    get("bytes=0-1,10-12");
+    String body = out.toString();
+    assertTrue(body.contains("\r\n\r\n01\r\n--"));
+    assertTrue(body.contains("\r\n\r\nabc\r\n--"));
+  }
+
+  @Test
+  public void testMultipleRangesContentGone() throws Exception {
+    expect(resource.adaptTo(InputStream.class)).andReturn(
+        new ByteArrayInputStream(CONTENT));
+    expect(resource.adaptTo(InputStream.class)).andReturn(null);
+    expect(response.isCommitted()).andReturn(false);
+    response.reset();
+    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    get("bytes=0-1,10-12");
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.files.FilesConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class FilesUploadServletTest {
+
+  private static final String BOUNDARY = "AaB03x";
+
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private Session session;
+  private StringWriter out;
+  private List<String> created;
+
+  /**
+   * Records the files created instead of writing them to the repository.
+   */
+  private FilesUploadServlet servlet = new FilesUploadServlet() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected Node createFile(Session session, String store, InputStream in,
+        String fileName, String contentType, List<String> newPaths)
+        throws RepositoryException {
+      try {
+        created.add(store + " " + fileName + " " + contentType + " "
+            + Streams.asString(in, "UTF-8"));
+      } catch (IOException e) {
+        throw new RepositoryException(e);
+      }
+      return fileNode(fileName);
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    request = createMock(SlingHttpServletRequest.class);
+    response = createMock(SlingHttpServletResponse.class);
+    session = createMock(Session.class);
+    created = new ArrayList<String>();
+    out = new StringWriter();
+
+    ResourceResolver resourceResolver = createMock(ResourceResolver.class);
+    Resource resource = createMock(Resource.class);
+    expect(request.getResourceResolver()).andReturn(resourceResolver);
+    expect(resourceResolver.adaptTo(Session.class)).andReturn(session);
+    expect(request.getResource()).andReturn(resource);
+    expect(resource.getPath()).andReturn("/files");
+    expect(request.getRemoteUser()).andReturn("alice");
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    // the files are not in a store, so their paths are the download paths.
+    expect(session.itemExists(isA(String.class))).andReturn(false).anyTimes();
+    expect(request.getMethod()).andReturn("POST").anyTimes();
+    expect(request.getContentType()).andReturn(
+        "multipart/form-data; boundary=" + BOUNDARY).anyTimes();
+    expect(request.getCharacterEncoding()).andReturn(null).anyTimes();
+    expect(request.getContentLength()).andReturn(-1).anyTimes();
+    // the files are saved together, the ACLs of no new files need no admin session.
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    expect(response.getWriter()).andReturn(new PrintWriter(out));
+    response.setStatus(HttpServletResponse.SC_OK);
+    replay(resourceResolver, resource);
+  }
+
+  private Node fileNode(String fileName) throws RepositoryException {
+    Node fileNode = createMock(Node.class);
+    Property name = createMock(Property.class);
+    Property id = createMock(Property.class);
+    expect(fileNode.getProperty(FilesConstants.SAKAI_FILENAME)).andReturn(name);
+    expect(name.getString()).andReturn(fileName);
+    expect(fileNode.getProperty(FilesConstants.SAKAI_ID)).andReturn(id);
+    expect(id.getString()).andReturn("id-" + fileName);
+    expect(fileNode.getSession()).andReturn(session);
+    expect(fileNode.getPath()).andReturn("/files/aa/" + fileName).anyTimes();
+    expect(fileNode.hasProperty(FilesConstants.SAKAI_ID)).andReturn(false);
+    replay(fileNode, name, id);
+    return fileNode;
+  }
+
+  private ServletInputStream body(String body) throws IOException {
+    final InputStream in = new ByteArrayInputStream(body.replace("\n", "\r\n").getBytes(
+        "UTF-8"));
+    return new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+    };
+  }
+
+  private void assertFiles(String... fileNames) throws Exception {
+    JSONArray files = new JSONObject(out.toString()).getJSONArray("files");
+    assertEquals(fileNames.length, files.length());
+    for (int i = 0; i < fileNames.length; i++) {
+      assertEquals(fileNames[i], files.getJSONObject(i).getString("filename"));
+      assertEquals("/files/aa/" + fileNames[i], files.getJSONObject(i).getString("path"));
+    }
+  }
+
+  @Test
+  public void testStreamsParts() throws Exception {
+    // no request parameters are read, the files and fields come from the stream.
+    expect(request.getInputStream()).andReturn(
+        body("--" + BOUNDARY + "\n"
+            + "Content-Disposition: form-data; name=\"description\"\n\n"
+            + "two files\n"
+            + "--" + BOUNDARY + "\n"
+            + "Content-Disposition: form-data; name=\"Filedata\"; filename=\"a.txt\"\n"
+            + "Content-Type: text/plain; charset=UTF-8\n\n"
+            + "hello world\n"
+            + "--" + BOUNDARY + "\n"
+            + "Content-Disposition: form-data; name=\"Filedata\"; filename=\"b.html\"\n"
+            + "Content-Type: text/html\n\n"
+            + "<p>hi</p>\n"
+            + "--" + BOUNDARY + "--\n"));
+    replay(request, response, session);
+
+    servlet.doPost(request, response);
+
+    assertEquals(2, created.size());
+    assertEquals("/files a.txt text/plain; charset=UTF-8 hello world", created.get(0));
+    assertEquals("/files b.html text/html <p>hi</p>", created.get(1));
+    assertFiles("a.txt", "b.html");
+    verify(request, response, session);
+  }
+
+  @Test
+  public void testFallsBackToRequestParameters() throws Exception {
+    // the body was parsed into parameters before the servlet was called.
+    expect(request.getInputStream()).andThrow(new IllegalStateException());
+    expect(request.getRequestParameter("link")).andReturn(null);
+    expect(request.getRequestParameter("site")).andReturn(null);
+    RequestParameter file = createMock(RequestParameter.class);
+    expect(file.getFileName()).andReturn("a.txt").anyTimes();
+    expect(file.getInputStream()).andReturn(
+        new ByteArrayInputStream("hello world".getBytes("UTF-8")));
+    expect(file.getContentType()).andReturn("text/plain");
+    expect(request.getRequestParameters("Filedata")).andReturn(
+        new RequestParameter[] { file });
+    replay(request, response, session, file);
+
+    servlet.doPost(request, response);
+
+    assertEquals(1, created.size());
+    assertEquals("/files a.txt text/plain hello world", created.get(0));
+    assertFiles("a.txt");
+    verify(request, response, session, file);
+  }
+}
@@ -29,7 +29,7 @@ public interface Lock extends Serializable {
   boolean isOwner();
 
   /**
-   * @return true if the lock is from this node in the cluster.
+   * @return true if the lock is from the lock manager of this JVM.
    */
   boolean isLocal();
   /**
@@ -17,9 +17,12 @@
  */
 package org.sakaiproject.kernel.api.locking;
 
+import java.util.concurrent.TimeUnit;
+
 /**
- * Lock manager provides a mechanism for locking uniquely identified objects across the
- * cluster.
+ * Lock manager provides a mechanism for locking uniquely identified objects between the
+ * threads of one JVM. Locks are not shared with other servers in a cluster, so they do not
+ * stop a thread on another server from changing the same object.
  */
 public interface LockManager {
 
@@ -44,6 +47,28 @@ public interface LockManager {
    */
   Lock waitForLock(String id) throws LockTimeoutException;
 
+  /**
+   * Wait for a lock for no longer than a timeout. The waiting thread is woken as soon as
+   * the lock is released.
+   * 
+   * @param id
+   * @param timeout
+   *          the longest time to wait, 0 to not wait at all.
+   * @param unit
+   *          the unit of the timeout.
+   * @return the lock, owned by the current thread.
+   * @throws LockTimeoutException
+   *           indicates that a lock was not achieved within the timeout, or the thread
+   *           was interrupted while waiting.
+   */
+  Lock waitForLock(String id, long timeout, TimeUnit unit) throws LockTimeoutException;
+
+  /**
+   * @param id
+   * @return the lock, owned by the current thread, or null if another thread holds it.
+   */
+  Lock tryLock(String id);
+
   /**
    * clear the locks associated with this request.
    */
@@ -21,8 +21,8 @@ import org.sakaiproject.kernel.api.locking.Lock;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 
 /**
- * This implements a Lock to be serialized over the cluster. It must be serializable and
- * anything transient is injected as it comes out of the cache.
+ * This implements a Lock held in the {@link LockTable} of one JVM. It stays serializable
+ * as the Lock interface requires, anything transient is injected by the lock manager.
  */
 public class LockImpl implements Lock, ThreadBound {
 
@@ -49,7 +49,7 @@ public class LockImpl implements Lock, ThreadBound {
   /**
    * A flag to indicate if the Lock is open or closed, true means closed (locked)
    */
-  private boolean locked;
+  private volatile boolean locked;
   /**
    * The ID of the lock instance.
    */
@@ -101,6 +101,13 @@ public class LockImpl implements Lock, ThreadBound {
     return String.valueOf(ownerId);
   }
 
+  /**
+   * @return the id of the thread that owns the lock.
+   */
+  protected long getOwnerId() {
+    return ownerId;
+  }
+
   /**
    * {@inheritDoc}
    * @return true if the lock is bound to the same lock manager as the orriginating manager.
@@ -18,6 +18,7 @@
 package org.sakaiproject.kernel.locking;
 
 
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.locking.Lock;
 import org.sakaiproject.kernel.api.locking.LockManager;
 import org.sakaiproject.kernel.api.locking.LockTimeoutException;
@@ -27,11 +28,20 @@ import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that holds the locks of this JVM in a striped {@link LockTable}.
+ * Threads waiting for a lock are woken when it is released, rather than polling for it.
+ * Contention is reported through the {@link LockStatisticsMBean}, grouped by the first
+ * elements of the lock id.
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
@@ -43,16 +53,26 @@ import java.security.SecureRandom;
  */
 public class LockManagerImpl implements LockManager {
 
-  /**
-   * The name of the cluster replicated cache. This cache must be configured with a
-   * suitable expiry to allow removal o stale locks and configured with a cluster wide
-   * replication.
-   */
-  private static final String LOCKMAP = "lockmanager.lockmap";
   /**
    *
    */
   private static final String REQUEST_LOCKS = "lockmanager.requestmap";
+  /**
+   * The name the statistics are registered under in JMX.
+   */
+  private static final String MBEAN_NAME = "org.sakaiproject.kernel.locking:type=LockManager";
+  /**
+   * The time waitForLock(String) waits for.
+   */
+  private static final long DEFAULT_TIMEOUT_MS = 30000L;
+  /**
+   * The number of stripes in the lock table.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * The number of elements of the lock id that statistics are grouped by.
+   */
+  private static final int PREFIX_DEPTH = 2;
   /**
    * The Logger
    */
@@ -65,14 +85,22 @@ public class LockManagerImpl implements LockManager {
    * Service dependency, the Cache Manager
    */
   private CacheManagerService cacheManagerService;
+  /**
+   * Contention statistics.
+   */
+  private final LockStatistics statistics = new LockStatistics(PREFIX_DEPTH);
   /**
    * container for Locks.
    */
-  private Cache<LockImpl> lockMap;
+  private final LockTable lockTable = new LockTable(STRIPES, statistics);
   /**
    * The id of this instance of this class.
    */
   private long instanceId;
+  /**
+   * The ids of the locks, starting from a random point.
+   */
+  private AtomicLong lockIds;
   /**
    *
    */
@@ -91,7 +119,6 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
 
   /**
    * @throws NoSuchAlgorithmException
@@ -101,6 +128,28 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    lockIds = new AtomicLong(random.nextLong());
+  }
+
+  protected void activate(ComponentContext componentContext) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(statistics, name);
+    } catch (Exception e) {
+      LOGGER.warn("Failed to register lock statistics " + e.getMessage());
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      LOGGER.debug("Failed to unregister lock statistics " + e.getMessage());
+    }
   }
 
   public Lock getLock(String id) {
@@ -109,24 +158,67 @@ public class LockManagerImpl implements LockManager {
 
   /**
    * @param id
-   * @return
+   * @return the lock, which is owned by the current thread if it was free and create is
+   *         true, or null if it is not locked and create is false.
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
+    LockImpl lock = null;
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
-        }
+      lock = tryAcquire(id, 0L);
+    }
+    if (lock == null) {
+      lock = lockTable.get(id);
+    }
+    if (lock != null) {
+      lock.bind(this);
+    }
+    return lock;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#tryLock(java.lang.String)
+   */
+  public Lock tryLock(String id) {
+    return tryAcquire(id, 0L);
+  }
+
+  /**
+   * @param id
+   * @param timeoutNanos
+   * @return the lock owned by the current thread, or null if it was not granted in time.
+   */
+  private LockImpl tryAcquire(String id, long timeoutNanos) {
+    try {
+      return acquire(id, timeoutNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * @param id
+   * @param timeoutNanos
+   * @return the lock owned by the current thread, or null if it was not granted in time.
+   * @throws InterruptedException
+   */
+  private LockImpl acquire(String id, long timeoutNanos) throws InterruptedException {
+    final long owner = threadId.get();
+    LockImpl lock = lockTable.acquire(id, owner, new LockTable.LockFactory() {
+      public LockImpl newLock(String lockId) {
+        LockImpl newLock = new LockImpl(lockId, lockIds.incrementAndGet(), owner,
+            instanceId);
+        newLock.bind(LockManagerImpl.this);
+        // released at the end of the request.
+        getRequestLocks().put(lockId, newLock);
+        return newLock;
       }
+    }, timeoutNanos);
+    if (lock != null) {
+      lock.bind(this);
     }
-    lock.bind(this);
     return lock;
   }
 
@@ -144,13 +236,9 @@ public class LockManagerImpl implements LockManager {
    */
   protected void unlock(LockImpl lock) {
     if (lock.isOwner() && lock.isLocked()) {
-      if (debug) {
+      if (lockTable.release(lock) && debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
-      }
     }
   }
 
@@ -168,42 +256,49 @@ public class LockManagerImpl implements LockManager {
     return threadId.get();
   }
 
+  /**
+   * @return the contention statistics.
+   */
+  public LockStatistics getStatistics() {
+    return statistics;
+  }
+
   /**
    * {@inheritDoc}
    *
    * @see org.sakaiproject.kernel.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
+    return waitForLock(id, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.locking.LockManager#waitForLock(java.lang.String,
+   *      long, java.util.concurrent.TimeUnit)
+   */
+  public Lock waitForLock(String id, long timeout, TimeUnit unit)
+      throws LockTimeoutException {
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
-        }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
-      }
+    Lock lock;
+    try {
+      lock = acquire(id, unit.toNanos(timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
+    }
+    if (lock == null) {
+      LOGGER.warn(Thread.currentThread() + " failed to lock " + id + " in "
+          + unit.toMillis(timeout) + " ms");
+      throw new LockTimeoutException("Failed to lock node " + id);
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    }
+    return lock;
   }
 
   /**
@@ -223,14 +318,12 @@ public class LockManagerImpl implements LockManager {
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = null;
-    lockMap = null;
   }
  
  
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts lock acquisitions, waits, holders and waiters, grouped by the leading elements of
+ * the lock id, so that contention can be traced to the kind of object being locked. The
+ * number of groups is bounded, ids that would create more are counted as other.
+ */
+public class LockStatistics implements LockStatisticsMBean {
+
+  private static final String OTHER = "(other)";
+  private static final int MAX_PREFIXES = 1000;
+
+  private final int prefixDepth;
+  private final ConcurrentMap<String, Counters> prefixes = new ConcurrentHashMap<String, Counters>();
+
+  /**
+   * @param prefixDepth
+   *          the number of path elements that a lock id is grouped by.
+   */
+  public LockStatistics(int prefixDepth) {
+    this.prefixDepth = prefixDepth;
+  }
+
+  /**
+   * The counters for one prefix.
+   */
+  static class Counters {
+    final AtomicLong acquisitions = new AtomicLong();
+    final AtomicLong contended = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong waitTime = new AtomicLong();
+    final AtomicLong maxWaitTime = new AtomicLong();
+    final AtomicLong holders = new AtomicLong();
+    final AtomicLong waiters = new AtomicLong();
+
+    void reset() {
+      acquisitions.set(0);
+      contended.set(0);
+      timeouts.set(0);
+      waitTime.set(0);
+      maxWaitTime.set(0);
+    }
+  }
+
+  /**
+   * @param id
+   *          a lock id.
+   * @return the counters for the prefix of the id.
+   */
+  Counters get(String id) {
+    String prefix = getPrefix(id);
+    Counters counters = prefixes.get(prefix);
+    if (counters == null) {
+      if (prefixes.size() >= MAX_PREFIXES) {
+        prefix = OTHER;
+      }
+      counters = new Counters();
+      Counters existing = prefixes.putIfAbsent(prefix, counters);
+      if (existing != null) {
+        counters = existing;
+      }
+    }
+    return counters;
+  }
+
+  /**
+   * @param id
+   * @return the first prefixDepth elements of the id.
+   */
+  String getPrefix(String id) {
+    int end = 0;
+    int found = 0;
+    if (id.startsWith("/")) {
+      end = 1;
+    }
+    while (found < prefixDepth) {
+      int i = id.indexOf('/', end);
+      if (i < 0) {
+        return id;
+      }
+      found++;
+      end = i + 1;
+    }
+    return id.substring(0, end - 1);
+  }
+
+  /**
+   * Record a lock granted.
+   * 
+   * @param counters
+   * @param waitedNanos
+   *          the time spent waiting, 0 if the lock was free.
+   */
+  void acquired(Counters counters, long waitedNanos) {
+    counters.acquisitions.incrementAndGet();
+    counters.holders.incrementAndGet();
+    if (waitedNanos > 0) {
+      long ms = waitedNanos / 1000000L;
+      counters.contended.incrementAndGet();
+      counters.waitTime.addAndGet(ms);
+      long max = counters.maxWaitTime.get();
+      while (ms > max && !counters.maxWaitTime.compareAndSet(max, ms)) {
+        max = counters.maxWaitTime.get();
+      }
+    }
+  }
+
+  /**
+   * Record a wait that did not get the lock.
+   * 
+   * @param counters
+   * @param waitedNanos
+   */
+  void timedOut(Counters counters, long waitedNanos) {
+    counters.timeouts.incrementAndGet();
+    counters.waitTime.addAndGet(waitedNanos / 1000000L);
+  }
+
+  public long getAcquisitions() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.acquisitions.get();
+    }
+    return n;
+  }
+
+  public long getContendedAcquisitions() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.contended.get();
+    }
+    return n;
+  }
+
+  public long getTimeouts() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.timeouts.get();
+    }
+    return n;
+  }
+
+  public long getTotalWaitTime() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.waitTime.get();
+    }
+    return n;
+  }
+
+  public long getMaxWaitTime() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n = Math.max(n, c.maxWaitTime.get());
+    }
+    return n;
+  }
+
+  public long getHolders() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.holders.get();
+    }
+    return n;
+  }
+
+  public long getWaiters() {
+    long n = 0;
+    for (Counters c : prefixes.values()) {
+      n += c.waiters.get();
+    }
+    return n;
+  }
+
+  public String[] getPrefixStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Counters> e : prefixes.entrySet()) {
+      Counters c = e.getValue();
+      lines.add(e.getKey() + " holders=" + c.holders.get() + " waiters=" + c.waiters.get()
+          + " acquired=" + c.acquisitions.get() + " contended=" + c.contended.get()
+          + " timeouts=" + c.timeouts.get() + " waitMs=" + c.waitTime.get()
+          + " maxWaitMs=" + c.maxWaitTime.get());
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  public void reset() {
+    for (Counters c : prefixes.values()) {
+      c.reset();
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+/**
+ * Contention statistics of the lock manager, exposed through JMX.
+ */
+public interface LockStatisticsMBean {
+
+  /**
+   * @return the number of locks granted.
+   */
+  long getAcquisitions();
+
+  /**
+   * @return the number of locks granted after waiting for another holder.
+   */
+  long getContendedAcquisitions();
+
+  /**
+   * @return the number of waits that timed out or were interrupted.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the total time spent waiting for locks, in ms.
+   */
+  long getTotalWaitTime();
+
+  /**
+   * @return the longest wait for a lock, in ms.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * @return the number of locks held now.
+   */
+  long getHolders();
+
+  /**
+   * @return the number of threads waiting for locks now.
+   */
+  long getWaiters();
+
+  /**
+   * @return one line of statistics per lock path prefix.
+   */
+  String[] getPrefixStatistics();
+
+  /**
+   * Reset the counters, leaving the number of holders and waiters.
+   */
+  void reset();
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import org.sakaiproject.kernel.locking.LockStatistics.Counters;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the locks of a lock manager. The ids are spread over a number of stripes, each
+ * guarded by its own monitor, so that operations on unrelated ids do not wait for each
+ * other. Threads that want a lock that is held wait on a condition of that lock and are
+ * woken when it is released.
+ */
+public class LockTable {
+
+  /**
+   * The state of one locked id.
+   */
+  private static class Entry {
+    private final Condition released;
+    private final Counters counters;
+    private LockImpl holder;
+    private int waiters;
+
+    Entry(Condition released, Counters counters) {
+      this.released = released;
+      this.counters = counters;
+    }
+  }
+
+  /**
+   * One stripe of the table.
+   */
+  private static class Stripe {
+    private final ReentrantLock monitor = new ReentrantLock();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  }
+
+  /**
+   * Creates the lock for a thread when it is granted.
+   */
+  interface LockFactory {
+    LockImpl newLock(String id);
+  }
+
+  private final Stripe[] stripes;
+  private final LockStatistics statistics;
+
+  /**
+   * @param nstripes
+   *          the number of stripes, rounded up to a power of 2.
+   * @param statistics
+   *          where contention is recorded.
+   */
+  public LockTable(int nstripes, LockStatistics statistics) {
+    int n = 1;
+    while (n < nstripes) {
+      n = n << 1;
+    }
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.statistics = statistics;
+  }
+
+  private Stripe getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (stripes.length - 1)];
+  }
+
+  /**
+   * @param id
+   * @return the current holder of the lock on id, or null if it is not locked.
+   */
+  public LockImpl get(String id) {
+    Stripe stripe = getStripe(id);
+    stripe.monitor.lock();
+    try {
+      Entry entry = stripe.entries.get(id);
+      return entry == null ? null : entry.holder;
+    } finally {
+      stripe.monitor.unlock();
+    }
+  }
+
+  /**
+   * Take the lock on id, waiting for the current holder to release it if necessary.
+   * 
+   * @param id
+   * @param ownerId
+   *          the thread taking the lock, if it already holds the lock it is returned.
+   * @param factory
+   *          creates the lock when it is granted.
+   * @param timeoutNanos
+   *          the longest time to wait.
+   * @return the lock, or null if it was not granted within the timeout.
+   * @throws InterruptedException
+   *           if the thread was interrupted while waiting.
+   */
+  public LockImpl acquire(String id, long ownerId, LockFactory factory, long timeoutNanos)
+      throws InterruptedException {
+    Stripe stripe = getStripe(id);
+    stripe.monitor.lock();
+    try {
+      Entry entry = stripe.entries.get(id);
+      if (entry == null) {
+        entry = new Entry(stripe.monitor.newCondition(), statistics.get(id));
+        stripe.entries.put(id, entry);
+      } else if (entry.holder != null && entry.holder.getOwnerId() == ownerId) {
+        return entry.holder;
+      }
+      long start = System.nanoTime();
+      long remaining = timeoutNanos;
+      long waited = 0;
+      try {
+        while (entry.holder != null) {
+          if (remaining <= 0) {
+            if (timeoutNanos > 0) {
+              statistics.timedOut(entry.counters, System.nanoTime() - start);
+            }
+            return null;
+          }
+          entry.waiters++;
+          entry.counters.waiters.incrementAndGet();
+          try {
+            remaining = entry.released.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            statistics.timedOut(entry.counters, System.nanoTime() - start);
+            throw e;
+          } finally {
+            entry.waiters--;
+            entry.counters.waiters.decrementAndGet();
+          }
+          waited = System.nanoTime() - start;
+        }
+        entry.holder = factory.newLock(id);
+        statistics.acquired(entry.counters, waited);
+        return entry.holder;
+      } finally {
+        if (entry.holder == null) {
+          if (entry.waiters == 0) {
+            stripe.entries.remove(id);
+          } else {
+            // this thread may have taken a wake up meant for a waiter.
+            entry.released.signal();
+          }
+        }
+      }
+    } finally {
+      stripe.monitor.unlock();
+    }
+  }
+
+  /**
+   * Release a lock, waking one of the threads waiting for it.
+   * 
+   * @param lock
+   * @return true if the lock was held and has been released.
+   */
+  public boolean release(LockImpl lock) {
+    String id = lock.getLocked();
+    Stripe stripe = getStripe(id);
+    stripe.monitor.lock();
+    try {
+      Entry entry = stripe.entries.get(id);
+      if (entry == null || entry.holder != lock) {
+        return false;
+      }
+      entry.holder = null;
+      lock.setLocked(false);
+      entry.counters.holders.decrementAndGet();
+      if (entry.waiters == 0) {
+        stripe.entries.remove(id);
+      } else {
+        entry.released.signal();
+      }
+      return true;
+    } finally {
+      stripe.monitor.unlock();
+    }
+  }
+}
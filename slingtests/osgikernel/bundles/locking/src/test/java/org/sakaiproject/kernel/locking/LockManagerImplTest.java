@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LockManagerImplTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private LockManagerImpl lockManager;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+    lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(cacheManagerService);
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    cacheManagerService.stop();
+  }
+
+  /**
+   * Run something on another thread, which is another lock owner.
+   */
+  private Throwable runOnOtherThread(final Runnable runnable) throws InterruptedException {
+    final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          runnable.run();
+        } catch (Throwable t) {
+          thrown.set(t);
+        } finally {
+          cacheManagerService.unbind(CacheScope.REQUEST);
+        }
+      }
+    };
+    thread.start();
+    thread.join(10000L);
+    return thrown.get();
+  }
+
+  @Test
+  public void testReentrantLock() throws Exception {
+    Lock lock = lockManager.waitForLock("/a/b");
+    assertTrue(lock.isOwner());
+    assertSame(lock, lockManager.tryLock("/a/b"));
+    assertSame(lock, lockManager.waitForLock("/a/b", 1, TimeUnit.SECONDS));
+    lock.unlock();
+    assertFalse(lock.isLocked());
+    assertNull(lockManager.getLock("/a/b", false));
+  }
+
+  @Test
+  public void testUnlockByNonOwner() throws Exception {
+    final Lock lock = lockManager.waitForLock("/a/b");
+    final AtomicReference<Lock> other = new AtomicReference<Lock>();
+    Throwable thrown = runOnOtherThread(new Runnable() {
+      public void run() {
+        assertFalse(lock.isOwner());
+        lock.unlock();
+        other.set(lockManager.tryLock("/a/b"));
+      }
+    });
+    assertNull(thrown);
+    assertTrue(lock.isLocked());
+    assertNull(other.get());
+    assertSame(lock, lockManager.getLock("/a/b", false));
+  }
+
+  @Test
+  public void testWaitForLockTimesOut() throws Exception {
+    lockManager.waitForLock("/a/b");
+    Throwable thrown = runOnOtherThread(new Runnable() {
+      public void run() {
+        try {
+          lockManager.waitForLock("/a/b", 20, TimeUnit.MILLISECONDS);
+          fail("Locked a lock held by another thread");
+        } catch (LockTimeoutException e) {
+          // expected
+        }
+      }
+    });
+    assertNull(thrown);
+    assertTrue(lockManager.getStatistics().getTimeouts() > 0);
+  }
+
+  @Test
+  public void testInterruptedWaitForLock() throws Exception {
+    lockManager.waitForLock("/a/b");
+    final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+    Throwable thrown = runOnOtherThread(new Runnable() {
+      public void run() {
+        Thread.currentThread().interrupt();
+        try {
+          lockManager.waitForLock("/a/b", 10, TimeUnit.SECONDS);
+          fail("Locked a lock held by another thread");
+        } catch (LockTimeoutException e) {
+          // the interrupt is kept for the caller.
+          interrupted.set(Thread.currentThread().isInterrupted());
+        }
+      }
+    });
+    assertNull(thrown);
+    assertTrue(interrupted.get());
+  }
+
+  @Test
+  public void testClearLocksReleasesRequestLocks() throws Exception {
+    Lock lock = lockManager.waitForLock("/a/b");
+    lockManager.clearLocks();
+    assertFalse(lock.isLocked());
+    final AtomicReference<Lock> other = new AtomicReference<Lock>();
+    Throwable thrown = runOnOtherThread(new Runnable() {
+      public void run() {
+        other.set(lockManager.tryLock("/a/b"));
+      }
+    });
+    assertNull(thrown);
+    assertNotNull(other.get());
+  }
+}
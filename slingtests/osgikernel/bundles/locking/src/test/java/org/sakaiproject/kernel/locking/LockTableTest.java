@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LockTableTest {
+
+  private static final long LONG_WAIT = TimeUnit.SECONDS.toNanos(10);
+
+  private LockStatistics statistics;
+  private LockTable lockTable;
+  private AtomicLong lockIds = new AtomicLong();
+
+  @Before
+  public void setUp() {
+    statistics = new LockStatistics(2);
+    lockTable = new LockTable(4, statistics);
+  }
+
+  private LockTable.LockFactory factory(final long ownerId) {
+    return new LockTable.LockFactory() {
+      public LockImpl newLock(String id) {
+        return new LockImpl(id, lockIds.incrementAndGet(), ownerId, 1L);
+      }
+    };
+  }
+
+  /**
+   * Wait until a thread is waiting for a lock in the table.
+   */
+  private void awaitWaiters(int waiters) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000L;
+    while (statistics.getWaiters() < waiters) {
+      if (System.currentTimeMillis() > end) {
+        fail("No thread waited for the lock");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testAcquireAndRelease() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    assertNotNull(lock);
+    assertTrue(lock.isLocked());
+    assertSame(lock, lockTable.get("/a/b"));
+    assertNull(lockTable.acquire("/a/b", 2L, factory(2L), 0L));
+    assertTrue(lockTable.release(lock));
+    assertFalse(lock.isLocked());
+    assertNull(lockTable.get("/a/b"));
+    assertNotNull(lockTable.acquire("/a/b", 2L, factory(2L), 0L));
+    assertEquals(2, statistics.getAcquisitions());
+  }
+
+  @Test
+  public void testReentrantAcquire() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    // the owner gets the lock it holds, without waiting.
+    assertSame(lock, lockTable.acquire("/a/b", 1L, factory(1L), LONG_WAIT));
+    assertEquals(1, statistics.getAcquisitions());
+    // locks are not counted, one release frees it.
+    assertTrue(lockTable.release(lock));
+    assertNull(lockTable.get("/a/b"));
+    assertFalse(lockTable.release(lock));
+  }
+
+  @Test
+  public void testReleaseOfLockNotHeld() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    LockImpl other = new LockImpl("/a/b", 99L, 2L, 1L);
+    assertFalse(lockTable.release(other));
+    assertSame(lock, lockTable.get("/a/b"));
+    assertTrue(lock.isLocked());
+    assertFalse(lockTable.release(new LockImpl("/a/c", 100L, 1L, 1L)));
+  }
+
+  @Test
+  public void testWakeOnRelease() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    final AtomicReference<LockImpl> granted = new AtomicReference<LockImpl>();
+    final AtomicLong waited = new AtomicLong();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          long start = System.nanoTime();
+          granted.set(lockTable.acquire("/a/b", 2L, factory(2L), LONG_WAIT));
+          waited.set(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+          // granted stays null
+        }
+      }
+    };
+    waiter.start();
+    awaitWaiters(1);
+    assertTrue(lockTable.release(lock));
+    waiter.join(LONG_WAIT / 1000000L);
+    assertNotNull(granted.get());
+    assertEquals(2L, granted.get().getOwnerId());
+    // woken by the release, not by the end of the timeout.
+    assertTrue(waited.get() < LONG_WAIT / 2);
+    assertEquals(1, statistics.getContendedAcquisitions());
+    assertEquals(0, statistics.getWaiters());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    long timeout = TimeUnit.MILLISECONDS.toNanos(50);
+    long start = System.nanoTime();
+    assertNull(lockTable.acquire("/a/b", 2L, factory(2L), timeout));
+    assertTrue(System.nanoTime() - start >= timeout);
+    assertEquals(1, statistics.getTimeouts());
+    assertEquals(0, statistics.getWaiters());
+    // the holder is untouched, and the entry goes when it is released.
+    assertSame(lock, lockTable.get("/a/b"));
+    assertTrue(lockTable.release(lock));
+    assertNull(lockTable.get("/a/b"));
+  }
+
+  @Test
+  public void testInterruptWhileWaiting() throws Exception {
+    LockImpl lock = lockTable.acquire("/a/b", 1L, factory(1L), 0L);
+    final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockTable.acquire("/a/b", 2L, factory(2L), LONG_WAIT);
+        } catch (Throwable t) {
+          thrown.set(t);
+        }
+      }
+    };
+    waiter.start();
+    awaitWaiters(1);
+    waiter.interrupt();
+    waiter.join(LONG_WAIT / 1000000L);
+    assertTrue(thrown.get() instanceof InterruptedException);
+    assertEquals(0, statistics.getWaiters());
+    assertSame(lock, lockTable.get("/a/b"));
+    assertTrue(lockTable.release(lock));
+    assertNull(lockTable.get("/a/b"));
+  }
+}
@@ -37,6 +37,45 @@ public interface Cache<V> {
    */
   V put(String key, V payload);
 
+  /**
+   * Cache an object if there is no entry for the key, atomically with respect to other
+   * writes to the key in this instance.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   * @return the existing value, in which case payload was not cached, or null if payload
+   *         was cached.
+   */
+  V putIfAbsent(String key, V payload);
+
+  /**
+   * Replace the value of a key with one computed from the current value, atomically with
+   * respect to other writes to the key in this instance.
+   *
+   * @param key
+   *          The cache key.
+   * @param function
+   *          computes the new value, returning null removes the key.
+   * @return the new value.
+   */
+  V compute(String key, CacheFunction<V> function);
+
+  /**
+   * Get the value for a key, loading and caching it if it is not present. Concurrent
+   * callers that miss on the same key wait for a single load rather than each invoking
+   * the loader.
+   *
+   * @param key
+   *          The cache key.
+   * @param loader
+   *          invoked to load the value on a miss, exceptions it throws are propagated to
+   *          every waiting caller.
+   * @return the value, or null if the loader returned null.
+   */
+  V getOrLoad(String key, CacheLoader<V> loader);
+
   /**
    * Test for a non expired entry in the cache.
    *
@@ -72,12 +111,23 @@ public interface Cache<V> {
 
   /**
    * Remove the key and any child keys from the cache, this is an expensive
-   * operation.
+   * operation unless the cache was obtained from
+   * {@link CacheManagerService#getPathCache(String, CacheScope)}.
    *
    * @param key
    */
   void removeChildren(String key);
 
+  /**
+   * List the values of the key and any child keys, this is an expensive
+   * operation unless the cache was obtained from
+   * {@link CacheManagerService#getPathCache(String, CacheScope)}.
+   *
+   * @param key
+   * @return the values found.
+   */
+  List<V> listChildren(String key);
+
   /**
    * @return
    */
@@ -17,13 +17,13 @@
  */
 package org.sakaiproject.kernel.api.memory;
 
+import java.util.List;
 
 /**
  * The Cache manager provides access to all caches in the system. Caches are
  * scoped by CacheScope and those that are bound can be unbound.
  */
 public interface CacheManagerService {
-
   /**
    * Get a cache to contain a specified type, with a defined scope. Getting a
    * cache of the same name in the same scope will return the same cache for
@@ -37,6 +37,24 @@ public interface CacheManagerService {
    */
   <T> Cache<T> getCache(String name, CacheScope scope);
 
+  /**
+   * Get a cache for path shaped keys ('/' separated), that keeps an index of its keys so
+   * that {@link Cache#removeChildren(String)} and {@link Cache#listChildren(String)} cost
+   * the size of the subtree rather than the size of the cache. The index costs memory per
+   * key, so only use this flavour where subtrees are removed or listed. REQUEST and THREAD
+   * caches are small and are the same as those returned by getCache.
+   *
+   * @param <T> The type of the elements, but be serializable for any non thread bound cache.
+   * @param name the name of the cache.
+   * @param scope the scope of the cache.
+   * @return the cache suitable for holding the type T
+   */
+  <T> Cache<T> getPathCache(String name, CacheScope scope);
+
+  /**
+   * @return the counters of every cache that has been used, one entry per name and scope.
+   */
+  List<CacheStatistics> getStatistics();
   /**
    * Unbind the the context specified in scope.
    *
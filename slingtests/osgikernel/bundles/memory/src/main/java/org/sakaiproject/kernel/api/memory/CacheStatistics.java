@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+/**
+ * Usage counters for a cache, one set per cache name and scope. Caches bound to requests
+ * or threads share one set of counters per name across all requests or threads.
+ */
+public interface CacheStatistics {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the scope of the cache.
+   */
+  String getScope();
+
+  /**
+   * @return the number of gets and loads that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets and loads that did not find a value.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), 0 if there have been no lookups.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of values written.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of remove and removeChildren calls.
+   */
+  long getRemovals();
+
+  /**
+   * @return the number of entries evicted or expired by the underlying store.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of times a loader was invoked by getOrLoad.
+   */
+  long getLoads();
+
+  /**
+   * @return the total time spent in loaders, in ms.
+   */
+  double getTotalLoadTime();
+
+  /**
+   * @return the mean time of a load, in ms.
+   */
+  double getAverageLoadTime();
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+/**
+ * A transport that carries cache replication frames between the nodes of a cluster. The
+ * CacheManagerService uses the transport registered in the container to keep
+ * CLUSTERINVALIDATED and CLUSTERREPLICATED caches in step, without a transport those
+ * caches are local to the instance.
+ */
+public interface ReplicationTransport {
+
+  /**
+   * @return an id for this node that is unique within the cluster.
+   */
+  String getNodeId();
+
+  /**
+   * Send a frame to every other node in the cluster. Implementations should not deliver
+   * the frame back to the sending node.
+   *
+   * @param frame
+   *          the serialized frame.
+   */
+  void send(byte[] frame);
+
+  /**
+   * Set the receiver that frames from other nodes are delivered to.
+   *
+   * @param receiver
+   *          the receiver, or null to stop delivery.
+   */
+  void setReceiver(ReplicationReceiver receiver);
+
+}
@@ -19,38 +19,81 @@ package org.sakaiproject.kernel.memory;
 
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.ObjectExistsException;
 
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
  */
 public class CacheImpl<V> implements Cache<V> {
 
+  /**
+   * The number of lock stripes guarding writes, a power of 2.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * The lock stripes of each region by name. The plain and path indexed caches of a name
+   * write to the same region, so they have to share its locks for compute and
+   * putIfAbsent to be atomic.
+   */
+  private static final ConcurrentMap<String, Object[]> REGION_LOCKS =
+      new ConcurrentHashMap<String, Object[]>();
+
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private PathIndex pathIndex;
+  private Object[] locks;
+  private SingleFlightLoader<V> loader = new SingleFlightLoader<V>();
 
   /**
    * @param cacheManager
    * @param name
    */
   public CacheImpl(CacheManager cacheManager, String name) {
+    this(cacheManager, name, false);
+  }
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param pathIndexed
+   *          if true maintain a {@link PathIndex} of the keys in the region so that
+   *          removeChildren and listChildren cost the size of the subtree.
+   */
+  public CacheImpl(CacheManager cacheManager, String name, boolean pathIndexed) {
     if (name == null) {
       cacheName = "default";
     } else {
       cacheName = name;
     }
-    synchronized (cacheManager) {
+    locks = getRegionLocks(cacheName);
+    cache = cacheManager.getCache(cacheName);
+    if (cache == null) {
+      try {
+        cacheManager.addCache(cacheName);
+      } catch (ObjectExistsException e) {
+        // created by another thread since the check.
+      }
       cache = cacheManager.getCache(cacheName);
       if (cache == null) {
-        cacheManager.addCache(cacheName);
-        cache = cacheManager.getCache(cacheName);
-        if (cache == null) {
-          throw new RuntimeException("Failed to create Cache with name " + cacheName);
-        }
+        throw new RuntimeException("Failed to create Cache with name " + cacheName);
+      }
+    }
+    if (pathIndexed) {
+      pathIndex = new PathIndex();
+      // listen before loading the existing keys so that no write is missed.
+      cache.getCacheEventNotificationService().registerListener(
+          new PathIndexListener(pathIndex));
+      for (Object k : cache.getKeys()) {
+        pathIndex.add((String) k);
       }
     }
   }
@@ -92,17 +135,98 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
    */
-  @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
-    V previous = null;
-    if (cache.isKeyInCache(key)) {
-      Element e = cache.get(key);
-      if (e != null) {
-        previous = (V) e.getObjectValue();
+    synchronized (lockFor(key)) {
+      V previous = peek(key);
+      cache.put(new Element(key, payload));
+      return previous;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    synchronized (lockFor(key)) {
+      V previous = peek(key);
+      if (previous == null) {
+        cache.put(new Element(key, payload));
+      }
+      return previous;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.memory.Cache#compute(java.lang.String, org.sakaiproject.kernel.api.memory.CacheFunction)
+   */
+  public V compute(String key, CacheFunction<V> function) {
+    synchronized (lockFor(key)) {
+      V value = function.apply(key, peek(key));
+      if (value == null) {
+        cache.remove(key);
+      } else {
+        cache.put(new Element(key, value));
+      }
+      return value;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, CacheLoader<V> cacheLoader) {
+    return loader.getOrLoad(this, key, cacheLoader);
+  }
+
+  /**
+   * Read the current value without touching the access statistics of the element, a
+   * single store operation.
+   * 
+   * @param key
+   * @return the value or null.
+   */
+  @SuppressWarnings("unchecked")
+  private V peek(String key) {
+    Element e = cache.getQuiet(key);
+    if (e == null) {
+      return null;
+    }
+    return (V) e.getObjectValue();
+  }
+
+  /**
+   * @param name
+   * @return the lock stripes shared by the caches of the region.
+   */
+  private static Object[] getRegionLocks(String name) {
+    Object[] regionLocks = REGION_LOCKS.get(name);
+    if (regionLocks == null) {
+      Object[] created = new Object[STRIPES];
+      for (int i = 0; i < STRIPES; i++) {
+        created[i] = new Object();
+      }
+      regionLocks = REGION_LOCKS.putIfAbsent(name, created);
+      if (regionLocks == null) {
+        regionLocks = created;
       }
     }
-    cache.put(new Element(key, payload));
-    return previous;
+    return regionLocks;
+  }
+
+  /**
+   * @param key
+   * @return the lock stripe for the key.
+   */
+  private Object lockFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return locks[h & (STRIPES - 1)];
   }
 
   /**
@@ -111,7 +235,9 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    synchronized (lockFor(key)) {
+      cache.remove(key);
+    }
   }
 
   /**
@@ -120,6 +246,12 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    if (pathIndex != null) {
+      for (String k : pathIndex.removeSubtree(key)) {
+        cache.remove(k);
+      }
+      return;
+    }
     cache.remove(key);
     if (!key.endsWith("/")) {
       key = key + "/";
@@ -132,6 +264,35 @@ public class CacheImpl<V> implements Cache<V> {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.memory.Cache#listChildren(java.lang.String)
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> listChildren(String key) {
+    List<String> keys;
+    if (pathIndex != null) {
+      keys = pathIndex.subtree(key);
+    } else {
+      String prefix = key.endsWith("/") ? key : key + "/";
+      keys = new ArrayList<String>();
+      for (Object k : cache.getKeys()) {
+        if (k.equals(key) || ((String) k).startsWith(prefix)) {
+          keys.add((String) k);
+        }
+      }
+    }
+    List<V> values = new ArrayList<V>();
+    for (String k : keys) {
+      Element e = cache.get(k);
+      if (e != null) {
+        values.add((V) e.getObjectValue());
+      }
+    }
+    return values;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -23,6 +23,8 @@ import net.sf.ehcache.management.ManagementService;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.api.memory.ReplicationTransport;
 import org.sakaiproject.kernel.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,10 +32,17 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
@@ -45,15 +54,33 @@ import javax.management.MBeanServer;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description"
  *      value="Cache Manager Service Implementation"
+ * @scr.reference name="replicationTransport"
+ *                interface="org.sakaiproject.kernel.api.memory.ReplicationTransport"
+ *                bind="bindReplicationTransport" unbind="unbindReplicationTransport"
+ *                cardinality="0..1" policy="dynamic"
  */
 public class CacheManagerServiceImpl implements CacheManagerService {
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/kernel/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  /**
+   * The registries hold a task per name, so lookups are lock free and each cache is
+   * created once even when many threads ask for a new name at the same time.
+   */
+  private ConcurrentMap<String, FutureTask<Cache<?>>> caches = new ConcurrentHashMap<String, FutureTask<Cache<?>>>();
+  private ConcurrentMap<String, FutureTask<Cache<?>>> pathCaches = new ConcurrentHashMap<String, FutureTask<Cache<?>>>();
+  private ConcurrentMap<String, FutureTask<Cache<?>>> clusterCaches = new ConcurrentHashMap<String, FutureTask<Cache<?>>>();
+  /**
+   * The caches handed out for the shared scopes, counting into the statistics. The stores
+   * above stay uninstrumented so that replication and internal use are not counted.
+   */
+  private ConcurrentMap<String, FutureTask<Cache<?>>> instrumentedCaches = new ConcurrentHashMap<String, FutureTask<Cache<?>>>();
+  private ConcurrentMap<String, CacheStats> statistics = new ConcurrentHashMap<String, CacheStats>();
+  private List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private CacheReplicator replicator;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -66,6 +93,14 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     cacheManager = new CacheManager(in);
     in.close();
 
+    replicator = new CacheReplicator(new CacheReplicator.Target() {
+      public void apply(CacheScope scope, ReplicationMessage message) {
+        // use the path indexed store if the region has one, so subtree removals stay cheap.
+        String name = message.getCacheName();
+        getClusterCache(name, scope, pathCaches.containsKey(name)).applyRemote(message);
+      }
+    }, CacheReplicator.DEFAULT_MAX_BATCH, CacheReplicator.DEFAULT_FLUSH_INTERVAL);
+
     /*
      * Add in a shutdown hook, for safety
      */
@@ -98,6 +133,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    replicator.close();
+    unregisterMBeans();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -109,18 +146,29 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    */
   public <V> Cache<V> getCache(String name, CacheScope scope) {
     switch (scope) {
-    case INSTANCE:
-      return getInstanceCache(name);
-    case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
-    case CLUSTERREPLICATED:
-      return getInstanceCache(name);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
       return getThreadCache(name);
     default:
-      return getInstanceCache(name);
+      return getInstrumentedCache(name, scope, false);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#getPathCache(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheScope)
+   */
+  public <V> Cache<V> getPathCache(String name, CacheScope scope) {
+    switch (scope) {
+    case REQUEST:
+      return getRequestCache(name);
+    case THREAD:
+      return getThreadCache(name);
+    default:
+      return getInstrumentedCache(name, scope, true);
     }
   }
 
@@ -135,7 +183,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
+      threadCache = new InstrumentedCache<V>(new MapCacheImpl<V>(), getStats(name,
+          CacheScope.THREAD));
       threadCacheMap.put(name, threadCache);
     }
     return threadCache;
@@ -152,27 +201,251 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
     Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
+      requestCache = new InstrumentedCache<V>(new MapCacheImpl<V>(), getStats(name,
+          CacheScope.REQUEST));
       requestCacheMap.put(name, requestCache);
     }
     return requestCache;
   }
 
   /**
+   * Get the counting cache for a name in a shared scope.
+   *
    * @param name
+   * @param scope
+   *          INSTANCE or one of the cluster scopes.
+   * @param pathIndexed
    * @return
    */
-  @SuppressWarnings("unchecked")
-  private <V> Cache<V> getInstanceCache(String name) {
+  private <V> Cache<V> getInstrumentedCache(String name, final CacheScope scope,
+      final boolean pathIndexed) {
+    if (name == null && scope == CacheScope.INSTANCE && !pathIndexed) {
+      // unnamed instance caches are not registered, but are counted as default.
+      return new InstrumentedCache<V>(new CacheImpl<V>(cacheManager, null), getStats(null,
+          scope));
+    }
+    final String cacheName = (name == null) ? "default" : name;
+    String key = scope + ":" + cacheName;
+    if (pathIndexed) {
+      key = "path:" + key;
+    }
+    return register(instrumentedCaches, key, new Callable<Cache<?>>() {
+      public Cache<?> call() {
+        Cache<Object> store;
+        if (scope == CacheScope.INSTANCE) {
+          if (pathIndexed) {
+            store = getInstancePathCache(cacheName);
+          } else {
+            store = getInstanceCache(cacheName);
+          }
+        } else {
+          store = getClusterCache(cacheName, scope, pathIndexed);
+        }
+        return new InstrumentedCache<Object>(store, getStats(cacheName, scope));
+      }
+    });
+  }
+
+  /**
+   * Get the counters for a cache name and scope, the path indexed and plain caches of a name
+   * share counters as they share a store. The first time a name is seen the counters are
+   * registered with JMX, and for instance caches are attached to the evictions of the
+   * ehcache region. Cluster caches use the same region, so their evictions are counted
+   * against the instance cache of the same name.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  private CacheStats getStats(String name, CacheScope scope) {
+    String cacheName = (name == null) ? "default" : name;
+    String key = scope + ":" + cacheName;
+    CacheStats stats = statistics.get(key);
+    if (stats == null) {
+      CacheStats created = new CacheStats(cacheName, scope);
+      stats = statistics.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+        if (scope == CacheScope.INSTANCE) {
+          net.sf.ehcache.Cache region = cacheManager.getCache(cacheName);
+          if (region != null) {
+            region.getCacheEventNotificationService().registerListener(
+                created.getEvictionListener());
+          }
+        }
+        registerMBean(created);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @param stats
+   */
+  private void registerMBean(CacheStats stats) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.kernel.memory:type=CacheStatistics,scope="
+          + stats.getScope() + ",name=" + ObjectName.quote(stats.getName()));
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(stats, name);
+      synchronized (registeredMBeans) {
+        registeredMBeans.add(name);
+      }
+    } catch (Exception e) {
+      logger.warn("Failed to register cache statistics " + e.getMessage());
+    }
+  }
+
+  /**
+   * Remove the statistics MBeans.
+   */
+  private void unregisterMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    synchronized (registeredMBeans) {
+      for (ObjectName name : registeredMBeans) {
+        try {
+          mBeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+          logger.debug("Failed to unregister " + name + " " + e.getMessage());
+        }
+      }
+      registeredMBeans.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#getStatistics()
+   */
+  public List<CacheStatistics> getStatistics() {
+    return new ArrayList<CacheStatistics>(statistics.values());
+  }
+
+  /**
+   * @param name
+   * @return
+   */
+  private <V> Cache<V> getInstanceCache(final String name) {
     if (name == null) {
       return new CacheImpl<V>(cacheManager, null);
     } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+      return register(caches, name, new Callable<Cache<?>>() {
+        public Cache<?> call() {
+          return new CacheImpl<Object>(cacheManager, name);
+        }
+      });
+    }
+  }
+
+  /**
+   * A path indexed cache bound to the instance, the index is maintained from the events
+   * of the ehcache region so it sees writes made through any cache on the same region.
+   *
+   * @param name
+   * @return
+   */
+  private <V> Cache<V> getInstancePathCache(String name) {
+    final String cacheName = (name == null) ? "default" : name;
+    return register(pathCaches, cacheName, new Callable<Cache<?>>() {
+      public Cache<?> call() {
+        return new CacheImpl<Object>(cacheManager, cacheName, true);
       }
-      return c;
+    });
+  }
+
+  /**
+   * Generate a cache that shares its changes with the rest of the cluster. The local store
+   * is the instance cache of the same name.
+   *
+   * @param name
+   * @param scope
+   * @param pathIndexed
+   *          true if the local store should be path indexed.
+   * @return
+   */
+  private <V> ReplicatedCacheImpl<V> getClusterCache(String name, final CacheScope scope,
+      final boolean pathIndexed) {
+    final String cacheName = (name == null) ? "default" : name;
+    String key = scope + ":" + cacheName;
+    if (pathIndexed) {
+      key = "path:" + key;
+    }
+    Cache<V> c = register(clusterCaches, key, new Callable<Cache<?>>() {
+      public Cache<?> call() {
+        Cache<Object> local;
+        if (pathIndexed) {
+          local = getInstancePathCache(cacheName);
+        } else {
+          local = getInstanceCache(cacheName);
+        }
+        return new ReplicatedCacheImpl<Object>(local, cacheName, scope, replicator);
+      }
+    });
+    return (ReplicatedCacheImpl<V>) c;
+  }
+
+  /**
+   * Get a cache from a registry, creating it with the factory if it is not there. Only one
+   * thread runs the factory for a key, others asking for the same key wait for it.
+   *
+   * @param registry
+   * @param key
+   * @param factory
+   * @return the registered cache.
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> register(ConcurrentMap<String, FutureTask<Cache<?>>> registry,
+      String key, Callable<Cache<?>> factory) {
+    FutureTask<Cache<?>> f = registry.get(key);
+    if (f == null) {
+      FutureTask<Cache<?>> task = new FutureTask<Cache<?>>(factory);
+      f = registry.putIfAbsent(key, task);
+      if (f == null) {
+        f = task;
+        task.run();
+      }
+    }
+    try {
+      return (Cache<V>) f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted creating cache " + key, e);
+    } catch (ExecutionException e) {
+      // let the next caller try again.
+      registry.remove(key, f);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException("Failed to create cache " + key, cause);
+    }
+  }
+
+  /**
+   * @return the replicator for the cluster scoped caches.
+   */
+  public CacheReplicator getReplicator() {
+    return replicator;
+  }
+
+  /**
+   * @param transport
+   *          the transport used to replicate cluster scoped caches.
+   */
+  public void bindReplicationTransport(ReplicationTransport transport) {
+    replicator.setTransport(transport);
+  }
+
+  /**
+   * @param transport
+   */
+  public void unbindReplicationTransport(ReplicationTransport transport) {
+    if (replicator.getTransport() == transport) {
+      replicator.setTransport(null);
     }
   }
 
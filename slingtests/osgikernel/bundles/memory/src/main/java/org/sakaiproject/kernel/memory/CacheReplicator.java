@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ReplicationReceiver;
+import org.sakaiproject.kernel.api.memory.ReplicationTransport;
+import org.sakaiproject.kernel.memory.ReplicationMessage.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Queues changes to the cluster caches and sends them to the other nodes over a
+ * {@link ReplicationTransport}. Changes are held per scope and coalesced per key, so only
+ * the last change to a key within a flush interval goes over the wire. The queue is sent
+ * as one frame per scope every flush interval, or sooner when it reaches the maximum batch
+ * size. Frames received from other nodes are applied to the local stores through the
+ * {@link Target}.
+ */
+public class CacheReplicator implements ReplicationReceiver {
+
+  /**
+   * Where received changes are applied.
+   */
+  public interface Target {
+    /**
+     * @param scope
+     * @param message
+     *          a change made on another node.
+     */
+    void apply(CacheScope scope, ReplicationMessage message);
+  }
+
+  /**
+   * The default maximum number of messages queued for a scope before a flush is forced.
+   */
+  public static final int DEFAULT_MAX_BATCH = 200;
+  /**
+   * The default time in ms between flushes.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL = 50L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheReplicator.class);
+  private static final CacheScope[] REPLICATED_SCOPES = new CacheScope[] {
+      CacheScope.CLUSTERINVALIDATED, CacheScope.CLUSTERREPLICATED };
+
+  private Target target;
+  private int maxBatch;
+  private volatile ReplicationTransport transport;
+  private Map<CacheScope, Map<String, ReplicationMessage>> pending = new EnumMap<CacheScope, Map<String, ReplicationMessage>>(
+      CacheScope.class);
+  private Map<CacheScope, ReplicationStats> stats = new EnumMap<CacheScope, ReplicationStats>(
+      CacheScope.class);
+  private List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+  private ScheduledExecutorService flusher;
+  private AtomicBoolean flushRequested = new AtomicBoolean();
+  private Runnable flushTask = new Runnable() {
+    public void run() {
+      flushRequested.set(false);
+      try {
+        flush();
+      } catch (Throwable t) {
+        LOGGER.warn("Failed to flush cache replication queue " + t.getMessage(), t);
+      }
+    }
+  };
+
+  /**
+   * @param target
+   *          where changes received from other nodes are applied.
+   * @param maxBatch
+   *          the number of queued messages in a scope that forces a flush.
+   * @param flushInterval
+   *          the time in ms between flushes.
+   */
+  public CacheReplicator(Target target, int maxBatch, long flushInterval) {
+    this.target = target;
+    this.maxBatch = maxBatch;
+    for (CacheScope scope : REPLICATED_SCOPES) {
+      pending.put(scope, new LinkedHashMap<String, ReplicationMessage>());
+      stats.put(scope, new ReplicationStats(scope));
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "cache-replicator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(flushTask, flushInterval, flushInterval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set the transport, replacing any existing transport. While there is no transport
+   * changes are not queued.
+   *
+   * @param transport
+   *          the transport or null.
+   */
+  public synchronized void setTransport(ReplicationTransport transport) {
+    ReplicationTransport old = this.transport;
+    if (old != null) {
+      flush();
+      old.setReceiver(null);
+      unregisterMBeans();
+    }
+    this.transport = transport;
+    if (transport != null) {
+      transport.setReceiver(this);
+      registerMBeans(transport.getNodeId());
+    }
+  }
+
+  /**
+   * @return the current transport or null.
+   */
+  public ReplicationTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * @param scope
+   * @return the statistics for the scope.
+   */
+  public ReplicationStats getStats(CacheScope scope) {
+    return stats.get(scope);
+  }
+
+  /**
+   * Queue a put of a value to the other nodes.
+   */
+  void put(CacheScope scope, String cacheName, String key, Serializable value) {
+    if (transport != null) {
+      enqueue(scope, keyFor(cacheName, key), new ReplicationMessage(Operation.PUT,
+          cacheName, key, value));
+    }
+  }
+
+  /**
+   * Queue removal of a key from the other nodes.
+   */
+  void invalidate(CacheScope scope, String cacheName, String key) {
+    if (transport != null) {
+      enqueue(scope, keyFor(cacheName, key), new ReplicationMessage(Operation.INVALIDATE,
+          cacheName, key, null));
+    }
+  }
+
+  /**
+   * Queue removal of a key and its children from the other nodes, superseding anything
+   * queued for those keys.
+   */
+  void removeChildren(CacheScope scope, String cacheName, String key) {
+    if (transport != null) {
+      String prefix = key.endsWith("/") ? key : key + "/";
+      ReplicationStats scopeStats = stats.get(scope);
+      Map<String, ReplicationMessage> queue = pending.get(scope);
+      synchronized (queue) {
+        for (Iterator<ReplicationMessage> i = queue.values().iterator(); i.hasNext();) {
+          ReplicationMessage m = i.next();
+          if (cacheName.equals(m.getCacheName()) && m.getKey() != null
+              && (m.getKey().equals(key) || m.getKey().startsWith(prefix))) {
+            i.remove();
+            scopeStats.coalesced();
+          }
+        }
+      }
+      enqueue(scope, cacheName + '\u0001' + key, new ReplicationMessage(
+          Operation.REMOVE_CHILDREN, cacheName, key, null));
+    }
+  }
+
+  /**
+   * Queue a clear of the cache on the other nodes, superseding anything queued for the
+   * cache.
+   */
+  void clear(CacheScope scope, String cacheName) {
+    if (transport != null) {
+      ReplicationStats scopeStats = stats.get(scope);
+      Map<String, ReplicationMessage> queue = pending.get(scope);
+      synchronized (queue) {
+        for (Iterator<ReplicationMessage> i = queue.values().iterator(); i.hasNext();) {
+          if (cacheName.equals(i.next().getCacheName())) {
+            i.remove();
+            scopeStats.coalesced();
+          }
+        }
+      }
+      enqueue(scope, cacheName + '\u0002', new ReplicationMessage(Operation.CLEAR,
+          cacheName, null, null));
+    }
+  }
+
+  /**
+   * @return the key used to coalesce messages for a single cache key.
+   */
+  private String keyFor(String cacheName, String key) {
+    return cacheName + '\u0000' + key;
+  }
+
+  /**
+   * Add a message to the queue, replacing any message with the same key. The replacement
+   * is moved to the tail so that ordering with respect to subtree and clear messages is
+   * preserved.
+   */
+  private void enqueue(CacheScope scope, String coalesceKey, ReplicationMessage message) {
+    Map<String, ReplicationMessage> queue = pending.get(scope);
+    int size;
+    synchronized (queue) {
+      if (queue.remove(coalesceKey) != null) {
+        stats.get(scope).coalesced();
+      }
+      queue.put(coalesceKey, message);
+      size = queue.size();
+    }
+    if (size >= maxBatch && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(flushTask);
+    }
+  }
+
+  /**
+   * Send everything queued, one frame per scope.
+   */
+  public void flush() {
+    ReplicationTransport t = transport;
+    for (CacheScope scope : REPLICATED_SCOPES) {
+      Map<String, ReplicationMessage> queue = pending.get(scope);
+      List<ReplicationMessage> messages;
+      synchronized (queue) {
+        if (queue.size() == 0) {
+          continue;
+        }
+        messages = new ArrayList<ReplicationMessage>(queue.values());
+        queue.clear();
+      }
+      if (t != null) {
+        send(t, scope, messages);
+      }
+    }
+  }
+
+  /**
+   * Serialize and send a frame. If a value will not serialize the frame is resent with
+   * the puts converted to invalidations.
+   */
+  private void send(ReplicationTransport t, CacheScope scope,
+      List<ReplicationMessage> messages) {
+    byte[] frame;
+    try {
+      frame = new ReplicationFrame(t.getNodeId(), scope, messages).toBytes();
+    } catch (IOException e) {
+      LOGGER.warn("Unable to serialize cache values for replication, invalidating instead "
+          + e.getMessage());
+      List<ReplicationMessage> invalidations = new ArrayList<ReplicationMessage>();
+      for (ReplicationMessage m : messages) {
+        if (m.getOperation() == Operation.PUT) {
+          invalidations.add(new ReplicationMessage(Operation.INVALIDATE, m.getCacheName(), m
+              .getKey(), null));
+        } else {
+          invalidations.add(m);
+        }
+      }
+      messages = invalidations;
+      try {
+        frame = new ReplicationFrame(t.getNodeId(), scope, messages).toBytes();
+      } catch (IOException e2) {
+        LOGGER.error("Failed to serialize cache replication frame ", e2);
+        return;
+      }
+    }
+    t.send(frame);
+    stats.get(scope).sent(messages.size(), frame.length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ReplicationReceiver#receive(byte[])
+   */
+  public void receive(byte[] frame) {
+    ReplicationFrame replicationFrame;
+    try {
+      replicationFrame = ReplicationFrame.fromBytes(frame);
+    } catch (Exception e) {
+      LOGGER.warn("Discarded cache replication frame " + e.getMessage(), e);
+      return;
+    }
+    ReplicationTransport t = transport;
+    if (t != null && t.getNodeId().equals(replicationFrame.getNodeId())) {
+      return;
+    }
+    CacheScope scope = replicationFrame.getScope();
+    ReplicationStats scopeStats = stats.get(scope);
+    List<ReplicationMessage> messages = replicationFrame.getMessages();
+    scopeStats.received(messages.size(), frame.length);
+    for (ReplicationMessage m : messages) {
+      target.apply(scope, m);
+      scopeStats.lag(System.currentTimeMillis() - m.getQueued());
+    }
+  }
+
+  /**
+   * Flush anything queued and stop.
+   */
+  public void close() {
+    flusher.shutdown();
+    setTransport(null);
+  }
+
+  /**
+   * Register a statistics MBean per scope.
+   */
+  private void registerMBeans(String nodeId) {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (CacheScope scope : REPLICATED_SCOPES) {
+      try {
+        ObjectName name = new ObjectName("org.sakaiproject.kernel.memory:type=CacheReplication,node="
+            + ObjectName.quote(nodeId) + ",scope=" + scope);
+        if (mBeanServer.isRegistered(name)) {
+          mBeanServer.unregisterMBean(name);
+        }
+        mBeanServer.registerMBean(stats.get(scope), name);
+        registeredMBeans.add(name);
+      } catch (Exception e) {
+        LOGGER.warn("Failed to register cache replication statistics " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Remove the statistics MBeans.
+   */
+  private void unregisterMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registeredMBeans) {
+      try {
+        mBeanServer.unregisterMBean(name);
+      } catch (Exception e) {
+        LOGGER.debug("Failed to unregister " + name + " " + e.getMessage());
+      }
+    }
+    registeredMBeans.clear();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+/**
+ * <p>
+ * Lists the counters of every cache that has been used, with totals per scope. The same
+ * counters are available over JMX as
+ * <code>org.sakaiproject.kernel.memory:type=CacheStatistics</code>.
+ * </p>
+ *
+ * <pre>
+ * {
+ *   &quot;scopes&quot;: {
+ *     &quot;INSTANCE&quot;: {
+ *       &quot;hits&quot;: 1530,
+ *       ... totals of the caches in the scope,
+ *       &quot;caches&quot;: [
+ *         {
+ *           &quot;name&quot;: &quot;acl&quot;,
+ *           &quot;hits&quot;: 1530,
+ *           &quot;misses&quot;: 12,
+ *           &quot;hitRatio&quot;: 0.992,
+ *           &quot;puts&quot;: 12,
+ *           &quot;removals&quot;: 3,
+ *           &quot;evictions&quot;: 0,
+ *           &quot;loads&quot;: 12,
+ *           &quot;totalLoadTime&quot;: 48.2,
+ *           &quot;averageLoadTime&quot;: 4.01
+ *         }
+ *       ]
+ *     }
+ *   }
+ * }
+ * </pre>
+ *
+ * Load times are in ms.
+ *
+ * @scr.component immediate="true" label="CacheStatisticsServlet"
+ *                description="Lists the statistics of the caches"
+ * @scr.service interface="javax.servlet.Servlet"
+ * @scr.property name="service.description" value="Lists the statistics of the caches."
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="sling.servlet.paths" value="/system/cachestats"
+ * @scr.property name="sling.servlet.methods" value="GET"
+ * @scr.reference name="cacheManagerService"
+ *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
+ */
+public class CacheStatisticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -3279474150243227262L;
+
+  private CacheManagerService cacheManagerService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    List<CacheStatistics> statistics = cacheManagerService.getStatistics();
+    Collections.sort(statistics, new Comparator<CacheStatistics>() {
+      public int compare(CacheStatistics o1, CacheStatistics o2) {
+        int c = o1.getScope().compareTo(o2.getScope());
+        if (c == 0) {
+          c = o1.getName().compareTo(o2.getName());
+        }
+        return c;
+      }
+    });
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("scopes").object();
+      int i = 0;
+      while (i < statistics.size()) {
+        String scope = statistics.get(i).getScope();
+        int end = i;
+        long hits = 0;
+        long misses = 0;
+        long puts = 0;
+        long removals = 0;
+        long evictions = 0;
+        long loads = 0;
+        double loadTime = 0.0;
+        while (end < statistics.size() && scope.equals(statistics.get(end).getScope())) {
+          CacheStatistics stats = statistics.get(end);
+          hits += stats.getHits();
+          misses += stats.getMisses();
+          puts += stats.getPuts();
+          removals += stats.getRemovals();
+          evictions += stats.getEvictions();
+          loads += stats.getLoads();
+          loadTime += stats.getTotalLoadTime();
+          end++;
+        }
+        write.key(scope).object();
+        write.key("hits").value(hits);
+        write.key("misses").value(misses);
+        write.key("hitRatio").value((hits + misses == 0) ? 0.0 : ((double) hits)
+            / (hits + misses));
+        write.key("puts").value(puts);
+        write.key("removals").value(removals);
+        write.key("evictions").value(evictions);
+        write.key("loads").value(loads);
+        write.key("totalLoadTime").value(loadTime);
+        write.key("caches").array();
+        for (; i < end; i++) {
+          writeStatistics(write, statistics.get(i));
+        }
+        write.endArray();
+        write.endObject();
+      }
+      write.endObject();
+      write.endObject();
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param write
+   * @param stats
+   * @throws JSONException
+   */
+  private void writeStatistics(JSONWriter write, CacheStatistics stats) throws JSONException {
+    write.object();
+    write.key("name").value(stats.getName());
+    write.key("hits").value(stats.getHits());
+    write.key("misses").value(stats.getMisses());
+    write.key("hitRatio").value(stats.getHitRatio());
+    write.key("puts").value(stats.getPuts());
+    write.key("removals").value(stats.getRemovals());
+    write.key("evictions").value(stats.getEvictions());
+    write.key("loads").value(stats.getLoads());
+    write.key("totalLoadTime").value(stats.getTotalLoadTime());
+    write.key("averageLoadTime").value(stats.getAverageLoadTime());
+    write.endObject();
+  }
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+}
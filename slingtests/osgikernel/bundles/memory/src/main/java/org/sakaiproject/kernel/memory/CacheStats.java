@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+
+/**
+ * The counters for one cache name in one scope, updated by {@link InstrumentedCache} and,
+ * for caches backed by ehcache, by the eviction events of the region.
+ */
+public class CacheStats implements CacheStatsMBean {
+
+  private String name;
+  private CacheScope scope;
+  private StripedCounter hits = new StripedCounter();
+  private StripedCounter misses = new StripedCounter();
+  private StripedCounter puts = new StripedCounter();
+  private StripedCounter removals = new StripedCounter();
+  private StripedCounter evictions = new StripedCounter();
+  private StripedCounter loads = new StripedCounter();
+  private StripedCounter loadNanos = new StripedCounter();
+
+  /**
+   * @param name
+   * @param scope
+   */
+  public CacheStats(String name, CacheScope scope) {
+    this.name = name;
+    this.scope = scope;
+  }
+
+  void hit() {
+    hits.increment();
+  }
+
+  void miss() {
+    misses.increment();
+  }
+
+  void put() {
+    puts.increment();
+  }
+
+  void removal() {
+    removals.increment();
+  }
+
+  void eviction() {
+    evictions.increment();
+  }
+
+  /**
+   * @param nanos
+   *          the time taken by the loader.
+   */
+  void load(long nanos) {
+    loads.increment();
+    loadNanos.add(nanos);
+  }
+
+  /**
+   * @return a listener that counts evictions and expiries of an ehcache region.
+   */
+  CacheEventListener getEvictionListener() {
+    return new CacheEventListener() {
+
+      public void notifyElementEvicted(Ehcache cache, Element element) {
+        eviction();
+      }
+
+      public void notifyElementExpired(Ehcache cache, Element element) {
+        eviction();
+      }
+
+      public void notifyElementPut(Ehcache cache, Element element) {
+      }
+
+      public void notifyElementRemoved(Ehcache cache, Element element) {
+      }
+
+      public void notifyElementUpdated(Ehcache cache, Element element) {
+      }
+
+      public void notifyRemoveAll(Ehcache cache) {
+      }
+
+      public void dispose() {
+      }
+
+      @Override
+      public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException("Bound to one set of statistics");
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getName()
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getScope()
+   */
+  public String getScope() {
+    return scope.toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getHits()
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getMisses()
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getHitRatio()
+   */
+  public double getHitRatio() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    if (total == 0) {
+      return 0.0;
+    }
+    return ((double) h) / total;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getPuts()
+   */
+  public long getPuts() {
+    return puts.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getRemovals()
+   */
+  public long getRemovals() {
+    return removals.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getEvictions()
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getLoads()
+   */
+  public long getLoads() {
+    return loads.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getTotalLoadTime()
+   */
+  public double getTotalLoadTime() {
+    return loadNanos.sum() / 1000000.0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getAverageLoadTime()
+   */
+  public double getAverageLoadTime() {
+    long n = loads.sum();
+    if (n == 0) {
+      return 0.0;
+    }
+    return loadNanos.sum() / 1000000.0 / n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheStatsMBean#reset()
+   */
+  public void reset() {
+    hits.reset();
+    misses.reset();
+    puts.reset();
+    removals.reset();
+    evictions.reset();
+    loads.reset();
+    loadNanos.reset();
+  }
+
+}
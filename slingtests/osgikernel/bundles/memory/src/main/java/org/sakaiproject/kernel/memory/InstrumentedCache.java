@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+
+import java.util.List;
+
+/**
+ * Counts the operations on a cache into a {@link CacheStats}, the store does the work.
+ */
+public class InstrumentedCache<V> implements Cache<V> {
+
+  private Cache<V> cache;
+  private CacheStats stats;
+
+  /**
+   * @param cache
+   *          the store.
+   * @param stats
+   *          the counters, shared by every cache of the same name and scope.
+   */
+  public InstrumentedCache(Cache<V> cache, CacheStats stats) {
+    this.cache = cache;
+    this.stats = stats;
+  }
+
+  /**
+   * @return the counters for this cache.
+   */
+  public CacheStats getStats() {
+    return stats;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    V value = cache.get(key);
+    if (value == null) {
+      stats.miss();
+    } else {
+      stats.hit();
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getOrLoad(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, final CacheLoader<V> loader) {
+    final boolean[] loaded = new boolean[1];
+    V value = cache.getOrLoad(key, new CacheLoader<V>() {
+      public V load(String key) {
+        loaded[0] = true;
+        long start = System.nanoTime();
+        try {
+          return loader.load(key);
+        } finally {
+          stats.load(System.nanoTime() - start);
+        }
+      }
+    });
+    // callers that waited on another thread's load are hits, the load is counted once.
+    if (loaded[0]) {
+      stats.miss();
+    } else {
+      stats.hit();
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    stats.put();
+    return cache.put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V existing = cache.putIfAbsent(key, payload);
+    if (existing == null) {
+      stats.put();
+    }
+    return existing;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#compute(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheFunction)
+   */
+  public V compute(String key, CacheFunction<V> function) {
+    V value = cache.compute(key, function);
+    if (value == null) {
+      stats.removal();
+    } else {
+      stats.put();
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    stats.removal();
+    cache.remove(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    stats.removal();
+    cache.removeChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    return cache.listChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return cache.list();
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.ReplicationReceiver;
+import org.sakaiproject.kernel.api.memory.ReplicationTransport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in JVM cluster, each transport created by the hub behaves as a node and frames sent
+ * by one node are delivered to all the others. Used to exercise cache replication with
+ * several CacheManagerServices in one JVM.
+ */
+public class LoopbackReplicationHub {
+
+  private List<LoopbackTransport> nodes = new CopyOnWriteArrayList<LoopbackTransport>();
+
+  /**
+   * @param nodeId
+   *          the id of the new node.
+   * @return a transport for a new node attached to the hub.
+   */
+  public ReplicationTransport createTransport(String nodeId) {
+    LoopbackTransport transport = new LoopbackTransport(nodeId);
+    nodes.add(transport);
+    return transport;
+  }
+
+  /**
+   * Detach a node from the hub.
+   *
+   * @param transport
+   */
+  public void remove(ReplicationTransport transport) {
+    nodes.remove(transport);
+  }
+
+  /**
+   * Deliver a copy of the frame to every node except the sender.
+   */
+  private void deliver(LoopbackTransport sender, byte[] frame) {
+    for (LoopbackTransport node : nodes) {
+      if (node != sender) {
+        ReplicationReceiver receiver = node.receiver;
+        if (receiver != null) {
+          byte[] copy = new byte[frame.length];
+          System.arraycopy(frame, 0, copy, 0, frame.length);
+          receiver.receive(copy);
+        }
+      }
+    }
+  }
+
+  /**
+   * A node on the hub, delivery happens on the sending thread.
+   */
+  private class LoopbackTransport implements ReplicationTransport {
+
+    private String nodeId;
+    private volatile ReplicationReceiver receiver;
+
+    public LoopbackTransport(String nodeId) {
+      this.nodeId = nodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.sakaiproject.kernel.api.memory.ReplicationTransport#getNodeId()
+     */
+    public String getNodeId() {
+      return nodeId;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.sakaiproject.kernel.api.memory.ReplicationTransport#send(byte[])
+     */
+    public void send(byte[] frame) {
+      deliver(this, frame);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.sakaiproject.kernel.api.memory.ReplicationTransport#setReceiver(org.sakaiproject.kernel.api.memory.ReplicationReceiver)
+     */
+    public void setReceiver(ReplicationReceiver receiver) {
+      this.receiver = receiver;
+    }
+  }
+}
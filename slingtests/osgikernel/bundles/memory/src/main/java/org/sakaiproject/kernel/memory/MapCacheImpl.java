@@ -18,12 +18,15 @@
 package org.sakaiproject.kernel.memory;
 
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map.Entry;
 
 /**
  *
@@ -52,6 +55,48 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return super.get(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V previous = super.get(key);
+    if (previous == null) {
+      super.put(key, payload);
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#compute(java.lang.String, org.sakaiproject.kernel.api.memory.CacheFunction)
+   */
+  public V compute(String key, CacheFunction<V> function) {
+    V value = function.apply(key, super.get(key));
+    if (value == null) {
+      super.remove(key);
+    } else {
+      super.put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * The cache is bound to a single thread, so there are no concurrent loads to merge.
+   * @see org.sakaiproject.kernel.api.memory.Cache#getOrLoad(java.lang.String, org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, CacheLoader<V> loader) {
+    V value = super.get(key);
+    if (value == null) {
+      value = loader.load(key);
+      if (value != null) {
+        super.put(key, value);
+      }
+    }
+    return value;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
@@ -88,12 +133,26 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for (Iterator<String> i = super.keySet().iterator(); i.hasNext();) {
+      if (i.next().startsWith(key)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    List<V> values = new ArrayList<V>();
+    for (Entry<String, V> e : super.entrySet()) {
+      if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+        values.add(e.getValue());
       }
     }
+    return values;
   }
 
   /**
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie of the keys in a cache, split into segments on '/'. Finding or removing the keys
+ * under a path costs the depth of the path plus the size of the subtree, rather than the
+ * size of the cache. A key k is in the subtree of path p if k equals p or k starts with p
+ * followed by '/', the same rule as {@link org.sakaiproject.kernel.api.memory.Cache#removeChildren(String)}.
+ */
+public class PathIndex {
+
+  /**
+   * A segment in the trie, key is non null if the path to the node is itself a key.
+   */
+  private static class Node {
+    private Node parent;
+    private String segment;
+    private String key;
+    private Map<String, Node> children;
+
+    private Node(Node parent, String segment) {
+      this.parent = parent;
+      this.segment = segment;
+    }
+
+    private Node child(String segment, boolean create) {
+      Node child = null;
+      if (children != null) {
+        child = children.get(segment);
+      }
+      if (child == null && create) {
+        if (children == null) {
+          children = new HashMap<String, Node>(4);
+        }
+        child = new Node(this, segment);
+        children.put(segment, child);
+      }
+      return child;
+    }
+
+    private boolean isEmpty() {
+      return key == null && (children == null || children.size() == 0);
+    }
+  }
+
+  private Node root = new Node(null, null);
+  private int size;
+
+  /**
+   * Add a key.
+   *
+   * @param key
+   */
+  public synchronized void add(String key) {
+    Node n = find(key, true);
+    if (n.key == null) {
+      n.key = key;
+      size++;
+    }
+  }
+
+  /**
+   * Remove a key, leaving any children.
+   *
+   * @param key
+   */
+  public synchronized void remove(String key) {
+    Node n = find(key, false);
+    if (n != null && n.key != null) {
+      n.key = null;
+      size--;
+      prune(n);
+    }
+  }
+
+  /**
+   * Remove a path and everything under it.
+   *
+   * @param path
+   * @return the keys that were removed.
+   */
+  public synchronized List<String> removeSubtree(String path) {
+    List<String> keys = new ArrayList<String>();
+    if (path.endsWith("/")) {
+      // only the children of the path, the path without the trailing / is not a child.
+      Node n = find(path.substring(0, path.length() - 1), false);
+      if (n != null && n.children != null) {
+        for (Node child : n.children.values()) {
+          collect(child, keys);
+        }
+        n.children = null;
+        prune(n);
+      }
+    } else {
+      Node n = find(path, false);
+      if (n != null) {
+        collect(n, keys);
+        n.key = null;
+        n.children = null;
+        prune(n);
+      }
+    }
+    size -= keys.size();
+    return keys;
+  }
+
+  /**
+   * @param path
+   * @return the keys in the subtree of the path.
+   */
+  public synchronized List<String> subtree(String path) {
+    List<String> keys = new ArrayList<String>();
+    if (path.endsWith("/")) {
+      Node n = find(path.substring(0, path.length() - 1), false);
+      if (n != null && n.children != null) {
+        for (Node child : n.children.values()) {
+          collect(child, keys);
+        }
+      }
+    } else {
+      Node n = find(path, false);
+      if (n != null) {
+        collect(n, keys);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Remove all keys.
+   */
+  public synchronized void clear() {
+    root = new Node(null, null);
+    size = 0;
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Walk the trie to the node for a key.
+   *
+   * @param key
+   * @param create
+   *          create missing nodes on the way.
+   * @return the node or null if not there and create is false.
+   */
+  private Node find(String key, boolean create) {
+    Node n = root;
+    int start = 0;
+    int end;
+    do {
+      end = key.indexOf('/', start);
+      String segment = (end < 0) ? key.substring(start) : key.substring(start, end);
+      n = n.child(segment, create);
+      if (n == null) {
+        return null;
+      }
+      start = end + 1;
+    } while (end >= 0);
+    return n;
+  }
+
+  /**
+   * Collect every key at or under a node.
+   */
+  private void collect(Node n, List<String> keys) {
+    if (n.key != null) {
+      keys.add(n.key);
+    }
+    if (n.children != null) {
+      for (Node child : n.children.values()) {
+        collect(child, keys);
+      }
+    }
+  }
+
+  /**
+   * Detach empty nodes from the node up towards the root.
+   */
+  private void prune(Node n) {
+    while (n.parent != null && n.isEmpty()) {
+      n.parent.children.remove(n.segment);
+      n = n.parent;
+    }
+  }
+}
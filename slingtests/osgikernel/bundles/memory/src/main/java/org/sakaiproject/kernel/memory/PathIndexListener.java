@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Keeps a {@link PathIndex} in step with an ehcache region, including entries that
+ * ehcache expires or evicts itself.
+ */
+public class PathIndexListener implements CacheEventListener {
+
+  private PathIndex pathIndex;
+
+  /**
+   * @param pathIndex
+   *          the index to maintain.
+   */
+  public PathIndexListener(PathIndex pathIndex) {
+    this.pathIndex = pathIndex;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element) {
+    pathIndex.add((String) element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element) {
+    pathIndex.add((String) element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element) {
+    pathIndex.remove((String) element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    pathIndex.remove((String) element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    pathIndex.remove((String) element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+    pathIndex.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    pathIndex.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("A path index listener is bound to one index");
+  }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A cache with a local store that sends its changes to the rest of the cluster through a
+ * {@link CacheReplicator}. In {@link CacheScope#CLUSTERREPLICATED} puts carry the value
+ * to the other nodes, in {@link CacheScope#CLUSTERINVALIDATED} (or where the value is not
+ * Serializable) puts only invalidate the key on the other nodes. Writes go through
+ * {@link Cache#compute(String, CacheFunction)} on the local store and queue their change
+ * inside the function, so the order changes to a key are queued in is the order they
+ * were made in locally.
+ */
+public class ReplicatedCacheImpl<V> implements Cache<V> {
+
+  private Cache<V> local;
+  private String cacheName;
+  private CacheScope scope;
+  private CacheReplicator replicator;
+  private SingleFlightLoader<V> loader = new SingleFlightLoader<V>();
+
+  /**
+   * @param local
+   *          the local store.
+   * @param cacheName
+   *          the name of the cache, the same on all nodes.
+   * @param scope
+   *          either CLUSTERINVALIDATED or CLUSTERREPLICATED
+   * @param replicator
+   */
+  public ReplicatedCacheImpl(Cache<V> local, String cacheName, CacheScope scope,
+      CacheReplicator replicator) {
+    this.local = local;
+    this.cacheName = cacheName;
+    this.scope = scope;
+    this.replicator = replicator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  @SuppressWarnings("unchecked")
+  public V put(String key, final V payload) {
+    final Object[] previous = new Object[1];
+    local.compute(key, new CacheFunction<V>() {
+      public V apply(String key, V current) {
+        previous[0] = current;
+        replicate(key, payload);
+        return payload;
+      }
+    });
+    return (V) previous[0];
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#putIfAbsent(java.lang.String,
+   *      java.lang.Object)
+   */
+  @SuppressWarnings("unchecked")
+  public V putIfAbsent(String key, final V payload) {
+    final Object[] previous = new Object[1];
+    local.compute(key, new CacheFunction<V>() {
+      public V apply(String key, V current) {
+        if (current != null) {
+          previous[0] = current;
+          return current;
+        }
+        replicate(key, payload);
+        return payload;
+      }
+    });
+    return (V) previous[0];
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#compute(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheFunction)
+   */
+  public V compute(String key, final CacheFunction<V> function) {
+    return local.compute(key, new CacheFunction<V>() {
+      public V apply(String key, V current) {
+        V value = function.apply(key, current);
+        replicate(key, value);
+        return value;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#getOrLoad(java.lang.String,
+   *      org.sakaiproject.kernel.api.memory.CacheLoader)
+   */
+  public V getOrLoad(String key, CacheLoader<V> cacheLoader) {
+    // loaded values are put through this cache so they reach the other nodes.
+    return loader.getOrLoad(this, key, cacheLoader);
+  }
+
+  /**
+   * Queue the new value of a key for the other nodes.
+   *
+   * @param key
+   * @param value
+   *          the new value, null if the key was removed.
+   */
+  private void replicate(String key, V value) {
+    if (scope == CacheScope.CLUSTERREPLICATED && value instanceof Serializable) {
+      replicator.put(scope, cacheName, key, (Serializable) value);
+    } else {
+      replicator.invalidate(scope, cacheName, key);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    replicator.clear(scope, cacheName);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.compute(key, new CacheFunction<V>() {
+      public V apply(String key, V current) {
+        replicator.invalidate(scope, cacheName, key);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    replicator.removeChildren(scope, cacheName, key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    return local.listChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * Apply a change received from another node to the local store only.
+   *
+   * @param message
+   */
+  @SuppressWarnings("unchecked")
+  void applyRemote(ReplicationMessage message) {
+    switch (message.getOperation()) {
+    case PUT:
+      local.put(message.getKey(), (V) message.getValue());
+      break;
+    case INVALIDATE:
+      local.remove(message.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      local.removeChildren(message.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    }
+  }
+
+}
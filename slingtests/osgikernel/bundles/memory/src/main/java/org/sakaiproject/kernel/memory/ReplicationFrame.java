@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A batch of {@link ReplicationMessage}s for one scope, as sent over a
+ * {@link org.sakaiproject.kernel.api.memory.ReplicationTransport}. Only the classes
+ * accepted by {@link #isAllowed(String)} may be written into or read from a frame, so a
+ * frame from the network cannot make the receiver load arbitrary classes.
+ */
+public class ReplicationFrame implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2204658013939211412L;
+
+  /**
+   * The classes outside {@link #ALLOWED_PACKAGES} that may be replicated.
+   */
+  private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(
+      "java.lang.String", "java.lang.Boolean", "java.lang.Byte", "java.lang.Character",
+      "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float",
+      "java.lang.Double", "java.lang.Number", "java.lang.Enum"));
+  /**
+   * The packages whose classes may be replicated.
+   */
+  private static final String[] ALLOWED_PACKAGES = new String[] { "java.util.",
+      "java.math.", "org.sakaiproject." };
+
+  private String nodeId;
+  private CacheScope scope;
+  private List<ReplicationMessage> messages;
+
+  /**
+   * @param nodeId
+   *          the sending node.
+   * @param scope
+   *          the scope of all the messages in the frame.
+   * @param messages
+   */
+  public ReplicationFrame(String nodeId, CacheScope scope, List<ReplicationMessage> messages) {
+    this.nodeId = nodeId;
+    this.scope = scope;
+    this.messages = messages;
+  }
+
+  /**
+   * @return the node that sent the frame.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * @return the scope
+   */
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  /**
+   * @return the messages
+   */
+  public List<ReplicationMessage> getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return the frame serialized for the wire.
+   * @throws IOException
+   */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new AllowedObjectOutputStream(baos);
+    out.writeObject(this);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param frame
+   *          a frame produced by {@link #toBytes()}
+   * @return the frame.
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  public static ReplicationFrame fromBytes(byte[] frame) throws IOException,
+      ClassNotFoundException {
+    ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(frame));
+    try {
+      return (ReplicationFrame) in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param className
+   *          the name of a class, as given by {@link Class#getName()}.
+   * @return true if instances of the class may be replicated.
+   */
+  public static boolean isAllowed(String className) {
+    String name = className;
+    while (name.startsWith("[")) {
+      name = name.substring(1);
+    }
+    if (name.length() == 1) {
+      // an array of primitives
+      return true;
+    }
+    if (name.startsWith("L") && name.endsWith(";")) {
+      name = name.substring(1, name.length() - 1);
+    }
+    if (ALLOWED_CLASSES.contains(name)) {
+      return true;
+    }
+    for (String allowedPackage : ALLOWED_PACKAGES) {
+      if (name.startsWith(allowedPackage)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Refuses to write classes that the receiver would not read, so that the sender falls
+   * back to invalidation rather than the whole frame being discarded by the receiver.
+   */
+  private static class AllowedObjectOutputStream extends ObjectOutputStream {
+
+    public AllowedObjectOutputStream(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectOutputStream#annotateClass(java.lang.Class)
+     */
+    @Override
+    protected void annotateClass(Class<?> cl) throws IOException {
+      if (!isAllowed(cl.getName())) {
+        throw new NotSerializableException(cl.getName() + " may not be replicated");
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectOutputStream#annotateProxyClass(java.lang.Class)
+     */
+    @Override
+    protected void annotateProxyClass(Class<?> cl) throws IOException {
+      throw new NotSerializableException("Proxies may not be replicated");
+    }
+  }
+
+  /**
+   * Cached values belong to other bundles, so classes are resolved with the context
+   * classloader of the receiving thread before falling back to this bundle. Only allowed
+   * classes are resolved.
+   */
+  private static class ContextObjectInputStream extends ObjectInputStream {
+
+    public ContextObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      if (!isAllowed(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "may not be replicated");
+      }
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      if (cl != null) {
+        try {
+          return Class.forName(desc.getName(), false, cl);
+        } catch (ClassNotFoundException e) {
+          // fall through to the default resolution
+        }
+      }
+      return super.resolveClass(desc);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveProxyClass(java.lang.String[])
+     */
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException,
+        ClassNotFoundException {
+      throw new InvalidClassException("Proxies may not be replicated");
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.io.Serializable;
+
+/**
+ * A single change to a cluster cache, queued by the {@link CacheReplicator}.
+ */
+public class ReplicationMessage implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4513957012357718735L;
+
+  /**
+   * The operations that can be replicated.
+   */
+  public enum Operation {
+    /**
+     * Put the value into the remote cache.
+     */
+    PUT(),
+    /**
+     * Remove the key from the remote cache.
+     */
+    INVALIDATE(),
+    /**
+     * Remove the key and all child keys from the remote cache.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Clear the remote cache.
+     */
+    CLEAR();
+  }
+
+  private Operation operation;
+  private String cacheName;
+  private String key;
+  private Serializable value;
+  private long queued;
+
+  /**
+   * @param operation
+   * @param cacheName
+   * @param key
+   *          the key, null for {@link Operation#CLEAR}
+   * @param value
+   *          the value, null for all but {@link Operation#PUT}
+   */
+  public ReplicationMessage(Operation operation, String cacheName, String key,
+      Serializable value) {
+    this.operation = operation;
+    this.cacheName = cacheName;
+    this.key = key;
+    this.value = value;
+    this.queued = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the operation
+   */
+  public Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * @return the cacheName
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value
+   */
+  public Serializable getValue() {
+    return value;
+  }
+
+  /**
+   * @return the time the message was queued on the sending node.
+   */
+  public long getQueued() {
+    return queued;
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the replication traffic of one cache scope.
+ */
+public class ReplicationStats implements ReplicationStatsMBean {
+
+  private CacheScope scope;
+  private volatile long since;
+  private AtomicLong framesSent = new AtomicLong();
+  private AtomicLong messagesSent = new AtomicLong();
+  private AtomicLong messagesCoalesced = new AtomicLong();
+  private AtomicLong bytesSent = new AtomicLong();
+  private AtomicLong framesReceived = new AtomicLong();
+  private AtomicLong messagesReceived = new AtomicLong();
+  private AtomicLong bytesReceived = new AtomicLong();
+  private AtomicLong totalLag = new AtomicLong();
+  private AtomicLong maxLag = new AtomicLong();
+  private volatile long lastLag;
+
+  /**
+   * @param scope
+   */
+  public ReplicationStats(CacheScope scope) {
+    this.scope = scope;
+    this.since = System.currentTimeMillis();
+  }
+
+  /**
+   * Record a frame sent.
+   *
+   * @param messages
+   *          number of messages in the frame.
+   * @param bytes
+   *          size of the frame.
+   */
+  void sent(int messages, int bytes) {
+    framesSent.incrementAndGet();
+    messagesSent.addAndGet(messages);
+    bytesSent.addAndGet(bytes);
+  }
+
+  /**
+   * Record a message that replaced one already queued.
+   */
+  void coalesced() {
+    messagesCoalesced.incrementAndGet();
+  }
+
+  /**
+   * Record a frame received.
+   *
+   * @param messages
+   *          number of messages in the frame.
+   * @param bytes
+   *          size of the frame.
+   */
+  void received(int messages, int bytes) {
+    framesReceived.incrementAndGet();
+    messagesReceived.addAndGet(messages);
+    bytesReceived.addAndGet(bytes);
+  }
+
+  /**
+   * Record the lag of one message.
+   *
+   * @param lag
+   *          ms between the message being queued and applied.
+   */
+  void lag(long lag) {
+    if (lag < 0) {
+      // clocks on the cluster are not perfectly aligned.
+      lag = 0;
+    }
+    lastLag = lag;
+    totalLag.addAndGet(lag);
+    long max = maxLag.get();
+    while (lag > max && !maxLag.compareAndSet(max, lag)) {
+      max = maxLag.get();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getScope()
+   */
+  public String getScope() {
+    return scope.toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getFramesSent()
+   */
+  public long getFramesSent() {
+    return framesSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getMessagesSent()
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getMessagesCoalesced()
+   */
+  public long getMessagesCoalesced() {
+    return messagesCoalesced.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getBytesSent()
+   */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getFramesReceived()
+   */
+  public long getFramesReceived() {
+    return framesReceived.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getMessagesReceived()
+   */
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getBytesReceived()
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getMessageRate()
+   */
+  public double getMessageRate() {
+    long elapsed = System.currentTimeMillis() - since;
+    if (elapsed <= 0) {
+      return 0.0;
+    }
+    return (messagesSent.get() + messagesReceived.get()) * 1000.0 / elapsed;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getLastLag()
+   */
+  public long getLastLag() {
+    return lastLag;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getAverageLag()
+   */
+  public double getAverageLag() {
+    long n = messagesReceived.get();
+    if (n == 0) {
+      return 0.0;
+    }
+    return ((double) totalLag.get()) / n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#getMaxLag()
+   */
+  public long getMaxLag() {
+    return maxLag.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.ReplicationStatsMBean#reset()
+   */
+  public void reset() {
+    framesSent.set(0);
+    messagesSent.set(0);
+    messagesCoalesced.set(0);
+    bytesSent.set(0);
+    framesReceived.set(0);
+    messagesReceived.set(0);
+    bytesReceived.set(0);
+    totalLag.set(0);
+    maxLag.set(0);
+    lastLag = 0;
+    since = System.currentTimeMillis();
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+/**
+ * JMX view of the replication traffic for one cache scope.
+ */
+public interface ReplicationStatsMBean {
+
+  /**
+   * @return the scope the statistics are for.
+   */
+  String getScope();
+
+  /**
+   * @return the number of frames sent.
+   */
+  long getFramesSent();
+
+  /**
+   * @return the number of messages sent.
+   */
+  long getMessagesSent();
+
+  /**
+   * @return the number of messages that were merged into a later message for the same key
+   *         before being sent.
+   */
+  long getMessagesCoalesced();
+
+  /**
+   * @return the number of bytes sent.
+   */
+  long getBytesSent();
+
+  /**
+   * @return the number of frames received from other nodes.
+   */
+  long getFramesReceived();
+
+  /**
+   * @return the number of messages received from other nodes.
+   */
+  long getMessagesReceived();
+
+  /**
+   * @return the number of bytes received from other nodes.
+   */
+  long getBytesReceived();
+
+  /**
+   * @return messages sent and received per second since the statistics were reset.
+   */
+  double getMessageRate();
+
+  /**
+   * @return the lag, in ms, between a message being queued on the sending node and being
+   *         applied here, for the last message received.
+   */
+  long getLastLag();
+
+  /**
+   * @return the mean lag, in ms, of all messages received.
+   */
+  double getAverageLag();
+
+  /**
+   * @return the largest lag, in ms, seen.
+   */
+  long getMaxLag();
+
+  /**
+   * Reset all counters.
+   */
+  void reset();
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Implements {@link Cache#getOrLoad(String, CacheLoader)} for a cache. The first thread
+ * to miss on a key runs the loader, other threads that miss on the same key while the
+ * load is in flight wait for its result.
+ */
+public class SingleFlightLoader<V> {
+
+  private ConcurrentMap<String, FutureTask<V>> inflight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+  /**
+   * @param cache
+   *          the cache to read and populate.
+   * @param key
+   * @param loader
+   * @return the cached or loaded value.
+   */
+  public V getOrLoad(final Cache<V> cache, final String key, final CacheLoader<V> loader) {
+    V value = cache.get(key);
+    if (value != null) {
+      return value;
+    }
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      public V call() {
+        // another load may have completed between the miss and this task being started.
+        V loaded = cache.get(key);
+        if (loaded == null) {
+          loaded = loader.load(key);
+          if (loaded != null) {
+            cache.put(key, loaded);
+          }
+        }
+        return loaded;
+      }
+    });
+    FutureTask<V> running = inflight.putIfAbsent(key, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        inflight.remove(key, task);
+      }
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted waiting for " + key + " to load", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException("Failed to load " + key, cause);
+    }
+  }
+
+}
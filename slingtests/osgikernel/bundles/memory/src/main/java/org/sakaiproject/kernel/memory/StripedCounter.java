@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot paths, spread over several cells so that threads updating it at the
+ * same time rarely contend for the same cache line. Reading the total sums the cells.
+ */
+public class StripedCounter {
+
+  /**
+   * The number of cells, a power of 2.
+   */
+  private static final int CELLS = 16;
+  /**
+   * Cells are spaced 8 longs (64 bytes) apart so each has its own cache line.
+   */
+  private static final int SPACING = 8;
+
+  private AtomicLongArray cells = new AtomicLongArray(CELLS * SPACING);
+
+  /**
+   * Add one.
+   */
+  public void increment() {
+    cells.incrementAndGet(cell());
+  }
+
+  /**
+   * @param n
+   *          the amount to add.
+   */
+  public void add(long n) {
+    cells.addAndGet(cell(), n);
+  }
+
+  /**
+   * @return the total of all cells, not an atomic snapshot.
+   */
+  public long sum() {
+    long total = 0;
+    for (int i = 0; i < CELLS; i++) {
+      total += cells.get(i * SPACING);
+    }
+    return total;
+  }
+
+  /**
+   * Set the counter to zero.
+   */
+  public void reset() {
+    for (int i = 0; i < CELLS; i++) {
+      cells.set(i * SPACING, 0);
+    }
+  }
+
+  /**
+   * @return the index of the cell for the current thread.
+   */
+  private int cell() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32));
+    h ^= (h >>> 4);
+    return (h & (CELLS - 1)) * SPACING;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+import org.sakaiproject.kernel.api.memory.CacheManagerService;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of cache lookups, puts and loads through the CacheManagerService
+ * at 1 to 64 threads. Not run as part of the build, run with java -cp
+ * target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.osgi.memory.CacheConcurrencyBenchmark
+ */
+public class CacheConcurrencyBenchmark {
+
+  private static final long RUN_MS = 2000L;
+  private static final int KEYS = 1000;
+
+  public static void main(String[] args) throws Exception {
+    CacheManagerService cacheManagerService = new CacheManagerServiceImpl();
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      run(cacheManagerService, threads);
+    }
+    System.exit(0);
+  }
+
+  private static void run(final CacheManagerService cacheManagerService, int threads)
+      throws InterruptedException {
+    final AtomicLong ops = new AtomicLong();
+    final AtomicLong loads = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final long end = System.currentTimeMillis() + RUN_MS;
+    final CacheLoader<String> loader = new CacheLoader<String>() {
+      public String load(String key) {
+        loads.incrementAndGet();
+        return key;
+      }
+    };
+    cacheManagerService.getCache("benchmark", CacheScope.INSTANCE).clear();
+    for (int t = 0; t < threads; t++) {
+      final int seed = t;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            long n = 0;
+            int i = seed;
+            while (System.currentTimeMillis() < end) {
+              for (int j = 0; j < 100; j++) {
+                // the registry lookup is part of each operation, as it is in the services.
+                Cache<String> cache = cacheManagerService.getCache("benchmark",
+                    CacheScope.INSTANCE);
+                String key = String.valueOf(i++ % KEYS);
+                if ((j & 7) == 0) {
+                  cache.put(key, key);
+                } else if ((j & 7) == 1) {
+                  cache.remove(key);
+                } else {
+                  cache.getOrLoad(key, loader);
+                }
+                n++;
+              }
+            }
+            ops.addAndGet(n);
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    System.out.println(threads + " threads: " + (ops.get() * 1000 / RUN_MS) + " ops/s, "
+        + loads.get() + " loads");
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import org.sakaiproject.kernel.memory.PathIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares subtree invalidation with the {@link PathIndex} against the linear startsWith
+ * scan used by the plain caches, at 10k, 100k and 1M keys. Not run as part of the build,
+ * run with java -cp target/test-classes:target/classes
+ * org.sakaiproject.kernel.osgi.memory.PathCacheBenchmark
+ */
+public class PathCacheBenchmark {
+
+  private static final int SUBTREE = 20;
+  private static final int ROUNDS = 200;
+
+  public static void main(String[] args) {
+    for (int size : new int[] { 10000, 100000, 1000000 }) {
+      run(size);
+    }
+  }
+
+  private static void run(int size) {
+    List<String> keys = new ArrayList<String>(size);
+    PathIndex index = new PathIndex();
+    int parents = size / SUBTREE;
+    for (int i = 0; i < parents; i++) {
+      for (int j = 0; j < SUBTREE; j++) {
+        String key = "/content/site" + (i % 100) + "/node" + i + "/child" + j;
+        keys.add(key);
+        index.add(key);
+      }
+    }
+
+    long start = System.nanoTime();
+    int removed = 0;
+    for (int r = 0; r < ROUNDS; r++) {
+      int i = (r * 7919) % parents;
+      String prefix = "/content/site" + (i % 100) + "/node" + i + "/";
+      for (String k : keys) {
+        if (k.startsWith(prefix)) {
+          removed++;
+        }
+      }
+    }
+    long scan = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      int i = (r * 7919) % parents;
+      List<String> subtree = index.removeSubtree("/content/site" + (i % 100) + "/node" + i);
+      removed += subtree.size();
+      for (String k : subtree) {
+        index.add(k);
+      }
+    }
+    long trie = System.nanoTime() - start;
+
+    System.out.println(size + " keys: scan " + (scan / ROUNDS / 1000) + "us, index "
+        + (trie / ROUNDS / 1000) + "us per subtree invalidation (" + removed + ")");
+  }
+}
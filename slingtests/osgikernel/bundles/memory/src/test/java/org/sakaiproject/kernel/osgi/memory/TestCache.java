@@ -27,11 +27,15 @@ import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
 import org.sakaiproject.kernel.api.memory.CacheScope;
 import org.sakaiproject.kernel.api.memory.ThreadBound;
 import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestCache {
 
@@ -107,4 +111,106 @@ public class TestCache {
     verify(testItem);
   }
 
+  @Test
+  public void testAtomicOperations() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<Integer> cache = cacheManagerService.getCache("AtomicCache", scope);
+      cache.clear();
+      assertNull(cache.putIfAbsent("count", 1));
+      assertEquals(Integer.valueOf(1), cache.putIfAbsent("count", 2));
+      CacheFunction<Integer> increment = new CacheFunction<Integer>() {
+        public Integer apply(String key, Integer current) {
+          return (current == null) ? 1 : current + 1;
+        }
+      };
+      assertEquals(Integer.valueOf(2), cache.compute("count", increment));
+      assertEquals(Integer.valueOf(1), cache.compute("other", increment));
+      cache.compute("other", new CacheFunction<Integer>() {
+        public Integer apply(String key, Integer current) {
+          return null;
+        }
+      });
+      assertTrue("Expected key to be removed", !cache.containsKey("other"));
+      assertEquals(Integer.valueOf(2), cache.get("count"));
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testAtomicAcrossCachesOfARegion() throws InterruptedException {
+    // the plain and path indexed caches of a name are separate objects on one region.
+    final Cache<Integer> plain = cacheManagerService.getCache("SharedRegion",
+        CacheScope.INSTANCE);
+    final Cache<Integer> pathIndexed = cacheManagerService.getPathCache("SharedRegion",
+        CacheScope.INSTANCE);
+    final CacheFunction<Integer> increment = new CacheFunction<Integer>() {
+      public Integer apply(String key, Integer current) {
+        return (current == null) ? 1 : current + 1;
+      }
+    };
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(8);
+    for (int i = 0; i < 8; i++) {
+      final Cache<Integer> cache = (i % 2 == 0) ? plain : pathIndexed;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < 2000; j++) {
+              cache.compute("/count", increment);
+            }
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    assertEquals(Integer.valueOf(16000), plain.get("/count"));
+    assertEquals(Integer.valueOf(16000), pathIndexed.get("/count"));
+  }
+
+  @Test
+  public void testSingleFlightLoad() throws InterruptedException {
+    final Cache<String> cache = cacheManagerService.getCache("LoadingCache",
+        CacheScope.INSTANCE);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(16);
+    final CacheLoader<String> loader = new CacheLoader<String>() {
+      public String load(String key) {
+        loads.incrementAndGet();
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+        }
+        return "loaded-" + key;
+      }
+    };
+    final String[] results = new String[16];
+    for (int i = 0; i < 16; i++) {
+      final int n = i;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            results[n] = cache.getOrLoad("key", loader);
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    assertEquals(1, loads.get());
+    for (String result : results) {
+      assertEquals("loaded-key", result);
+    }
+    assertEquals("loaded-key", cache.get("key"));
+  }
+
 }
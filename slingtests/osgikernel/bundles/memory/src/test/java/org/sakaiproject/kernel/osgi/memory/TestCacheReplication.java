@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ReplicationReceiver;
+import org.sakaiproject.kernel.api.memory.ReplicationTransport;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.CacheReplicator;
+import org.sakaiproject.kernel.memory.LoopbackReplicationHub;
+import org.sakaiproject.kernel.memory.ReplicatedCacheImpl;
+import org.sakaiproject.kernel.memory.ReplicationFrame;
+import org.sakaiproject.kernel.memory.ReplicationMessage;
+import org.sakaiproject.kernel.memory.ReplicationStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exercises the cluster scopes with several cache managers joined by a loopback hub.
+ */
+public class TestCacheReplication {
+
+  private LoopbackReplicationHub hub;
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    hub = new LoopbackReplicationHub();
+    nodeA = new CacheManagerServiceImpl();
+    nodeB = new CacheManagerServiceImpl();
+    nodeA.bindReplicationTransport(hub.createTransport("nodeA"));
+    nodeB.bindReplicationTransport(hub.createTransport("nodeB"));
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  @Test
+  public void testReplicatedPut() {
+    Cache<String> cacheA = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    cacheA.put("fish", "cat");
+    nodeA.getReplicator().flush();
+    assertEquals("cat", cacheB.get("fish"));
+
+    cacheB.remove("fish");
+    nodeB.getReplicator().flush();
+    assertNull(cacheA.get("fish"));
+
+    ReplicationStats stats = nodeB.getReplicator().getStats(CacheScope.CLUSTERREPLICATED);
+    assertEquals(1, stats.getMessagesReceived());
+    assertEquals(1, stats.getMessagesSent());
+    assertTrue(stats.getBytesSent() > 0);
+    assertTrue(stats.getBytesReceived() > 0);
+  }
+
+  @Test
+  public void testInvalidatedPut() {
+    Cache<String> cacheA = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    cacheB.put("fish", "cat");
+    nodeB.getReplicator().flush();
+    cacheA.put("fish", "dog");
+    nodeA.getReplicator().flush();
+    assertEquals("dog", cacheA.get("fish"));
+    assertNull("Expected the other node to be invalidated", cacheB.get("fish"));
+  }
+
+  @Test
+  public void testRemoveChildrenAndClear() {
+    Cache<String> cacheA = nodeA.getCache("tree", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("tree", CacheScope.CLUSTERREPLICATED);
+    cacheA.put("a", "1");
+    cacheA.put("a/b", "2");
+    cacheA.put("c", "3");
+    nodeA.getReplicator().flush();
+    assertEquals("2", cacheB.get("a/b"));
+    cacheA.removeChildren("a");
+    nodeA.getReplicator().flush();
+    assertNull(cacheB.get("a"));
+    assertNull(cacheB.get("a/b"));
+    assertEquals("3", cacheB.get("c"));
+    cacheA.clear();
+    nodeA.getReplicator().flush();
+    assertNull(cacheB.get("c"));
+  }
+
+  @Test
+  public void testBackgroundFlush() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("background", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("background", CacheScope.CLUSTERREPLICATED);
+    cacheA.put("fish", "cat");
+    for (int i = 0; i < 100 && cacheB.get("fish") == null; i++) {
+      Thread.sleep(CacheReplicator.DEFAULT_FLUSH_INTERVAL);
+    }
+    assertEquals("cat", cacheB.get("fish"));
+  }
+
+  @Test
+  public void testDisallowedValueInvalidates() {
+    Cache<Object> cacheA = nodeA.getCache("disallowed", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> cacheB = nodeB.getCache("disallowed", CacheScope.CLUSTERREPLICATED);
+    cacheB.put("fish", "cat");
+    nodeB.getReplicator().flush();
+    File file = new File("fish");
+    cacheA.put("fish", file);
+    nodeA.getReplicator().flush();
+    assertEquals(file, cacheA.get("fish"));
+    assertNull("Expected an invalidation rather than the value", cacheB.get("fish"));
+  }
+
+  @Test
+  public void testDisallowedClassRejected() throws Exception {
+    List<ReplicationMessage> messages = new ArrayList<ReplicationMessage>();
+    messages.add(new ReplicationMessage(ReplicationMessage.Operation.PUT, "forged", "fish",
+        new File("fish")));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(new ReplicationFrame("forger", CacheScope.CLUSTERREPLICATED, messages));
+    out.close();
+    try {
+      ReplicationFrame.fromBytes(baos.toByteArray());
+      fail("Expected java.io.File to be refused");
+    } catch (InvalidClassException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    final List<byte[]> frames = new ArrayList<byte[]>();
+    ReplicationTransport capture = new ReplicationTransport() {
+      public String getNodeId() {
+        return "capture";
+      }
+
+      public void send(byte[] frame) {
+        frames.add(frame);
+      }
+
+      public void setReceiver(ReplicationReceiver receiver) {
+      }
+    };
+    // a long flush interval so that only the explicit flush sends.
+    CacheReplicator replicator = new CacheReplicator(new CacheReplicator.Target() {
+      public void apply(CacheScope scope, ReplicationMessage message) {
+      }
+    }, 1000, 60000L);
+    replicator.setTransport(capture);
+    Cache<String> cacheA = new ReplicatedCacheImpl<String>(nodeA.<String> getCache(
+        "coalesce", CacheScope.INSTANCE), "coalesce", CacheScope.CLUSTERREPLICATED, replicator);
+    for (int i = 0; i < 50; i++) {
+      cacheA.put("fish", "cat" + i);
+      cacheA.put("fish/child" + (i % 5), "kitten" + i);
+    }
+    cacheA.removeChildren("fish");
+    cacheA.put("fish", "lastcat");
+    replicator.flush();
+    replicator.close();
+
+    assertEquals(1, frames.size());
+    ReplicationFrame frame = ReplicationFrame.fromBytes(frames.get(0));
+    assertEquals(2, frame.getMessages().size());
+    assertEquals("lastcat", frame.getMessages().get(1).getValue());
+    ReplicationStats stats = replicator.getStats(CacheScope.CLUSTERREPLICATED);
+    assertEquals(2, stats.getMessagesSent());
+    assertEquals(100, stats.getMessagesCoalesced());
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheLoader;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+
+public class TestCacheStatistics {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @Test
+  public void testCounters() {
+    CacheLoader<String> loader = new CacheLoader<String>() {
+      public String load(String key) {
+        return "loaded";
+      }
+    };
+    for (CacheScope scope : CacheScope.values()) {
+      String name = "TestCacheStatistics" + scope;
+      Cache<String> cache = cacheManagerService.getCache(name, scope);
+      cache.put("a", "a");
+      cache.get("a");
+      cache.get("b");
+      cache.getOrLoad("c", loader);
+      cache.getOrLoad("c", loader);
+      cache.remove("a");
+
+      CacheStatistics stats = find(name, scope);
+      assertNotNull(stats);
+      assertEquals(2, stats.getHits());
+      assertEquals(2, stats.getMisses());
+      assertEquals(0.5, stats.getHitRatio(), 0.0001);
+      // the loaded value is put by the store, underneath the counting.
+      assertEquals(1, stats.getPuts());
+      assertEquals(1, stats.getRemovals());
+      assertEquals(1, stats.getLoads());
+      assertTrue(stats.getAverageLoadTime() >= 0.0);
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testSharedCounters() {
+    Cache<String> plain = cacheManagerService.getCache("TestSharedCounters",
+        CacheScope.INSTANCE);
+    Cache<String> path = cacheManagerService.getPathCache("TestSharedCounters",
+        CacheScope.INSTANCE);
+    plain.put("/a", "a");
+    path.get("/a");
+    CacheStatistics stats = find("TestSharedCounters", CacheScope.INSTANCE);
+    assertEquals(1, stats.getPuts());
+    assertEquals(1, stats.getHits());
+  }
+
+  private CacheStatistics find(String name, CacheScope scope) {
+    for (CacheStatistics stats : cacheManagerService.getStatistics()) {
+      if (name.equals(stats.getName()) && scope.toString().equals(stats.getScope())) {
+        return stats;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.PathIndex;
+
+import java.io.IOException;
+import java.util.List;
+
+public class TestPathCache {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @Test
+  public void testPathCacheChildren() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getPathCache("TestPathCache", scope);
+      cache.put("/a", "a");
+      cache.put("/a/b", "b");
+      cache.put("/a/b/c", "c");
+      cache.put("/ab", "ab");
+      cache.put("/x", "x");
+      assertEquals(3, cache.listChildren("/a").size());
+      assertEquals(2, cache.listChildren("/a/").size());
+      cache.removeChildren("/a/b");
+      assertEquals("a", cache.get("/a"));
+      assertNull(cache.get("/a/b"));
+      assertNull(cache.get("/a/b/c"));
+      cache.removeChildren("/a");
+      assertNull(cache.get("/a"));
+      assertEquals("ab", cache.get("/ab"));
+      assertEquals("x", cache.get("/x"));
+      cache.clear();
+      assertEquals(0, cache.listChildren("/").size());
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testIndexFollowsRegion() {
+    Cache<String> pathCache = cacheManagerService.getPathCache("SharedRegion",
+        CacheScope.INSTANCE);
+    Cache<String> plainCache = cacheManagerService.getCache("SharedRegion",
+        CacheScope.INSTANCE);
+    plainCache.put("/a/b", "b");
+    assertEquals(1, pathCache.listChildren("/a").size());
+    plainCache.remove("/a/b");
+    assertEquals(0, pathCache.listChildren("/a").size());
+  }
+
+  @Test
+  public void testPathIndex() {
+    PathIndex index = new PathIndex();
+    index.add("a");
+    index.add("a/b");
+    index.add("a/b/c");
+    index.add("a/");
+    index.add("ab");
+    assertEquals(5, index.size());
+    List<String> children = index.removeSubtree("a/");
+    assertEquals(3, children.size());
+    assertTrue(children.contains("a/"));
+    assertEquals(2, index.size());
+    assertEquals(1, index.subtree("a").size());
+    index.remove("a");
+    assertEquals(0, index.subtree("a").size());
+    assertEquals(1, index.subtree("ab").size());
+  }
+
+}
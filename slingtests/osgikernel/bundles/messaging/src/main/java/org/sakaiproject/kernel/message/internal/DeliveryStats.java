@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for internal message delivery.
+ */
+public class DeliveryStats implements DeliveryStatsMBean {
+
+  private Queue<?> queue;
+  private AtomicLong messagesQueued = new AtomicLong();
+  private AtomicLong messagesOverflowed = new AtomicLong();
+  private AtomicLong messagesDelivered = new AtomicLong();
+  private AtomicLong copiesDelivered = new AtomicLong();
+  private AtomicLong copiesFailed = new AtomicLong();
+  private AtomicLong saves = new AtomicLong();
+  private AtomicLong totalLatency = new AtomicLong();
+  private AtomicLong maxLatency = new AtomicLong();
+  private volatile long lastLatency;
+
+  /**
+   * @param queue
+   *          the queue of messages waiting to be delivered.
+   */
+  public DeliveryStats(Queue<?> queue) {
+    this.queue = queue;
+  }
+
+  void queued() {
+    messagesQueued.incrementAndGet();
+  }
+
+  void overflowed() {
+    messagesOverflowed.incrementAndGet();
+  }
+
+  void saved(int copies) {
+    saves.incrementAndGet();
+    copiesDelivered.addAndGet(copies);
+  }
+
+  void failed(int copies) {
+    copiesFailed.addAndGet(copies);
+  }
+
+  /**
+   * Record the delivery of a message to all its recipients.
+   * 
+   * @param latency
+   *          ms between the message being queued and its last copy being saved.
+   */
+  void delivered(long latency) {
+    lastLatency = latency;
+    messagesDelivered.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    long max = maxLatency.get();
+    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+      max = maxLatency.get();
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getMessagesQueued() {
+    return messagesQueued.get();
+  }
+
+  public long getMessagesOverflowed() {
+    return messagesOverflowed.get();
+  }
+
+  public long getCopiesDelivered() {
+    return copiesDelivered.get();
+  }
+
+  public long getCopiesFailed() {
+    return copiesFailed.get();
+  }
+
+  public long getSaves() {
+    return saves.get();
+  }
+
+  public long getLastLatency() {
+    return lastLatency;
+  }
+
+  public double getAverageLatency() {
+    long n = messagesDelivered.get();
+    return n == 0 ? 0.0 : ((double) totalLatency.get()) / n;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  public void reset() {
+    messagesQueued.set(0);
+    messagesOverflowed.set(0);
+    messagesDelivered.set(0);
+    copiesDelivered.set(0);
+    copiesFailed.set(0);
+    saves.set(0);
+    totalLatency.set(0);
+    maxLatency.set(0);
+    lastLatency = 0;
+  }
+}
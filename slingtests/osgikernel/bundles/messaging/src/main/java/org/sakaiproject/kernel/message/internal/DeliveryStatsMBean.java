@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+/**
+ * JMX view of internal message delivery.
+ */
+public interface DeliveryStatsMBean {
+
+  /**
+   * @return the number of messages waiting to be delivered.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of messages queued for delivery.
+   */
+  long getMessagesQueued();
+
+  /**
+   * @return the number of messages delivered on the sending thread because the queue was
+   *         full.
+   */
+  long getMessagesOverflowed();
+
+  /**
+   * @return the number of copies written to recipients.
+   */
+  long getCopiesDelivered();
+
+  /**
+   * @return the number of copies that could not be written.
+   */
+  long getCopiesFailed();
+
+  /**
+   * @return the number of saves.
+   */
+  long getSaves();
+
+  /**
+   * @return the time, in ms, between the last message being queued and its last copy being
+   *         saved.
+   */
+  long getLastLatency();
+
+  /**
+   * @return the mean time, in ms, between a message being queued and its last copy being
+   *         saved.
+   */
+  double getAverageLatency();
+
+  /**
+   * @return the longest time, in ms, between a message being queued and its last copy
+   *         being saved.
+   */
+  long getMaxLatency();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
@@ -18,32 +18,40 @@
 
 package org.sakaiproject.kernel.message.internal;
 
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.kernel.api.message.MessageConstants;
 import org.sakaiproject.kernel.api.message.MessageRoute;
 import org.sakaiproject.kernel.api.message.MessageRoutes;
 import org.sakaiproject.kernel.api.message.MessageTransport;
 import org.sakaiproject.kernel.api.message.MessagingService;
-import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+
 import javax.jcr.Node;
-import javax.jcr.Property;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery.
  * Needs to be started immediately to make sure it registers with JCR as soon as
- * possible.
+ * possible. Copies are written by a {@link MessageDeliveryQueue} off the sending thread.
  * 
  * @scr.component label="InternalMessageHandler"
  *                description="Handler for internally delivered messages."
  *                immediate="true"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="message.delivery.workers" value="2"
+ * @scr.property name="message.delivery.queueSize" value="1000"
+ * @scr.property name="message.delivery.batchSize" value="100"
  * @scr.service interface="org.sakaiproject.kernel.api.message.MessageTransport"
  * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
  *                name="SlingRepository"
@@ -54,6 +62,15 @@ public class InternalMessageHandler implements MessageTransport {
   private static final Logger LOG = LoggerFactory
       .getLogger(InternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
+  private static final String PROP_WORKERS = "message.delivery.workers";
+  private static final String PROP_QUEUE_SIZE = "message.delivery.queueSize";
+  private static final String PROP_BATCH_SIZE = "message.delivery.batchSize";
+  private static final String MBEAN_NAME = "org.sakaiproject.kernel.message:type=InternalMessageDelivery";
+
+  /**
+   * Delivers the copies of messages, created on activation.
+   */
+  private volatile MessageDeliveryQueue deliveryQueue;
 
   /**
    * The JCR Repository we access.
@@ -90,53 +107,73 @@ public class InternalMessageHandler implements MessageTransport {
   public InternalMessageHandler() {
   }
 
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    int workers = OsgiUtil.toInteger(props.get(PROP_WORKERS),
+        MessageDeliveryQueue.DEFAULT_WORKERS);
+    int capacity = OsgiUtil.toInteger(props.get(PROP_QUEUE_SIZE),
+        MessageDeliveryQueue.DEFAULT_CAPACITY);
+    int batchSize = OsgiUtil.toInteger(props.get(PROP_BATCH_SIZE),
+        MessageDeliveryQueue.DEFAULT_BATCH_SIZE);
+    deliveryQueue = new MessageDeliveryQueue(slingRepository, messagingService, capacity,
+        batchSize);
+    deliveryQueue.start(workers);
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(deliveryQueue.getStats(), name);
+    } catch (Exception e) {
+      LOG.warn("Failed to register message delivery statistics " + e.getMessage());
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      LOG.debug("Failed to unregister message delivery statistics " + e.getMessage());
+    }
+    if (deliveryQueue != null) {
+      deliveryQueue.close();
+      deliveryQueue = null;
+    }
+  }
+
+  /**
+   * @return the statistics of the delivery queue, or null if the handler is not active.
+   */
+  public DeliveryStats getDeliveryStats() {
+    MessageDeliveryQueue queue = deliveryQueue;
+    return queue == null ? null : queue.getStats();
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.kernel.api.message.MessageTransport#send(org.sakaiproject.kernel.api.message.MessageRoutes, org.osgi.service.event.Event, javax.jcr.Node)
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
+    List<String> recipients = new ArrayList<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        recipients.add(route.getRcpt());
+      }
+    }
+    if (recipients.size() == 0) {
+      return;
+    }
     try {
-
-      Session session = slingRepository.loginAdministrative(null);
-      
-      
-      for ( MessageRoute route : routes ) {
-        if ( MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport()) ) {
-          LOG.info("Started handling a message.");
-          String rcpt = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-          String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
-
-          // Copy the node into the user his folder.
-          JcrUtils.deepGetOrCreateNode(session, toPath);
-          session.save();
-
-          /*
-           * This gives PathNotFoundExceptions... Workspace workspace =
-           * session.getWorkspace(); workspace.copy(originalMessage.getPath(),
-           * toPath);
-           */
-
-          Node n = (Node) session.getItem(toPath);
-
-          PropertyIterator pi = originalMessage.getProperties();
-          while (pi.hasNext()) {
-            Property p = pi.nextProperty();
-            if (!p.getName().contains("jcr:"))
-              n.setProperty(p.getName(), p.getValue());
-          }
-
-          // Add some extra properties on the just created node.
-          n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-              MessageConstants.BOX_INBOX);
-          n.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt);
-          n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
-              MessageConstants.STATE_NOTIFIED);
-          n.save();
-        }
+      LOG.info("Queueing a message for {} recipients.", recipients.size());
+      MessageDelivery delivery = MessageDelivery.fromMessage(originalMessage, recipients);
+      MessageDeliveryQueue queue = deliveryQueue;
+      if (queue == null) {
+        // not active, deliver on this thread.
+        queue = new MessageDeliveryQueue(slingRepository, messagingService, 1,
+            MessageDeliveryQueue.DEFAULT_BATCH_SIZE);
       }
+      queue.enqueue(delivery);
     } catch (RepositoryException e) {
       LOG.error(e.getMessage(), e);
     }
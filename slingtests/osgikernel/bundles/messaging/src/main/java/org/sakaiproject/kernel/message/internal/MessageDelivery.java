@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import org.sakaiproject.kernel.api.message.MessageConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * A message waiting to be copied into the stores of its internal recipients. The
+ * properties of the message are read when it is queued, so delivery does not depend on
+ * the session of the sender.
+ */
+public class MessageDelivery {
+
+  private final String messageId;
+  private final Map<String, Object> properties;
+  private final List<String> recipients;
+  private final long queued;
+
+  /**
+   * @param messageId
+   * @param properties
+   *          property name to a Value, or a Value[] for a multi valued property.
+   * @param recipients
+   */
+  public MessageDelivery(String messageId, Map<String, Object> properties,
+      List<String> recipients) {
+    this.messageId = messageId;
+    this.properties = Collections.unmodifiableMap(properties);
+    this.recipients = Collections.unmodifiableList(new ArrayList<String>(recipients));
+    this.queued = System.currentTimeMillis();
+  }
+
+  /**
+   * @param message
+   *          the message as it was sent.
+   * @param recipients
+   *          the internal recipients.
+   * @return a delivery of the message to the recipients.
+   * @throws RepositoryException
+   */
+  public static MessageDelivery fromMessage(Node message, List<String> recipients)
+      throws RepositoryException {
+    String messageId = message.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    PropertyIterator pi = message.getProperties();
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      if (!p.getName().contains("jcr:")) {
+        if (p.getDefinition().isMultiple()) {
+          properties.put(p.getName(), p.getValues());
+        } else {
+          properties.put(p.getName(), p.getValue());
+        }
+      }
+    }
+    return new MessageDelivery(messageId, properties, recipients);
+  }
+
+  /**
+   * @return the id of the message.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * @return property name to a Value, or a Value[] for a multi valued property.
+   */
+  public Map<String, Object> getProperties() {
+    return properties;
+  }
+
+  /**
+   * @return the recipients the message is to be copied to.
+   */
+  public List<String> getRecipients() {
+    return recipients;
+  }
+
+  /**
+   * @return when the delivery was created, in ms.
+   */
+  public long getQueued() {
+    return queued;
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessagingException;
+import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.util.BatchWriter;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Copies messages into the stores of their internal recipients off the sending thread.
+ * Messages wait in a bounded queue and are taken by a small number of workers, each of
+ * which keeps one administrative session for as long as it runs. The copies of a message
+ * are written in order of their path, so copies that share intermediate nodes are close
+ * together, and saved in batches. If a batch fails to save, its copies are retried one at
+ * a time so that one bad recipient does not lose the rest. When the queue is full the
+ * message is delivered on the sending thread.
+ */
+public class MessageDeliveryQueue {
+
+  /**
+   * The default number of workers.
+   */
+  public static final int DEFAULT_WORKERS = 2;
+  /**
+   * The default number of messages that may wait for delivery.
+   */
+  public static final int DEFAULT_CAPACITY = 1000;
+  /**
+   * The default number of copies written between saves.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageDeliveryQueue.class);
+
+  private final SlingRepository slingRepository;
+  private final MessagingService messagingService;
+  private final BlockingQueue<MessageDelivery> queue;
+  private final int batchSize;
+  private final DeliveryStats stats;
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+
+  /**
+   * @param slingRepository
+   *          where administrative sessions are taken from.
+   * @param messagingService
+   *          resolves the path of each copy.
+   * @param capacity
+   *          the number of messages that may wait for delivery.
+   * @param batchSize
+   *          the number of copies written between saves.
+   */
+  public MessageDeliveryQueue(SlingRepository slingRepository,
+      MessagingService messagingService, int capacity, int batchSize) {
+    this.slingRepository = slingRepository;
+    this.messagingService = messagingService;
+    this.queue = new ArrayBlockingQueue<MessageDelivery>(capacity);
+    this.batchSize = Math.max(1, batchSize);
+    this.stats = new DeliveryStats(queue);
+  }
+
+  /**
+   * Start the workers.
+   * 
+   * @param nworkers
+   */
+  public synchronized void start(int nworkers) {
+    running = true;
+    for (int i = 0; i < nworkers; i++) {
+      Thread t = new Thread(new Worker(), "internal-message-delivery-" + i);
+      t.setDaemon(true);
+      workers.add(t);
+      t.start();
+    }
+  }
+
+  /**
+   * Stop the workers, and deliver anything still queued on the calling thread.
+   */
+  public synchronized void close() {
+    running = false;
+    for (Thread t : workers) {
+      t.interrupt();
+    }
+    for (Thread t : workers) {
+      try {
+        t.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    workers.clear();
+    List<MessageDelivery> remaining = new ArrayList<MessageDelivery>();
+    queue.drainTo(remaining);
+    for (MessageDelivery delivery : remaining) {
+      deliverNow(delivery);
+    }
+  }
+
+  /**
+   * Queue a message for delivery, or deliver it now if the queue is full.
+   * 
+   * @param delivery
+   */
+  public void enqueue(MessageDelivery delivery) {
+    stats.queued();
+    if (!running || !queue.offer(delivery)) {
+      stats.overflowed();
+      deliverNow(delivery);
+    }
+  }
+
+  /**
+   * @return the delivery statistics.
+   */
+  public DeliveryStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Deliver a message with a session of its own.
+   * 
+   * @param delivery
+   */
+  private void deliverNow(MessageDelivery delivery) {
+    Session session = null;
+    try {
+      session = login();
+      deliver(session, delivery);
+    } catch (RepositoryException e) {
+      LOGGER.error("Failed to deliver message " + delivery.getMessageId(), e);
+      stats.failed(delivery.getRecipients().size());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Write and save all the copies of a message.
+   * 
+   * @param session
+   * @param delivery
+   * @throws RepositoryException
+   *           if the session can no longer be used.
+   */
+  protected void deliver(Session session, MessageDelivery delivery)
+      throws RepositoryException {
+    // order the copies by path, so that they are grouped by store.
+    Map<String, String> copies = new TreeMap<String, String>();
+    for (String rcpt : delivery.getRecipients()) {
+      try {
+        copies.put(getPath(session, rcpt, delivery.getMessageId()), rcpt);
+      } catch (MessagingException e) {
+        LOGGER.warn("No store for {}, message {} not delivered ", rcpt, delivery
+            .getMessageId());
+        stats.failed(1);
+      }
+    }
+    List<Entry<String, String>> batch = new ArrayList<Entry<String, String>>(batchSize);
+    for (Entry<String, String> copy : copies.entrySet()) {
+      batch.add(copy);
+      if (batch.size() >= batchSize) {
+        commit(session, delivery, batch);
+        batch.clear();
+      }
+    }
+    if (batch.size() > 0) {
+      commit(session, delivery, batch);
+    }
+    stats.delivered(System.currentTimeMillis() - delivery.getQueued());
+  }
+
+  /**
+   * Write and save a batch of copies, falling back to one save per copy if the batch
+   * fails.
+   * 
+   * @param session
+   * @param delivery
+   * @param batch
+   * @throws RepositoryException
+   */
+  private void commit(Session session, final MessageDelivery delivery,
+      List<Entry<String, String>> batch) throws RepositoryException {
+    new BatchWriter<Entry<String, String>>() {
+      @Override
+      protected void write(Session session, Entry<String, String> copy)
+          throws RepositoryException {
+        MessageDeliveryQueue.this.write(session, copy.getValue(), copy.getKey(), delivery);
+      }
+
+      @Override
+      protected void saved(int count) {
+        stats.saved(count);
+      }
+
+      @Override
+      protected void failed(Entry<String, String> copy, RepositoryException e) {
+        LOGGER.error("Failed to deliver message " + delivery.getMessageId() + " to "
+            + copy.getValue(), e);
+        stats.failed(1);
+      }
+
+      @Override
+      protected void save(Session session) throws RepositoryException {
+        MessageDeliveryQueue.this.save(session);
+      }
+
+      @Override
+      protected void discard(Session session) throws RepositoryException {
+        MessageDeliveryQueue.this.discard(session);
+      }
+    }.writeBatch(session, batch);
+  }
+
+  /**
+   * @param session
+   * @param rcpt
+   * @param messageId
+   * @return the path of the copy of a message for a recipient.
+   */
+  protected String getPath(Session session, String rcpt, String messageId) {
+    return messagingService.getFullPathToMessage(rcpt, messageId, session);
+  }
+
+  /**
+   * Write one copy of a message, without saving it.
+   * 
+   * @param session
+   * @param rcpt
+   * @param path
+   * @param delivery
+   * @throws RepositoryException
+   */
+  protected void write(Session session, String rcpt, String path, MessageDelivery delivery)
+      throws RepositoryException {
+    Node n = JcrUtils.deepGetOrCreateNode(session, path);
+    for (Entry<String, Object> p : delivery.getProperties().entrySet()) {
+      if (p.getValue() instanceof Value[]) {
+        n.setProperty(p.getKey(), (Value[]) p.getValue());
+      } else {
+        n.setProperty(p.getKey(), (Value) p.getValue());
+      }
+    }
+    // Add some extra properties on the just created node.
+    n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    n.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt);
+    n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+  }
+
+  /**
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void save(Session session) throws RepositoryException {
+    session.save();
+  }
+
+  /**
+   * Throw away unsaved changes.
+   * 
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void discard(Session session) throws RepositoryException {
+    session.refresh(false);
+  }
+
+  /**
+   * @return a new administrative session.
+   * @throws RepositoryException
+   */
+  protected Session login() throws RepositoryException {
+    return slingRepository.loginAdministrative(null);
+  }
+
+  /**
+   * @param session
+   *          the session to log out, may be null.
+   */
+  protected void logout(Session session) {
+    if (session != null) {
+      session.logout();
+    }
+  }
+
+  /**
+   * Takes messages from the queue and delivers them with a session it keeps.
+   */
+  private class Worker implements Runnable {
+
+    public void run() {
+      Session session = null;
+      try {
+        while (running) {
+          MessageDelivery delivery;
+          try {
+            delivery = queue.poll(1, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            break;
+          }
+          if (delivery == null) {
+            continue;
+          }
+          try {
+            if (session == null) {
+              session = login();
+            }
+            deliver(session, delivery);
+          } catch (RepositoryException e) {
+            LOGGER.error("Failed to deliver message " + delivery.getMessageId(), e);
+            stats.failed(delivery.getRecipients().size());
+            // start again with a new session.
+            logout(session);
+            session = null;
+          } catch (RuntimeException e) {
+            LOGGER.error("Failed to deliver message " + delivery.getMessageId(), e);
+            stats.failed(delivery.getRecipients().size());
+            // the session may hold part of a batch.
+            logout(session);
+            session = null;
+          }
+        }
+      } finally {
+        logout(session);
+      }
+    }
+  }
+}
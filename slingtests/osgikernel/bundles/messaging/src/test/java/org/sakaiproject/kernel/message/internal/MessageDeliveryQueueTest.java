@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+public class MessageDeliveryQueueTest {
+
+  /**
+   * Records the copies written and saved, without a repository.
+   */
+  private static class RecordingQueue extends MessageDeliveryQueue {
+    private List<String> pending = new ArrayList<String>();
+    private List<String> saved = Collections.synchronizedList(new ArrayList<String>());
+    private List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+    private String failOn;
+
+    RecordingQueue(int capacity, int batchSize) {
+      super(null, null, capacity, batchSize);
+    }
+
+    @Override
+    protected Session login() {
+      return null;
+    }
+
+    @Override
+    protected void logout(Session session) {
+    }
+
+    @Override
+    protected void discard(Session session) {
+      synchronized (this) {
+        pending.clear();
+      }
+    }
+
+    @Override
+    protected String getPath(Session session, String rcpt, String messageId) {
+      return "/_user/message/" + rcpt + "/" + messageId;
+    }
+
+    @Override
+    protected void write(Session session, String rcpt, String path, MessageDelivery delivery) {
+      synchronized (this) {
+        pending.add(rcpt);
+      }
+    }
+
+    @Override
+    protected void save(Session session) throws RepositoryException {
+      synchronized (this) {
+        if (failOn != null && pending.contains(failOn)) {
+          throw new RepositoryException("Failed to save " + failOn);
+        }
+        batches.add(pending.size());
+        saved.addAll(pending);
+        pending.clear();
+      }
+    }
+  }
+
+  private MessageDelivery delivery(int recipients) {
+    List<String> rcpts = new ArrayList<String>();
+    for (int i = 0; i < recipients; i++) {
+      rcpts.add("user" + i);
+    }
+    return new MessageDelivery("msg1", new HashMap<String, Object>(), rcpts);
+  }
+
+  @Test
+  public void testBatchedSaves() {
+    RecordingQueue queue = new RecordingQueue(10, 100);
+    queue.enqueue(delivery(250));
+    assertEquals(250, queue.saved.size());
+    assertEquals(3, queue.batches.size());
+    assertEquals(100, queue.batches.get(0).intValue());
+    assertEquals(50, queue.batches.get(2).intValue());
+    assertEquals(3, queue.getStats().getSaves());
+    assertEquals(250, queue.getStats().getCopiesDelivered());
+  }
+
+  @Test
+  public void testFailedBatchRetried() {
+    RecordingQueue queue = new RecordingQueue(10, 10);
+    queue.failOn = "user3";
+    queue.enqueue(delivery(10));
+    assertEquals(9, queue.saved.size());
+    assertTrue(!queue.saved.contains("user3"));
+    assertEquals(1, queue.getStats().getCopiesFailed());
+    assertEquals(9, queue.getStats().getCopiesDelivered());
+  }
+
+  @Test
+  public void testWorkersDeliver() throws InterruptedException {
+    RecordingQueue queue = new RecordingQueue(100, 50);
+    queue.start(2);
+    for (int i = 0; i < 20; i++) {
+      queue.enqueue(delivery(10));
+    }
+    long end = System.currentTimeMillis() + 5000L;
+    while (queue.saved.size() < 200 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    queue.close();
+    assertEquals(200, queue.saved.size());
+    assertEquals(0, queue.getStats().getQueueDepth());
+    assertEquals(20, queue.getStats().getMessagesQueued());
+  }
+
+  @Test
+  public void testFullQueueDeliversOnCaller() {
+    // not started, so nothing is taken from the queue.
+    RecordingQueue queue = new RecordingQueue(1, 10);
+    queue.enqueue(delivery(5));
+    assertEquals(5, queue.saved.size());
+    assertEquals(1, queue.getStats().getMessagesOverflowed());
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.presence;
+
+import java.util.Map;
+
+/**
+ * The changes in presence of a set of contacts since the last poll of a subscriber.
+ */
+public class PresenceChanges {
+
+  private long cursor;
+  private boolean full;
+  private Map<String, Presence> changes;
+
+  /**
+   * @param cursor
+   *          the cursor to pass on the next poll.
+   * @param full
+   *          true if changes contains every contact rather than the changes.
+   * @param changes
+   *          the presence of the contacts that changed, keyed by user id.
+   */
+  public PresenceChanges(long cursor, boolean full, Map<String, Presence> changes) {
+    this.cursor = cursor;
+    this.full = full;
+    this.changes = changes;
+  }
+
+  /**
+   * @return the cursor to pass on the next poll.
+   */
+  public long getCursor() {
+    return cursor;
+  }
+
+  /**
+   * @return true if the changes are a snapshot of every contact, which happens on the
+   *         first poll, when the contacts change or when the cursor is not the one last
+   *         issued.
+   */
+  public boolean isFull() {
+    return full;
+  }
+
+  /**
+   * @return the presence of the contacts that changed, keyed by user id.
+   */
+  public Map<String, Presence> getChanges() {
+    return changes;
+  }
+
+}
@@ -95,4 +95,32 @@ public interface PresenceService {
    * @return a map of userid to online status.
    */
   Map<String, String> online(String location);
+
+  /**
+   * Get the presence of many users in one pass over the presence store.
+   * 
+   * @param uuids
+   *          the user ids.
+   * @return a map of userid to presence, users that are not online are offline at no
+   *         location.
+   */
+  Map<String, Presence> getPresence(List<String> uuids);
+
+  /**
+   * Poll for the changes in presence of a set of contacts. The first poll, or a poll with
+   * a cursor other than the one last returned to the subscriber, returns every contact.
+   * Later polls return only the contacts whose status or location changed since the
+   * previous poll. Changes made on this server are queued for the subscriber as they
+   * happen, changes made elsewhere in the cluster are found by comparing every contact
+   * at most once every 20s.
+   * 
+   * @param subscriber
+   *          the user id of the user polling.
+   * @param contacts
+   *          the user ids of the contacts of the subscriber.
+   * @param cursor
+   *          the cursor returned by the last poll, 0 on the first poll.
+   * @return the changes and the cursor for the next poll.
+   */
+  PresenceChanges getChanges(String subscriber, List<String> contacts, long cursor);
 }
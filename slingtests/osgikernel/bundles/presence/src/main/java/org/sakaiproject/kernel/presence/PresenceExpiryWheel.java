@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timing wheel of users due to expire, one bucket per time slot. Scheduling and
+ * cancelling are a single map operation, and advancing the wheel only visits the buckets
+ * that have come due, so expiry costs the number of users expiring rather than the
+ * number of users present. Buckets are reused, so the wheel must have more buckets than
+ * the furthest expiry ever scheduled ahead of the current slot. Users returned by
+ * {@link #advance(long)} are candidates, the caller checks them against the store.
+ */
+public class PresenceExpiryWheel {
+
+  private List<ConcurrentMap<String, Boolean>> buckets;
+  private AtomicLong lastTick;
+
+  /**
+   * @param size
+   *          the number of buckets.
+   * @param now
+   *          the current slot.
+   */
+  public PresenceExpiryWheel(int size, long now) {
+    buckets = new ArrayList<ConcurrentMap<String, Boolean>>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new ConcurrentHashMap<String, Boolean>());
+    }
+    lastTick = new AtomicLong(now);
+  }
+
+  /**
+   * @param uuid
+   * @param slot
+   *          the slot in which the user expires.
+   */
+  public void schedule(String uuid, long slot) {
+    bucket(slot).put(uuid, Boolean.TRUE);
+  }
+
+  /**
+   * @param uuid
+   * @param slot
+   *          the slot the user was scheduled in.
+   */
+  public void cancel(String uuid, long slot) {
+    bucket(slot).remove(uuid);
+  }
+
+  /**
+   * Move the wheel on to a slot, only one thread advances the wheel at a time, others
+   * return immediately.
+   *
+   * @param now
+   *          the current slot.
+   * @return the users scheduled to expire in the slots passed.
+   */
+  public List<String> advance(long now) {
+    List<String> due = new ArrayList<String>();
+    long last = lastTick.get();
+    if (now <= last || !lastTick.compareAndSet(last, now)) {
+      return due;
+    }
+    // if the wheel has been idle for a full turn every bucket has come due.
+    long first = Math.max(last + 1, now - buckets.size() + 1);
+    for (long slot = first; slot <= now; slot++) {
+      ConcurrentMap<String, Boolean> bucket = bucket(slot);
+      for (String uuid : bucket.keySet()) {
+        bucket.remove(uuid);
+        due.add(uuid);
+      }
+    }
+    return due;
+  }
+
+  private ConcurrentMap<String, Boolean> bucket(long slot) {
+    return buckets.get((int) (slot % buckets.size()));
+  }
+
+}
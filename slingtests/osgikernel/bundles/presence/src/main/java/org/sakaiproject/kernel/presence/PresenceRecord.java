@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import org.sakaiproject.kernel.api.presence.Presence;
+
+import java.io.Serializable;
+
+/**
+ * The presence of one user as held in the cluster replicated status cache. Records are
+ * immutable, an update replaces the record.
+ */
+public class PresenceRecord implements Presence, Serializable {
+
+  private static final long serialVersionUID = -2318377286744170935L;
+
+  private final long lastSeen;
+  private final String location;
+  private final String status;
+
+  /**
+   * @param lastSeen
+   *          the time of the last update, in presence time slots.
+   * @param location
+   * @param status
+   */
+  public PresenceRecord(long lastSeen, String location, String status) {
+    this.lastSeen = lastSeen;
+    this.location = location;
+    this.status = status;
+  }
+
+  /**
+   * @return the time of the last update, in presence time slots.
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.presence.Presence#getLocation()
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.presence.Presence#getStatus()
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @param other
+   * @return true if the other record has the same location and status.
+   */
+  public boolean samePresence(Presence other) {
+    return other != null && location.equals(other.getLocation())
+        && status.equals(other.getStatus());
+  }
+
+}
@@ -17,15 +17,23 @@
  */
 package org.sakaiproject.kernel.presence;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheFunction;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.presence.Presence;
+import org.sakaiproject.kernel.api.presence.PresenceChanges;
 import org.sakaiproject.kernel.api.presence.PresenceService;
 import org.sakaiproject.kernel.api.presence.PresenceStatus;
 import org.slf4j.Logger;
@@ -35,38 +43,61 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 /**
- * The <code>PresenceServiceImpl</code>
+ * The <code>PresenceServiceImpl</code> keeps a {@link PresenceRecord} per user in a
+ * cluster replicated cache, and an index of the users at each location that is updated
+ * when a user moves. The index holds one entry per location and user, so a move
+ * replicates the user's own entries rather than everyone at the location. Users that stop
+ * pinging are expired by a timing wheel, driven by the scheduler and by pings. Subscribers
+ * to the presence of their contacts have changes made on this server queued for them, see
+ * {@link #getChanges(String, List, long)}.
  * 
  * @scr.component immediate="true" label="Sakai Presence Service"
  *                description="Service for getting info about the presence status and locations of current users" 
  *                name="org.sakaiproject.kernel.api.presence.PresenceService"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="scheduler.period" value="20" type="Long"
+ * @scr.property name="scheduler.concurrent" value="false" type="Boolean"
  * @scr.service interface="org.sakaiproject.kernel.api.presence.PresenceService"
+ * @scr.service interface="java.lang.Runnable"
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.kernel.api.memory.CacheManagerService"
  **/
-public class PresenceServiceImpl implements PresenceService {
+public class PresenceServiceImpl implements PresenceService, Runnable {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  /**
+   * The resolution of presence timestamps in ms.
+   */
+  private static final long SLOT = 20000L;
+  /**
+   * The TTL in slots, a user last seen in slot n is online until slot n + TTL_SLOTS.
+   */
+  private static final long TTL_SLOTS = PRESENCE_TTL / SLOT;
+  private static final String NONE = "none";
+  private static final PresenceRecord OFFLINE = new PresenceRecord(0L, NONE,
+      PresenceStatus.offline.name());
 
-  private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  private Cache<PresenceRecord> userStatusCache;
+  private Cache<String> locationCache;
+  private PresenceExpiryWheel expiryWheel = new PresenceExpiryWheel((int) TTL_SLOTS + 2,
+      getTimeStamp());
 
   private CacheManagerService cacheManagerService;
+  private ConcurrentMap<String, PresenceSubscription> subscriptions = new ConcurrentHashMap<String, PresenceSubscription>();
+  /**
+   * The subscribers watching each user, only modified while holding the map.
+   */
+  private ConcurrentMap<String, ConcurrentMap<String, Boolean>> watchers = new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+  private AtomicLong cursors = new AtomicLong(System.currentTimeMillis());
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
     // the caches must be replicating in the cluster.
-    locationCache = cacheManagerService.getCache(LOCATION_CACHE,
+    locationCache = cacheManagerService.getPathCache(LOCATION_CACHE,
         CacheScope.CLUSTERREPLICATED);
     userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
         CacheScope.CLUSTERREPLICATED);
@@ -87,7 +118,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    update(uuid, null, status);
   }
 
   /**
@@ -95,30 +126,16 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
+    PresenceRecord current = userStatusCache.get(uuid);
+    if (current != null) {
+      userStatusCache.remove(uuid);
+      removeMember(current.getLocation(), uuid);
+      expiryWheel.cancel(uuid, current.getLastSeen() + TTL_SLOTS);
+      publish(uuid);
     }
   }
 
@@ -128,16 +145,11 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+    PresenceRecord current = getCurrentStatus(uuid, getTimeStamp());
+    if (current == null) {
+      return PresenceStatus.offline.name();
     }
-    return result;
+    return current.getStatus();
   }
 
   /**
@@ -145,37 +157,29 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.kernel.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+    PresenceRecord current = getCurrentStatus(uuid, getTimeStamp());
+    if (current == null) {
+      return NONE;
     }
-    return location;
+    return current.getLocation();
   }
 
-  private String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
+  /**
+   * @param uuid
+   * @param now
+   *          the current time slot.
+   * @return the record for the user if it has not expired, otherwise null.
+   */
+  private PresenceRecord getCurrentStatus(String uuid, long now) {
+    if (userStatusCache == null) {
       LOGGER.warn("User status cache is null, check the cacheManager");
+      return null;
+    }
+    PresenceRecord current = userStatusCache.get(uuid);
+    if (current != null && isOnline(current, now)) {
+      return current;
     }
-    return result;
+    return null;
   }
 
   /**
@@ -186,8 +190,14 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public Map<String, String> online(List<String> connections) {
     Map<String, String> online = Maps.newHashMap();
+    long now = getTimeStamp();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      PresenceRecord current = getCurrentStatus(uuid, now);
+      if (current == null) {
+        online.put(uuid, PresenceStatus.offline.name());
+      } else {
+        online.put(uuid, current.getStatus());
+      }
     }
     return online;
   }
@@ -199,14 +209,15 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public Map<String, String> online(String location) {
     if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
+      List<String> members = locationCache.listChildren(locationKey(location));
+      if (members.size() > 0) {
         Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+        long now = getTimeStamp();
+        for (String uuid : members) {
+          PresenceRecord current = getCurrentStatus(uuid, now);
+          // the index may briefly lag a move made on another node.
+          if (current != null && location.equals(current.getLocation())) {
+            onlineMap.put(uuid, current.getStatus());
           }
         }
         return onlineMap;
@@ -224,107 +235,314 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
+    update(uuid, location, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getPresence(java.util.List)
+   */
+  public Map<String, Presence> getPresence(List<String> uuids) {
+    Map<String, Presence> presence = new HashMap<String, Presence>();
+    long now = getTimeStamp();
+    for (String uuid : uuids) {
+      PresenceRecord current = getCurrentStatus(uuid, now);
+      presence.put(uuid, (current == null) ? OFFLINE : current);
+    }
+    return presence;
+  }
 
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.presence.PresenceService#getChanges(java.lang.String,
+   *      java.util.List, long)
+   */
+  public PresenceChanges getChanges(String subscriber, List<String> contacts, long cursor) {
+    long now = getTimeStamp();
+    expire(now);
+    Set<String> contactSet = new HashSet<String>(contacts);
+    PresenceSubscription subscription = subscriptions.get(subscriber);
+    boolean full = false;
+    Set<String> check;
+    if (subscription == null || cursor == 0 || subscription.getCursor() != cursor
+        || !subscription.getContacts().equals(contactSet)) {
+      // watch before reading, so that no change made during the snapshot is lost.
+      subscription = new PresenceSubscription(contactSet, cursor, now);
+      PresenceSubscription previous = subscriptions.put(subscriber, subscription);
+      if (previous != null) {
+        unwatch(subscriber, previous.getContacts());
+      }
+      watch(subscriber, contactSet);
+      full = true;
+      check = contactSet;
+    } else if (now > subscription.getLastFullCheck()) {
+      // changes made on other servers are not queued, pick them up once a slot.
+      subscription.drainChanged();
+      subscription.setLastFullCheck(now);
+      check = contactSet;
+    } else {
+      check = subscription.drainChanged();
+    }
+    Map<String, Presence> changes = new HashMap<String, Presence>();
+    synchronized (subscription) {
+      for (String uuid : check) {
+        PresenceRecord current = getCurrentStatus(uuid, now);
+        if (current == null) {
+          current = OFFLINE;
+        }
+        if (subscription.send(uuid, current) || full) {
+          changes.put(uuid, current);
         }
       }
+      long next = cursors.incrementAndGet();
+      subscription.setCursor(next);
+      subscription.setLastPoll(now);
+      return new PresenceChanges(next, full, changes);
     }
   }
 
   /**
-   * @return
+   * {@inheritDoc}
+   * 
+   * Invoked by the scheduler every slot to expire users that have stopped pinging.
+   * 
+   * @see java.lang.Runnable#run()
    */
-  private long getTimeStamp() {
+  public void run() {
+    long now = getTimeStamp();
+    expire(now);
+    for (Entry<String, PresenceSubscription> e : subscriptions.entrySet()) {
+      PresenceSubscription subscription = e.getValue();
+      if (subscription.getLastPoll() + TTL_SLOTS <= now
+          && subscriptions.remove(e.getKey(), subscription)) {
+        unwatch(e.getKey(), subscription.getContacts());
+      }
+    }
+  }
+
+  /**
+   * @return the current time slot, protected for testing.
+   */
+  protected long getTimeStamp() {
     long now = System.currentTimeMillis();
     // make now slow changing, 20s resolution
-    return now / 20000;
+    return now / SLOT;
+  }
+
+  /**
+   * @param record
+   * @param now
+   * @return true if the record has not expired.
+   */
+  private boolean isOnline(PresenceRecord record, long now) {
+    return record.getLastSeen() + TTL_SLOTS > now;
   }
 
   /**
-   * Update the users location cache.
+   * Update the record of a user, touching the timestamp, and move the user in the location
+   * index if the location changed. Nothing is written if the record would not change, so
+   * repeated pings within a slot cost one cache lookup.
    * 
    * @param uuid
    *          the user id
-   * @param now
-   *          the timestamp
    * @param location
    *          the location, null if not provided in this update
    * @param status
    *          the status, null if not provided in this update
-   * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
+  private void update(final String uuid, final String location, final String status) {
+    if (userStatusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
+    final long now = getTimeStamp();
+    expire(now);
+    PresenceRecord current = userStatusCache.get(uuid);
+    if (current != null && !changes(current, now, location, status)) {
+      return;
+    }
+    final PresenceRecord[] previous = new PresenceRecord[1];
+    PresenceRecord updated = userStatusCache.compute(uuid,
+        new CacheFunction<PresenceRecord>() {
+          public PresenceRecord apply(String key, PresenceRecord current) {
+            previous[0] = current;
+            if (current != null && !isOnline(current, now)) {
+              // an expired record keeps nothing but the status.
+              current = new PresenceRecord(now - 1, NONE, current.getStatus());
+            }
+            if (current != null && !changes(current, now, location, status)) {
+              return current;
+            }
+            return new PresenceRecord(now, (location != null) ? location
+                : (current == null) ? NONE : current.getLocation(),
+                (status != null) ? status : (current == null) ? PresenceStatus.online
+                    .name() : current.getStatus());
+          }
+        });
+    PresenceRecord old = previous[0];
+    if (old == updated) {
+      return;
+    }
+    String oldLocation = NONE;
+    if (old != null) {
+      oldLocation = old.getLocation();
+      expiryWheel.cancel(uuid, old.getLastSeen() + TTL_SLOTS);
+    }
+    expiryWheel.schedule(uuid, updated.getLastSeen() + TTL_SLOTS);
+    if (!oldLocation.equals(updated.getLocation())) {
+      removeMember(oldLocation, uuid);
+    }
+    // added whenever the record is written, so that an entry evicted from the index comes
+    // back while the user stays; nothing is replicated if the entry is there.
+    addMember(updated.getLocation(), uuid);
+    if (old == null || !isOnline(old, now) || !updated.samePresence(old)) {
+      publish(uuid);
+    }
+  }
+
+  /**
+   * @return true if an update with the location and status, either of which may be null,
+   *         would change the record.
+   */
+  private boolean changes(PresenceRecord current, long now, String location,
       String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
+    return current.getLastSeen() != now
+        || (location != null && !location.equals(current.getLocation()))
+        || (status != null && !status.equals(current.getStatus()));
+  }
 
+  /**
+   * Expire the users that were due in the slots since the last call.
+   * 
+   * @param now
+   *          the current slot.
+   */
+  private void expire(final long now) {
+    if (userStatusCache == null) {
+      return;
+    }
+    for (String uuid : expiryWheel.advance(now)) {
+      PresenceRecord current = userStatusCache.get(uuid);
+      if (current != null && isOnline(current, now)) {
+        // seen since it was scheduled, or scheduled a turn of the wheel early.
+        expiryWheel.schedule(uuid, current.getLastSeen() + TTL_SLOTS);
+      } else if (current != null) {
+        final PresenceRecord[] expired = new PresenceRecord[1];
+        current = userStatusCache.compute(uuid, new CacheFunction<PresenceRecord>() {
+          public PresenceRecord apply(String key, PresenceRecord current) {
+            if (current != null && !isOnline(current, now)) {
+              expired[0] = current;
+              return null;
+            }
+            return current;
+          }
+        });
+        if (expired[0] != null) {
+          removeMember(expired[0].getLocation(), uuid);
+          publish(uuid);
+        } else if (current != null) {
+          expiryWheel.schedule(uuid, current.getLastSeen() + TTL_SLOTS);
+        }
       }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
+    }
+  }
 
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
+  /**
+   * Queue a change in the presence of a user for the subscribers watching the user.
+   * 
+   * @param uuid
+   */
+  private void publish(String uuid) {
+    ConcurrentMap<String, Boolean> subscribers = watchers.get(uuid);
+    if (subscribers != null) {
+      for (String subscriber : subscribers.keySet()) {
+        PresenceSubscription subscription = subscriptions.get(subscriber);
+        if (subscription != null) {
+          subscription.changed(uuid);
         }
       }
+    }
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
+  /**
+   * @param subscriber
+   * @param contacts
+   *          the users the subscriber will be told about.
+   */
+  private void watch(String subscriber, Set<String> contacts) {
+    synchronized (watchers) {
+      for (String uuid : contacts) {
+        ConcurrentMap<String, Boolean> subscribers = watchers.get(uuid);
+        if (subscribers == null) {
+          subscribers = new ConcurrentHashMap<String, Boolean>();
+          watchers.put(uuid, subscribers);
         }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
+        subscribers.put(subscriber, Boolean.TRUE);
+      }
+    }
+  }
+
+  /**
+   * @param subscriber
+   * @param contacts
+   *          the users the subscriber will no longer be told about.
+   */
+  private void unwatch(String subscriber, Set<String> contacts) {
+    synchronized (watchers) {
+      for (String uuid : contacts) {
+        ConcurrentMap<String, Boolean> subscribers = watchers.get(uuid);
+        if (subscribers != null) {
+          subscribers.remove(subscriber);
+          if (subscribers.isEmpty()) {
+            watchers.remove(uuid);
+          }
         }
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return update;
   }
 
   /**
+   * Add a user to the index of a location.
+   * 
+   * @param location
    * @param uuid
+   */
+  private void addMember(String location, String uuid) {
+    if (NONE.equals(location) || locationCache == null) {
+      return;
+    }
+    locationCache.putIfAbsent(locationKey(location) + uuid, uuid);
+  }
+
+  /**
+   * Remove a user from the index of a location.
+   * 
+   * @param location
+   * @param uuid
+   */
+  private void removeMember(String location, String uuid) {
+    if (NONE.equals(location) || locationCache == null) {
+      return;
+    }
+    locationCache.remove(locationKey(location) + uuid);
+  }
+
+  /**
    * @param location
-   * @return
+   * @return the parent of the entries of a location in the index. The location is escaped
+   *         into one segment, so that the users at a location do not include the users at
+   *         the locations under it.
    */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+  private static String locationKey(String location) {
+    return location.replace("%", "%25").replace("/", "%2F") + "/";
   }
 
 }
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import org.sakaiproject.kernel.api.presence.Presence;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The state of one subscriber to the presence of their contacts: the contacts, the
+ * presence last sent for each, and the contacts that changed since the last poll.
+ */
+public class PresenceSubscription {
+
+  private Set<String> contacts;
+  private Map<String, PresenceRecord> sent = new HashMap<String, PresenceRecord>();
+  private ConcurrentMap<String, Boolean> changed = new ConcurrentHashMap<String, Boolean>();
+  private long cursor;
+  private long lastPoll;
+  private long lastFullCheck;
+
+  /**
+   * @param contacts
+   *          the contacts being watched, not modified after this point.
+   * @param cursor
+   * @param now
+   *          the current time slot.
+   */
+  public PresenceSubscription(Set<String> contacts, long cursor, long now) {
+    this.contacts = contacts;
+    this.cursor = cursor;
+    this.lastPoll = now;
+    this.lastFullCheck = now;
+  }
+
+  /**
+   * @return the contacts being watched.
+   */
+  public Set<String> getContacts() {
+    return contacts;
+  }
+
+  /**
+   * Note that a contact has changed, called from the thread making the change.
+   * 
+   * @param uuid
+   */
+  public void changed(String uuid) {
+    changed.put(uuid, Boolean.TRUE);
+  }
+
+  /**
+   * @return the contacts changed since the last call, clearing the queue.
+   */
+  public Set<String> drainChanged() {
+    Set<String> drained = new HashSet<String>();
+    for (String uuid : changed.keySet()) {
+      changed.remove(uuid);
+      drained.add(uuid);
+    }
+    return drained;
+  }
+
+  /**
+   * Record the presence sent to the subscriber for a contact.
+   * 
+   * @param uuid
+   * @param presence
+   * @return true if it differs from what was last sent.
+   */
+  public boolean send(String uuid, PresenceRecord presence) {
+    Presence previous = sent.put(uuid, presence);
+    return !presence.samePresence(previous);
+  }
+
+  public long getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(long cursor) {
+    this.cursor = cursor;
+  }
+
+  public long getLastPoll() {
+    return lastPoll;
+  }
+
+  public void setLastPoll(long lastPoll) {
+    this.lastPoll = lastPoll;
+  }
+
+  public long getLastFullCheck() {
+    return lastFullCheck;
+  }
+
+  public void setLastFullCheck(long lastFullCheck) {
+    this.lastFullCheck = lastFullCheck;
+  }
+
+}
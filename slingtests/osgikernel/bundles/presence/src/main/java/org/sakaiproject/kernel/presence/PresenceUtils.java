@@ -20,6 +20,7 @@ package org.sakaiproject.kernel.presence;
 import java.io.Writer;
 
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.kernel.api.presence.Presence;
 import org.sakaiproject.kernel.api.presence.PresenceService;
 import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 
@@ -81,4 +82,35 @@ public class PresenceUtils {
     }
   }
 
+  /**
+   * Method to generate the JSON for the presence of a user that has already been looked
+   * up, see {@link PresenceService#getPresence(java.util.List)}.
+   * 
+   * @param output
+   *          the JSON writer to output into
+   * @param userId
+   *          the user to output presence data for
+   * @param presence
+   *          the presence of the user
+   * @param partialObject
+   *          if true then only output the keys and values but do not open or close the
+   *          object
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(ExtendedJSONWriter output, String userId,
+      Presence presence, boolean partialObject) throws JSONException {
+    if (!partialObject) {
+      output.object();
+    }
+    output.key("user");
+    output.value(userId);
+    output.key(PresenceService.PRESENCE_STATUS_PROP);
+    output.value(presence.getStatus());
+    output.key(PresenceService.PRESENCE_LOCATION_PROP);
+    output.value(presence.getLocation());
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
 }
@@ -21,6 +21,7 @@ package org.sakaiproject.kernel.presence.servlets;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -35,6 +36,8 @@ import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.kernel.api.connections.ConnectionManager;
 import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.api.presence.Presence;
+import org.sakaiproject.kernel.api.presence.PresenceChanges;
 import org.sakaiproject.kernel.api.presence.PresenceService;
 import org.sakaiproject.kernel.presence.PresenceUtils;
 import org.sakaiproject.kernel.util.ExtendedJSONWriter;
@@ -43,7 +46,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This servlet deals with GET and JSON only and outputs the contacts listing presence
- * related to the current user, only includes accepted contacts
+ * related to the current user, only includes accepted contacts. If the request has a
+ * <code>cursor</code> parameter (0 on the first poll) only the contacts whose presence
+ * changed since the poll that returned the cursor are listed, with a new
+ * <code>cursor</code> for the next poll. Profiles are only included when the response
+ * has <code>"full": true</code>.
  * 
  * @scr.component metatype="no" immediate="true"
  * @scr.service interface="javax.servlet.Servlet"
@@ -105,16 +112,40 @@ public class PresenceContactsServlet extends SlingAllMethodsServlet {
       Session session = request.getResource().adaptTo(Node.class).getSession();
       List<String> userIds = connectionManager.getConnectedUsers(user,
           ConnectionState.ACCEPTED);
+      String cursorParam = request.getParameter("cursor");
+      Map<String, Presence> contacts;
+      boolean full = true;
+      if (cursorParam == null) {
+        contacts = presenceService.getPresence(userIds);
+      } else {
+        long cursor = 0;
+        try {
+          cursor = Long.parseLong(cursorParam);
+        } catch (NumberFormatException e) {
+          // treat as a first poll.
+        }
+        PresenceChanges changes = presenceService.getChanges(user, userIds, cursor);
+        contacts = changes.getChanges();
+        full = changes.isFull();
+        output.key("cursor");
+        output.value(String.valueOf(changes.getCursor()));
+        output.key("full");
+        output.value(full);
+      }
       output.key("contacts");
       output.array();
-      for (String userId : userIds) {
+      // keep the order of the connections when listing all of them.
+      Iterable<String> listed = full ? userIds : contacts.keySet();
+      for (String userId : listed) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
-        // add in the profile
-        output.key("profile");
-        Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(userId));
-        ExtendedJSONWriter.writeNodeToWriter(output, profileNode);
+        PresenceUtils.makePresenceJSON(output, userId, contacts.get(userId), true);
+        if (full) {
+          // add in the profile
+          output.key("profile");
+          Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(userId));
+          ExtendedJSONWriter.writeNodeToWriter(output, profileNode);
+        }
         output.endObject();
       }
       output.endArray();
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.presence;
+
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 100k users pinging the presence service from 1 to 64 threads, with one in ten
+ * operations listing a location. Not run as part of the build, run with java -cp
+ * target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.presence.PresenceBenchmark
+ */
+public class PresenceBenchmark {
+
+  private static final long RUN_MS = 2000L;
+  private static final int USERS = 100000;
+  private static final int LOCATIONS = 1000;
+
+  public static void main(String[] args) throws Exception {
+    PresenceServiceImpl presenceService = new PresenceServiceImpl();
+    presenceService.bindCacheManagerService(new CacheManagerServiceImpl());
+    for (int i = 0; i < USERS; i++) {
+      presenceService.ping("user" + i, "location" + (i % LOCATIONS));
+    }
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      run(presenceService, threads);
+    }
+    System.exit(0);
+  }
+
+  private static void run(final PresenceServiceImpl presenceService, int threads)
+      throws InterruptedException {
+    final AtomicLong ops = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final long end = System.currentTimeMillis() + RUN_MS;
+    for (int t = 0; t < threads; t++) {
+      final int seed = t * 7919;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            long n = 0;
+            int i = seed;
+            while (System.currentTimeMillis() < end) {
+              for (int j = 0; j < 100; j++) {
+                int user = (i++ * 31) % USERS;
+                if (j % 10 == 0) {
+                  presenceService.online("location" + (user % LOCATIONS));
+                } else if (j % 10 == 1) {
+                  // a move to another location.
+                  presenceService.ping("user" + user, "location" + (i % LOCATIONS));
+                } else {
+                  presenceService.ping("user" + user, "location" + (user % LOCATIONS));
+                  presenceService.getStatus("user" + user);
+                }
+                n++;
+              }
+            }
+            ops.addAndGet(n);
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    System.out.println(threads + " threads: " + (ops.get() * 1000 / RUN_MS) + " ops/s");
+  }
+}
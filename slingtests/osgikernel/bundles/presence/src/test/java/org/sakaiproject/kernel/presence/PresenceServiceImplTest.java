@@ -28,6 +28,8 @@ import org.junit.Test;
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.presence.Presence;
+import org.sakaiproject.kernel.api.presence.PresenceChanges;
 import org.sakaiproject.kernel.memory.MapCacheImpl;
 
 import java.util.List;
@@ -54,7 +56,7 @@ public class PresenceServiceImplTest {
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
-        cacheManagerService.getCache("presence.location",
+        cacheManagerService.getPathCache("presence.location",
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
         .anyTimes();
     expect(
@@ -123,6 +125,97 @@ public class PresenceServiceImplTest {
     }
   }
 
+  @Test
+  public void testMoveAndExpire() {
+    final long[] now = new long[] { 1000L };
+    PresenceServiceImpl service = new PresenceServiceImpl() {
+      @Override
+      protected long getTimeStamp() {
+        return now[0];
+      }
+    };
+    service.bindCacheManagerService(cacheManagerService);
+    service.ping("userA", "locationA");
+    service.ping("userB", "locationA");
+    service.ping("userA", "locationB");
+    assertEquals(1, service.online("locationA").size());
+    assertEquals(1, service.online("locationB").size());
+    assertNull(presenceLocationCache.get("locationA/userA"));
+    assertEquals("userA", presenceLocationCache.get("locationB/userA"));
+
+    // userB keeps pinging, userA goes quiet.
+    for (int i = 0; i < 20; i++) {
+      now[0]++;
+      service.ping("userB", "locationA");
+      service.run();
+    }
+    assertEquals("offline", service.getStatus("userA"));
+    assertEquals("none", service.getLocation("userA"));
+    assertNull(presenceStatusCache.get("userA"));
+    assertEquals(0, presenceLocationCache.listChildren("locationB/").size());
+    assertEquals("online", service.getStatus("userB"));
+    assertEquals(1, service.online("locationA").size());
+
+    service.clear("userB");
+    assertEquals(0, presenceLocationCache.listChildren("locationA/").size());
+    assertEquals(0, service.online("locationA").size());
+  }
+
+  @Test
+  public void testNestedLocations() {
+    presenceService.ping("userA", "/sites/a");
+    presenceService.ping("userB", "/sites/a/b");
+    presenceService.ping("userC", "/sites/a%2Fb");
+    assertEquals(1, presenceService.online("/sites/a").size());
+    assertTrue(presenceService.online("/sites/a").containsKey("userA"));
+    assertEquals(1, presenceService.online("/sites/a/b").size());
+    assertEquals(1, presenceService.online("/sites/a%2Fb").size());
+    presenceService.ping("userA", "/sites/a/b");
+    assertEquals(0, presenceService.online("/sites/a").size());
+    assertEquals(2, presenceService.online("/sites/a/b").size());
+  }
+
+  @Test
+  public void testBulkAndChanges() {
+    List<String> contacts = Lists.newArrayList("userA", "userB", "userC");
+    presenceService.ping("userA", "locationA");
+    presenceService.setStatus("userB", "busy");
+    Map<String, Presence> presence = presenceService.getPresence(contacts);
+    assertEquals(3, presence.size());
+    assertEquals("online", presence.get("userA").getStatus());
+    assertEquals("locationA", presence.get("userA").getLocation());
+    assertEquals("busy", presence.get("userB").getStatus());
+    assertEquals("offline", presence.get("userC").getStatus());
+
+    PresenceChanges changes = presenceService.getChanges("me", contacts, 0);
+    assertTrue(changes.isFull());
+    assertEquals(3, changes.getChanges().size());
+    long cursor = changes.getCursor();
+
+    changes = presenceService.getChanges("me", contacts, cursor);
+    assertFalse(changes.isFull());
+    assertEquals(0, changes.getChanges().size());
+
+    // a ping that changes nothing is not a change.
+    presenceService.ping("userA", "locationA");
+    presenceService.setStatus("userC", "away");
+    presenceService.ping("userD", "locationA");
+    changes = presenceService.getChanges("me", contacts, changes.getCursor());
+    assertFalse(changes.isFull());
+    assertEquals(1, changes.getChanges().size());
+    assertEquals("away", changes.getChanges().get("userC").getStatus());
+
+    presenceService.clear("userB");
+    changes = presenceService.getChanges("me", contacts, changes.getCursor());
+    assertEquals(1, changes.getChanges().size());
+    assertEquals("offline", changes.getChanges().get("userB").getStatus());
+
+    // a stale cursor gets everything again.
+    changes = presenceService.getChanges("me", contacts, cursor);
+    assertTrue(changes.isFull());
+    assertEquals(3, changes.getChanges().size());
+  }
+
   /**
    * Test method for
    * {@link org.sakaiproject.kernel.presence.PresenceServiceImpl#ping(java.lang.String, java.lang.String)}
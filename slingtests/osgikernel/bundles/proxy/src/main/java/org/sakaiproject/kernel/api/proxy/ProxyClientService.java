@@ -56,6 +56,13 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_PROXY_HEADER = "sakai:proxy-header";
 
+  /**
+   * The number of seconds responses to GETs at this end point are cached for, overriding
+   * the Cache-Control and Expires headers of the response. 0 disables caching for the end
+   * point. If absent the response headers decide.
+   */
+  public static final String SAKAI_PROXY_CACHE_TTL = "sakai:proxy-cache-ttl";
+
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
    * properties to populate that template with. An example might be a SOAP call.
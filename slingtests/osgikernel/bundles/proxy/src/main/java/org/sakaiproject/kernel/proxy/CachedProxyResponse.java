@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import org.sakaiproject.kernel.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link ProxyResponse} served from the {@link ProxyResponseCache}.
+ */
+public class CachedProxyResponse implements ProxyResponse {
+
+  private int status;
+  private Map<String, String[]> headers;
+  private InputStream body;
+
+  /**
+   * Opens the body of the entry straight away, so that the entry can be evicted while the
+   * response is being written.
+   * 
+   * @param entry
+   * @param now
+   * @throws IOException
+   */
+  public CachedProxyResponse(CachedResponse entry, long now) throws IOException {
+    this.status = entry.getStatus();
+    this.headers = new HashMap<String, String[]>(entry.getHeaders());
+    long age = Math.max(0L, now - entry.getResponseTime()) / 1000L;
+    headers.put("Age", new String[] { String.valueOf(age) });
+    this.body = entry.openBody();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResultCode()
+   */
+  public int getResultCode() {
+    return status;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseHeaders()
+   */
+  public Map<String, String[]> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBody()
+   */
+  public byte[] getResponseBody() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = body.read(buffer)) != -1) {
+      baos.write(buffer, 0, n);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
+   */
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    return body;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBodyAsString()
+   */
+  public String getResponseBodyAsString() throws IOException {
+    return new String(getResponseBody(), getCharset());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#close()
+   */
+  public void close() {
+    try {
+      body.close();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * @return the charset from the Content-Type, ISO-8859-1 if there is none (as
+   *         HttpClient does).
+   */
+  private String getCharset() {
+    for (Map.Entry<String, String[]> e : headers.entrySet()) {
+      if ("Content-Type".equalsIgnoreCase(e.getKey()) && e.getValue().length > 0) {
+        String contentType = e.getValue()[0];
+        int i = contentType.toLowerCase().indexOf("charset=");
+        if (i >= 0) {
+          String charset = contentType.substring(i + 8).trim();
+          int end = charset.indexOf(';');
+          if (end >= 0) {
+            charset = charset.substring(0, end).trim();
+          }
+          if (charset.startsWith("\"") && charset.endsWith("\"") && charset.length() > 1) {
+            charset = charset.substring(1, charset.length() - 1);
+          }
+          return charset;
+        }
+      }
+    }
+    return "ISO-8859-1";
+  }
+
+}
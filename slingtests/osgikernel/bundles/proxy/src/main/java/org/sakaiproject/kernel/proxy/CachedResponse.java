@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A response held by the {@link ProxyResponseCache}. The body is held in memory until the
+ * entry is evicted from the memory tier, after which it is held in a file.
+ */
+public class CachedResponse {
+
+  private final String key;
+  private final int status;
+  private final String[] vary;
+  private final long length;
+  private Map<String, String[]> headers;
+  private long responseTime;
+  private long expires;
+  private byte[] body;
+  private File file;
+
+  /**
+   * @param key
+   *          the key, including the values of any headers named by Vary.
+   * @param status
+   * @param headers
+   * @param vary
+   *          the lower case names of the request headers the response varies on.
+   * @param body
+   * @param responseTime
+   *          when the response was received.
+   * @param expires
+   *          when the response stops being fresh.
+   */
+  public CachedResponse(String key, int status, Map<String, String[]> headers,
+      String[] vary, byte[] body, long responseTime, long expires) {
+    this.key = key;
+    this.status = status;
+    this.headers = headers;
+    this.vary = vary;
+    this.body = body;
+    this.length = body.length;
+    this.responseTime = responseTime;
+    this.expires = expires;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String[] getVary() {
+    return vary;
+  }
+
+  /**
+   * @return the size of the body.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public synchronized Map<String, String[]> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @param name
+   * @return the first value of a response header, or null if it was not present.
+   */
+  public synchronized String getHeader(String name) {
+    for (Map.Entry<String, String[]> e : headers.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+        return e.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  public synchronized long getResponseTime() {
+    return responseTime;
+  }
+
+  /**
+   * @param now
+   * @return true if the response may be served without revalidation.
+   */
+  public synchronized boolean isFresh(long now) {
+    return now < expires;
+  }
+
+  /**
+   * Replaces the headers and freshness after the origin has confirmed the entry with a
+   * 304.
+   * 
+   * @param headers
+   *          the stored headers merged with those of the 304.
+   * @param responseTime
+   * @param expires
+   */
+  public synchronized void revalidated(Map<String, String[]> headers, long responseTime,
+      long expires) {
+    this.headers = headers;
+    this.responseTime = responseTime;
+    this.expires = expires;
+  }
+
+  /**
+   * @return true if the body is held in memory.
+   */
+  public synchronized boolean inMemory() {
+    return body != null;
+  }
+
+  synchronized byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Moves the body out of memory and into a file.
+   * 
+   * @param file
+   *          the file that already contains the body.
+   */
+  synchronized void spilled(File file) {
+    this.file = file;
+    this.body = null;
+  }
+
+  synchronized File getFile() {
+    return file;
+  }
+
+  /**
+   * @return a stream over the body, wherever it is held.
+   * @throws IOException
+   *           if the body has been spilled and the file has since been removed.
+   */
+  public synchronized InputStream openBody() throws IOException {
+    if (body != null) {
+      return new ByteArrayInputStream(body);
+    }
+    return new FileInputStream(file);
+  }
+
+}
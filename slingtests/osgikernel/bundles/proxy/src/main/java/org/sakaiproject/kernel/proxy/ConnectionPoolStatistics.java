@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the connections handed out by an {@link InstrumentedConnectionManager} and the
+ * time spent waiting for them.
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean {
+
+  private final InstrumentedConnectionManager connectionManager;
+  private final AtomicLong acquisitions = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong waitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicLong leased = new AtomicLong();
+  private final AtomicLong waiting = new AtomicLong();
+
+  /**
+   * @param connectionManager
+   *          the manager whose pool is being counted.
+   */
+  public ConnectionPoolStatistics(InstrumentedConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  void waiting() {
+    waiting.incrementAndGet();
+  }
+
+  /**
+   * @param wait
+   *          the time waited for the connection, in ms.
+   */
+  void acquired(long wait) {
+    acquisitions.incrementAndGet();
+    leased.incrementAndGet();
+    waited(wait);
+  }
+
+  /**
+   * @param wait
+   *          the time waited before giving up, in ms.
+   */
+  void timedOut(long wait) {
+    timeouts.incrementAndGet();
+    waited(wait);
+  }
+
+  private void waited(long wait) {
+    waiting.decrementAndGet();
+    waitTime.addAndGet(wait);
+    long max = maxWaitTime.get();
+    while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+      max = maxWaitTime.get();
+    }
+  }
+
+  void released() {
+    leased.decrementAndGet();
+  }
+
+  public long getAcquisitions() {
+    return acquisitions.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getTotalWaitTime() {
+    return waitTime.get();
+  }
+
+  public long getMaxWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  public long getLeased() {
+    return leased.get();
+  }
+
+  public long getWaiting() {
+    return waiting.get();
+  }
+
+  public int getOpen() {
+    return connectionManager.getConnectionsInPool();
+  }
+
+  public int getMaxTotal() {
+    return connectionManager.getParams().getMaxTotalConnections();
+  }
+
+  public int getUtilisation() {
+    int max = getMaxTotal();
+    if (max <= 0) {
+      return 0;
+    }
+    return (int) (leased.get() * 100 / max);
+  }
+
+  public void reset() {
+    acquisitions.set(0);
+    timeouts.set(0);
+    waitTime.set(0);
+    maxWaitTime.set(0);
+  }
+
+}
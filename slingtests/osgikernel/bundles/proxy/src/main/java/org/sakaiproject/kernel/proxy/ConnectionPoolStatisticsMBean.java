@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+/**
+ * Utilisation and wait statistics of the proxy connection pool, exposed through JMX.
+ */
+public interface ConnectionPoolStatisticsMBean {
+
+  /**
+   * @return the number of connections handed out by the pool.
+   */
+  long getAcquisitions();
+
+  /**
+   * @return the number of requests that gave up waiting for a connection.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the total time spent waiting for connections, including waits that gave up, in
+   *         ms.
+   */
+  long getTotalWaitTime();
+
+  /**
+   * @return the longest wait for a connection, in ms.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * @return the number of connections in use now.
+   */
+  long getLeased();
+
+  /**
+   * @return the number of threads waiting for a connection now.
+   */
+  long getWaiting();
+
+  /**
+   * @return the number of connections open now, in use or idle.
+   */
+  int getOpen();
+
+  /**
+   * @return the most connections the pool will open.
+   */
+  int getMaxTotal();
+
+  /**
+   * @return the connections in use as a percentage of the most the pool will open.
+   */
+  int getUtilisation();
+
+  /**
+   * Reset the counters, leaving the number of connections in use and waiting threads.
+   */
+  void reset();
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+/**
+ * A pooling connection manager that records how long requests wait for a connection and
+ * how many connections are in use, in {@link ConnectionPoolStatistics}.
+ */
+public class InstrumentedConnectionManager extends MultiThreadedHttpConnectionManager {
+
+  private final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics(this);
+
+  /**
+   * @return the statistics of this pool.
+   */
+  public ConnectionPoolStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#getConnectionWithTimeout(org.apache.commons.httpclient.HostConfiguration,
+   *      long)
+   */
+  @Override
+  public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+      long timeout) throws ConnectionPoolTimeoutException {
+    long start = System.currentTimeMillis();
+    statistics.waiting();
+    HttpConnection connection;
+    try {
+      connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+    } catch (ConnectionPoolTimeoutException e) {
+      statistics.timedOut(System.currentTimeMillis() - start);
+      throw e;
+    } catch (RuntimeException e) {
+      statistics.timedOut(System.currentTimeMillis() - start);
+      throw e;
+    }
+    statistics.acquired(System.currentTimeMillis() - start);
+    return connection;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#releaseConnection(org.apache.commons.httpclient.HttpConnection)
+   */
+  @Override
+  public void releaseConnection(HttpConnection connection) {
+    super.releaseConnection(connection);
+    statistics.released();
+  }
+
+}
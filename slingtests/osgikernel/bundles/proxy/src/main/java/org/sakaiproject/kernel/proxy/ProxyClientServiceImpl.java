@@ -19,10 +19,11 @@
 package org.sakaiproject.kernel.proxy;
 
 import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -32,8 +33,11 @@ import org.apache.commons.httpclient.methods.OptionsMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -42,29 +46,45 @@ import org.sakaiproject.kernel.api.proxy.ProxyClientException;
 import org.sakaiproject.kernel.api.proxy.ProxyClientService;
 import org.sakaiproject.kernel.api.proxy.ProxyMethod;
 import org.sakaiproject.kernel.api.proxy.ProxyNodeSource;
+import org.sakaiproject.kernel.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.kernel.api.proxy.ProxyResponse;
 import org.sakaiproject.kernel.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.kernel.proxy.velocity.VelocityLogger;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.sakaiproject.kernel.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
 import javax.jcr.Value;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  *
  */
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClientServiceImpl.class);
+
+  /**
+   * The name the connection pool statistics are registered under in JMX.
+   */
+  private static final String MBEAN_NAME = "org.sakaiproject.kernel.proxy:type=ConnectionPool";
+
   /**
    * 
    */
@@ -85,6 +105,39 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private static final String JCR_RESOURCE_LOADER = "jcr";
 
+  @Property(longValue = 0L, description = "The most bytes of response bodies the proxy cache holds in memory, 0 (the default) disables the cache.")
+  static final String PROP_CACHE_MEMORY = "proxy.cache.memory";
+
+  @Property(longValue = 104857600L, description = "The most bytes of response bodies the proxy cache spills to disk.")
+  static final String PROP_CACHE_DISK = "proxy.cache.disk";
+
+  @Property(longValue = 1048576L, description = "The largest response body the proxy cache will store.")
+  static final String PROP_CACHE_MAX_ENTRY = "proxy.cache.max.entry";
+
+  @Property(description = "The directory the proxy cache spills to, defaults to the bundle data area.")
+  static final String PROP_CACHE_DIRECTORY = "proxy.cache.directory";
+
+  @Property(intValue = 100, description = "The most connections open to all hosts.")
+  static final String PROP_POOL_MAX_TOTAL = "proxy.pool.max.total";
+
+  @Property(intValue = 20, description = "The most connections open to any one host.")
+  static final String PROP_POOL_MAX_PER_HOST = "proxy.pool.max.per.host";
+
+  @Property(cardinality = Integer.MAX_VALUE, description = "The most connections open to particular hosts, as scheme://host[:port]=max, overriding the per host limit.")
+  static final String PROP_POOL_HOST_MAX = "proxy.pool.host.max";
+
+  @Property(longValue = 10000L, description = "The time in ms a request waits for a pooled connection before failing, 0 waits for ever.")
+  static final String PROP_POOL_ACQUIRE_TIMEOUT = "proxy.pool.acquire.timeout";
+
+  @Property(longValue = 60000L, description = "The time in ms a pooled connection may be idle before it is closed, 0 keeps idle connections open.")
+  static final String PROP_POOL_IDLE_TIMEOUT = "proxy.pool.idle.timeout";
+
+  @Property(intValue = 5000, description = "The time in ms to wait for a connection to a host to be established, 0 waits for ever.")
+  static final String PROP_CONNECT_TIMEOUT = "proxy.connect.timeout";
+
+  @Property(intValue = 30000, description = "The time in ms to wait for data from a host, 0 waits for ever.")
+  static final String PROP_SOCKET_TIMEOUT = "proxy.socket.timeout";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -94,7 +147,12 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   /**
    * A multi threaded connection manager to provide http connections with pooling.
    */
-  private MultiThreadedHttpConnectionManager httpClientConnectionManager;
+  private InstrumentedConnectionManager httpClientConnectionManager;
+
+  /**
+   * Closes connections that have been idle for longer than the idle timeout.
+   */
+  private IdleConnectionTimeoutThread idleConnectionReaper;
 
   /**
    * The http client for this component (multi threaded)
@@ -106,6 +164,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private ThreadLocal<Node> boundNode = new ThreadLocal<Node>();
 
+  /**
+   * The cache of GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
   /**
    * Create resources used by this component.
    * 
@@ -126,12 +189,81 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     velocityEngine.setExtendedProperties(configuration);
     velocityEngine.init();
 
-    httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
+    Dictionary<?, ?> props = new Hashtable<String, Object>();
+    if (ctx != null) {
+      props = ctx.getProperties();
+    }
+
+    httpClientConnectionManager = new InstrumentedConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setMaxTotalConnections(OsgiUtil.toInteger(props.get(PROP_POOL_MAX_TOTAL), 100));
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(props
+        .get(PROP_POOL_MAX_PER_HOST), 20));
+    for (String hostMax : getStrings(props, PROP_POOL_HOST_MAX)) {
+      int i = hostMax.lastIndexOf('=');
+      try {
+        HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost(new URI(hostMax.substring(0, i).trim(), false));
+        params.setMaxConnectionsPerHost(hostConfiguration, Integer.parseInt(hostMax
+            .substring(i + 1).trim()));
+      } catch (Exception e) {
+        LOGGER.warn("Ignoring invalid {} of {} ", PROP_POOL_HOST_MAX, hostMax);
+      }
+    }
+    params.setConnectionTimeout(OsgiUtil.toInteger(props.get(PROP_CONNECT_TIMEOUT), 5000));
+    params.setSoTimeout(OsgiUtil.toInteger(props.get(PROP_SOCKET_TIMEOUT), 30000));
     httpClientConnectionManager.setParams(params);
 
     httpClient = new HttpClient(httpClientConnectionManager);
+    httpClient.getParams().setConnectionManagerTimeout(
+        OsgiUtil.toLong(props.get(PROP_POOL_ACQUIRE_TIMEOUT), 10000L));
+
+    long idleTimeout = OsgiUtil.toLong(props.get(PROP_POOL_IDLE_TIMEOUT), 60000L);
+    if (idleTimeout > 0) {
+      idleConnectionReaper = new IdleConnectionTimeoutThread();
+      idleConnectionReaper.setName("Proxy idle connection reaper");
+      idleConnectionReaper.setConnectionTimeout(idleTimeout);
+      idleConnectionReaper.setTimeoutInterval(Math.max(1000L, idleTimeout / 2));
+      idleConnectionReaper.addConnectionManager(httpClientConnectionManager);
+      idleConnectionReaper.start();
+    }
+
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(httpClientConnectionManager.getStatistics(), name);
+    } catch (Exception e) {
+      LOGGER.warn("Failed to register proxy connection pool statistics " + e.getMessage());
+    }
+
+    long memory = OsgiUtil.toLong(props.get(PROP_CACHE_MEMORY), 0L);
+    if (memory > 0) {
+      File directory = null;
+      if (props.get(PROP_CACHE_DIRECTORY) instanceof String) {
+        directory = new File((String) props.get(PROP_CACHE_DIRECTORY));
+      } else if (ctx != null && ctx.getBundleContext() != null) {
+        directory = ctx.getBundleContext().getDataFile("proxy-cache");
+      }
+      if (directory == null) {
+        directory = new File(System.getProperty("java.io.tmpdir"), "sakai-proxy-cache");
+      }
+      responseCache = new ProxyResponseCache(memory, OsgiUtil.toLong(props
+          .get(PROP_CACHE_DISK), 104857600L), OsgiUtil.toLong(props
+          .get(PROP_CACHE_MAX_ENTRY), 1048576L), directory);
+    }
+  }
+
+  private String[] getStrings(Dictionary<?, ?> props, String name) {
+    Object propValue = props.get(name);
+    if (propValue instanceof String[]) {
+      return (String[]) propValue;
+    } else if (propValue instanceof String && ((String) propValue).length() > 0) {
+      return new String[] { (String) propValue };
+    }
+    return new String[0];
   }
 
   /**
@@ -141,7 +273,20 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * @throws Exception
    */
   public void deactivate(ComponentContext ctx) throws Exception {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+    } catch (Exception e) {
+      LOGGER.debug("Failed to unregister proxy connection pool statistics " + e.getMessage());
+    }
+    if (idleConnectionReaper != null) {
+      idleConnectionReaper.shutdown();
+      idleConnectionReaper = null;
+    }
     httpClientConnectionManager.shutdown();
+    if (responseCache != null) {
+      responseCache.clear();
+      responseCache = null;
+    }
   }
 
   /**
@@ -300,6 +445,20 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
+        // responses shaped by a preprocessor may carry per user state, so are never
+        // shared.
+        if (responseCache != null && method instanceof GetMethod
+            && requestInputStream == null
+            && !node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR)) {
+          long ttl = -1;
+          if (node.hasProperty(SAKAI_PROXY_CACHE_TTL)) {
+            ttl = node.getProperty(SAKAI_PROXY_CACHE_TTL).getLong();
+          }
+          if (ttl != 0) {
+            return responseCache.execute(httpClient, method, ttl);
+          }
+        }
+
         int result = httpClient.executeMethod(method);
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
@@ -0,0 +1,755 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.kernel.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared cache of proxied GET responses that follows the HTTP/1.1 caching rules.
+ * Responses are stored according to their Cache-Control, Expires and Vary headers and
+ * revalidated with If-None-Match and If-Modified-Since once they are stale. Bodies are
+ * held in a size bounded memory tier, entries evicted from memory are spilled to a size
+ * bounded directory on disk. Identical misses that arrive while a request to the origin
+ * is in flight wait for that request rather than making their own.
+ */
+public class ProxyResponseCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  /**
+   * Status codes that may be stored without explicit freshness information being needed to
+   * allow it.
+   */
+  private static final Set<Integer> CACHEABLE_STATUS = new HashSet<Integer>(Arrays
+      .asList(new Integer[] { 200, 203, 300, 301, 404, 410 }));
+
+  /**
+   * Headers that describe the connection to the origin, these are never stored.
+   */
+  private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays
+      .asList(new String[] { "connection", "keep-alive", "proxy-authenticate",
+          "proxy-authorization", "te", "trailers", "transfer-encoding", "upgrade",
+          "content-length" }));
+
+  /**
+   * The most urls whose Vary headers are remembered.
+   */
+  private static final int MAX_VARY_INDEX = 10000;
+
+  private static final String BODY_SUFFIX = ".body";
+
+  private final long memoryLimit;
+  private final long diskLimit;
+  private final long maxEntrySize;
+  private final File directory;
+
+  /**
+   * Entries with the body in memory, in access order.
+   */
+  private final LinkedHashMap<String, CachedResponse> memory = new LinkedHashMap<String, CachedResponse>(
+      16, 0.75f, true);
+  /**
+   * Entries with the body spilled to disk, in access order.
+   */
+  private final LinkedHashMap<String, CachedResponse> disk = new LinkedHashMap<String, CachedResponse>(
+      16, 0.75f, true);
+  /**
+   * The request headers the last response stored for each url varies on.
+   */
+  private final Map<String, String[]> varyIndex = new LinkedHashMap<String, String[]>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, String[]> eldest) {
+      return size() > MAX_VARY_INDEX;
+    }
+  };
+  private long memorySize;
+  private long diskSize;
+
+  private final ConcurrentMap<String, FutureTask<Fetch>> inflight = new ConcurrentHashMap<String, FutureTask<Fetch>>();
+  private final AtomicLong fileCounter = new AtomicLong();
+
+  /**
+   * The result of a request to the origin. Either the response was stored and can be
+   * shared with other requests for the same resource, or it could not be stored and is
+   * only available to the request that made it.
+   */
+  private static class Fetch {
+    private CachedResponse cached;
+    private ProxyResponse live;
+  }
+
+  /**
+   * @param memoryLimit
+   *          the most bytes of response bodies to hold in memory.
+   * @param diskLimit
+   *          the most bytes of response bodies to hold on disk, 0 to not spill to disk.
+   * @param maxEntrySize
+   *          the largest response body that will be stored.
+   * @param directory
+   *          the directory to spill bodies to, any bodies left in it are removed.
+   */
+  public ProxyResponseCache(long memoryLimit, long diskLimit, long maxEntrySize,
+      File directory) {
+    this.memoryLimit = memoryLimit;
+    this.diskLimit = diskLimit;
+    this.maxEntrySize = maxEntrySize;
+    this.directory = directory;
+    if (diskLimit > 0) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        LOGGER.warn("Unable to create proxy cache directory {} ", directory);
+      }
+      deleteBodies();
+    }
+  }
+
+  /**
+   * Executes the method, serving it from the cache where the HTTP caching rules allow it.
+   * 
+   * @param httpClient
+   * @param method
+   *          a method that has not been executed.
+   * @param ttl
+   *          the number of seconds a response is fresh for, overriding the response
+   *          headers, or -1 to use the response headers.
+   * @return the response, which must be closed.
+   * @throws IOException
+   */
+  public ProxyResponse execute(final HttpClient httpClient, final HttpMethod method,
+      final long ttl) throws IOException {
+    if (!isCacheable(method)) {
+      return direct(httpClient, method);
+    }
+    final String url = method.getURI().toString();
+    // a response from the cache is always complete, so the validators of the client are
+    // not passed on.
+    method.removeRequestHeader("If-None-Match");
+    method.removeRequestHeader("If-Modified-Since");
+
+    long now = System.currentTimeMillis();
+    final CachedResponse cached = lookup(url, method);
+    if (cached != null && cached.isFresh(now) && !isNoCache(method)) {
+      ProxyResponse response = open(cached, now);
+      if (response != null) {
+        return response;
+      }
+    }
+
+    FutureTask<Fetch> task = new FutureTask<Fetch>(new Callable<Fetch>() {
+      public Fetch call() throws IOException {
+        return load(httpClient, method, url, cached, ttl);
+      }
+    });
+    FutureTask<Fetch> running = inflight.putIfAbsent(url, task);
+    if (running == null) {
+      Fetch fetch;
+      try {
+        task.run();
+        fetch = get(task, url);
+      } finally {
+        inflight.remove(url, task);
+      }
+      if (fetch.live != null) {
+        return fetch.live;
+      }
+      ProxyResponse response = open(fetch.cached, System.currentTimeMillis());
+      if (response != null) {
+        return response;
+      }
+    } else {
+      Fetch fetch = get(running, url);
+      if (fetch.cached != null && fetch.cached.getKey().equals(variantKey(url,
+          fetch.cached.getVary(), method))) {
+        ProxyResponse response = open(fetch.cached, System.currentTimeMillis());
+        if (response != null) {
+          return response;
+        }
+      }
+    }
+    return direct(httpClient, method);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    synchronized (this) {
+      memory.clear();
+      disk.clear();
+      varyIndex.clear();
+      memorySize = 0;
+      diskSize = 0;
+    }
+    if (diskLimit > 0) {
+      deleteBodies();
+    }
+  }
+
+  /**
+   * @return the number of bytes of bodies held in memory.
+   */
+  public synchronized long getMemorySize() {
+    return memorySize;
+  }
+
+  /**
+   * @return the number of bytes of bodies held on disk.
+   */
+  public synchronized long getDiskSize() {
+    return diskSize;
+  }
+
+  /**
+   * Makes the request to the origin, conditionally if there is a stale entry, and stores
+   * the response if it can be.
+   */
+  private Fetch load(HttpClient httpClient, HttpMethod method, String url,
+      CachedResponse stale, long ttl) throws IOException {
+    if (stale != null) {
+      String etag = stale.getHeader("ETag");
+      if (etag != null) {
+        method.setRequestHeader("If-None-Match", etag);
+      }
+      String lastModified = stale.getHeader("Last-Modified");
+      if (lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", lastModified);
+      }
+    }
+    int status = httpClient.executeMethod(method);
+    long now = System.currentTimeMillis();
+    Fetch fetch = new Fetch();
+
+    if (status == 304 && stale != null) {
+      Map<String, String[]> headers = merge(stale.getHeaders(), storedHeaders(method));
+      method.releaseConnection();
+      long lifetime = getLifetime(headers, ttl);
+      stale.revalidated(headers, now, getExpires(headers, now, lifetime, ttl));
+      if (lifetime < 0 || isPrivate(headers)) {
+        remove(stale.getKey());
+      }
+      fetch.cached = stale;
+      return fetch;
+    }
+
+    ProxyResponseImpl live = new ProxyResponseImpl(status, method);
+    Map<String, String[]> headers = storedHeaders(method);
+    long lifetime = getLifetime(headers, ttl);
+    String[] vary = getVary(headers);
+    if (!CACHEABLE_STATUS.contains(status) || lifetime < 0 || isPrivate(headers)
+        || vary == null || method.getResponseHeader("Set-Cookie") != null
+        || method.getResponseHeader("Set-Cookie2") != null) {
+      if (stale != null) {
+        remove(stale.getKey());
+      }
+      fetch.live = live;
+      return fetch;
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.getValue().trim()) > maxEntrySize) {
+          fetch.live = live;
+          return fetch;
+        }
+      } catch (NumberFormatException e) {
+      }
+    }
+
+    byte[] body = new byte[0];
+    InputStream in = method.getResponseBodyAsStream();
+    if (in != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        baos.write(buffer, 0, n);
+        if (baos.size() > maxEntrySize) {
+          // too big to keep, hand back what has been read followed by the rest.
+          fetch.live = new ProxyResponseImpl(status, method, baos.toByteArray());
+          return fetch;
+        }
+      }
+      body = baos.toByteArray();
+    }
+    method.releaseConnection();
+
+    headers.put("Content-Length", new String[] { String.valueOf(body.length) });
+    CachedResponse entry = new CachedResponse(variantKey(url, vary, method), status,
+        headers, vary, body, now, getExpires(headers, now, lifetime, ttl));
+    store(url, entry);
+    fetch.cached = entry;
+    return fetch;
+  }
+
+  /**
+   * Executes the method without the cache.
+   */
+  private ProxyResponse direct(HttpClient httpClient, HttpMethod method)
+      throws IOException {
+    int status = httpClient.executeMethod(method);
+    return new ProxyResponseImpl(status, method);
+  }
+
+  /**
+   * @return a response over the entry, or null if the body has been removed from disk
+   *         since the entry was found.
+   */
+  private ProxyResponse open(CachedResponse entry, long now) {
+    try {
+      return new CachedProxyResponse(entry, now);
+    } catch (IOException e) {
+      LOGGER.debug("Cached body for {} has gone, cause: {} ", entry.getKey(), e
+          .getMessage());
+      remove(entry.getKey());
+      return null;
+    }
+  }
+
+  private Fetch get(FutureTask<Fetch> task, String url) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + url);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      IOException ioe = new IOException("Failed to fetch " + url);
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+
+  private synchronized CachedResponse lookup(String url, HttpMethod method) {
+    String[] vary = varyIndex.get(url);
+    if (vary == null) {
+      return null;
+    }
+    String key = variantKey(url, vary, method);
+    CachedResponse entry = memory.get(key);
+    if (entry == null) {
+      entry = disk.get(key);
+    }
+    return entry;
+  }
+
+  /**
+   * Adds an entry to the memory tier, spilling the least recently used entries to disk
+   * when the tier is full.
+   */
+  private void store(String url, CachedResponse entry) {
+    List<CachedResponse> spill = new ArrayList<CachedResponse>();
+    synchronized (this) {
+      varyIndex.put(url, entry.getVary());
+      removeLocked(entry.getKey());
+      if (entry.getLength() > memoryLimit) {
+        spill.add(entry);
+      } else {
+        memory.put(entry.getKey(), entry);
+        memorySize += entry.getLength();
+        for (Iterator<CachedResponse> i = memory.values().iterator(); memorySize > memoryLimit
+            && i.hasNext();) {
+          CachedResponse eldest = i.next();
+          i.remove();
+          memorySize -= eldest.getLength();
+          spill.add(eldest);
+        }
+      }
+    }
+    for (CachedResponse e : spill) {
+      spill(e);
+    }
+  }
+
+  /**
+   * Writes the body of an entry that has left the memory tier to disk, outside the lock,
+   * then adds it to the disk tier unless it has been replaced in the meantime.
+   */
+  private void spill(CachedResponse entry) {
+    if (entry.getLength() > diskLimit) {
+      return;
+    }
+    File file = new File(directory, fileCounter.incrementAndGet() + BODY_SUFFIX);
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      out.write(entry.getBody());
+    } catch (IOException e) {
+      LOGGER.warn("Unable to spill {} to disk, cause: {} ", entry.getKey(), e
+          .getMessage());
+      file.delete();
+      return;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+    synchronized (this) {
+      String key = entry.getKey();
+      if (memory.containsKey(key) || disk.containsKey(key)) {
+        file.delete();
+        return;
+      }
+      entry.spilled(file);
+      disk.put(key, entry);
+      diskSize += entry.getLength();
+      for (Iterator<CachedResponse> i = disk.values().iterator(); diskSize > diskLimit
+          && i.hasNext();) {
+        CachedResponse eldest = i.next();
+        i.remove();
+        diskSize -= eldest.getLength();
+        eldest.getFile().delete();
+      }
+    }
+  }
+
+  private synchronized void remove(String key) {
+    removeLocked(key);
+  }
+
+  private void removeLocked(String key) {
+    CachedResponse entry = memory.remove(key);
+    if (entry != null) {
+      memorySize -= entry.getLength();
+    }
+    entry = disk.remove(key);
+    if (entry != null) {
+      diskSize -= entry.getLength();
+      entry.getFile().delete();
+    }
+  }
+
+  private void deleteBodies() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().endsWith(BODY_SUFFIX)) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the request may be answered from, or stored in, a shared cache. A
+   *         request carrying credentials or cookies is never shared.
+   */
+  private boolean isCacheable(HttpMethod method) {
+    if (!"GET".equals(method.getName())) {
+      return false;
+    }
+    if (method.getRequestHeader("Authorization") != null
+        || method.getRequestHeader("Cookie") != null
+        || method.getRequestHeader("Range") != null) {
+      return false;
+    }
+    Header cacheControl = method.getRequestHeader("Cache-Control");
+    return cacheControl == null
+        || !parseCacheControl(new String[] { cacheControl.getValue() }).containsKey(
+            "no-store");
+  }
+
+  /**
+   * @return true if the client has asked for the response to be revalidated.
+   */
+  private boolean isNoCache(HttpMethod method) {
+    Header pragma = method.getRequestHeader("Pragma");
+    if (pragma != null && pragma.getValue().toLowerCase().indexOf("no-cache") >= 0) {
+      return true;
+    }
+    Header cacheControl = method.getRequestHeader("Cache-Control");
+    if (cacheControl == null) {
+      return false;
+    }
+    Map<String, String> directives = parseCacheControl(new String[] { cacheControl
+        .getValue() });
+    return directives.containsKey("no-cache") || "0".equals(directives.get("max-age"));
+  }
+
+  /**
+   * @return true if the response must not be stored in a shared cache.
+   */
+  private boolean isPrivate(Map<String, String[]> headers) {
+    Map<String, String> directives = parseCacheControl(getHeader(headers,
+        "Cache-Control"));
+    return directives.containsKey("no-store") || directives.containsKey("private");
+  }
+
+  /**
+   * @return the number of milliseconds the response is fresh for once received, 0 if it
+   *         must always be revalidated, or -1 if it may not be stored.
+   */
+  private long getLifetime(Map<String, String[]> headers, long ttl) {
+    boolean validator = getHeader(headers, "ETag") != null
+        || getHeader(headers, "Last-Modified") != null;
+    if (ttl > 0) {
+      return ttl * 1000L;
+    }
+    long lifetime = -1;
+    Map<String, String> directives = parseCacheControl(getHeader(headers,
+        "Cache-Control"));
+    if (directives.containsKey("no-cache")) {
+      lifetime = 0;
+    } else if (directives.containsKey("s-maxage")) {
+      lifetime = toMillis(directives.get("s-maxage"));
+    } else if (directives.containsKey("max-age")) {
+      lifetime = toMillis(directives.get("max-age"));
+    } else if (getHeader(headers, "Expires") != null) {
+      long expires = parseDate(getHeader(headers, "Expires")[0]);
+      long date = parseDate(getFirst(headers, "Date"));
+      if (expires < 0) {
+        // an invalid Expires means already expired.
+        lifetime = 0;
+      } else {
+        if (date < 0) {
+          date = System.currentTimeMillis();
+        }
+        lifetime = Math.max(0, expires - date);
+      }
+    }
+    if (lifetime < 0 && validator) {
+      lifetime = 0;
+    }
+    if (lifetime == 0 && !validator) {
+      return -1;
+    }
+    return lifetime;
+  }
+
+  /**
+   * @return when a response received now stops being fresh. The age of the response is
+   *         only taken into account when the freshness comes from the response.
+   */
+  private long getExpires(Map<String, String[]> headers, long now, long lifetime, long ttl) {
+    if (ttl > 0) {
+      return now + lifetime;
+    }
+    return now + lifetime - getAge(headers, now);
+  }
+
+  /**
+   * @return the age of the response when it was received, from its Age and Date headers.
+   */
+  private long getAge(Map<String, String[]> headers, long now) {
+    long age = 0;
+    String ageHeader = getFirst(headers, "Age");
+    if (ageHeader != null) {
+      age = Math.max(0, toMillis(ageHeader));
+    }
+    long date = parseDate(getFirst(headers, "Date"));
+    if (date > 0) {
+      age = Math.max(age, now - date);
+    }
+    return age;
+  }
+
+  /**
+   * @return the lower case names of the request headers the response varies on, or null
+   *         if it varies on everything.
+   */
+  private String[] getVary(Map<String, String[]> headers) {
+    String[] values = getHeader(headers, "Vary");
+    if (values == null) {
+      return new String[0];
+    }
+    List<String> names = new ArrayList<String>();
+    for (String value : values) {
+      for (String name : value.split(",")) {
+        name = name.trim().toLowerCase();
+        if ("*".equals(name)) {
+          return null;
+        }
+        if (name.length() > 0) {
+          names.add(name);
+        }
+      }
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * @return the key of the variant of the url the request selects.
+   */
+  private String variantKey(String url, String[] vary, HttpMethod method) {
+    if (vary.length == 0) {
+      return url;
+    }
+    StringBuilder sb = new StringBuilder(url);
+    for (String name : vary) {
+      Header h = method.getRequestHeader(name);
+      sb.append('\n').append(name).append(':');
+      if (h != null) {
+        sb.append(h.getValue());
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the response headers of the method that describe the response rather than the
+   *         connection.
+   */
+  private Map<String, String[]> storedHeaders(HttpMethod method) {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    for (Header h : method.getResponseHeaders()) {
+      String name = h.getName();
+      if (HOP_BY_HOP.contains(name.toLowerCase())) {
+        continue;
+      }
+      String[] values = headers.get(name);
+      if (values == null) {
+        values = new String[] { h.getValue() };
+      } else {
+        String[] newValues = new String[values.length + 1];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        newValues[values.length] = h.getValue();
+        values = newValues;
+      }
+      headers.put(name, values);
+    }
+    return headers;
+  }
+
+  /**
+   * @return the stored headers with those of a 304 replacing them.
+   */
+  private Map<String, String[]> merge(Map<String, String[]> stored,
+      Map<String, String[]> updated) {
+    Map<String, String[]> merged = new HashMap<String, String[]>(stored);
+    for (Entry<String, String[]> e : updated.entrySet()) {
+      for (Iterator<String> i = merged.keySet().iterator(); i.hasNext();) {
+        if (i.next().equalsIgnoreCase(e.getKey())) {
+          i.remove();
+        }
+      }
+      merged.put(e.getKey(), e.getValue());
+    }
+    return merged;
+  }
+
+  private static String[] getHeader(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+        return e.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String getFirst(Map<String, String[]> headers, String name) {
+    String[] values = getHeader(headers, name);
+    return values == null ? null : values[0];
+  }
+
+  /**
+   * @return the Cache-Control directives, with lower case names and unquoted values.
+   */
+  private static Map<String, String> parseCacheControl(String[] values) {
+    Map<String, String> directives = new HashMap<String, String>();
+    if (values != null) {
+      for (String value : values) {
+        for (String directive : value.split(",")) {
+          String[] nv = directive.split("=", 2);
+          String name = nv[0].trim().toLowerCase();
+          if (name.length() == 0) {
+            continue;
+          }
+          String v = null;
+          if (nv.length > 1) {
+            v = nv[1].trim();
+            if (v.startsWith("\"") && v.endsWith("\"") && v.length() > 1) {
+              v = v.substring(1, v.length() - 1);
+            }
+          }
+          directives.put(name, v);
+        }
+      }
+    }
+    return directives;
+  }
+
+  /**
+   * @return a number of seconds as milliseconds, or -1 if it is not a number.
+   */
+  private static long toMillis(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim()) * 1000L;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static long parseDate(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return DateUtil.parseDate(value).getTime();
+    } catch (DateParseException e) {
+      return -1;
+    }
+  }
+
+}
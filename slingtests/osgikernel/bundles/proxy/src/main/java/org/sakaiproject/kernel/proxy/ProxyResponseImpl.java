@@ -19,10 +19,14 @@ package org.sakaiproject.kernel.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.sakaiproject.kernel.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,14 +38,30 @@ public class ProxyResponseImpl implements ProxyResponse {
   private int result;
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
+  /**
+   * The start of the body, if it has already been read from the method.
+   */
+  private byte[] prefix;
 
   /**
    * @param result
    * @param method
    */
   public ProxyResponseImpl(int result, HttpMethod method) {
+    this(result, method, null);
+  }
+
+  /**
+   * @param result
+   * @param method
+   * @param prefix
+   *          the part of the body that has already been read from the method, the rest
+   *          of the body is read from the method.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, byte[] prefix) {
     this.result = result;
     this.method = method;
+    this.prefix = prefix;
 
     for (Header h : method.getResponseHeaders()) {
       String name = h.getName();
@@ -92,6 +112,16 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
+    if (prefix != null) {
+      InputStream in = getResponseBodyAsInputStream();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        baos.write(buffer, 0, n);
+      }
+      return baos.toByteArray();
+    }
     return method.getResponseBody();
   }
 
@@ -100,6 +130,13 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
+    if (prefix != null) {
+      InputStream rest = method.getResponseBodyAsStream();
+      if (rest == null) {
+        return new ByteArrayInputStream(prefix);
+      }
+      return new SequenceInputStream(new ByteArrayInputStream(prefix), rest);
+    }
     return method.getResponseBodyAsStream();
   }
 
@@ -108,6 +145,13 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.kernel.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
+    if (prefix != null) {
+      String charset = "ISO-8859-1";
+      if (method instanceof HttpMethodBase) {
+        charset = ((HttpMethodBase) method).getResponseCharSet();
+      }
+      return new String(getResponseBody(), charset);
+    }
     return method.getResponseBodyAsString();
   }
 
@@ -18,6 +18,8 @@
 package org.sakaiproject.kernel.proxy;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
@@ -37,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -307,7 +310,16 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet {
     } catch (IOException e) {
       throw e;
     } catch (ProxyClientException e) {
-      response.sendError(500, e.getMessage());
+      Throwable cause = e.getCause();
+      if (cause instanceof ConnectionPoolTimeoutException) {
+        // all the connections to the end point are in use.
+        response.sendError(503, e.getMessage());
+      } else if (cause instanceof ConnectTimeoutException
+          || cause instanceof SocketTimeoutException) {
+        response.sendError(504, e.getMessage());
+      } else {
+        response.sendError(500, e.getMessage());
+      }
     } catch (RepositoryException e) {
       response.sendError(500, e.getMessage());
     }
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class InstrumentedConnectionManagerTest {
+
+  @Test
+  public void testStatistics() throws Exception {
+    InstrumentedConnectionManager manager = new InstrumentedConnectionManager();
+    manager.getParams().setDefaultMaxConnectionsPerHost(1);
+    manager.getParams().setMaxTotalConnections(4);
+    ConnectionPoolStatistics statistics = manager.getStatistics();
+    HostConfiguration host = new HostConfiguration();
+    host.setHost("localhost", 8888);
+
+    HttpConnection connection = manager.getConnectionWithTimeout(host, 100);
+    assertEquals(1, statistics.getAcquisitions());
+    assertEquals(1, statistics.getLeased());
+    assertEquals(1, statistics.getOpen());
+    assertEquals(25, statistics.getUtilisation());
+
+    try {
+      manager.getConnectionWithTimeout(host, 100);
+      fail();
+    } catch (ConnectionPoolTimeoutException e) {
+    }
+    assertEquals(1, statistics.getTimeouts());
+    assertEquals(0, statistics.getWaiting());
+    assertTrue(statistics.getMaxWaitTime() >= 90);
+
+    connection.releaseConnection();
+    assertEquals(0, statistics.getLeased());
+    assertEquals(1, statistics.getOpen());
+
+    statistics.reset();
+    assertEquals(0, statistics.getAcquisitions());
+    assertEquals(0, statistics.getTimeouts());
+    manager.shutdown();
+  }
+
+}
@@ -322,6 +322,8 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).andReturn(
         false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).andReturn(false)
+        .anyTimes();
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
         true);
 
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.kernel.api.proxy.ProxyResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the proxy response cache against an embedded HTTP server.
+ */
+public class ProxyResponseCacheTest {
+
+  private Server server;
+  private String url;
+  private HttpClient httpClient;
+  private MultiThreadedHttpConnectionManager connectionManager;
+  private File directory;
+
+  private AtomicInteger hits = new AtomicInteger();
+  private AtomicInteger notModified = new AtomicInteger();
+  private String cacheControl;
+  private String etag;
+  private String vary;
+  private String setCookie;
+  private long delay;
+
+  @Before
+  public void before() throws Exception {
+    server = new Server(0);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, HttpServletRequest request,
+          HttpServletResponse response, int dispatch) throws IOException,
+          ServletException {
+        hits.incrementAndGet();
+        if (delay > 0) {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+          }
+        }
+        if (etag != null) {
+          response.setHeader("ETag", etag);
+        }
+        if (cacheControl != null) {
+          response.setHeader("Cache-Control", cacheControl);
+        }
+        if (vary != null) {
+          response.setHeader("Vary", vary);
+        }
+        if (setCookie != null) {
+          response.setHeader("Set-Cookie", setCookie);
+        }
+        if (etag != null && etag.equals(request.getHeader("If-None-Match"))) {
+          notModified.incrementAndGet();
+          response.setStatus(304);
+        } else {
+          response.setContentType("text/plain");
+          response.setStatus(200);
+          String body = request.getRequestURI() + "?" + request.getQueryString() + " "
+              + request.getHeader("Accept-Language") + " " + hits.get();
+          response.getWriter().print(body);
+        }
+        ((Request) request).setHandled(true);
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/feed";
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(20);
+    httpClient = new HttpClient(connectionManager);
+    directory = new File(System.getProperty("java.io.tmpdir"), "ProxyResponseCacheTest");
+  }
+
+  @After
+  public void after() throws Exception {
+    connectionManager.shutdown();
+    server.stop();
+    server.destroy();
+  }
+
+  @Test
+  public void testFreshResponseIsCached() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "max-age=60";
+    String first = get(cache, url + "?a=1", null, -1);
+    String second = get(cache, url + "?a=1", null, -1);
+    assertEquals(first, second);
+    assertEquals(1, hits.get());
+    get(cache, url + "?a=2", null, -1);
+    assertEquals(2, hits.get());
+  }
+
+  @Test
+  public void testNotStored() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "private, max-age=60";
+    get(cache, url, null, -1);
+    get(cache, url, null, -1);
+    assertEquals(2, hits.get());
+    cacheControl = "max-age=60";
+    setCookie = "session=1";
+    get(cache, url, null, -1);
+    get(cache, url, null, -1);
+    assertEquals(4, hits.get());
+    setCookie = null;
+    cacheControl = null;
+    get(cache, url, null, -1);
+    get(cache, url, null, -1);
+    assertEquals(6, hits.get());
+    assertEquals(0, cache.getMemorySize());
+  }
+
+  @Test
+  public void testRevalidation() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "no-cache";
+    etag = "\"v1\"";
+    String first = get(cache, url, null, -1);
+    String second = get(cache, url, null, -1);
+    assertEquals(first, second);
+    assertEquals(2, hits.get());
+    assertEquals(1, notModified.get());
+
+    etag = "\"v2\"";
+    String third = get(cache, url, null, -1);
+    assertTrue(!first.equals(third));
+    assertEquals(1, notModified.get());
+  }
+
+  @Test
+  public void testTtlOverride() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    get(cache, url, null, 60);
+    get(cache, url, null, 60);
+    assertEquals(1, hits.get());
+  }
+
+  @Test
+  public void testVary() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "max-age=60";
+    vary = "Accept-Language";
+    String en = get(cache, url, "en", -1);
+    String fr = get(cache, url, "fr", -1);
+    assertEquals(2, hits.get());
+    assertEquals(en, get(cache, url, "en", -1));
+    assertEquals(fr, get(cache, url, "fr", -1));
+    assertEquals(2, hits.get());
+  }
+
+  @Test
+  public void testSpillToDisk() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(25, 10000, 1000, directory);
+    cacheControl = "max-age=60";
+    String first = get(cache, url + "?page=1", null, -1);
+    get(cache, url + "?page=2", null, -1);
+    assertTrue(cache.getDiskSize() > 0);
+    assertEquals(first, get(cache, url + "?page=1", null, -1));
+    assertEquals(2, hits.get());
+    cache.clear();
+    assertEquals(0, cache.getDiskSize());
+  }
+
+  @Test
+  public void testTooLargeNotStored() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 10, directory);
+    cacheControl = "max-age=60";
+    String first = get(cache, url, null, -1);
+    assertTrue(first.startsWith("/feed"));
+    get(cache, url, null, -1);
+    assertEquals(2, hits.get());
+  }
+
+  @Test
+  public void testMissesAreCoalesced() throws Exception {
+    final ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "max-age=60";
+    delay = 500;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<String> bodies = new ArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 10; i++) {
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            start.await();
+            String body = get(cache, url, null, -1);
+            synchronized (bodies) {
+              bodies.add(body);
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(10, bodies.size());
+    assertEquals(1, hits.get());
+    for (String body : bodies) {
+      assertEquals(bodies.get(0), body);
+    }
+  }
+
+  @Test
+  public void testAuthorizationBypassesCache() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "max-age=60";
+    GetMethod method = new GetMethod(url);
+    method.addRequestHeader("Authorization", "Basic Zm9vOmJhcg==");
+    ProxyResponse response = cache.execute(httpClient, method, -1);
+    response.close();
+    assertEquals(0, cache.getMemorySize());
+    assertNull(response.getResponseHeaders().get("Age"));
+  }
+
+  @Test
+  public void testCookieBypassesCache() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(10000, 0, 1000, directory);
+    cacheControl = "max-age=60";
+    GetMethod method = new GetMethod(url);
+    method.addRequestHeader("Cookie", "JSESSIONID=1234");
+    ProxyResponse response = cache.execute(httpClient, method, -1);
+    response.close();
+    assertEquals(0, cache.getMemorySize());
+    assertNull(response.getResponseHeaders().get("Age"));
+  }
+
+  private String get(ProxyResponseCache cache, String url, String language, long ttl)
+      throws IOException {
+    GetMethod method = new GetMethod(url);
+    if (language != null) {
+      method.addRequestHeader("Accept-Language", language);
+    }
+    ProxyResponse response = cache.execute(httpClient, method, ttl);
+    try {
+      assertEquals(200, response.getResultCode());
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.search;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link SearchPropertyProvider} that only computes the properties the query template
+ * references. Providers with expensive properties should implement this so that searches
+ * which do not use them do not pay for them.
+ */
+public interface SelectiveSearchPropertyProvider extends SearchPropertyProvider {
+
+  /**
+   * @param request
+   * @param propertiesMap
+   * @param propertyNames
+   *          the _ properties referenced by the query template, only these need to be
+   *          loaded.
+   */
+  void loadUserProperties(SlingHttpServletRequest request,
+      Map<String, String> propertiesMap, Set<String> propertyNames);
+
+}
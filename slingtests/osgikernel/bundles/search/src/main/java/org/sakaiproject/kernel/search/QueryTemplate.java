@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+/**
+ * A query template of the form select * from y where x = {q} compiled into a list of
+ * literal and variable tokens, together with the other search properties of the node it
+ * was read from. Instances are immutable and can be shared between requests.
+ */
+public class QueryTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryTemplate.class);
+
+  private final String template;
+  private final String queryLanguage;
+  private final String propertyProviderName;
+  private final String resultProcessorName;
+  private final String batchResultProcessorName;
+  /**
+   * Literal text as String, substitutions as Variable.
+   */
+  private final Object[] tokens;
+  private final int literalLength;
+  private final Set<String> userPropertyNames;
+
+  /**
+   * A {name|default} substitution, names starting with _ come from the user properties,
+   * all others from the request parameters.
+   */
+  private static final class Variable {
+    private final String name;
+    private final String defaultValue;
+    private final boolean userProperty;
+
+    private Variable(String name, String defaultValue) {
+      this.name = name;
+      this.defaultValue = defaultValue;
+      this.userProperty = name.startsWith("_");
+    }
+  }
+
+  /**
+   * @param template
+   *          the query template.
+   * @param queryLanguage
+   *          the query language, used to escape substituted values.
+   * @param propertyProviderName
+   *          the name of the property provider, may be null.
+   * @param resultProcessorName
+   *          the name of the result processor, may be null.
+   * @param batchResultProcessorName
+   *          the name of the batch result processor, may be null.
+   */
+  public QueryTemplate(String template, String queryLanguage, String propertyProviderName,
+      String resultProcessorName, String batchResultProcessorName) {
+    this.template = template;
+    this.queryLanguage = queryLanguage;
+    this.propertyProviderName = propertyProviderName;
+    this.resultProcessorName = resultProcessorName;
+    this.batchResultProcessorName = batchResultProcessorName;
+
+    List<Object> parsed = new ArrayList<Object>();
+    Set<String> names = new HashSet<String>();
+    StringBuilder literal = new StringBuilder();
+    int length = 0;
+    boolean escape = false;
+    int vstart = -1;
+    for (int i = 0; i < template.length(); i++) {
+      char c = template.charAt(i);
+      if (escape) {
+        literal.append(c);
+        escape = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = template.substring(vstart + 1, i);
+          String defaultValue = null;
+          // Take care of default values
+          int bar = v.indexOf('|');
+          if (bar >= 0) {
+            int next = v.indexOf('|', bar + 1);
+            defaultValue = v.substring(bar + 1, next < 0 ? v.length() : next);
+            v = v.substring(0, bar);
+          }
+          Variable variable = new Variable(v, defaultValue);
+          if (variable.userProperty) {
+            names.add(v);
+          }
+          parsed.add(variable);
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          if (literal.length() > 0) {
+            parsed.add(literal.toString());
+            length += literal.length();
+            literal.setLength(0);
+          }
+          vstart = i;
+          break;
+        case '\\':
+          escape = true;
+          break;
+        default:
+          literal.append(c);
+        }
+      }
+    }
+    if (literal.length() > 0) {
+      parsed.add(literal.toString());
+      length += literal.length();
+    }
+    this.tokens = parsed.toArray();
+    this.literalLength = length;
+    this.userPropertyNames = Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * Compiles the template held on a search node.
+   * 
+   * @param node
+   *          the search node.
+   * @return the compiled template, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public static QueryTemplate compile(Node node) throws RepositoryException {
+    if (!node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      return null;
+    }
+    String queryTemplate = node.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    String queryLanguage = Query.SQL;
+    if (node.hasProperty(SAKAI_QUERY_LANGUAGE)) {
+      queryLanguage = node.getProperty(SAKAI_QUERY_LANGUAGE).getString();
+    }
+    return new QueryTemplate(queryTemplate, queryLanguage, getString(node,
+        SAKAI_PROPERTY_PROVIDER), getString(node, SAKAI_RESULTPROCESSOR), getString(node,
+        SAKAI_BATCHRESULTPROCESSOR));
+  }
+
+  private static String getString(Node node, String propertyName)
+      throws RepositoryException {
+    if (node.hasProperty(propertyName)) {
+      return node.getProperty(propertyName).getString();
+    }
+    return null;
+  }
+
+  /**
+   * Substitutes the request parameters and user properties into the template.
+   * 
+   * @param request
+   *          the request supplying parameters.
+   * @param propertiesMap
+   *          the user properties, keyed by names starting with _.
+   * @return the query.
+   */
+  public String expand(SlingHttpServletRequest request, Map<String, String> propertiesMap) {
+    StringBuilder sb = new StringBuilder(literalLength + 16 * tokens.length);
+    for (Object token : tokens) {
+      if (token instanceof String) {
+        sb.append((String) token);
+        continue;
+      }
+      Variable variable = (Variable) token;
+      String value;
+      if (variable.userProperty) {
+        value = propertiesMap.get(variable.name);
+      } else {
+        RequestParameter rp = request.getRequestParameter(variable.name);
+        value = rp == null ? null : rp.getString();
+      }
+      if (value == null) {
+        value = variable.defaultValue;
+      }
+      if (value != null) {
+        sb.append(escapeString(value, queryLanguage));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Escapes a value for inclusion in a quoted XPath or SQL literal in a single pass. See
+   * JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2. A backslash is doubled unless it escapes
+   * - or ", a single quote becomes \''.
+   * 
+   * @param value
+   * @param queryLanguage
+   * @return the escaped value, or null if the language is not known.
+   */
+  public static String escapeString(String value, String queryLanguage) {
+    if (value == null) {
+      return null;
+    }
+    if (!Query.XPATH.equals(queryLanguage) && !Query.SQL.equals(queryLanguage)) {
+      LOGGER.error("Unknown query language: " + queryLanguage);
+      return null;
+    }
+    int n = value.length();
+    int i = 0;
+    while (i < n) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '\'') {
+        break;
+      }
+      i++;
+    }
+    if (i == n) {
+      return value;
+    }
+    StringBuilder sb = new StringBuilder(n + 8);
+    sb.append(value, 0, i);
+    for (; i < n; i++) {
+      char c = value.charAt(i);
+      if (c == '\\') {
+        sb.append(c);
+        if (i + 1 >= n || (value.charAt(i + 1) != '-' && value.charAt(i + 1) != '"')) {
+          sb.append(c);
+        }
+      } else if (c == '\'') {
+        sb.append("\\''");
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the template this was compiled from.
+   */
+  public String getTemplate() {
+    return template;
+  }
+
+  /**
+   * @return the names of the _ user properties the template references.
+   */
+  public Set<String> getUserPropertyNames() {
+    return userPropertyNames;
+  }
+
+  /**
+   * @return the query language.
+   */
+  public String getQueryLanguage() {
+    return queryLanguage;
+  }
+
+  /**
+   * @return the property provider name, or null.
+   */
+  public String getPropertyProviderName() {
+    return propertyProviderName;
+  }
+
+  /**
+   * @return the result processor name, or null.
+   */
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the batch result processor name, or null.
+   */
+  public String getBatchResultProcessorName() {
+    return batchResultProcessorName;
+  }
+
+}
@@ -23,10 +23,6 @@ import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_ITEMS_PE
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROVIDER_NAMES;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_RESULT_PROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
@@ -42,28 +38,36 @@ import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.search.SearchBatchResultProcessor;
-import org.sakaiproject.kernel.api.search.SearchConstants;
 import org.sakaiproject.kernel.api.search.SearchPropertyProvider;
 import org.sakaiproject.kernel.api.search.SearchResultProcessor;
+import org.sakaiproject.kernel.api.search.SelectiveSearchPropertyProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -97,6 +101,12 @@ import javax.servlet.http.HttpServletResponse;
  *                bind="bindSearchPropertyProvider"
  *                unbind="unbindSearchPropertyProvider" cardinality="0..n"
  *                policy="dynamic"
+ * @scr.reference name="SlingRepository"
+ *                interface="org.apache.sling.jcr.api.SlingRepository"
+ *                bind="bindSlingRepository" unbind="unbindSlingRepository"
+ * @scr.property name="sakai.search.templatepaths" values.0="/var/search"
+ *               description="Search nodes under these paths have their compiled
+ *               query templates cached, the paths are observed for changes."
  */
 public class SearchServlet extends SlingAllMethodsServlet {
 
@@ -134,6 +144,20 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private Map<String, SearchPropertyProvider> propertyProvider = new ConcurrentHashMap<String, SearchPropertyProvider>();
   private Map<Long, SearchPropertyProvider> propertyProviderById = new ConcurrentHashMap<Long, SearchPropertyProvider>();
 
+  private static final String TEMPLATE_PATHS = "sakai.search.templatepaths";
+  private static final int TEMPLATE_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+  private Map<String, QueryTemplate> queryTemplates = new ConcurrentHashMap<String, QueryTemplate>();
+  private AtomicLong queryTemplateGeneration = new AtomicLong();
+  /**
+   * Only set once the listeners are registered, nothing is cached until then.
+   */
+  private volatile String[] templatePaths = new String[0];
+  private SlingRepository slingRepository;
+  private Session observationSession;
+  private List<EventListener> templateListeners = new ArrayList<EventListener>();
+
   private ComponentContext osgiComponentContext;
   private List<ServiceReference> delayedReferences = new ArrayList<ServiceReference>();
   private List<ServiceReference> delayedPropertyReferences = new ArrayList<ServiceReference>();
@@ -149,25 +173,17 @@ public class SearchServlet extends SlingAllMethodsServlet {
     try {
       Resource resource = request.getResource();
       Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
-        String queryTemplate = node.getProperty(SAKAI_QUERY_TEMPLATE)
-            .getString();
-        String queryLanguage = Query.SQL;
-        if (node.hasProperty(SAKAI_QUERY_LANGUAGE)) {
-          queryLanguage = node.getProperty(SAKAI_QUERY_LANGUAGE).getString();
-        }
-        String propertyProviderName = null;
-        if (node.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-          propertyProviderName = node.getProperty(SAKAI_PROPERTY_PROVIDER)
-              .getString();
-        }
-        
-        
+      QueryTemplate queryTemplate = null;
+      if (node != null) {
+        queryTemplate = getQueryTemplate(node);
+      }
+      if (queryTemplate != null) {
+        String queryLanguage = queryTemplate.getQueryLanguage();
         int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
         int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-        String queryString = processQueryTemplate(request, queryTemplate,
-            queryLanguage, propertyProviderName);
+        String queryString = queryTemplate.expand(request, loadUserProperties(request,
+            queryTemplate));
 
         LOGGER.debug("Posting Query {} ", queryString);
         QueryManager queryManager = node.getSession().getWorkspace()
@@ -189,17 +205,16 @@ public class SearchServlet extends SlingAllMethodsServlet {
         write.array();
         
         SearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SearchConstants.SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = batchProcessors.get(node.getProperty(SearchConstants.SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (queryTemplate.getBatchResultProcessorName() != null) {
+          searchBatchProcessor = batchProcessors.get(queryTemplate.getBatchResultProcessorName());
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
           }
         }
         
         SearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = processors.get(node.getProperty(
-              SAKAI_RESULTPROCESSOR).getString());
+        if (queryTemplate.getResultProcessorName() != null) {
+          searchProcessor = processors.get(queryTemplate.getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -265,71 +280,90 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   protected String processQueryTemplate(SlingHttpServletRequest request,
       String queryTemplate, String queryLanguage, String propertyProviderName) {
-    Map<String, String> propertiesMap = loadUserProperties(request,
-        propertyProviderName);
-
-    StringBuilder sb = new StringBuilder();
-    boolean escape = false;
-    int vstart = -1;
-    char[] ca = queryTemplate.toCharArray();
-    String defaultValue = null;
-    for (int i = 0; i < ca.length; i++) {
-      char c = ca[i];
-      if (escape) {
-        sb.append(c);
-        escape = false;
-      } else if (vstart >= 0) {
-        if (c == '}') {
-          String v = new String(ca, vstart + 1, i - vstart - 1);
-          defaultValue = null;
-          // Take care of default values
-          if (v.contains("|")) {
-            String[] val = v.split("\\|");
-            v = val[0];
-            defaultValue = val[1];
-          }
-          if (v.startsWith("_")) {
-            String value = propertiesMap.get(v);
-            if (value != null) {
-              sb.append(escapeString(value, queryLanguage));
-            } else if (value == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          } else {
+    QueryTemplate compiled = new QueryTemplate(queryTemplate, queryLanguage,
+        propertyProviderName, null, null);
+    return compiled.expand(request, loadUserProperties(request, compiled));
+  }
+
+  /**
+   * Gets the compiled template for a search node. Templates under the observed paths are
+   * compiled once and cached until the node changes, others are compiled on each request.
+   * 
+   * @param node
+   *          the search node.
+   * @return the compiled template or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  protected QueryTemplate getQueryTemplate(Node node) throws RepositoryException {
+    String path = node.getPath();
+    QueryTemplate queryTemplate = queryTemplates.get(path);
+    if (queryTemplate == null) {
+      long generation = queryTemplateGeneration.get();
+      queryTemplate = QueryTemplate.compile(node);
+      if (queryTemplate != null && isCached(path)) {
+        queryTemplates.put(path, queryTemplate);
+        // the node may have changed while it was being read.
+        if (generation != queryTemplateGeneration.get()) {
+          queryTemplates.remove(path);
+        }
+      }
+    }
+    return queryTemplate;
+  }
 
-            RequestParameter rp = request.getRequestParameter(v);
-            if (rp != null) {
-              sb.append(escapeString(rp.getString(), queryLanguage));
-            } else if (rp == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
+  private boolean isCached(String path) {
+    for (String templatePath : templatePaths) {
+      if (path.startsWith(templatePath)
+          && (path.length() == templatePath.length() || path.charAt(templatePath.length()) == '/')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops cached templates for nodes that have changed.
+   * 
+   * @param events
+   */
+  protected void invalidateQueryTemplates(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      queryTemplateGeneration.incrementAndGet();
+      try {
+        String path = event.getPath();
+        if (event.getType() == Event.PROPERTY_ADDED
+            || event.getType() == Event.PROPERTY_CHANGED
+            || event.getType() == Event.PROPERTY_REMOVED) {
+          path = path.substring(0, path.lastIndexOf('/'));
+          queryTemplates.remove(path);
+        } else {
+          queryTemplates.remove(path);
+          String prefix = path + "/";
+          for (String key : queryTemplates.keySet()) {
+            if (key.startsWith(prefix)) {
+              queryTemplates.remove(key);
             }
           }
-          vstart = -1;
-        }
-      } else {
-        switch (c) {
-        case '{':
-          vstart = i;
-          break;
-        case '\\':
-          escape = true;
-          break;
-        default:
-          sb.append(c);
         }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to get event path, clearing all query templates {} ", e
+            .getMessage());
+        queryTemplates.clear();
       }
     }
-    return sb.toString();
   }
 
   /**
    * @param request
-   * @param propertyProviderName
+   * @param queryTemplate
+   *          the template, selective providers only load the properties it references.
    * @return
    * @throws RepositoryException
    */
   private Map<String, String> loadUserProperties(
-      SlingHttpServletRequest request, String propertyProviderName) {
+      SlingHttpServletRequest request, QueryTemplate queryTemplate) {
+    String propertyProviderName = queryTemplate.getPropertyProviderName();
     Map<String, String> propertiesMap = new HashMap<String, String>();
     String userId = request.getRemoteUser();
     String userPrivatePath = "/jcr:root"
@@ -342,7 +376,12 @@ public class SearchServlet extends SlingAllMethodsServlet {
           .get(propertyProviderName);
       if (provider != null) {
         LOGGER.debug("Trying Provider {} ", provider);
-        provider.loadUserProperties(request, propertiesMap);
+        if (provider instanceof SelectiveSearchPropertyProvider) {
+          ((SelectiveSearchPropertyProvider) provider).loadUserProperties(request,
+              propertiesMap, queryTemplate.getUserPropertyNames());
+        } else {
+          provider.loadUserProperties(request, propertiesMap);
+        }
       } else {
         LOGGER.warn("No properties provider found for {} ",
             propertyProviderName);
@@ -353,20 +392,6 @@ public class SearchServlet extends SlingAllMethodsServlet {
     return propertiesMap;
   }
 
-  private String escapeString(String value, String queryLanguage) {
-    String escaped = null;
-    if (value != null) {
-      if (queryLanguage.equals(Query.XPATH) || queryLanguage.equals(Query.SQL)) {
-        // See JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2
-        escaped = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'",
-            "\\\\'").replaceAll("'", "''");
-      } else {
-        LOGGER.error("Unknown query language: " + queryLanguage);
-      }
-    }
-    return escaped;
-  }
-
   protected void bindSearchResultProcessor(ServiceReference serviceReference) {
     synchronized (delayedReferences) {
       if (osgiComponentContext == null) {
@@ -569,6 +594,58 @@ public class SearchServlet extends SlingAllMethodsServlet {
       }
       delayedPropertyReferences.clear();
     }
+
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    String[] paths = OsgiUtil.toStringArray(properties.get(TEMPLATE_PATHS));
+    if (paths != null && slingRepository != null) {
+      try {
+        observationSession = slingRepository.loginAdministrative(null);
+        ObservationManager observationManager = observationSession.getWorkspace()
+            .getObservationManager();
+        for (String path : paths) {
+          // a listener can only be registered once, so one per path.
+          EventListener listener = new EventListener() {
+            public void onEvent(EventIterator events) {
+              invalidateQueryTemplates(events);
+            }
+          };
+          observationManager.addEventListener(listener, TEMPLATE_EVENTS, path, true,
+              null, null, false);
+          templateListeners.add(listener);
+        }
+        templatePaths = paths;
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to observe search templates, they will not be cached {} ", e
+            .getMessage());
+      }
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    templatePaths = new String[0];
+    if (observationSession != null) {
+      try {
+        ObservationManager observationManager = observationSession.getWorkspace()
+            .getObservationManager();
+        for (EventListener listener : templateListeners) {
+          observationManager.removeEventListener(listener);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to remove search template listeners {} ", e.getMessage());
+      }
+      templateListeners.clear();
+      observationSession.logout();
+      observationSession = null;
+    }
+    queryTemplates.clear();
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
   }
 
 }
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * Compares parsing the shipped files, messages, contacts and discussions templates on
+ * every request with expanding templates compiled once. Not run as part of the build, run
+ * with java -cp target/test-classes:target/classes:(dependencies)
+ * org.sakaiproject.kernel.search.QueryTemplateBenchmark
+ */
+public class QueryTemplateBenchmark {
+
+  private static final String[] TEMPLATES = {
+      "//*[(@sling:resourceType='sakai/file' and @sakai:user='{_me}' and (jcr:contains(., '{search}') or jcr:contains(jcr:content, '{search}'))){_usedin}{_tags}]{_order}",
+      "//*[(@sling:resourceType='sakai/file' and (jcr:contains(., '{search}') or jcr:contains(jcr:content, '{search}'))){_mysites}{_usedin}{_tags}]{_order}",
+      "/{_userMessagePath}//element(*)MetaData[@sling:resourceType='sakai/message' and @sakai:messagebox='{box}' and @sakai:category='{category}'] order by @{sortOn|jcr:created} {sortOrder|descending}",
+      "/{_userMessagePath}//element(*)MetaData[(@sling:resourceType='sakai/message' and @sakai:type='chat' and @sakai:read='false'){_from}] order by @{sortOn|jcr:created} {sortOrder|descending}",
+      "/{_connectionstore}//*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\" and (jcr:like(@firstName, '%{s}%') or jcr:like(@lastName, '%{s}%') or jcr:like(@email, '%{s}%'))]/(@firstName|@lastName|@email)",
+      "/{_connectionstore}//*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]",
+      "/{path}//element(*)MetaData[@sling:resourceType='sakai/message' and @sakai:type='discussion' and @sakai:marker='{marker}'] order by @sakai:created ascending",
+      "/{path}//element(*)MetaData[@sling:resourceType='sakai/message' and @sakai:type='comment' and @sakai:marker='{marker}'] order by @{sortOn|sakai:created} {sortOrder|ascending}" };
+
+  private static final int ROUNDS = 200000;
+
+  public static void main(String[] args) {
+    final Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("search", "o'brien");
+    parameters.put("box", "inbox");
+    parameters.put("category", "message");
+    parameters.put("s", "ali");
+    parameters.put("path", "sites/physics/discussion");
+    parameters.put("marker", "thread1");
+    SlingHttpServletRequest request = (SlingHttpServletRequest) Proxy.newProxyInstance(
+        QueryTemplateBenchmark.class.getClassLoader(),
+        new Class<?>[] { SlingHttpServletRequest.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            final String value = parameters.get(args[0]);
+            if (value == null) {
+              return null;
+            }
+            return Proxy.newProxyInstance(QueryTemplateBenchmark.class.getClassLoader(),
+                new Class<?>[] { RequestParameter.class }, new InvocationHandler() {
+                  public Object invoke(Object proxy, Method method, Object[] args) {
+                    return value;
+                  }
+                });
+          }
+        });
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("_me", "bob");
+    properties.put("_userMessagePath", "_user/private/ab/cd/bob/message");
+    properties.put("_connectionstore", "_user/contacts/ab/cd/bob");
+    properties.put("_order", " order by @jcr:score descending");
+    properties.put("_tags", "");
+
+    QueryTemplate[] compiled = new QueryTemplate[TEMPLATES.length];
+    for (int i = 0; i < TEMPLATES.length; i++) {
+      compiled[i] = new QueryTemplate(TEMPLATES[i], Query.XPATH, null, null, null);
+      if (!compiled[i].expand(request, properties).equals(
+          parseEachTime(request, TEMPLATES[i], properties))) {
+        throw new IllegalStateException("Mismatch for " + TEMPLATES[i]);
+      }
+    }
+    for (int pass = 0; pass < 3; pass++) {
+      long start = System.nanoTime();
+      long chars = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        chars += parseEachTime(request, TEMPLATES[r % TEMPLATES.length], properties)
+            .length();
+      }
+      long parsed = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int r = 0; r < ROUNDS; r++) {
+        chars += compiled[r % TEMPLATES.length].expand(request, properties).length();
+      }
+      long expanded = System.nanoTime() - start;
+      System.out.println("parse each time " + (parsed / ROUNDS) + "ns, compiled "
+          + (expanded / ROUNDS) + "ns per query (" + chars + ")");
+    }
+  }
+
+  /**
+   * The per request parsing and regex escaping the compiled templates replace.
+   */
+  private static String parseEachTime(SlingHttpServletRequest request,
+      String queryTemplate, Map<String, String> propertiesMap) {
+    StringBuilder sb = new StringBuilder();
+    boolean escape = false;
+    int vstart = -1;
+    char[] ca = queryTemplate.toCharArray();
+    String defaultValue = null;
+    for (int i = 0; i < ca.length; i++) {
+      char c = ca[i];
+      if (escape) {
+        sb.append(c);
+        escape = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = new String(ca, vstart + 1, i - vstart - 1);
+          defaultValue = null;
+          if (v.contains("|")) {
+            String[] val = v.split("\\|");
+            v = val[0];
+            defaultValue = val[1];
+          }
+          String value;
+          if (v.startsWith("_")) {
+            value = propertiesMap.get(v);
+          } else {
+            RequestParameter rp = request.getRequestParameter(v);
+            value = rp == null ? null : rp.getString();
+          }
+          if (value == null) {
+            value = defaultValue;
+          }
+          if (value != null) {
+            sb.append(value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'",
+                "\\\\'").replaceAll("'", "''"));
+          }
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          vstart = i;
+          break;
+        case '\\':
+          escape = true;
+          break;
+        default:
+          sb.append(c);
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.jcr.query.Query;
+
+/**
+ *
+ */
+public class QueryTemplateTest {
+
+  @Test
+  public void testEscapeMatchesRegex() {
+    Random random = new Random(42);
+    char[] chars = { 'a', 'b', '\\', '\'', '"', '-', ' ' };
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        sb.append(chars[random.nextInt(chars.length)]);
+      }
+      String value = sb.toString();
+      String expected = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll(
+          "'", "\\\\'").replaceAll("'", "''");
+      assertEquals(value, expected, QueryTemplate.escapeString(value, Query.SQL));
+      assertEquals(value, expected, QueryTemplate.escapeString(value, Query.XPATH));
+    }
+    assertNull(QueryTemplate.escapeString("a", "unknown"));
+  }
+
+  @Test
+  public void testExpand() {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    RequestParameter rp = createMock(RequestParameter.class);
+    expect(request.getRequestParameter("q")).andReturn(rp).anyTimes();
+    expect(request.getRequestParameter("sortOn")).andReturn(null).anyTimes();
+    expect(request.getRequestParameter("missing")).andReturn(null).anyTimes();
+    expect(rp.getString()).andReturn("it's").anyTimes();
+    replay(request, rp);
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("_userId", "bob");
+    QueryTemplate queryTemplate = new QueryTemplate(
+        "/{_userId}//*[@x='{q}' and @y='\\{q\\}'{missing}] order by @{sortOn|jcr:created}{_none|}",
+        Query.XPATH, "provider", null, null);
+    assertEquals("/bob//*[@x='it\\''s' and @y='{q}'] order by @jcr:created", queryTemplate
+        .expand(request, properties));
+    assertEquals(Query.XPATH, queryTemplate.getQueryLanguage());
+    assertEquals("provider", queryTemplate.getPropertyProviderName());
+    verify(request, rp);
+  }
+
+  @Test
+  public void testUserPropertyNames() {
+    QueryTemplate queryTemplate = new QueryTemplate(
+        "//*[(jcr:contains(.,\"{search}\") and @sakai:user!='{_me}'){_tags|}]{_order}\\{_escaped\\}",
+        Query.XPATH, "Files", null, null);
+    Set<String> names = queryTemplate.getUserPropertyNames();
+    assertEquals(3, names.size());
+    assertTrue(names.contains("_me"));
+    assertTrue(names.contains("_tags"));
+    assertTrue(names.contains("_order"));
+    assertFalse(names.contains("_mycontacts"));
+  }
+
+}
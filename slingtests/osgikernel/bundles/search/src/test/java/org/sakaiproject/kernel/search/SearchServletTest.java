@@ -1,7 +1,13 @@
 package org.sakaiproject.kernel.search;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
@@ -12,13 +18,16 @@ import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESU
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -26,6 +35,10 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -50,6 +63,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
   public void testNoQueryTemplate() throws ValueFormatException,
       RepositoryException, IOException, ServletException {
     Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn("/var/search/test").anyTimes();
     expect(node.hasProperty(SAKAI_QUERY_TEMPLATE)).andReturn(false);
 
     Resource resource = createMock(Resource.class);
@@ -109,6 +123,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
   @Test
   public void testRepositoryExceptionHandling() throws Exception {
     Node queryNode = createMock(Node.class);
+    expect(queryNode.getPath()).andReturn("/var/search/test").anyTimes();
 
     addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
     expect(queryNode.hasProperty(SAKAI_QUERY_LANGUAGE)).andThrow(
@@ -133,6 +148,60 @@ public class SearchServletTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testQueryTemplateCache() throws Exception {
+    ObservationManager observationManager = createMock(ObservationManager.class);
+    observationManager.addEventListener((EventListener) anyObject(), anyInt(),
+        eq("/var/search"), eq(true), (String[]) isNull(), (String[]) isNull(), eq(false));
+    observationManager.removeEventListener((EventListener) anyObject());
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).times(2);
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).times(2);
+    session.logout();
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("sakai.search.templatepaths", new String[] { "/var/search" });
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties);
+
+    // read twice, once before and once after the change.
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn("/var/search/test").anyTimes();
+    addStringPropertyToNode(node, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    addStringPropertyToNode(node, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    expect(node.hasProperty((String) anyObject())).andReturn(false).times(8);
+
+    // not under an observed path, read each time.
+    Node other = createMock(Node.class);
+    expect(other.getPath()).andReturn("/var/searchother/test").anyTimes();
+    addStringPropertyToNode(other, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    addStringPropertyToNode(other, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    expect(other.hasProperty((String) anyObject())).andReturn(false).times(8);
+
+    Event event = createMock(Event.class);
+    expect(event.getPath()).andReturn("/var/search/test/" + SAKAI_QUERY_TEMPLATE);
+    expect(event.getType()).andReturn(Event.PROPERTY_CHANGED).anyTimes();
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event);
+    expect(events.hasNext()).andReturn(false);
+    replay();
+
+    searchServlet.bindSlingRepository(slingRepository);
+    searchServlet.activate(componentContext);
+    QueryTemplate queryTemplate = searchServlet.getQueryTemplate(node);
+    assertSame(queryTemplate, searchServlet.getQueryTemplate(node));
+    searchServlet.invalidateQueryTemplates(events);
+    assertNotSame(queryTemplate, searchServlet.getQueryTemplate(node));
+    assertNotSame(searchServlet.getQueryTemplate(other), searchServlet
+        .getQueryTemplate(other));
+    searchServlet.deactivate(componentContext);
+
+    verify();
+  }
+
   private void executeSimpleQueryWithNoResults(String queryParameter,
       String itemCount, String expectedSqlQuery) throws RepositoryException,
       IOException, ServletException {
@@ -160,6 +229,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
   private Node prepareNodeSessionWithQueryManagerAndResultNode(Node resultNode,
       String expectedQuery) throws RepositoryException {
     Node queryNode = createMock(Node.class);
+    expect(queryNode.getPath()).andReturn("/var/search/test").anyTimes();
 
     NodeIterator nodeIterator = createMock(NodeIterator.class);
     if (resultNode == null) {
@@ -19,7 +19,6 @@ package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.jackrabbit.api.JackrabbitSession;
-import org.apache.jackrabbit.api.jsr283.security.AccessControlEntry;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.core.NodeImpl;
@@ -28,9 +27,6 @@ import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalM
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
-import java.util.Map;
-
 import javax.jcr.AccessDeniedException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -63,15 +59,23 @@ public class DynamicEntryCollector extends EntryCollectorImpl {
   /**
    * {@inheritDoc}
    * 
-   * @see org.apache.sling.jcr.jackrabbit.server.impl.security.standard.EntryCollectorImpl#hasPrincipal(java.lang.String,
-   *      org.apache.jackrabbit.core.NodeImpl, java.util.Map)
+   * @see org.apache.sling.jcr.jackrabbit.server.impl.security.standard.EntryCollectorImpl#hasPrincipalInContext(java.lang.String,
+   *      org.apache.jackrabbit.core.NodeImpl, java.lang.String)
    */
   @Override
-  protected boolean hasPrincipal(String principalName, NodeImpl aclNode,
-      Map<String, List<AccessControlEntry>> princToEntries, String userId) {
-    if (super.hasPrincipal(principalName, aclNode, princToEntries, userId)) {
-      return true;
-    }
+  protected boolean hasPrincipalInContext(String principalName, NodeImpl aclNode,
+      String userId) {
+    return dynamicPrincipalManager.hasPrincipalInContext(principalName, aclNode, userId);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.jcr.jackrabbit.server.impl.security.standard.EntryCollectorImpl#isDynamicPrincipal(java.lang.String,
+   *      org.apache.jackrabbit.core.NodeImpl)
+   */
+  @Override
+  protected boolean isDynamicPrincipal(String principalName, NodeImpl aclNode) {
     /*
      * Principals that don't have a 'dynamic=true' property will not be resolved
      * dynamically. We cache principals that are found not to be dynamic. The
@@ -79,9 +83,11 @@ public class DynamicEntryCollector extends EntryCollectorImpl {
      * be included in ACLs until their dynamic/static status has been set, and
      * that setting will not be modified subsequently.
      */
-    if (staticPrincipals.containsKey(principalName)) {
-      LOG.debug("Principal " + principalName + " is cached static - not resolving dynamically");
-      return false;
+    synchronized (staticPrincipals) {
+      if (staticPrincipals.containsKey(principalName)) {
+        LOG.debug("Principal " + principalName + " is cached static - not resolving dynamically");
+        return false;
+      }
     }
     Session session = aclNode.getSession();
     if (session instanceof JackrabbitSession) {
@@ -101,7 +107,9 @@ public class DynamicEntryCollector extends EntryCollectorImpl {
         }
         if (!dynamic) {
           LOG.debug("Found static principal " + principalName + ". Caching");
-          staticPrincipals.put(principalName, true);
+          synchronized (staticPrincipals) {
+            staticPrincipals.put(principalName, true);
+          }
           return false;
         }
       } catch (AccessDeniedException e) {
@@ -112,7 +120,7 @@ public class DynamicEntryCollector extends EntryCollectorImpl {
         LOG.error("Unable to access user manager", e);
       }
     }
-    return dynamicPrincipalManager.hasPrincipalInContext(principalName, aclNode, userId);
+    return true;
   }
 
 }
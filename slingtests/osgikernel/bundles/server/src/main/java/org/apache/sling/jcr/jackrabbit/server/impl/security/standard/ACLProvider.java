@@ -130,6 +130,40 @@ public class ACLProvider extends AbstractAccessControlProvider implements
 
   private ObservationManager securityObservationMgr;
 
+  /**
+   * The number of paths held in each of the shared caches before they are cleared.
+   */
+  private static final int MAX_CACHED_PATHS = 20000;
+
+  /**
+   * Permissions compiled for a path and principal set, shared by all sessions.
+   */
+  private PathPrincipalCache<PermissionBits> permissionCache = new PathPrincipalCache<PermissionBits>(
+      MAX_CACHED_PATHS);
+
+  /**
+   * The entries effective at a node for a principal set, in collection order, shared by
+   * all sessions.
+   */
+  private PathPrincipalCache<List<ComparableAccessControlEntry>> entryCache = new PathPrincipalCache<List<ComparableAccessControlEntry>>(
+      MAX_CACHED_PATHS);
+
+  private CacheInvalidator structureListener;
+
+  private CacheInvalidator aceListener;
+
+  /**
+   * The read deny ACEs in the workspace, used to decide if a session can read everything.
+   */
+  private final ReadDenyIndex readDenyIndex = new ReadDenyIndex();
+
+  private String readPrivilegeName;
+
+  /**
+   * true once the read deny index has been loaded, until then no session can use it.
+   */
+  private volatile boolean readDenyIndexLoaded;
+
   // -------------------------------------------------< AccessControlUtils >---
   /**
    * @see AbstractAccessControlProvider#isAcItem(Path)
@@ -182,6 +216,92 @@ public class ACLProvider extends AbstractAccessControlProvider implements
     }
 
     entryCollector = new EntryCollectorImpl();
+
+    readPrivilegeName = session.getAccessControlManager().privilegeFromName(
+        Privilege.JCR_READ).getName();
+
+    // nodes added, removed or moved anywhere, and ACE properties changing.
+    String rootPath = session.getRootNode().getPath();
+    structureListener = new CacheInvalidator();
+    observationMgr.addEventListener(structureListener, Event.NODE_ADDED
+        | Event.NODE_REMOVED, rootPath, true, null, null, false);
+    aceListener = new CacheInvalidator();
+    observationMgr.addEventListener(aceListener, Event.PROPERTY_ADDED
+        | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, rootPath, true, null,
+        new String[] { resolver.getJCRName(NT_REP_ACE), resolver.getJCRName(NT_REP_ACL) },
+        false);
+
+    // the listeners are registered first so that nothing is missed while this runs.
+    if (initializedWithDefaults) {
+      try {
+        buildReadDenyIndex();
+        readDenyIndexLoaded = true;
+      } catch (RepositoryException e) {
+        // unable to determine... -> no shortcut upon grants
+        log.error(e.toString());
+      }
+    }
+  }
+
+  /**
+   * Load every ACE that denies READ into the read deny index, with one query for the
+   * workspace.
+   * 
+   * @throws RepositoryException
+   */
+  private void buildReadDenyIndex() throws RepositoryException {
+    QueryManager qm = session.getWorkspace().getQueryManager();
+    StringBuilder stmt = new StringBuilder("/jcr:root//element(*,");
+    stmt.append(resolver.getJCRName(NT_REP_DENY_ACE));
+    stmt.append(")[@").append(resolver.getJCRName(P_PRIVILEGES));
+    stmt.append(" = '").append(readPrivilegeName).append("']");
+    Query q = qm.createQuery(stmt.toString(), Query.XPATH);
+    NodeIterator it = q.execute().getNodes();
+    while (it.hasNext()) {
+      updateReadDenyIndex((NodeImpl) it.nextNode());
+    }
+    log.info("Loaded {} read deny entries ", readDenyIndex.size());
+  }
+
+  /**
+   * Bring the read deny index up to date with an ACE node.
+   * 
+   * @param ace
+   * @throws RepositoryException
+   */
+  private void updateReadDenyIndex(NodeImpl ace) throws RepositoryException {
+    String path = ace.getPath();
+    if (ace.isNodeType(NT_REP_DENY_ACE) && ace.hasProperty(P_PRINCIPAL_NAME)
+        && ace.hasProperty(P_PRIVILEGES)) {
+      Value[] vs = ace.getProperty(P_PRIVILEGES).getValues();
+      for (int i = 0; i < vs.length; i++) {
+        if (readPrivilegeName.equals(vs[i].getString())) {
+          readDenyIndex.put(path, ace.getProperty(P_PRINCIPAL_NAME).getString());
+          return;
+        }
+      }
+    }
+    readDenyIndex.remove(path);
+  }
+
+  /**
+   * @see AccessControlProvider#close()
+   */
+  public void close() {
+    try {
+      if (structureListener != null) {
+        observationMgr.removeEventListener(structureListener);
+      }
+      if (aceListener != null) {
+        observationMgr.removeEventListener(aceListener);
+      }
+    } catch (RepositoryException e) {
+      log.debug("Unable to unregister listener: {}", e.getMessage());
+    }
+    permissionCache.clear();
+    entryCache.clear();
+    readDenyIndex.clear();
+    super.close();
   }
 
   /**
@@ -423,14 +543,22 @@ public class ACLProvider extends AbstractAccessControlProvider implements
       }
     }
     
-    private List<String> principalNames;
-    private final String jcrReadPrivilegeName;
+    /**
+     * The principal names and their cache key, replaced as a whole when the principals
+     * change, so that permissions are always compiled and cached against the same set.
+     */
+    private volatile Principals principals;
 
+    /**
+     * true if the READ shortcut in {@link #grants(Path, int)} may be used.
+     */
+    private final boolean readShortcut;
     /**
      * flag indicating that there is not 'deny READ'. -> simplify
-     * {@link #grants(Path, int)} in case of permissions == READ
+     * {@link #grants(Path, int)} in case of permissions == READ, with the principals and
+     * read deny index version it was worked out from.
      */
-    private boolean readAllowed = false;
+    private volatile ReadAllowed readAllowed;
     /**
      * The user ID of the user that the AclPermissions are bound to.
      */
@@ -452,21 +580,14 @@ public class ACLProvider extends AbstractAccessControlProvider implements
 
     private AclPermissions(Set<Principal> principals, boolean listenToEvents)
         throws RepositoryException {
-      principalNames = new ArrayList<String>(principals.size());
+      List<String> principalNames = new ArrayList<String>(principals.size());
       for (Iterator<Principal> it = principals.iterator(); it.hasNext();) {
         principalNames.add(it.next().getName());
       }
-      jcrReadPrivilegeName = session.getAccessControlManager().privilegeFromName(
-          Privilege.JCR_READ).getName();
+      this.principals = new Principals(principalNames);
 
+      readShortcut = listenToEvents;
       if (listenToEvents) {
-        /*
-         * Determine if there is any 'denyRead' entry (since the default is that everyone
-         * can READ everywhere -> makes evaluation for the most common check (can-read)
-         * easy.
-         */
-        readAllowed = isReadAllowed(principalNames);
-
         /*
          * Make sure this AclPermission recalculates the permissions if any ACL concerning
          * it is modified. interesting events are: - new ACE-entry for any of the
@@ -482,72 +603,77 @@ public class ACLProvider extends AbstractAccessControlProvider implements
       }
     }
     
-    private void updatePrincipals(List<String> groups) {
+    private synchronized void updatePrincipals(List<String> groups) {
       if (userId == null) {
         return;
       }
+      List<String> principalNames = new ArrayList<String>(principals.names);
       for (String group : groups) {
         if (!principalNames.contains(group)) {
           principalNames.add(group);
         }
       }
+      principals = new Principals(principalNames);
     }
 
     /**
      * If this provider defines read-permission for everyone (defined upon init with
-     * default values), search if there is any ACE that defines permissions for any of the
-     * principals AND denies-READ. Otherwise this shortcut is not possible.
-     * 
-     * @param principalnames
+     * default values), check if there is any ACE that denies READ to any of the
+     * principals. Otherwise this shortcut is not possible. The answer is held until the
+     * read deny index changes.
      */
-    @SuppressWarnings("unchecked")
-    private boolean isReadAllowed(Collection principalnames) {
-      boolean isReadAllowed = false;
-      if (initializedWithDefaults) {
-        try {
-          QueryManager qm = session.getWorkspace().getQueryManager();
-          StringBuffer stmt = new StringBuffer("/jcr:root");
-          stmt.append("//element(*,");
-          stmt.append(resolver.getJCRName(NT_REP_DENY_ACE));
-          stmt.append(")[(");
-
-          // where the rep:principalName property exactly matches any of
-          // the given principalsNames
-          int i = 0;
-          Iterator<?> itr = principalnames.iterator();
-          while (itr.hasNext()) {
-            stmt.append("@").append(resolver.getJCRName(P_PRINCIPAL_NAME)).append(" eq ");
-            stmt.append("'").append(itr.next().toString()).append("'");
-            if (++i < principalnames.size()) {
-              stmt.append(" or ");
-            }
-          }
-          // AND rep:privileges contains the READ privilege
-          stmt.append(") and @");
-          stmt.append(resolver.getJCRName(P_PRIVILEGES));
-          stmt.append(" = '").append(jcrReadPrivilegeName).append("']");
-          
-
-          Query q = qm.createQuery(stmt.toString(), Query.XPATH);
-//          log.info("Executing Query "+stmt.toString()+" with Session of "+session.getUserID());
-
-          NodeIterator it = q.execute().getNodes();
-          isReadAllowed = !it.hasNext();
-        } catch (RepositoryException e) {
-          log.error(e.toString());
-          // unable to determine... -> no shortcut upon grants
-        }
+    private boolean isReadAllowed() {
+      if (!readShortcut || !readDenyIndexLoaded) {
+        return false;
       }
-      log.debug("+++ Is Read Allowed gave {}", isReadAllowed);
-      return isReadAllowed;
+      Principals current = principals;
+      long version = readDenyIndex.getVersion();
+      ReadAllowed cached = readAllowed;
+      if (cached == null || cached.version != version || cached.principals != current) {
+        cached = new ReadAllowed(!readDenyIndex.deniesRead(current.names), version,
+            current);
+        readAllowed = cached;
+        log.debug("+++ Is Read Allowed gave {}", cached.allowed);
+      }
+      return cached.allowed;
     }
 
     // ------------------------------------< AbstractCompiledPermissions >---
     /**
      * @see AbstractCompiledPermissions#buildResult(Path)
      */
-    @SuppressWarnings("unchecked")
     protected Result buildResult(Path absPath) throws RepositoryException {
+      PermissionBits bits = compile(absPath, principals);
+      return new Result(bits.allows, bits.denies, bits.allowPrivileges,
+          bits.denyPrivileges);
+    }
+
+    /**
+     * Get the permissions for a path from the shared cache, compiling them on a miss.
+     * 
+     * @param absPath
+     * @return
+     * @throws RepositoryException
+     */
+    private PermissionBits getPermissionBits(Path absPath) throws RepositoryException {
+      String jcrPath = resolver.getJCRPath(absPath);
+      // the same snapshot is used to compile and to cache, so bits compiled for one set of
+      // principals can never be cached under the key of another.
+      Principals current = principals;
+      PermissionBits bits = permissionCache.get(jcrPath, current.key);
+      if (bits == null) {
+        long generation = permissionCache.getGeneration();
+        bits = compile(absPath, current);
+        if (bits.contextFree) {
+          permissionCache.put(jcrPath, current.key, bits, generation);
+        }
+      }
+      return bits;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PermissionBits compile(Path absPath, Principals current)
+        throws RepositoryException {
       boolean existingNode = false;
       NodeImpl node = null;
       String jcrPath = resolver.getJCRPath(absPath);
@@ -577,8 +703,9 @@ public class ACLProvider extends AbstractAccessControlProvider implements
 
       // retrieve all ACEs at path or at the direct ancestor of path that
       // apply for the principal names.
-      AccessControlEntryIterator entries = new Entries(getNode(node), principalNames, userId)
-          .iterator();
+      Entries effectiveEntries = new Entries(getNode(node), current.names, current.key,
+          userId);
+      AccessControlEntryIterator entries = effectiveEntries.iterator();
       // build a list of ACEs that are defined locally at the node
       List<AccessControlEntry> localACEs;
       if (existingNode && isAccessControlled(node)) {
@@ -645,7 +772,8 @@ public class ACLProvider extends AbstractAccessControlProvider implements
         }
       }
       //
-      return new Result(allows, denies, allowPrivileges, denyPrivileges);
+      return new PermissionBits(allows, denies, allowPrivileges, denyPrivileges,
+          effectiveEntries.contextFree);
     }
 
 
@@ -658,7 +786,7 @@ public class ACLProvider extends AbstractAccessControlProvider implements
         observationMgr.removeEventListener(this);
         principalEventListener.close();
       } catch (RepositoryException e) {
-        log.debug("Unable to unregister listener: ", e.getMessage());
+        log.debug("Unable to unregister listener: {}", e.getMessage());
       }
       super.close();
     }
@@ -672,13 +800,20 @@ public class ACLProvider extends AbstractAccessControlProvider implements
      * @see CompiledPermissions#grants(Path, int)
      */
     public boolean grants(Path absPath, int permissions) throws RepositoryException {
-      if (permissions == Permission.READ && readAllowed && !isAcItem(absPath)) {
+      if (permissions == Permission.READ && isReadAllowed() && !isAcItem(absPath)) {
         return true;
       } else {
-        return super.grants(absPath, permissions);
+        return (getPermissionBits(absPath).allows | ~permissions) == -1;
       }
     }
 
+    /**
+     * @see CompiledPermissions#getPrivileges(Path)
+     */
+    public int getPrivileges(Path absPath) throws RepositoryException {
+      return getPermissionBits(absPath).allowPrivileges;
+    }
+
     // --------------------------------------------------< EventListener >---
     /**
      * @see EventListener#onEvent(EventIterator)
@@ -698,16 +833,6 @@ public class ACLProvider extends AbstractAccessControlProvider implements
             // principalNames.
             NodeImpl n = (NodeImpl) session.getNode(path); 
             if (n.isNodeType(NT_REP_ACE)) {
-              // and reset the readAllowed flag, if the new
-              // ACE denies READ.
-              if (readAllowed && n.isNodeType(NT_REP_DENY_ACE)) {
-                Value[] vs = n.getProperty(P_PRIVILEGES).getValues();
-                for (int i = 0; i < vs.length; i++) {
-                  if (jcrReadPrivilegeName.equals(vs[i].getString())) {
-                    readAllowed = false;
-                  }
-                }
-              }
               clearCache = true;
             }
             break;
@@ -715,7 +840,6 @@ public class ACLProvider extends AbstractAccessControlProvider implements
           case Event.NODE_REMOVED:
             // can't find out if the removed ACL/ACE node was
             // relevant for the principals
-            readAllowed = isReadAllowed(principalNames);
             clearCache = true;
             break;
           case Event.PROPERTY_ADDED:
@@ -734,8 +858,7 @@ public class ACLProvider extends AbstractAccessControlProvider implements
                 // a new ace or an ace change its principal-name.
                 principalName = p.getString();
               }
-              if (principalName != null && principalNames.contains(principalName)) {
-                readAllowed = isReadAllowed(principalNames);
+              if (principalName != null && principals.names.contains(principalName)) {
                 clearCache = true;
               }
             }
@@ -758,45 +881,96 @@ public class ACLProvider extends AbstractAccessControlProvider implements
 
     private final Map<String, List<AccessControlEntry>> principalNamesToEntries;
     private final List<ComparableAccessControlEntry> orderedAccessControlEntries;
+    private final String principalKey;
+    /**
+     * true if no entry was resolved in the context of the node or user, so the entries
+     * can be shared with other sessions with the same principals.
+     */
+    private boolean contextFree = true;
 
     /**
      * @param node The Access control node from which the entries are to be taken.
      * @param principalNames a set of static principal names for the user.
+     * @param principalKey the key of the principal names in the shared caches.
      * @param userId userId is the user the entires are for, or null if none is bound.
      * @throws RepositoryException
      */
     @SuppressWarnings("unchecked")
-    private Entries(NodeImpl node, Collection<String> principalNames, String userId)
-        throws RepositoryException {
-      orderedAccessControlEntries = new ArrayList<ComparableAccessControlEntry>();
+    private Entries(NodeImpl node, Collection<String> principalNames, String principalKey,
+        String userId) throws RepositoryException {
+      this.principalKey = principalKey;
       principalNamesToEntries = new ListOrderedMap();
       for (Iterator<String> it = principalNames.iterator(); it.hasNext();) {
         principalNamesToEntries.put(it.next(), new ArrayList<AccessControlEntry>());
       }
-      collectEntries(node, userId);
+      orderedAccessControlEntries = new ArrayList<ComparableAccessControlEntry>(
+          collectEntries(node, userId));
       Collections.sort(orderedAccessControlEntries);
-      log.info("ACL Order for "+node.getPath()+" is "+orderedAccessControlEntries);
+      log.debug("ACL Order for {} is {} ", node.getPath(), orderedAccessControlEntries);
     }
 
     /**
+     * Collects the entries from the node up to the root, in that order. While every ACL
+     * seen so far has been context free the principal map is unchanged, so the entries
+     * effective at an ancestor are the same for every session with these principals and
+     * can be taken from, or added to, the shared cache.
+     * 
      * @param node the acl node
      * @param userId the userId which may be null
+     * @return the entries effective at the node, in collection order.
      * @throws RepositoryException
      */
-    private void collectEntries(NodeImpl node, String userId) throws RepositoryException {
-      // if the given node is access-controlled, construct a new ACL and add
-      // it to the list
-      if (isAccessControlled(node)) {
-        // build acl for the access controlled node
-        NodeImpl aclNode = node.getNode(N_POLICY);
-        // get the collector and collect entries
-        getEntryCollector().collectEntries(aclNode, principalNamesToEntries, orderedAccessControlEntries, userId);
+    private List<ComparableAccessControlEntry> collectEntries(NodeImpl node, String userId)
+        throws RepositoryException {
+      long generation = entryCache.getGeneration();
+      List<String> paths = new ArrayList<String>();
+      List<List<ComparableAccessControlEntry>> levels = new ArrayList<List<ComparableAccessControlEntry>>();
+      List<ComparableAccessControlEntry> inherited = Collections.emptyList();
+      while (true) {
+        String path = node.getPath();
+        if (contextFree) {
+          List<ComparableAccessControlEntry> cached = entryCache.get(path, principalKey);
+          if (cached != null) {
+            inherited = cached;
+            break;
+          }
+        }
+        List<ComparableAccessControlEntry> local = new ArrayList<ComparableAccessControlEntry>();
+        // if the given node is access-controlled, construct a new ACL and add
+        // it to the list
+        if (isAccessControlled(node)) {
+          // build acl for the access controlled node
+          NodeImpl aclNode = node.getNode(N_POLICY);
+          // get the collector and collect entries
+          if (!getEntryCollector().collectEntries(aclNode, principalNamesToEntries, local,
+              userId)) {
+            contextFree = false;
+          }
+        }
+        paths.add(path);
+        levels.add(local);
+        // then look for access controlled parents up the hierarchy.
+        if (rootNodeId.equals(node.getId())) {
+          break;
+        }
+        node = (NodeImpl) node.getParent();
       }
-      // then, recursively look for access controlled parents up the hierarchy.
-      if (!rootNodeId.equals(node.getId())) {
-        NodeImpl parentNode = (NodeImpl) node.getParent();
-        collectEntries(parentNode, userId);
+      // build up the effective entries from the top down.
+      List<ComparableAccessControlEntry> effective = inherited;
+      for (int i = levels.size() - 1; i >= 0; i--) {
+        List<ComparableAccessControlEntry> local = levels.get(i);
+        if (local.size() > 0) {
+          List<ComparableAccessControlEntry> merged = new ArrayList<ComparableAccessControlEntry>(
+              local.size() + effective.size());
+          merged.addAll(local);
+          merged.addAll(effective);
+          effective = Collections.unmodifiableList(merged);
+        }
+        if (contextFree) {
+          entryCache.put(paths.get(i), principalKey, effective, generation);
+        }
       }
+      return effective;
     }
 
     private AccessControlEntryIterator iterator() {
@@ -814,7 +988,197 @@ public class ACLProvider extends AbstractAccessControlProvider implements
     }
   }
 
-  
+  /**
+   * The outcome of evaluating the entries at a path, held in the shared permission cache.
+   */
+  private static final class PermissionBits {
+    private final int allows;
+    private final int denies;
+    private final int allowPrivileges;
+    private final int denyPrivileges;
+    private final boolean contextFree;
+
+    private PermissionBits(int allows, int denies, int allowPrivileges,
+        int denyPrivileges, boolean contextFree) {
+      this.allows = allows;
+      this.denies = denies;
+      this.allowPrivileges = allowPrivileges;
+      this.denyPrivileges = denyPrivileges;
+      this.contextFree = contextFree;
+    }
+  }
+
+  /**
+   * Drops the shared cache entries under a node whose ACL has changed, or under a node
+   * that has been added, removed or moved.
+   */
+  private class CacheInvalidator implements SynchronousEventListener {
+
+    public void onEvent(EventIterator events) {
+      String policyName = null;
+      // the nodes added in this batch outside of an ACL, and if the batch removed read
+      // deny ACEs. Together they are a move, the only way ACEs arrive without an event of
+      // their own.
+      List<String> added = null;
+      boolean removedReadDenies = false;
+      while (events.hasNext()) {
+        try {
+          Event ev = events.nextEvent();
+          if (policyName == null) {
+            policyName = "/" + resolver.getJCRName(N_POLICY);
+          }
+          String path = ev.getPath();
+          int policy = path.indexOf(policyName + "/");
+          if (policy < 0 && path.endsWith(policyName)) {
+            policy = path.length() - policyName.length();
+          }
+          String affected = path;
+          if (policy >= 0) {
+            // an ACL item, everything under the node it controls is affected.
+            affected = path.substring(0, policy);
+          } else if (ev.getType() == Event.PROPERTY_ADDED
+              || ev.getType() == Event.PROPERTY_CHANGED
+              || ev.getType() == Event.PROPERTY_REMOVED) {
+            affected = Text.getRelativeParent(path, 1);
+          }
+          permissionCache.invalidateSubtree(affected);
+          entryCache.invalidateSubtree(affected);
+
+          switch (ev.getType()) {
+          case Event.NODE_REMOVED:
+            removedReadDenies |= readDenyIndex.removeSubtree(path);
+            break;
+          case Event.NODE_ADDED:
+            if (policy >= 0) {
+              if (session.itemExists(path)) {
+                NodeImpl node = (NodeImpl) session.getItem(path);
+                if (node.isNodeType(NT_REP_ACE)) {
+                  updateReadDenyIndex(node);
+                }
+              }
+            } else {
+              if (added == null) {
+                added = new ArrayList<String>();
+              }
+              added.add(path);
+            }
+            break;
+          default:
+            if (policy >= 0) {
+              String acePath = Text.getRelativeParent(path, 1);
+              if (session.itemExists(acePath)) {
+                updateReadDenyIndex((NodeImpl) session.getItem(acePath));
+              } else {
+                readDenyIndex.remove(acePath);
+              }
+            }
+          }
+        } catch (RepositoryException e) {
+          log.warn("Internal error, clearing permission caches: {}", e.getMessage());
+          permissionCache.clear();
+          entryCache.clear();
+        }
+      }
+      if (removedReadDenies && added != null) {
+        indexMovedReadDenies(added);
+      }
+    }
+  }
+
+  /**
+   * Index the read deny ACEs below nodes that may have been moved. A moved node only has
+   * an event for itself, not for its descendants.
+   * 
+   * @param added
+   *          the paths of the added nodes.
+   */
+  private void indexMovedReadDenies(List<String> added) {
+    Collections.sort(added);
+    String last = null;
+    for (String path : added) {
+      if (last != null && (path.equals(last) || path.startsWith(last + "/"))) {
+        // already searched with its ancestor.
+        continue;
+      }
+      last = path;
+      try {
+        if (session.itemExists(path)) {
+          indexReadDenySubtree((NodeImpl) session.getItem(path));
+        }
+      } catch (RepositoryException e) {
+        log.warn("Unable to index read deny entries under {}, disabling the read shortcut: {}",
+            path, e.getMessage());
+        readDenyIndexLoaded = false;
+      }
+    }
+  }
+
+  /**
+   * Add the read deny ACEs at and below a node to the index.
+   * 
+   * @param node
+   * @throws RepositoryException
+   */
+  private void indexReadDenySubtree(NodeImpl node) throws RepositoryException {
+    if (isAccessControlled(node)) {
+      NodeIterator aces = node.getNode(N_POLICY).getNodes();
+      while (aces.hasNext()) {
+        updateReadDenyIndex((NodeImpl) aces.nextNode());
+      }
+    }
+    if (node.hasNodes()) {
+      NodeIterator children = node.getNodes();
+      while (children.hasNext()) {
+        NodeImpl child = (NodeImpl) children.nextNode();
+        if (!isAcItem(child)) {
+          indexReadDenySubtree(child);
+        }
+      }
+    }
+  }
+
+  /**
+   * An immutable set of principal names and the key they are cached under.
+   */
+  private static final class Principals {
+    private final List<String> names;
+    private final String key;
+
+    private Principals(List<String> names) {
+      this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+      this.key = toPrincipalKey(this.names);
+    }
+  }
+
+  /**
+   * The answer of the read shortcut for one set of principals and read deny index version.
+   */
+  private static final class ReadAllowed {
+    private final boolean allowed;
+    private final long version;
+    private final Principals principals;
+
+    private ReadAllowed(boolean allowed, long version, Principals principals) {
+      this.allowed = allowed;
+      this.version = version;
+      this.principals = principals;
+    }
+  }
+
+  /**
+   * @param principalNames
+   * @return the principal names sorted and joined, the same for any order.
+   */
+  private static String toPrincipalKey(List<String> principalNames) {
+    List<String> sorted = new ArrayList<String>(principalNames);
+    Collections.sort(sorted);
+    StringBuilder sb = new StringBuilder();
+    for (String name : sorted) {
+      sb.append(name).append('\n');
+    }
+    return sb.toString();
+  }
+
   /**
    * @param string
    * @param ace
@@ -40,9 +40,12 @@ public interface EntryCollector {
    * @param principalNamesToEntries
    * @param orderedAccessControlEntries 
    * @param userId the user the entries are being collected for (may be null)
+   * @return true if the entries depend only on the principal names, false if any principal
+   *         was resolved in the context of the node or user, in which case the entries must
+   *         not be shared with other sessions.
    * @throws RepositoryException
    */
-  void collectEntries(NodeImpl aclNode,
+  boolean collectEntries(NodeImpl aclNode,
       Map<String, List<AccessControlEntry>> principalNamesToEntries, List<ComparableAccessControlEntry> orderedAccessControlEntries, String userId)
       throws RepositoryException;
 
@@ -59,11 +59,12 @@ public class EntryCollectorImpl implements EntryCollector {
    *          Map of key = principalName and value = ArrayList to be filled with ACEs
    *          matching the principal names.
    * @param userId the user id to collect entries for, may be null.
+   * @return true if no dynamic principals were consulted.
    * @throws RepositoryException
    * {@inheritDoc}
    * @see org.apache.sling.jcr.jackrabbit.server.impl.security.standard.EntryCollector#collectEntries(org.apache.jackrabbit.core.NodeImpl, java.util.Map, java.util.List)
    */
-  public void collectEntries(NodeImpl aclNode,
+  public boolean collectEntries(NodeImpl aclNode,
       Map<String, List<AccessControlEntry>> principalNamesToEntries,
       List<ComparableAccessControlEntry> orderedAccessControlEntries, String userId) throws RepositoryException {
     SessionImpl sImpl = (SessionImpl) aclNode.getSession();
@@ -71,6 +72,7 @@ public class EntryCollectorImpl implements EntryCollector {
     AccessControlManager acMgr = sImpl.getAccessControlManager();
     UserManager uMgr = sImpl.getUserManager();
 
+    boolean contextFree = true;
     NodeIterator itr = aclNode.getNodes();
     while (itr.hasNext()) {
       NodeImpl aceNode = (NodeImpl) itr.nextNode();
@@ -78,8 +80,14 @@ public class EntryCollectorImpl implements EntryCollector {
           .getString();
       // only process aceNode if 'principalName' is contained in the given set
       // or the dynamicPrincialManager says the user has the principal.
+      boolean hasPrincipal = principalNamesToEntries.containsKey(principalName);
+      if (!hasPrincipal && isDynamicPrincipal(principalName, aclNode)) {
+        // resolved in the context of the node and user, so not shareable.
+        contextFree = false;
+        hasPrincipal = hasPrincipalInContext(principalName, aclNode, userId);
+      }
 
-      if (hasPrincipal(principalName, aclNode, principalNamesToEntries, userId)) {
+      if (hasPrincipal) {
         Principal princ = principalMgr.getPrincipal(principalName);
         boolean isGroup = false;
         if (principalName.startsWith("g-") || princ.equals(principalMgr.getEveryone()) || principalName.equals("administrators") ) {
@@ -115,22 +123,34 @@ public class EntryCollectorImpl implements EntryCollector {
         orderedAccessControlEntries.add(ace);
       }
     }
+    return contextFree;
+  }
+
+  /**
+   * Is the principal resolved in the context of the ACL node and user, rather than from
+   * the principal names alone. The standard implementation has no such principals.
+   * 
+   * @param principalName the name to check
+   * @param aclNode the aclNode being constructed
+   * @return true if membership of the principal depends on the context.
+   */
+  protected boolean isDynamicPrincipal(String principalName, NodeImpl aclNode) {
+    return false;
   }
 
   /**
-   * Does the user have this principal, the standard implementation just checks to see if it
-   * was added to the map.
-   * @param session 
+   * Does the user have this dynamic principal in the context of the ACL node, only called
+   * for principals that {@link #isDynamicPrincipal(String, NodeImpl)} accepted. The
+   * standard implementation has no dynamic principals.
    * 
    * @param principalName the name to check
    * @param aclNode the aclNode being constructed
-   * @param princToEntries the processed ACE map.
    * @param userId the userID of the request, may be null.
    * @return true if the user has the principal.
    */
-  protected boolean hasPrincipal(String principalName, NodeImpl aclNode,
-      Map<String, List<AccessControlEntry>> princToEntries, String userId) {
-    return princToEntries.containsKey(principalName);
+  protected boolean hasPrincipalInContext(String principalName, NodeImpl aclNode,
+      String userId) {
+    return false;
   }
 
 
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.standard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Values compiled for a path and a set of principals, shared between all the sessions
+ * that have the same principals. A lookup is two hash lookups. The paths are also held
+ * in a trie so that a change to an ACL only drops the values at and below the node it
+ * controls, rather than everything. A value compiled while an invalidation runs is only
+ * refused if its path is in the subtree that was invalidated.
+ */
+public class PathPrincipalCache<V> {
+
+  /**
+   * A segment in the trie, path is set if the path to the node has values.
+   */
+  private static class PathNode {
+    private PathNode parent;
+    private String segment;
+    private String path;
+    private Map<String, PathNode> children;
+
+    private PathNode(PathNode parent, String segment) {
+      this.parent = parent;
+      this.segment = segment;
+    }
+  }
+
+  private final ConcurrentMap<String, ConcurrentMap<String, V>> values = new ConcurrentHashMap<String, ConcurrentMap<String, V>>();
+  private final AtomicLong generation = new AtomicLong();
+  /**
+   * The number of recent invalidations remembered, a value compiled before the oldest of
+   * them is refused whatever its path.
+   */
+  private static final int RECENT_INVALIDATIONS = 64;
+  /**
+   * The generation and subtree of the recent invalidations, indexed by generation modulo
+   * {@link #RECENT_INVALIDATIONS}. The root of a cleared cache is the empty string.
+   */
+  private final long[] invalidatedAt = new long[RECENT_INVALIDATIONS];
+  private final String[] invalidatedPaths = new String[RECENT_INVALIDATIONS];
+  private final int maxPaths;
+  private PathNode root = new PathNode(null, null);
+
+  /**
+   * @param maxPaths
+   *          the number of paths to hold before the cache is cleared.
+   */
+  public PathPrincipalCache(int maxPaths) {
+    this.maxPaths = maxPaths;
+  }
+
+  /**
+   * @param path
+   * @param principalKey
+   * @return the value or null if there is none.
+   */
+  public V get(String path, String principalKey) {
+    ConcurrentMap<String, V> principals = values.get(path);
+    if (principals == null) {
+      return null;
+    }
+    return principals.get(principalKey);
+  }
+
+  /**
+   * @return the generation, to be read before a value is compiled and passed to
+   *         {@link #put(String, String, Object, long)}.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Add a value, unless its path has been invalidated since it started to be compiled.
+   * 
+   * @param path
+   * @param principalKey
+   * @param value
+   * @param generation
+   *          the generation read before the value was compiled.
+   */
+  public void put(String path, String principalKey, V value, long generation) {
+    if (isStale(path, generation)) {
+      return;
+    }
+    ConcurrentMap<String, V> principals = values.get(path);
+    if (principals == null) {
+      if (values.size() >= maxPaths) {
+        clear();
+        return;
+      }
+      principals = new ConcurrentHashMap<String, V>(4);
+      ConcurrentMap<String, V> existing = values.putIfAbsent(path, principals);
+      if (existing != null) {
+        principals = existing;
+      } else {
+        addPath(path);
+      }
+    }
+    principals.put(principalKey, value);
+    // an invalidation may have run while the value was being added.
+    if (isStale(path, generation)) {
+      principals.remove(principalKey);
+    }
+  }
+
+  /**
+   * @param path
+   * @param generation
+   * @return true if the path has been invalidated since the generation.
+   */
+  private boolean isStale(String path, long generation) {
+    if (generation == this.generation.get()) {
+      return false;
+    }
+    synchronized (invalidatedAt) {
+      long current = this.generation.get();
+      if (current - generation >= RECENT_INVALIDATIONS) {
+        return true;
+      }
+      for (long g = generation + 1; g <= current; g++) {
+        int i = (int) (g % RECENT_INVALIDATIONS);
+        String root = invalidatedPaths[i];
+        if (invalidatedAt[i] == g
+            && (root.length() == 0 || path.equals(root) || (path.startsWith(root) && path
+                .charAt(root.length()) == '/'))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Start a new generation, recording the subtree it invalidates.
+   * 
+   * @param path
+   */
+  private void invalidated(String path) {
+    synchronized (invalidatedAt) {
+      long g = generation.incrementAndGet();
+      int i = (int) (g % RECENT_INVALIDATIONS);
+      invalidatedAt[i] = g;
+      invalidatedPaths[i] = path;
+    }
+  }
+
+  /**
+   * Drop the values for a path and every path below it.
+   * 
+   * @param path
+   */
+  public void invalidateSubtree(String path) {
+    if (path.length() == 0 || "/".equals(path)) {
+      clear();
+      return;
+    }
+    invalidated(path);
+    for (String removed : removePaths(path)) {
+      values.remove(removed);
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public void clear() {
+    invalidated("");
+    synchronized (this) {
+      root = new PathNode(null, null);
+    }
+    values.clear();
+  }
+
+  /**
+   * @return the number of paths with values.
+   */
+  public int size() {
+    return values.size();
+  }
+
+  private synchronized void addPath(String path) {
+    find(path, true).path = path;
+  }
+
+  private synchronized List<String> removePaths(String path) {
+    List<String> paths = new ArrayList<String>();
+    PathNode n = find(path, false);
+    if (n != null) {
+      collect(n, paths);
+      if (n.parent != null) {
+        n.parent.children.remove(n.segment);
+        prune(n.parent);
+      }
+    }
+    return paths;
+  }
+
+  private PathNode find(String path, boolean create) {
+    PathNode n = root;
+    int start = path.startsWith("/") ? 1 : 0;
+    int end;
+    do {
+      end = path.indexOf('/', start);
+      String segment = (end < 0) ? path.substring(start) : path.substring(start, end);
+      PathNode child = null;
+      if (n.children != null) {
+        child = n.children.get(segment);
+      }
+      if (child == null) {
+        if (!create) {
+          return null;
+        }
+        if (n.children == null) {
+          n.children = new HashMap<String, PathNode>(4);
+        }
+        child = new PathNode(n, segment);
+        n.children.put(segment, child);
+      }
+      n = child;
+      start = end + 1;
+    } while (end >= 0);
+    return n;
+  }
+
+  private void collect(PathNode n, List<String> paths) {
+    if (n.path != null) {
+      paths.add(n.path);
+    }
+    if (n.children != null) {
+      for (PathNode child : n.children.values()) {
+        collect(child, paths);
+      }
+    }
+  }
+
+  private void prune(PathNode n) {
+    while (n.parent != null && n.path == null
+        && (n.children == null || n.children.size() == 0)) {
+      n.parent.children.remove(n.segment);
+      n = n.parent;
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.standard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The paths of the ACEs that deny read, each with the principal it applies to. Built
+ * once for the workspace and kept current from observation, so that working out if a
+ * set of principals can read everything is a lookup per principal rather than a query
+ * over every deny ACE in the workspace.
+ */
+public class ReadDenyIndex {
+
+  /**
+   * ACE path to principal name, sorted so that a removed subtree can be found.
+   */
+  private final SortedMap<String, String> aces = new TreeMap<String, String>();
+  /**
+   * principal name to the number of read deny ACEs for that principal.
+   */
+  private final Map<String, Integer> principals = new HashMap<String, Integer>();
+  private volatile long version;
+
+  /**
+   * Record a read deny ACE, replacing any previous principal at the path.
+   * 
+   * @param acePath
+   * @param principalName
+   */
+  public synchronized void put(String acePath, String principalName) {
+    String previous = aces.put(acePath, principalName);
+    if (previous != null) {
+      decrement(previous);
+    }
+    Integer count = principals.get(principalName);
+    principals.put(principalName, count == null ? 1 : count + 1);
+    version++;
+  }
+
+  /**
+   * Forget the ACE at a path, if there was one.
+   * 
+   * @param acePath
+   */
+  public synchronized void remove(String acePath) {
+    String previous = aces.remove(acePath);
+    if (previous != null) {
+      decrement(previous);
+      version++;
+    }
+  }
+
+  /**
+   * Forget the ACEs at and below a path.
+   * 
+   * @param path
+   * @return true if there were any.
+   */
+  public synchronized boolean removeSubtree(String path) {
+    int size = aces.size();
+    remove(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    // '0' is the character after '/'
+    SortedMap<String, String> subtree = aces.subMap(prefix, prefix.substring(0,
+        prefix.length() - 1)
+        + '0');
+    if (subtree.size() > 0) {
+      List<String> paths = new ArrayList<String>(subtree.keySet());
+      for (String acePath : paths) {
+        remove(acePath);
+      }
+    }
+    return aces.size() != size;
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    aces.clear();
+    principals.clear();
+    version++;
+  }
+
+  /**
+   * @param principalNames
+   * @return true if there is a read deny ACE for any of the principals.
+   */
+  public synchronized boolean deniesRead(Collection<String> principalNames) {
+    if (principals.isEmpty()) {
+      return false;
+    }
+    for (String principalName : principalNames) {
+      if (principals.containsKey(principalName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return a number that changes whenever the index changes, so that a result from
+   *         {@link #deniesRead(Collection)} can be held until it does.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the number of read deny ACEs.
+   */
+  public synchronized int size() {
+    return aces.size();
+  }
+
+  private void decrement(String principalName) {
+    Integer count = principals.get(principalName);
+    if (count == null || count <= 1) {
+      principals.remove(principalName);
+    } else {
+      principals.put(principalName, count - 1);
+    }
+  }
+}
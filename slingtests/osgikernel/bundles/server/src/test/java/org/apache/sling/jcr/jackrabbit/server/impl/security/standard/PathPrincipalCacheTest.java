@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.standard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PathPrincipalCacheTest {
+
+  @Test
+  public void testGetPut() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(100);
+    cache.put("/a", "p1", "a1", cache.getGeneration());
+    cache.put("/a", "p2", "a2", cache.getGeneration());
+    assertEquals("a1", cache.get("/a", "p1"));
+    assertEquals("a2", cache.get("/a", "p2"));
+    assertNull(cache.get("/a", "p3"));
+    assertNull(cache.get("/b", "p1"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testInvalidateSubtree() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(100);
+    long generation = cache.getGeneration();
+    cache.put("/a", "p", "a", generation);
+    cache.put("/a/b", "p", "b", generation);
+    cache.put("/a/b/c", "p", "c", generation);
+    cache.put("/a/bc", "p", "bc", generation);
+    cache.invalidateSubtree("/a/b");
+    assertEquals("a", cache.get("/a", "p"));
+    assertNull(cache.get("/a/b", "p"));
+    assertNull(cache.get("/a/b/c", "p"));
+    assertEquals("bc", cache.get("/a/bc", "p"));
+    cache.invalidateSubtree("/");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testStalePut() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(100);
+    long generation = cache.getGeneration();
+    cache.invalidateSubtree("/a/b");
+    cache.put("/a/b/c", "p", "c", generation);
+    assertNull(cache.get("/a/b/c", "p"));
+    cache.put("/a/b", "p", "b", generation);
+    assertNull(cache.get("/a/b", "p"));
+    cache.put("/a/b/c", "p", "c", cache.getGeneration());
+    assertEquals("c", cache.get("/a/b/c", "p"));
+  }
+
+  @Test
+  public void testPutOutsideInvalidatedSubtree() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(100);
+    long generation = cache.getGeneration();
+    cache.invalidateSubtree("/x");
+    cache.invalidateSubtree("/a/bc");
+    // an ancestor, a sibling and a sibling with a common prefix are still current.
+    cache.put("/a", "p", "a", generation);
+    cache.put("/a/b", "p", "b", generation);
+    cache.put("/y", "p", "y", generation);
+    assertEquals("a", cache.get("/a", "p"));
+    assertEquals("b", cache.get("/a/b", "p"));
+    assertEquals("y", cache.get("/y", "p"));
+    cache.clear();
+    cache.put("/y", "p", "y", generation);
+    assertNull(cache.get("/y", "p"));
+  }
+
+  @Test
+  public void testPutAfterManyInvalidations() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(100);
+    long generation = cache.getGeneration();
+    for (int i = 0; i < 100; i++) {
+      cache.invalidateSubtree("/x" + i);
+    }
+    // too old to tell which subtrees were invalidated.
+    cache.put("/a", "p", "a", generation);
+    assertNull(cache.get("/a", "p"));
+  }
+
+  @Test
+  public void testMaxPaths() {
+    PathPrincipalCache<String> cache = new PathPrincipalCache<String>(2);
+    cache.put("/a", "p", "a", cache.getGeneration());
+    cache.put("/b", "p", "b", cache.getGeneration());
+    cache.put("/c", "p", "c", cache.getGeneration());
+    assertEquals(0, cache.size());
+    cache.put("/c", "p", "c", cache.getGeneration());
+    assertEquals("c", cache.get("/c", "p"));
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.standard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models permission checks at depths of 5 to 20, comparing a walk over every ancestor
+ * against hits on the {@link PathPrincipalCache}, and subtree invalidation against
+ * clearing the whole cache. This is a model of the evaluation, not a live repository.
+ * Not run as part of the build, run with java -cp target/test-classes:target/classes
+ * org.apache.sling.jcr.jackrabbit.server.impl.security.standard.PermissionCacheBenchmark
+ */
+public class PermissionCacheBenchmark {
+
+  private static final int CHECKS = 1000000;
+  private static final int SITES = 1000;
+  private static final String PRINCIPALS = "everyone\nuser1\n";
+
+  public static void main(String[] args) {
+    for (int depth = 5; depth <= 20; depth += 5) {
+      run(depth);
+    }
+    invalidation();
+  }
+
+  private static void run(int depth) {
+    List<String> paths = new ArrayList<String>(SITES);
+    for (int i = 0; i < SITES; i++) {
+      StringBuilder sb = new StringBuilder("/sites/site" + i);
+      for (int d = 2; d < depth; d++) {
+        sb.append("/n").append(d);
+      }
+      paths.add(sb.toString());
+    }
+    PathPrincipalCache<Integer> cache = new PathPrincipalCache<Integer>(SITES * 2);
+
+    long start = System.nanoTime();
+    long bits = 0;
+    for (int i = 0; i < CHECKS; i++) {
+      bits += walk(paths.get(i % SITES));
+    }
+    long walk = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < CHECKS; i++) {
+      String path = paths.get(i % SITES);
+      Integer cached = cache.get(path, PRINCIPALS);
+      if (cached == null) {
+        long generation = cache.getGeneration();
+        cached = walk(path);
+        cache.put(path, PRINCIPALS, cached, generation);
+      }
+      bits += cached;
+    }
+    long cached = System.nanoTime() - start;
+    System.out.println("depth " + depth + ": walk " + (walk / CHECKS) + "ns, cached "
+        + (cached / CHECKS) + "ns per check (" + bits + ")");
+  }
+
+  /**
+   * Stands in for collecting and evaluating the entries of every ancestor.
+   */
+  private static int walk(String path) {
+    int allows = 0;
+    for (int i = path.length() - 1; i > 0; i--) {
+      if (path.charAt(i) == '/') {
+        allows |= path.substring(0, i).hashCode() & 0x1f;
+      }
+    }
+    return allows;
+  }
+
+  private static void invalidation() {
+    System.out.println("misses over 100 rounds, one ACL change per round: subtree "
+        + misses(true) + ", clear " + misses(false) + " of " + (100 * SITES * 20));
+  }
+
+  private static int misses(boolean subtree) {
+    PathPrincipalCache<Integer> cache = new PathPrincipalCache<Integer>(SITES * 100);
+    int misses = 0;
+    for (int round = 0; round < 100; round++) {
+      for (int i = 0; i < SITES; i++) {
+        for (int j = 0; j < 20; j++) {
+          String path = "/sites/site" + i + "/page" + j;
+          if (cache.get(path, PRINCIPALS) == null) {
+            misses++;
+            cache.put(path, PRINCIPALS, j, cache.getGeneration());
+          }
+        }
+      }
+      if (subtree) {
+        cache.invalidateSubtree("/sites/site" + round);
+      } else {
+        cache.clear();
+      }
+    }
+    return misses;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.standard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ */
+public class ReadDenyIndexTest {
+
+  private static final List<String> USER = Arrays.asList(new String[] { "everyone", "ieb" });
+
+  @Test
+  public void testDeniesRead() {
+    ReadDenyIndex index = new ReadDenyIndex();
+    assertFalse(index.deniesRead(USER));
+    index.put("/a/rep:policy/deny0", "ieb");
+    assertTrue(index.deniesRead(USER));
+    assertFalse(index.deniesRead(Arrays.asList(new String[] { "other" })));
+    index.put("/b/rep:policy/deny0", "ieb");
+    index.remove("/a/rep:policy/deny0");
+    assertTrue(index.deniesRead(USER));
+    index.remove("/b/rep:policy/deny0");
+    assertFalse(index.deniesRead(USER));
+  }
+
+  @Test
+  public void testReplacePrincipal() {
+    ReadDenyIndex index = new ReadDenyIndex();
+    index.put("/a/rep:policy/deny0", "ieb");
+    index.put("/a/rep:policy/deny0", "other");
+    assertFalse(index.deniesRead(USER));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testRemoveSubtree() {
+    ReadDenyIndex index = new ReadDenyIndex();
+    index.put("/a/rep:policy/deny0", "ieb");
+    index.put("/a/b/rep:policy/deny0", "ieb");
+    index.put("/ab/rep:policy/deny0", "other");
+    assertTrue(index.removeSubtree("/a"));
+    assertEquals(1, index.size());
+    assertFalse(index.deniesRead(USER));
+    assertFalse(index.removeSubtree("/a"));
+    assertTrue(index.removeSubtree("/ab/rep:policy"));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testVersion() {
+    ReadDenyIndex index = new ReadDenyIndex();
+    long version = index.getVersion();
+    index.remove("/missing");
+    assertEquals(version, index.getVersion());
+    index.put("/a/rep:policy/deny0", "ieb");
+    assertTrue(version != index.getVersion());
+  }
+}
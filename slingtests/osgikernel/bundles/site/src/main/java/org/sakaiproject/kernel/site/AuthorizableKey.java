@@ -21,7 +21,7 @@ public class AuthorizableKey {
     return ((AuthorizableKey)obj).getID().equals(getID());
   }
 
-  private String getID() {
+  public String getID() {
     return id;
   }
 
@@ -0,0 +1,471 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.sakaiproject.kernel.api.site.Sort;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the flattened membership of recently used sites, by site path. Each entry holds
+ * the IDs of the users and groups of the site, so a count is the size of a list and a
+ * page is a sub list, once the entry is built. Sorted views are built once per sort and
+ * held with the entry. The index also knows which sites each authorizable appears in, so
+ * that a change to the membership of an authorizable only touches the sites it affects. A
+ * change to the groups of a user is applied to those sites as a delta, other changes drop
+ * them.
+ */
+public class SiteMembershipIndex {
+
+  /**
+   * The membership of one site. The users of a site are changed in place by the deltas of
+   * the index, under the lock of the index and of the members, so readers take a copy of
+   * the page they need under the lock of the members.
+   */
+  public static class Members {
+    private final List<String> authorizables;
+    private final List<String> users;
+    private final List<String> groups;
+    private final Map<String, SortedView> sortedUsers =
+        new HashMap<String, SortedView>();
+    private final Map<String, SortedView> sortedGroups =
+        new HashMap<String, SortedView>();
+
+    /**
+     * @param authorizables
+     *          the authorizables declared on the site, that the membership was built from.
+     * @param users
+     *          the IDs of all the users of the site, in the order they were found.
+     * @param groups
+     *          the IDs of all the groups of the site, in the order they were found.
+     */
+    public Members(List<String> authorizables, List<String> users, List<String> groups) {
+      this.authorizables = Collections.unmodifiableList(new ArrayList<String>(authorizables));
+      this.users = new ArrayList<String>(users);
+      this.groups = Collections.unmodifiableList(new ArrayList<String>(groups));
+    }
+
+    /**
+     * Add the user to or remove it from the site, and from the sorted views already
+     * built.
+     * 
+     * @param userId
+     * @param member
+     *          true if the user should be in the site.
+     */
+    private synchronized void setUser(String userId, boolean member) {
+      if (member) {
+        users.add(userId);
+      } else {
+        users.remove(userId);
+      }
+      for (SortedView view : sortedUsers.values()) {
+        int i = Collections.binarySearch(view.ids, userId, view.comparator);
+        if (member && i < 0) {
+          view.ids.add(-i - 1, userId);
+        } else if (!member && i >= 0) {
+          view.ids.remove(i);
+        }
+      }
+    }
+
+    /**
+     * @return the authorizables declared on the site when this was built.
+     */
+    public List<String> getAuthorizables() {
+      return authorizables;
+    }
+
+    /**
+     * @param sort
+     *          the sort, or null for the order the users were found in.
+     * @param start
+     *          the index of the first user in the page.
+     * @param nitems
+     *          the size of the page.
+     * @return a copy of the IDs of the users of the site in the page.
+     */
+    public synchronized List<String> getUsers(Sort[] sort, int start, int nitems) {
+      return page(sorted(users, sortedUsers, sort), start, nitems);
+    }
+
+    /**
+     * @param sort
+     *          the sort, or null for the order the groups were found in.
+     * @param start
+     *          the index of the first group in the page.
+     * @param nitems
+     *          the size of the page.
+     * @return a copy of the IDs of the groups of the site in the page.
+     */
+    public synchronized List<String> getGroups(Sort[] sort, int start, int nitems) {
+      return page(sorted(groups, sortedGroups, sort), start, nitems);
+    }
+
+    /**
+     * @return the number of users in the site.
+     */
+    public synchronized int getUserCount() {
+      return users.size();
+    }
+
+    private List<String> sorted(List<String> ids, Map<String, SortedView> views,
+        Sort[] sort) {
+      if (sort == null || sort.length == 0) {
+        return ids;
+      }
+      String key = toKey(sort);
+      SortedView view = views.get(key);
+      if (view == null) {
+        view = new SortedView(ids, buildCompoundComparitor(sort));
+        views.put(key, view);
+      }
+      return view.ids;
+    }
+
+    /**
+     * @param ids
+     * @param start
+     * @param nitems
+     * @return a copy of the part of the list for the page, so that it can be used once
+     *         the lock is released.
+     */
+    private static List<String> page(List<String> ids, int start, int nitems) {
+      if (start < 0 || start >= ids.size() || nitems <= 0) {
+        return Collections.emptyList();
+      }
+      return new ArrayList<String>(ids.subList(start, Math.min(ids.size(), start
+          + Math.min(nitems, ids.size()))));
+    }
+  }
+
+  /**
+   * The IDs of a site in the order of one sort, kept in order as users are added and
+   * removed.
+   */
+  private static class SortedView {
+    private final List<String> ids;
+    private final Comparator<String> comparator;
+
+    private SortedView(List<String> ids, Comparator<String> comparator) {
+      this.ids = new ArrayList<String>(ids);
+      this.comparator = comparator;
+      Collections.sort(this.ids, comparator);
+    }
+  }
+
+  private final int maxSites;
+  private final AtomicLong generation = new AtomicLong();
+  /**
+   * site path to members, in access order.
+   */
+  private final LinkedHashMap<String, Members> sites;
+  /**
+   * authorizable ID to the paths of the sites it appears in.
+   */
+  private final Map<String, Set<String>> sitesByAuthorizable = new HashMap<String, Set<String>>();
+
+  /**
+   * @param maxSites
+   *          the number of sites to hold, the least recently used is dropped after that.
+   */
+  public SiteMembershipIndex(int maxSites) {
+    this.maxSites = maxSites;
+    sites = new LinkedHashMap<String, Members>(16, 0.75f, true);
+  }
+
+  /**
+   * @param sitePath
+   * @param authorizables
+   *          the authorizables currently declared on the site.
+   * @return the members of the site, or null if they are not held or were built from a
+   *         different set of authorizables.
+   */
+  public synchronized Members get(String sitePath, List<String> authorizables) {
+    Members members = sites.get(sitePath);
+    if (members != null && !members.getAuthorizables().equals(authorizables)) {
+      remove(sitePath);
+      return null;
+    }
+    return members;
+  }
+
+  /**
+   * @return the generation, to be read before the members of a site are built and passed
+   *         to {@link #put(String, Members, long)}.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Add the members of a site, unless there has been a change to membership since they
+   * started to be built.
+   * 
+   * @param sitePath
+   * @param members
+   * @param generation
+   *          the generation read before the members were built.
+   */
+  public synchronized void put(String sitePath, Members members, long generation) {
+    if (generation != this.generation.get()) {
+      return;
+    }
+    replace(sitePath, members);
+    if (sites.size() > maxSites) {
+      Iterator<String> eldest = sites.keySet().iterator();
+      String eldestPath = eldest.next();
+      remove(eldestPath);
+    }
+  }
+
+  /**
+   * Drop every site that an authorizable appears in.
+   * 
+   * @param authorizableIds
+   */
+  public synchronized void invalidate(Collection<String> authorizableIds) {
+    generation.incrementAndGet();
+    for (String id : authorizableIds) {
+      Set<String> paths = sitesByAuthorizable.get(id);
+      if (paths != null) {
+        for (String path : new ArrayList<String>(paths)) {
+          remove(path);
+        }
+      }
+    }
+  }
+
+  /**
+   * Apply a change to the groups a user is a declared member of, adding the user to or
+   * removing it from the sites held without rebuilding them.
+   * 
+   * @param userId
+   * @param groupIds
+   *          the groups the user is now a declared member of.
+   */
+  public synchronized void updateUser(String userId, Collection<String> groupIds) {
+    // builds that started before this change may have seen the old groups.
+    generation.incrementAndGet();
+    Set<String> candidates = new HashSet<String>();
+    addPaths(candidates, userId);
+    for (String groupId : groupIds) {
+      addPaths(candidates, groupId);
+    }
+    for (String path : candidates) {
+      Members members = sites.get(path);
+      boolean member = members.authorizables.contains(userId);
+      for (Iterator<String> i = groupIds.iterator(); !member && i.hasNext();) {
+        String groupId = i.next();
+        member = members.groups.contains(groupId) || members.authorizables.contains(groupId);
+      }
+      if (member != members.users.contains(userId)) {
+        setUser(path, members, userId, member);
+      }
+    }
+  }
+
+  /**
+   * Apply the removal of an authorizable. A user is removed from the sites it is in, the
+   * sites of anything else are dropped.
+   * 
+   * @param authorizableId
+   */
+  public synchronized void removeAuthorizable(String authorizableId) {
+    generation.incrementAndGet();
+    Set<String> paths = new HashSet<String>();
+    addPaths(paths, authorizableId);
+    for (String path : paths) {
+      Members members = sites.get(path);
+      if (members.groups.contains(authorizableId)
+          || members.authorizables.contains(authorizableId)) {
+        remove(path);
+      } else {
+        setUser(path, members, authorizableId, false);
+      }
+    }
+  }
+
+  /**
+   * Drop a site.
+   * 
+   * @param sitePath
+   */
+  public synchronized void invalidateSite(String sitePath) {
+    generation.incrementAndGet();
+    remove(sitePath);
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    generation.incrementAndGet();
+    sites.clear();
+    sitesByAuthorizable.clear();
+  }
+
+  /**
+   * @return the number of sites held.
+   */
+  public synchronized int size() {
+    return sites.size();
+  }
+
+  private void addPaths(Set<String> paths, String authorizableId) {
+    Set<String> sitePaths = sitesByAuthorizable.get(authorizableId);
+    if (sitePaths != null) {
+      paths.addAll(sitePaths);
+    }
+  }
+
+  private void replace(String sitePath, Members members) {
+    remove(sitePath);
+    sites.put(sitePath, members);
+    addSite(sitePath, members.users);
+    addSite(sitePath, members.groups);
+    addSite(sitePath, members.authorizables);
+  }
+
+  private void setUser(String sitePath, Members members, String userId, boolean member) {
+    members.setUser(userId, member);
+    List<String> ids = Collections.singletonList(userId);
+    if (member) {
+      addSite(sitePath, ids);
+    } else {
+      removeSite(sitePath, ids);
+    }
+  }
+
+  private void addSite(String sitePath, List<String> ids) {
+    for (String id : ids) {
+      Set<String> paths = sitesByAuthorizable.get(id);
+      if (paths == null) {
+        paths = new HashSet<String>(4);
+        sitesByAuthorizable.put(id, paths);
+      }
+      paths.add(sitePath);
+    }
+  }
+
+  private void remove(String sitePath) {
+    Members members = sites.remove(sitePath);
+    if (members != null) {
+      removeSite(sitePath, members.users);
+      removeSite(sitePath, members.groups);
+      removeSite(sitePath, members.authorizables);
+    }
+  }
+
+  private void removeSite(String sitePath, List<String> ids) {
+    for (String id : ids) {
+      Set<String> paths = sitesByAuthorizable.get(id);
+      if (paths != null) {
+        paths.remove(sitePath);
+        if (paths.isEmpty()) {
+          sitesByAuthorizable.remove(id);
+        }
+      }
+    }
+  }
+
+  private static String toKey(Sort[] sort) {
+    StringBuilder sb = new StringBuilder();
+    for (Sort s : sort) {
+      sb.append(s.getField()).append(',').append(s.getOrder()).append(';');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Build a compound set of comparators for performing sorts.
+   * 
+   * @param sort
+   *          the sort array to base the compound set
+   * @return the first comparator in the set.
+   */
+  @SuppressWarnings("unchecked")
+  static Comparator<String> buildCompoundComparitor(Sort[] sort) {
+    if (sort.length == 0) {
+      return null;
+    }
+    final Comparator<String>[] comparitors = new Comparator[sort.length];
+    int i = 0;
+    for (final Sort s : sort) {
+
+      final int next = i + 1;
+      comparitors[i++] = new Comparator<String>() {
+
+        /**
+         * Compare the objects
+         */
+        public int compare(String c1, String c2) {
+          switch (s.getField()) {
+          case firstName:
+          case id:
+          case lastName:
+          }
+          switch (s.getOrder()) {
+          case asc:
+            int i = c1.compareTo(c2);
+            if (i == 0) {
+              i = compareNext(c1, c2);
+            }
+            return i;
+          case desc:
+            i = c2.compareTo(c1);
+            if (i == 0) {
+              i = compareNext(c1, c2);
+            }
+            return i;
+          }
+          return 0;
+        }
+
+        /**
+         * Chain to the next comparator in the ordering list.
+         * 
+         * @param o1
+         *          the first object to compare.
+         * @param o2
+         *          the second object to compare.
+         * @return the result of the next comparator in the chain or 0 if this is the last
+         *         one.
+         */
+        private int compareNext(String o1, String o2) {
+          if (next < comparitors.length) {
+            return comparitors[next].compare(o1, o2);
+          }
+          return 0;
+        }
+      };
+    }
+    return comparitors[0];
+  }
+}
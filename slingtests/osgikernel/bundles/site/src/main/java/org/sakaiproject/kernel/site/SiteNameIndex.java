@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A bounded map of site name to site path, so that a site can be found by name without a
+ * query. Names are added when a site is found or created, the least recently used name is
+ * dropped once the index is full, and a removed subtree drops the sites in it.
+ */
+public class SiteNameIndex {
+
+  private final int maxNames;
+  /**
+   * site name to site path, in access order.
+   */
+  private final LinkedHashMap<String, String> paths = new LinkedHashMap<String, String>(16,
+      0.75f, true);
+  /**
+   * site path to site name, sorted so that a removed subtree can be found.
+   */
+  private final TreeMap<String, String> names = new TreeMap<String, String>();
+
+  /**
+   * @param maxNames
+   *          the number of names to hold.
+   */
+  public SiteNameIndex(int maxNames) {
+    this.maxNames = maxNames;
+  }
+
+  /**
+   * @param siteName
+   * @return the path of the site, or null if it is not known.
+   */
+  public synchronized String get(String siteName) {
+    return paths.get(siteName);
+  }
+
+  /**
+   * @param siteName
+   * @param sitePath
+   */
+  public synchronized void put(String siteName, String sitePath) {
+    String previousPath = paths.put(siteName, sitePath);
+    if (previousPath != null) {
+      names.remove(previousPath);
+    }
+    String previousName = names.put(sitePath, siteName);
+    if (previousName != null && !previousName.equals(siteName)) {
+      paths.remove(previousName);
+    }
+    if (paths.size() > maxNames) {
+      Iterator<String> eldest = paths.keySet().iterator();
+      String eldestName = eldest.next();
+      remove(eldestName, paths.get(eldestName));
+    }
+  }
+
+  /**
+   * Forget the site at a path, if there was one.
+   * 
+   * @param sitePath
+   */
+  public synchronized void removePath(String sitePath) {
+    String siteName = names.get(sitePath);
+    if (siteName != null) {
+      remove(siteName, sitePath);
+    }
+  }
+
+  /**
+   * Forget the sites at and below a path.
+   * 
+   * @param path
+   */
+  public synchronized void removeSubtree(String path) {
+    removePath(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    // '0' is the character after '/'
+    SortedMap<String, String> subtree = names.subMap(prefix, prefix.substring(0, prefix
+        .length() - 1)
+        + '0');
+    if (subtree.size() > 0) {
+      List<String> sitePaths = new ArrayList<String>(subtree.keySet());
+      for (String sitePath : sitePaths) {
+        removePath(sitePath);
+      }
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    paths.clear();
+    names.clear();
+  }
+
+  /**
+   * @return the number of names held.
+   */
+  public synchronized int size() {
+    return paths.size();
+  }
+
+  private void remove(String siteName, String sitePath) {
+    paths.remove(siteName);
+    names.remove(sitePath);
+  }
+}
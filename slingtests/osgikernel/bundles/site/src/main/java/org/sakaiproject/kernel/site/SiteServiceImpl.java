@@ -17,17 +17,19 @@
  */
 package org.sakaiproject.kernel.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.kernel.api.site.SiteException;
 import org.sakaiproject.kernel.api.site.SiteService;
@@ -37,12 +39,14 @@ import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
@@ -51,6 +55,9 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -82,9 +89,54 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The maximum size of any list before we truncate. The user is warned. The list is built
+   * once into the membership index rather than on every request.
    */
-  private static final int MAXLISTSIZE = 10000;
+  private static final int MAXLISTSIZE = 100000;
+
+  /**
+   * The number of sites held in the membership index.
+   */
+  private static final int MAX_INDEXED_SITES = 1000;
+
+  /**
+   * Where Jackrabbit keeps users and groups.
+   */
+  private static final String AUTHORIZABLES_PATH = "/rep:security/rep:authorizables";
+
+  /**
+   * The property that holds the groups an authorizable is a declared member of.
+   */
+  private static final String GROUPS_PROPERTY = "rep:groups";
+
+  /**
+   * The node type of a user.
+   */
+  private static final String USER_NODETYPE = "rep:User";
+
+  /**
+   * The flattened membership of recently used sites.
+   */
+  private SiteMembershipIndex membershipIndex = new SiteMembershipIndex(MAX_INDEXED_SITES);
+
+  /**
+   * The session the membership listener is registered with.
+   */
+  private Session listenerSession;
+
+  private MembershipListener membershipListener;
+
+  /**
+   * The number of site names held in the site name index.
+   */
+  private static final int MAX_INDEXED_SITE_NAMES = 10000;
+
+  /**
+   * Site name to site path, for sites that have been found or created.
+   */
+  private SiteNameIndex siteNameIndex = new SiteNameIndex(MAX_INDEXED_SITE_NAMES);
+
+  private SiteNameListener siteNameListener;
 
   /**
    * The OSGi Event Admin Service.
@@ -426,36 +478,19 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
-    }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
+    List<Group> groups = Lists.newArrayList();
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      for (String id : getSiteMembers(site).getGroups(sort, start, nitems)) {
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a instanceof Group) {
+          groups.add((Group) a);
+        }
       }
-    };
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to list groups for {} ", site, ex);
+    }
+    return groups.iterator();
   }
 
   /**
@@ -465,39 +500,75 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.kernel.api.site.Sort[])
    */
   public Iterator<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapUsers(Iterators.limit(sortedIterator, nitems));
+    List<User> users = Lists.newArrayList();
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      for (String id : getSiteMembers(site).getUsers(sort, start, nitems)) {
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a instanceof User) {
+          users.add((User) a);
+        }
+      }
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to list members for {} ", site, ex);
     }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapUsers(Iterators.limit(unsortedIterator, nitems));
+    return users.iterator();
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
+  public int getMemberCount(Node site) {
+    try {
+      return getSiteMembers(site).getUserCount();
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to count members for {} ", site, ex);
+      return 0;
+    }
+  }
 
-      public boolean hasNext() {
-        return underlying.hasNext();
+  /**
+   * Get the membership of the site from the index, building it if it is not there or the
+   * authorizables on the site have changed since it was built. The index is shared by
+   * every user, so it is built with an administrative session, and callers resolve the
+   * IDs in it with the session of the user.
+   * 
+   * @param site
+   * @return the membership of the site.
+   * @throws RepositoryException
+   */
+  private SiteMembershipIndex.Members getSiteMembers(Node site) throws RepositoryException {
+    List<String> authorizables = Lists.newArrayList();
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      for (Value v : getPropertyValues(site, SiteService.AUTHORIZABLE)) {
+        authorizables.add(v.getString());
       }
-
-      public User next() {
-        return underlying.next().getUser();
+    } else {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
+              .getPath(), SiteService.AUTHORIZABLE);
+    }
+    String sitePath = site.getPath();
+    SiteMembershipIndex.Members members = membershipIndex.get(sitePath, authorizables);
+    if (members == null) {
+      long generation = membershipIndex.getGeneration();
+      MembershipTree membership;
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        membership = getMembershipTree(site, AccessControlUtil.getUserManager(adminSession),
+            authorizables);
+      } finally {
+        adminSession.logout();
       }
-
-      public void remove() {
-        underlying.remove();
+      List<String> users = Lists.newArrayList();
+      for (UserKey u : membership.getUsers().keySet()) {
+        users.add(u.getID());
       }
-    };
-  }
-
-  public int getMemberCount(Node site) {
-    return getMembershipTree(site).getUsers().size();
+      List<String> groups = Lists.newArrayList();
+      for (GroupKey g : membership.getGroups().keySet()) {
+        groups.add(g.getID());
+      }
+      members = new SiteMembershipIndex.Members(authorizables, users, groups);
+      membershipIndex.put(sitePath, members, generation);
+    }
+    return members;
   }
 
   /**
@@ -505,50 +576,43 @@ public class SiteServiceImpl implements SiteService {
    * nature of membership we may want to think of a more efficient way of performing this
    * operation, however, there are no queries to perform this and it may be better to have
    * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
+   * set to a practical size. The tree is flattened into the membership index, and only
+   * rebuilt when the membership of an authorizable in it changes. Membership is derived not
+   * always declared.
    * 
    * 
    * @param site
    *          the site
+   * @param userManager
+   *          the user manager of the session
+   * @param authorizables
+   *          the authorizables declared on the site
    * @return a membership tree
    */
-  private MembershipTree getMembershipTree(Node site) {
+  private MembershipTree getMembershipTree(Node site, UserManager userManager,
+      List<String> authorizables) {
     Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
     Map<UserKey, Membership> users = Maps.newLinkedHashMap();
     try {
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String groupId = v.getString();
-          Authorizable a = userManager.getAuthorizable(groupId);
-          if (a instanceof Group) {
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users);
-            }
-          } else if (a instanceof User) {
-            if (!users.containsKey(a)) {
-              users.put(new UserKey((User) a), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from groupId: {}", groupId);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a, (a == null ? "null" : a
-                .getClass()));
+      for (String groupId : authorizables) {
+        Authorizable a = userManager.getAuthorizable(groupId);
+        if (a instanceof Group) {
+          if (!groups.containsKey(a)) {
+            groups.put(new GroupKey((Group) a), new Membership(null, a));
+            populateMembers((Group) a, groups, users);
           }
+        } else if (a instanceof User) {
+          if (!users.containsKey(a)) {
+            users.put(new UserKey((User) a), new Membership(null, a));
+          }
+        } else if (a == null) {
+          // if a is null
+          LOGGER.warn("Authorizable could not be resolved from groupId: {}", groupId);
+        } else {
+          // if a is not one of the known types
+          LOGGER.warn("Cannot handle Authorizable {} of type {}", a, (a == null ? "null" : a
+              .getClass()));
         }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
       }
     } catch (RepositoryException ex) {
       LOGGER.warn("Failed to build membership Tree for {} ", site, ex);
@@ -556,85 +620,6 @@ public class SiteServiceImpl implements SiteService {
     return new MembershipTree(groups, users);
   }
 
-  /**
-   * Build a compound set of comparators for performing sorts.
-   * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
-   */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparitor(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
-    }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
-
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            Object c1 = o1.getAuthorizable().getID();
-            Object c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-            case id:
-            case lastName:
-            }
-            switch (s.getOrder()) {
-            case asc:
-              if (c1 instanceof Comparable) {
-                Comparable cc1 = (Comparable<?>) c1;
-                int i = cc1.compareTo(c2);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
-            case desc:
-              if (c2 instanceof Comparable) {
-                Comparable cc2 = (Comparable<?>) c2;
-                int i = cc2.compareTo(c1);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
-            }
-          } catch (RepositoryException e) {
-          }
-          return 0;
-        }
-
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
-          }
-          return 0;
-        }
-      };
-    }
-    return comparitors[0];
-  }
-
   /**
    * Recursively build a list of groups for the group avoiding duplicates or infinite
    * recursion.
@@ -757,20 +742,27 @@ public class SiteServiceImpl implements SiteService {
    */
   public Node findSiteByName(Session session, String siteName) throws SiteException {
     try {
+      String sitePath = siteNameIndex.get(siteName);
+      if (sitePath != null && session.itemExists(sitePath)) {
+        Item item = session.getItem(sitePath);
+        if (isSite(item) && siteName.equals(item.getName())) {
+          return (Node) item;
+        }
+      }
+
+      // an exact match on the node name, rather than a full text search.
       QueryManager queryManager = session.getWorkspace().getQueryManager();
-      String queryString = "//*[@sling:resourceType=\"" + SiteService.SITE_RESOURCE_TYPE
-          + "\" and jcr:contains(.,\"" + siteName + "\")]";
+      String queryString = "//" + ISO9075.encode(siteName) + "[@"
+          + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "=\""
+          + SiteService.SITE_RESOURCE_TYPE + "\"]";
       Query query = queryManager.createQuery(queryString, Query.XPATH);
       QueryResult result = query.execute();
 
       NodeIterator nodeIterator = result.getNodes();
-      if (nodeIterator.getSize() == 0) {
-        return null;
-      }
-
       while (nodeIterator.hasNext()) {
         Node siteNode = nodeIterator.nextNode();
         if (isSite(siteNode)) {
+          siteNameIndex.put(siteName, siteNode.getPath());
           return siteNode;
         }
       }
@@ -784,6 +776,154 @@ public class SiteServiceImpl implements SiteService {
     return null;
   }
 
+  /**
+   * Keeps the site name index current as sites are created, changed and removed.
+   */
+  private class SiteNameListener implements EventListener {
+
+    public void onEvent(EventIterator events) {
+      String resourceTypeProperty = "/" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        try {
+          String path = event.getPath();
+          if (event.getType() == Event.NODE_REMOVED) {
+            siteNameIndex.removeSubtree(path);
+          } else if (path.endsWith(resourceTypeProperty)) {
+            String sitePath = path.substring(0, path.length()
+                - resourceTypeProperty.length());
+            if (listenerSession.itemExists(path)
+                && SiteService.SITE_RESOURCE_TYPE.equals(((Property) listenerSession
+                    .getItem(path)).getString())) {
+              siteNameIndex.put(PathUtils.lastElement(sitePath), sitePath);
+            } else {
+              siteNameIndex.removePath(sitePath);
+            }
+          }
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to process site change, clearing the site name index ", e);
+          siteNameIndex.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Keeps the membership index current. A change to the groups of a user is applied to
+   * the sites it affects as a delta, a change to the groups of a group drops the sites of
+   * the group as its members move with it.
+   */
+  private class MembershipListener implements EventListener {
+
+    public void onEvent(EventIterator events) {
+      Set<String> removed = Sets.newLinkedHashSet();
+      Set<String> changedUsers = Sets.newLinkedHashSet();
+      Set<String> changedGroups = Sets.newHashSet();
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        try {
+          String path = event.getPath();
+          if (event.getType() == Event.NODE_REMOVED) {
+            removed.add(path);
+          } else if (path.endsWith("/" + GROUPS_PROPERTY)) {
+            String authorizablePath = path.substring(0, path.lastIndexOf('/'));
+            if (listenerSession.itemExists(authorizablePath)
+                && ((Node) listenerSession.getItem(authorizablePath))
+                    .isNodeType(USER_NODETYPE)) {
+              changedUsers.add(authorizablePath);
+            } else {
+              changedGroups.add(PathUtils.lastElement(authorizablePath));
+              changedGroups.addAll(getDeclaredGroups(authorizablePath));
+            }
+          }
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to process membership change, clearing the index ", e);
+          membershipIndex.clear();
+          return;
+        }
+      }
+      try {
+        for (String path : removed) {
+          membershipIndex.removeAuthorizable(PathUtils.lastElement(path));
+        }
+        // the current groups are read once per user, however many events there were.
+        for (String path : changedUsers) {
+          membershipIndex.updateUser(PathUtils.lastElement(path), getDeclaredGroups(path));
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to process membership change, clearing the index ", e);
+        membershipIndex.clear();
+        return;
+      }
+      if (changedGroups.size() > 0) {
+        membershipIndex.invalidate(changedGroups);
+      }
+    }
+
+    /**
+     * @param authorizablePath
+     * @return the IDs of the groups the authorizable is now a declared member of.
+     * @throws RepositoryException
+     */
+    private List<String> getDeclaredGroups(String authorizablePath)
+        throws RepositoryException {
+      List<String> groupIds = Lists.newArrayList();
+      String path = authorizablePath + "/" + GROUPS_PROPERTY;
+      if (listenerSession.itemExists(path)) {
+        Property groups = (Property) listenerSession.getItem(path);
+        for (Value v : groups.getValues()) {
+          try {
+            groupIds.add(listenerSession.getNodeByUUID(v.getString()).getName());
+          } catch (ItemNotFoundException e) {
+            LOGGER.debug("Group {} no longer exists ", v.getString());
+          }
+        }
+      }
+      return groupIds;
+    }
+  }
+
+  protected void activate(ComponentContext context) {
+    try {
+      listenerSession = slingRepository.loginAdministrative(null);
+      membershipListener = new MembershipListener();
+      listenerSession.getWorkspace().getObservationManager().addEventListener(
+          membershipListener,
+          Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+              | Event.PROPERTY_REMOVED, AUTHORIZABLES_PATH, true, null, null, false);
+      siteNameListener = new SiteNameListener();
+      listenerSession.getWorkspace().getObservationManager().addEventListener(
+          siteNameListener,
+          Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+              | Event.PROPERTY_REMOVED, "/", true, null, null, false);
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to listen for site changes, sites will not be indexed ", e);
+      membershipIndex = new SiteMembershipIndex(0);
+      siteNameIndex = new SiteNameIndex(0);
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (listenerSession != null) {
+      try {
+        if (membershipListener != null) {
+          listenerSession.getWorkspace().getObservationManager().removeEventListener(
+              membershipListener);
+        }
+        if (siteNameListener != null) {
+          listenerSession.getWorkspace().getObservationManager().removeEventListener(
+              siteNameListener);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to remove membership listener ", e);
+      }
+      listenerSession.logout();
+      listenerSession = null;
+    }
+    membershipIndex.clear();
+    siteNameIndex.clear();
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortField;
+import org.sakaiproject.kernel.api.site.SortOrder;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SiteMembershipIndexTest {
+
+  private static final List<String> AUTHORIZABLES = Arrays.asList(new String[] { "g1" });
+
+  private SiteMembershipIndex.Members members() {
+    return new SiteMembershipIndex.Members(AUTHORIZABLES, Arrays.asList(new String[] {
+        "carol", "alice", "bob" }), Arrays.asList(new String[] { "g1", "g2" }));
+  }
+
+  @Test
+  public void testSortedViews() {
+    SiteMembershipIndex.Members members = members();
+    assertEquals(3, members.getUserCount());
+    assertEquals("carol", members.getUsers(null, 0, 10).get(0));
+    Sort[] asc = new Sort[] { new Sort(SortField.id, SortOrder.asc) };
+    assertEquals(Arrays.asList(new String[] { "alice", "bob", "carol" }), members
+        .getUsers(asc, 0, 10));
+    assertEquals(Arrays.asList(new String[] { "bob" }), members.getUsers(asc, 1, 1));
+    assertEquals(0, members.getUsers(asc, 3, 10).size());
+    Sort[] desc = new Sort[] { new Sort(SortField.id, SortOrder.desc) };
+    assertEquals("carol", members.getUsers(desc, 0, 10).get(0));
+    assertEquals("g2", members.getGroups(desc, 0, 10).get(0));
+  }
+
+  @Test
+  public void testAuthorizablesChanged() {
+    SiteMembershipIndex index = new SiteMembershipIndex(10);
+    index.put("/sites/a", members(), index.getGeneration());
+    assertNotNull(index.get("/sites/a", AUTHORIZABLES));
+    assertNull(index.get("/sites/a", Arrays.asList(new String[] { "g1", "g3" })));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testInvalidateByAuthorizable() {
+    SiteMembershipIndex index = new SiteMembershipIndex(10);
+    index.put("/sites/a", members(), index.getGeneration());
+    index.put("/sites/b", new SiteMembershipIndex.Members(Arrays
+        .asList(new String[] { "g3" }), Arrays.asList(new String[] { "dave" }), Arrays
+        .asList(new String[] { "g3" })), index.getGeneration());
+    index.invalidate(Arrays.asList(new String[] { "bob" }));
+    assertNull(index.get("/sites/a", AUTHORIZABLES));
+    assertNotNull(index.get("/sites/b", Arrays.asList(new String[] { "g3" })));
+    index.invalidate(Arrays.asList(new String[] { "g3" }));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testUserDeltas() {
+    SiteMembershipIndex index = new SiteMembershipIndex(10);
+    index.put("/sites/a", members(), index.getGeneration());
+    SiteMembershipIndex.Members before = index.get("/sites/a", AUTHORIZABLES);
+    List<String> page = before.getUsers(new Sort[] { new Sort(SortField.id,
+        SortOrder.asc) }, 0, 10);
+
+    // joining a group of the site adds the user without rebuilding the site.
+    index.updateUser("dave", Arrays.asList(new String[] { "g2" }));
+    SiteMembershipIndex.Members after = index.get("/sites/a", AUTHORIZABLES);
+    assertSame(before, after);
+    assertEquals(Arrays.asList(new String[] { "carol", "alice", "bob", "dave" }), after
+        .getUsers(null, 0, 10));
+    assertEquals(Arrays.asList(new String[] { "alice", "bob", "carol", "dave" }), after
+        .getUsers(new Sort[] { new Sort(SortField.id, SortOrder.asc) }, 0, 10));
+    // a page taken before the change is not changed under the caller.
+    assertEquals(Arrays.asList(new String[] { "alice", "bob", "carol" }), page);
+
+    // leaving every group of the site removes the user.
+    index.updateUser("bob", Arrays.asList(new String[] { "g9" }));
+    assertEquals(Arrays.asList(new String[] { "carol", "alice", "dave" }), index.get(
+        "/sites/a", AUTHORIZABLES).getUsers(null, 0, 10));
+    assertEquals(Arrays.asList(new String[] { "alice", "carol", "dave" }), index.get(
+        "/sites/a", AUTHORIZABLES).getUsers(
+        new Sort[] { new Sort(SortField.id, SortOrder.asc) }, 0, 10));
+    // the user is no longer indexed against the site.
+    index.invalidate(Arrays.asList(new String[] { "bob" }));
+    assertNotNull(index.get("/sites/a", AUTHORIZABLES));
+
+    // a change that leaves the user in the site changes nothing.
+    SiteMembershipIndex.Members unchanged = index.get("/sites/a", AUTHORIZABLES);
+    index.updateUser("alice", Arrays.asList(new String[] { "g1", "g9" }));
+    assertSame(unchanged, index.get("/sites/a", AUTHORIZABLES));
+
+    // a delta also stops a build that started before it from being put.
+    long generation = index.getGeneration();
+    index.updateUser("erin", Arrays.asList(new String[] { "g1" }));
+    index.put("/sites/b", members(), generation);
+    assertNull(index.get("/sites/b", AUTHORIZABLES));
+  }
+
+  @Test
+  public void testRemoveAuthorizable() {
+    SiteMembershipIndex index = new SiteMembershipIndex(10);
+    index.put("/sites/a", members(), index.getGeneration());
+    index.removeAuthorizable("alice");
+    assertEquals(Arrays.asList(new String[] { "carol", "bob" }), index.get("/sites/a",
+        AUTHORIZABLES).getUsers(null, 0, 10));
+    // the members of a removed group are not known, so the site is dropped.
+    index.removeAuthorizable("g2");
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testStalePut() {
+    SiteMembershipIndex index = new SiteMembershipIndex(10);
+    long generation = index.getGeneration();
+    index.invalidate(Arrays.asList(new String[] { "bob" }));
+    index.put("/sites/a", members(), generation);
+    assertNull(index.get("/sites/a", AUTHORIZABLES));
+  }
+
+  @Test
+  public void testMaxSites() {
+    SiteMembershipIndex index = new SiteMembershipIndex(2);
+    index.put("/sites/a", members(), index.getGeneration());
+    index.put("/sites/b", members(), index.getGeneration());
+    index.get("/sites/a", AUTHORIZABLES);
+    index.put("/sites/c", members(), index.getGeneration());
+    assertEquals(2, index.size());
+    assertNull(index.get("/sites/b", AUTHORIZABLES));
+    assertNotNull(index.get("/sites/a", AUTHORIZABLES));
+    // dropping the other sites leaves nothing behind for the authorizables.
+    index.invalidateSite("/sites/a");
+    index.invalidate(Arrays.asList(new String[] { "alice" }));
+    assertEquals(0, index.size());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures site name lookups through the {@link SiteNameIndex} at 1 to 16 threads, with
+ * sites being removed and found again as they would be by the site name listener and the
+ * fallback query. The query itself needs a repository and is not modelled. Not run as
+ * part of the build, run with java -cp target/test-classes:target/classes
+ * org.sakaiproject.kernel.site.SiteNameIndexBenchmark
+ */
+public class SiteNameIndexBenchmark {
+
+  private static final long RUN_MS = 2000L;
+  private static final int SITES = 5000;
+
+  public static void main(String[] args) throws Exception {
+    for (int threads = 1; threads <= 16; threads *= 2) {
+      run(threads);
+    }
+  }
+
+  private static void run(int threads) throws InterruptedException {
+    final SiteNameIndex index = new SiteNameIndex(SITES * 2);
+    for (int i = 0; i < SITES; i++) {
+      index.put("site" + i, "/sites/group" + (i % 50) + "/site" + i);
+    }
+    final AtomicLong ops = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final long end = System.currentTimeMillis() + RUN_MS;
+    for (int t = 0; t < threads; t++) {
+      final int seed = t;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            long n = 0;
+            int i = seed;
+            while (System.currentTimeMillis() < end) {
+              for (int j = 0; j < 100; j++) {
+                int site = (i++ * 31) % SITES;
+                String name = "site" + site;
+                if (index.get(name) == null) {
+                  // the fallback query found it again.
+                  misses.incrementAndGet();
+                  index.put(name, "/sites/group" + (site % 50) + "/" + name);
+                }
+                n++;
+              }
+              // a site is deleted now and then.
+              index.removeSubtree("/sites/group" + (i % 50) + "/site" + (i % SITES));
+            }
+            ops.addAndGet(n);
+          } catch (InterruptedException e) {
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+    System.out.println(threads + " threads: " + (ops.get() * 1000 / RUN_MS)
+        + " lookups/s, " + misses.get() + " misses");
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SiteNameIndexTest {
+
+  @Test
+  public void testPutGet() {
+    SiteNameIndex index = new SiteNameIndex(10);
+    index.put("physics", "/sites/physics");
+    assertEquals("/sites/physics", index.get("physics"));
+    assertNull(index.get("chemistry"));
+    // a site moved to a new path replaces the old one.
+    index.put("physics", "/sites/science/physics");
+    assertEquals("/sites/science/physics", index.get("physics"));
+    assertEquals(1, index.size());
+    index.removePath("/sites/physics");
+    assertEquals("/sites/science/physics", index.get("physics"));
+  }
+
+  @Test
+  public void testRemoveSubtree() {
+    SiteNameIndex index = new SiteNameIndex(10);
+    index.put("physics", "/sites/science/physics");
+    index.put("chemistry", "/sites/science/chemistry");
+    index.put("art", "/sites/sciences/art");
+    index.removeSubtree("/sites/science");
+    assertNull(index.get("physics"));
+    assertNull(index.get("chemistry"));
+    assertEquals("/sites/sciences/art", index.get("art"));
+    index.removeSubtree("/sites/sciences/art");
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testMaxNames() {
+    SiteNameIndex index = new SiteNameIndex(2);
+    index.put("a", "/sites/a");
+    index.put("b", "/sites/b");
+    index.get("a");
+    index.put("c", "/sites/c");
+    assertEquals(2, index.size());
+    assertNull(index.get("b"));
+    assertEquals("/sites/a", index.get("a"));
+    // the dropped name leaves nothing behind.
+    index.removeSubtree("/sites");
+    assertEquals(0, index.size());
+  }
+}
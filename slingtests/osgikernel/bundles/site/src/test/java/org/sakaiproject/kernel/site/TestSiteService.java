@@ -36,6 +36,11 @@ public class TestSiteService extends AbstractEasyMockTest {
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session);
     expect(session.getUserManager()).andReturn(userManager);
+    // the shared index is built with an administrative session.
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    expect(adminSession.getUserManager()).andReturn(userManager);
+    adminSession.logout();
     addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue("group1"),
         new MockValue("group2") });
 
@@ -47,6 +52,11 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(group1.getID()).andReturn("group1").anyTimes();
     expect(group2.getDeclaredMembers()).andReturn(createUserIterator("bob"));
     expect(group2.getID()).andReturn("group2").anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
+    // only the users in the page are resolved from the index.
+    User bob = createMock(User.class);
+    expect(bob.getID()).andReturn("bob").anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(bob);
 
     replay();
     Iterator<User> members = siteService.getMembers(siteNode, 0, 3, null);
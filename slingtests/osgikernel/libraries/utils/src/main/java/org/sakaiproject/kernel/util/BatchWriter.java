@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Writes a batch of items in one session and saves them together. If the batch fails to
+ * save, the changes are discarded and the items are written and saved one at a time, so
+ * that one bad item does not lose the rest.
+ * 
+ * @param <T>
+ *          the type of the items written.
+ */
+public abstract class BatchWriter<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchWriter.class);
+
+  /**
+   * Write and save a batch of items.
+   * 
+   * @param session
+   * @param batch
+   * @throws RepositoryException
+   *           if the changes could not be discarded, and the session can no longer be
+   *           used.
+   */
+  public void writeBatch(Session session, List<T> batch) throws RepositoryException {
+    if (batch.size() > 1) {
+      try {
+        for (T item : batch) {
+          write(session, item);
+        }
+        save(session);
+        saved(batch.size());
+        return;
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to save a batch of {}, retrying one at a time: {}", batch
+            .size(), e.getMessage());
+        discard(session);
+      }
+    }
+    for (T item : batch) {
+      try {
+        write(session, item);
+        save(session);
+        saved(1);
+      } catch (RepositoryException e) {
+        failed(item, e);
+        discard(session);
+      }
+    }
+  }
+
+  /**
+   * Write one item, without saving it.
+   * 
+   * @param session
+   * @param item
+   * @throws RepositoryException
+   */
+  protected abstract void write(Session session, T item) throws RepositoryException;
+
+  /**
+   * Called when an item could not be saved on its own.
+   * 
+   * @param item
+   * @param e
+   */
+  protected abstract void failed(T item, RepositoryException e);
+
+  /**
+   * Called when items have been saved.
+   * 
+   * @param count
+   *          the number of items saved.
+   */
+  protected void saved(int count) {
+  }
+
+  /**
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void save(Session session) throws RepositoryException {
+    session.save();
+  }
+
+  /**
+   * Throw away unsaved changes.
+   * 
+   * @param session
+   * @throws RepositoryException
+   */
+  protected void discard(Session session) throws RepositoryException {
+    session.refresh(false);
+  }
+}
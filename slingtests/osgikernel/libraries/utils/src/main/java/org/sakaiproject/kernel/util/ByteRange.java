@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of an entity, as requested by an HTTP Range header.
+ */
+public class ByteRange {
+
+  /**
+   * Requests for more ranges than this are served in full, a client has no good reason to
+   * ask for more and each range costs a seek.
+   */
+  public static final int MAX_RANGES = 32;
+
+  private final long start;
+  private final long end;
+
+  /**
+   * @param start
+   *          the first byte of the range.
+   * @param end
+   *          the last byte of the range, inclusive.
+   */
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * @return the first byte of the range.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return the last byte of the range, inclusive.
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * @return the number of bytes in the range.
+   */
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param length
+   *          the length of the entity.
+   * @return the value of the Content-Range header for this range.
+   */
+  public String toContentRange(long length) {
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  /**
+   * Parse a Range header, as defined by RFC 2616 section 14.35.
+   * 
+   * @param header
+   *          the value of the Range header.
+   * @param length
+   *          the length of the entity.
+   * @return the satisfiable ranges, in the order requested, an empty list if none of the
+   *         ranges can be satisfied, or null if the header is missing, is not valid or is
+   *         not worth honouring, in which case the entity should be sent in full.
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (header == null || !header.startsWith("bytes=")) {
+      return null;
+    }
+    String[] specs = header.substring("bytes=".length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      try {
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        long start;
+        long end;
+        if (first.length() == 0) {
+          // a suffix range, the last n bytes.
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix == 0 || length == 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(first);
+          end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last);
+          if (start < 0 || end < start) {
+            return null;
+          }
+          if (start >= length) {
+            continue;
+          }
+          end = Math.min(end, length - 1);
+        }
+        ranges.add(new ByteRange(start, end));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+
+}
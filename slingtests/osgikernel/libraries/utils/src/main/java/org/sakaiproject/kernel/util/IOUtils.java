@@ -18,10 +18,15 @@
 package org.sakaiproject.kernel.util;
 
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
@@ -29,6 +34,11 @@ import java.io.UnsupportedEncodingException;
  */
 public class IOUtils {
 
+  /**
+   * The size of the copy buffer used when none is passed in.
+   */
+  public static final int BUFFER_SIZE = 32768;
+
   /**
    * Read an input stream fully, and then close the input stream reliably.
    *
@@ -69,13 +79,87 @@ public class IOUtils {
    * @throws IOException
    */
   public static void stream(InputStream from, OutputStream to) throws IOException {
-    byte[] b = new byte[4096];
-    for(int i = from.read(b, 0, 4096); i >= 0; i = from.read(b, 0, 4096)) {
-      if ( i == 0 ) {
-        Thread.yield();
-      } else {
-        to.write(b,0,i);
+    byte[] b = new byte[BUFFER_SIZE];
+    for (int i = from.read(b, 0, b.length); i >= 0; i = from.read(b, 0, b.length)) {
+      to.write(b, 0, i);
+    }
+  }
+
+  /**
+   * Stream part of an input stream. If the stream reads a file the range is read from the
+   * file channel, without reading the bytes before it.
+   * 
+   * @param from
+   *          a stream positioned at the start of the content.
+   * @param to
+   * @param offset
+   *          the first byte to stream.
+   * @param length
+   *          the number of bytes to stream.
+   * @throws IOException
+   *           if there was an IOException, or the stream ended before the range.
+   */
+  public static void stream(InputStream from, OutputStream to, long offset, long length)
+      throws IOException {
+    stream(from, to, offset, length, null);
+  }
+
+  /**
+   * Stream part of an input stream, copying through a buffer owned by the caller, so that
+   * several ranges of one response can share it.
+   * 
+   * @param from
+   *          a stream positioned at the start of the content.
+   * @param to
+   * @param offset
+   *          the first byte to stream.
+   * @param length
+   *          the number of bytes to stream.
+   * @param buffer
+   *          the copy buffer, or null to allocate one if it is needed.
+   * @throws IOException
+   *           if there was an IOException, or the stream ended before the range.
+   */
+  public static void stream(InputStream from, OutputStream to, long offset, long length,
+      byte[] buffer) throws IOException {
+    if (from instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) from).getChannel();
+      WritableByteChannel target = Channels.newChannel(to);
+      long position = channel.position() + offset;
+      long remaining = length;
+      while (remaining > 0) {
+        long n = channel.transferTo(position, remaining, target);
+        if (n <= 0) {
+          throw new EOFException("Stream ended " + remaining
+              + " bytes before the end of the range");
+        }
+        position += n;
+        remaining -= n;
+      }
+      return;
+    }
+    long skip = offset;
+    while (skip > 0) {
+      long n = from.skip(skip);
+      if (n <= 0) {
+        // skip may not move at the end of a stream, read to find out.
+        if (from.read() < 0) {
+          throw new EOFException("Stream ended before the start of the range");
+        }
+        n = 1;
+      }
+      skip -= n;
+    }
+    byte[] b = buffer == null ? new byte[BUFFER_SIZE] : buffer;
+    long remaining = length;
+    while (remaining > 0) {
+      int i = from.read(b, 0, (int) Math.min(b.length, remaining));
+      if (i < 0) {
+        throw new EOFException("Stream ended " + remaining
+            + " bytes before the end of the range");
       }
+      to.write(b, 0, i);
+      remaining -= i;
     }
   }
 
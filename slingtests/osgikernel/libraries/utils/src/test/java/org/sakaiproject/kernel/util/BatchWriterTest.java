@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * 
+ */
+public class BatchWriterTest {
+
+  /**
+   * Records the items written and saved, without a repository.
+   */
+  private static class RecordingWriter extends BatchWriter<String> {
+    private List<String> pending = new ArrayList<String>();
+    private List<String> saved = new ArrayList<String>();
+    private List<String> failed = new ArrayList<String>();
+    private int saves;
+    private int count;
+    private String failOn;
+
+    @Override
+    protected void write(Session session, String item) {
+      pending.add(item);
+    }
+
+    @Override
+    protected void failed(String item, RepositoryException e) {
+      failed.add(item);
+    }
+
+    @Override
+    protected void saved(int count) {
+      this.count += count;
+    }
+
+    @Override
+    protected void save(Session session) throws RepositoryException {
+      saves++;
+      if (failOn != null && pending.contains(failOn)) {
+        throw new RepositoryException("Failed to save " + failOn);
+      }
+      saved.addAll(pending);
+      pending.clear();
+    }
+
+    @Override
+    protected void discard(Session session) {
+      pending.clear();
+    }
+  }
+
+  @Test
+  public void testBatchSavedOnce() throws RepositoryException {
+    RecordingWriter writer = new RecordingWriter();
+    writer.writeBatch(null, Arrays.asList("a", "b", "c"));
+    assertEquals(Arrays.asList("a", "b", "c"), writer.saved);
+    assertEquals(1, writer.saves);
+    assertEquals(3, writer.count);
+  }
+
+  @Test
+  public void testFailedBatchRetried() throws RepositoryException {
+    RecordingWriter writer = new RecordingWriter();
+    writer.failOn = "b";
+    writer.writeBatch(null, Arrays.asList("a", "b", "c"));
+    assertEquals(Arrays.asList("a", "c"), writer.saved);
+    assertEquals(Arrays.asList("b"), writer.failed);
+    assertEquals(2, writer.count);
+    assertEquals(4, writer.saves);
+    assertTrue(writer.pending.isEmpty());
+  }
+}
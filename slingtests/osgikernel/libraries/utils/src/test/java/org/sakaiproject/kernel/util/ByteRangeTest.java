@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.List;
+
+public class ByteRangeTest {
+
+  @Test
+  public void testParse() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-499, 500-, -100", 1000);
+    assertEquals(3, ranges.size());
+    assertEquals(0, ranges.get(0).getStart());
+    assertEquals(500, ranges.get(0).getLength());
+    assertEquals(500, ranges.get(1).getStart());
+    assertEquals(999, ranges.get(1).getEnd());
+    assertEquals(900, ranges.get(2).getStart());
+    assertEquals("bytes 900-999/1000", ranges.get(2).toContentRange(1000));
+
+    // ends past the entity are truncated, ranges starting past it are dropped.
+    ranges = ByteRange.parse("bytes=990-2000,1000-", 1000);
+    assertEquals(1, ranges.size());
+    assertEquals(990, ranges.get(0).getStart());
+    assertEquals(999, ranges.get(0).getEnd());
+    assertEquals(0, ByteRange.parse("bytes=1000-", 1000).size());
+    assertEquals(0, ByteRange.parse("bytes=-0", 1000).size());
+
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-1", 1000));
+    assertNull(ByteRange.parse("bytes=5-1", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=", 1000));
+  }
+
+  @Test
+  public void testStreamRange() throws Exception {
+    byte[] content = new byte[100000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    File f = File.createTempFile("byterange", ".bin");
+    f.deleteOnExit();
+    FileOutputStream fout = new FileOutputStream(f);
+    fout.write(content);
+    fout.close();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.stream(new ByteArrayInputStream(content), out, 40000, 50000);
+    checkRange(content, out.toByteArray(), 40000, 50000);
+
+    out = new ByteArrayOutputStream();
+    FileInputStream fin = new FileInputStream(f);
+    IOUtils.stream(fin, out, 40000, 50000);
+    fin.close();
+    checkRange(content, out.toByteArray(), 40000, 50000);
+
+    // a small buffer from the caller is reused across the reads of the range.
+    out = new ByteArrayOutputStream();
+    IOUtils.stream(new ByteArrayInputStream(content), out, 40000, 50000, new byte[1000]);
+    checkRange(content, out.toByteArray(), 40000, 50000);
+
+    out = new ByteArrayOutputStream();
+    IOUtils.stream(new ByteArrayInputStream(content), out);
+    checkRange(content, out.toByteArray(), 0, content.length);
+  }
+
+  private void checkRange(byte[] content, byte[] range, int offset, int length) {
+    assertEquals(length, range.length);
+    for (int i = 0; i < length; i++) {
+      assertEquals(content[offset + i], range[i]);
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput and the bytes read and served when a file is viewed again or read
+ * in parts, as a media player seeking through it would. Compares the previous approach of
+ * streaming the whole file with a 4k buffer against conditional requests and ranges, for a
+ * file stream and for a stream that is not backed by a file. Not run as part of the build,
+ * run with java -cp target/test-classes:target/classes
+ * org.sakaiproject.kernel.util.RangeStreamBenchmark
+ */
+public class RangeStreamBenchmark {
+
+  private static final int SIZE = 64 * 1024 * 1024;
+  private static final int VIEWS = 10;
+  private static final int SEEKS = 200;
+  private static final int RANGE = 256 * 1024;
+
+  public static void main(String[] args) throws IOException {
+    File f = File.createTempFile("rangebenchmark", ".bin");
+    f.deleteOnExit();
+    FileOutputStream fout = new FileOutputStream(f);
+    byte[] b = new byte[1024 * 1024];
+    new Random(1).nextBytes(b);
+    for (int i = 0; i < SIZE / b.length; i++) {
+      fout.write(b);
+    }
+    fout.close();
+
+    for (int round = 0; round < 3; round++) {
+      repeatViews(f);
+      seeks(f, true);
+      seeks(f, false);
+    }
+  }
+
+  /**
+   * Each view of the file after the first sends it in full without an ETag, and nothing
+   * with one.
+   */
+  private static void repeatViews(File f) throws IOException {
+    CountingOutputStream full = new CountingOutputStream();
+    long start = System.nanoTime();
+    for (int i = 0; i < VIEWS; i++) {
+      InputStream in = new FileInputStream(f);
+      oldStream(in, full);
+      in.close();
+    }
+    long fullTime = System.nanoTime() - start;
+
+    CountingOutputStream conditional = new CountingOutputStream();
+    start = System.nanoTime();
+    InputStream in = new FileInputStream(f);
+    IOUtils.stream(in, conditional);
+    in.close();
+    long conditionalTime = System.nanoTime() - start;
+
+    System.out.println(VIEWS + " views: full " + mb(full.count) + "MB in "
+        + (fullTime / 1000000) + "ms (" + rate(full.count, fullTime) + "MB/s), with ETag "
+        + mb(conditional.count) + "MB in " + (conditionalTime / 1000000) + "ms ("
+        + rate(conditional.count, conditionalTime) + "MB/s)");
+  }
+
+  /**
+   * Random seeks, each read up to the end of the range without ranges, and only the range
+   * with them.
+   */
+  private static void seeks(File f, boolean fileBacked) throws IOException {
+    Random r = new Random(2);
+    CountingOutputStream whole = new CountingOutputStream();
+    long start = System.nanoTime();
+    for (int i = 0; i < SEEKS / 10; i++) {
+      // without ranges a seek restarts the download, only a few are measured.
+      long offset = (long) r.nextInt(SIZE - RANGE);
+      InputStream in = open(f, fileBacked);
+      CountingOutputStream discard = new CountingOutputStream();
+      oldStream(new LimitedInputStream(in, offset + RANGE), discard);
+      in.close();
+      whole.count += discard.count;
+    }
+    long wholeTime = (System.nanoTime() - start) * 10;
+    whole.count *= 10;
+
+    CountingOutputStream ranged = new CountingOutputStream();
+    start = System.nanoTime();
+    for (int i = 0; i < SEEKS; i++) {
+      long offset = (long) r.nextInt(SIZE - RANGE);
+      List<ByteRange> ranges = ByteRange.parse("bytes=" + offset + "-", SIZE);
+      ByteRange range = ranges.get(0);
+      InputStream in = open(f, fileBacked);
+      IOUtils.stream(in, ranged, range.getStart(), Math.min(range.getLength(), RANGE));
+      in.close();
+    }
+    long rangedTime = System.nanoTime() - start;
+    System.out.println(SEEKS + " seeks (" + (fileBacked ? "file" : "stream")
+        + "): restart " + mb(whole.count) + "MB in " + (wholeTime / 1000000)
+        + "ms (estimated), ranges " + mb(ranged.count) + "MB in " + (rangedTime / 1000000)
+        + "ms (" + rate(ranged.count, rangedTime) + "MB/s)");
+  }
+
+  private static InputStream open(File f, boolean fileBacked) throws IOException {
+    InputStream in = new FileInputStream(f);
+    return fileBacked ? in : new BufferedInputStream(in);
+  }
+
+  /**
+   * The copy loop as it was before ranges were supported.
+   */
+  private static void oldStream(InputStream from, OutputStream to) throws IOException {
+    byte[] b = new byte[4096];
+    for (int i = from.read(b, 0, 4096); i >= 0; i = from.read(b, 0, 4096)) {
+      if (i == 0) {
+        Thread.yield();
+      } else {
+        to.write(b, 0, i);
+      }
+    }
+  }
+
+  private static long mb(long bytes) {
+    return bytes / (1024 * 1024);
+  }
+
+  private static long rate(long bytes, long nanos) {
+    return nanos == 0 ? 0 : (bytes * 1000000000L / nanos) / (1024 * 1024);
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  private static class LimitedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      this.in = in;
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      remaining--;
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+  }
+
+}